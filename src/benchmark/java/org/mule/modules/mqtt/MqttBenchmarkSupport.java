@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.concurrent.Semaphore;
+
+import org.dna.mqtt.moquette.server.Server;
+import org.mule.api.ConnectionException;
+import org.mule.api.callback.SourceCallback;
+import org.mule.modules.mqtt.MqttConnector.PersistenceType;
+import org.mule.util.FileUtils;
+
+/**
+ * Broker and connector plumbing shared by the benchmarks, which run the connector outside of Mule
+ * against the embedded test broker on loopback.
+ */
+public final class MqttBenchmarkSupport
+{
+    /**
+     * Value of the persistence benchmark parameter that disables persistence.
+     */
+    public static final String NO_PERSISTENCE = "NONE";
+
+    private MqttBenchmarkSupport()
+    {
+        // NOOP
+    }
+
+    public static int findFreePort() throws IOException
+    {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        try
+        {
+            return serverSocket.getLocalPort();
+        }
+        finally
+        {
+            serverSocket.close();
+        }
+    }
+
+    public static MqttTestBroker startBroker(final int port) throws IOException
+    {
+        FileUtils.deleteQuietly(new File(Server.STORAGE_FILE_PATH));
+
+        final MqttTestBroker broker = new MqttTestBroker();
+        broker.startServer(port);
+        return broker;
+    }
+
+    public static void stopBroker(final MqttTestBroker broker)
+    {
+        if (broker != null)
+        {
+            broker.stopServer();
+        }
+
+        FileUtils.deleteQuietly(new File(Server.STORAGE_FILE_PATH));
+    }
+
+    /**
+     * Connects a connector to the broker on loopback.
+     * 
+     * @param persistence {@link #NO_PERSISTENCE} or the name of a {@link PersistenceType}.
+     * @param persistenceDirectory where the persistence stores messages.
+     */
+    public static MqttConnector connect(final int port,
+                                        final String clientId,
+                                        final String persistence,
+                                        final File persistenceDirectory) throws ConnectionException
+    {
+        final MqttConnector connector = new MqttConnector();
+        connector.setBrokerServerUri("tcp://localhost:" + port);
+        connector.setCleanSession(true);
+
+        if (!NO_PERSISTENCE.equals(persistence))
+        {
+            connector.setPersistenceType(PersistenceType.valueOf(persistence));
+            connector.setPersistenceLocation(persistenceDirectory.getAbsolutePath());
+        }
+
+        connector.connect(clientId);
+        return connector;
+    }
+
+    public static File createTempDirectory(final String prefix) throws IOException
+    {
+        final File directory = File.createTempFile(prefix, "");
+        if ((!directory.delete()) || (!directory.mkdir()))
+        {
+            throw new IOException("Failed to create temporary directory: " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * @return a {@link SourceCallback} that releases a permit of the semaphore for each message it
+     *         processes.
+     */
+    public static SourceCallback newCountingCallback(final Semaphore processed)
+    {
+        final InvocationHandler handler = new InvocationHandler()
+        {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if (method.getDeclaringClass() == Object.class)
+                {
+                    return method.invoke(this, args);
+                }
+
+                processed.release();
+                return (args == null) || (args.length == 0) ? null : args[0];
+            }
+        };
+
+        return (SourceCallback) Proxy.newProxyInstance(SourceCallback.class.getClassLoader(),
+            new Class<?>[]{SourceCallback.class}, handler);
+    }
+}
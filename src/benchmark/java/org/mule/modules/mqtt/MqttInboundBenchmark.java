@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of handing a received message to the flow, from the client callback to the source callback,
+ * either on the callback thread or through the inbound dispatcher. The broker is only used to obtain
+ * a connected client: messages are injected in the listener directly.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MqttInboundBenchmark
+{
+    private static final String TOPIC_NAME = "benchmark/inbound";
+
+    @Param({"0", "2"})
+    public int dispatcherThreads;
+
+    @Param({"AT_LEAST_ONCE"})
+    public DeliveryQoS qos;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private MqttTestBroker broker;
+    private MqttConnector connector;
+    private MqttTopicListener listener;
+    private MqttTopic topic;
+    private MqttMessage message;
+    private final Semaphore processed = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final int port = MqttBenchmarkSupport.findFreePort();
+        broker = MqttBenchmarkSupport.startBroker(port);
+        connector = MqttBenchmarkSupport.connect(port, "benchmarkInbound", MqttBenchmarkSupport.NO_PERSISTENCE,
+            null);
+
+        final List<MqttTopicSubscription> subscriptions = Collections.singletonList(new MqttTopicSubscription(
+            TOPIC_NAME, qos));
+        final MqttInboundDispatcher dispatcher = dispatcherThreads > 0 ? new MqttInboundDispatcher(
+            "benchmark", dispatcherThreads, 1024) : null;
+        listener = new MqttTopicListener(connector, MqttBenchmarkSupport.newCountingCallback(processed),
+            subscriptions, dispatcher, false);
+
+        topic = connector.getMqttClient().getTopic(TOPIC_NAME);
+
+        final byte[] payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+        message = new MqttMessage(payload);
+        message.setQos(qos.getCode());
+    }
+
+    @TearDown(Level.Iteration)
+    public void discardProcessed()
+    {
+        processed.drainPermits();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        try
+        {
+            listener.stop();
+            connector.disconnect();
+        }
+        finally
+        {
+            MqttBenchmarkSupport.stopBroker(broker);
+        }
+    }
+
+    @Benchmark
+    public void messageArrived() throws Exception
+    {
+        listener.messageArrived(topic, message);
+    }
+}
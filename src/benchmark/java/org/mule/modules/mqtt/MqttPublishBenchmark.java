@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Publish throughput per QoS and persistence, and latency of a publication awaited until its
+ * completion, going through the same topic handles and message building as the publish processor.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class MqttPublishBenchmark
+{
+    /**
+     * Publications kept in flight by the throughput benchmark, below the client in-flight limit.
+     */
+    private static final int PIPELINE_DEPTH = 8;
+
+    private static final String TOPIC_NAME = "benchmark/publish";
+
+    @Param({"FIRE_AND_FORGET", "AT_LEAST_ONCE", "ONLY_ONCE"})
+    public DeliveryQoS qos;
+
+    @Param({MqttBenchmarkSupport.NO_PERSISTENCE, "FILE", "MAPPED_LOG", "MEMORY"})
+    public String persistence;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private MqttTestBroker broker;
+    private File persistenceDirectory;
+    private MqttConnector connector;
+    private byte[] payload;
+    private final MqttDeliveryToken[] pipeline = new MqttDeliveryToken[PIPELINE_DEPTH];
+    private int pipelineIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final int port = MqttBenchmarkSupport.findFreePort();
+        broker = MqttBenchmarkSupport.startBroker(port);
+        persistenceDirectory = MqttBenchmarkSupport.createTempDirectory("mqtt-publish-benchmark");
+        connector = MqttBenchmarkSupport.connect(port, "benchmarkPublisher", persistence, persistenceDirectory);
+
+        payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainPipeline() throws MqttException
+    {
+        for (int i = 0; i < pipeline.length; i++)
+        {
+            if (pipeline[i] != null)
+            {
+                pipeline[i].waitForCompletion();
+                pipeline[i] = null;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        try
+        {
+            connector.disconnect();
+        }
+        finally
+        {
+            MqttBenchmarkSupport.stopBroker(broker);
+            FileUtils.deleteQuietly(persistenceDirectory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public MqttDeliveryToken publish() throws MqttException
+    {
+        final MqttDeliveryToken previousToken = pipeline[pipelineIndex];
+        if (previousToken != null)
+        {
+            previousToken.waitForCompletion();
+        }
+
+        final MqttDeliveryToken token = newPublication();
+        pipeline[pipelineIndex] = token;
+        pipelineIndex = (pipelineIndex + 1) % PIPELINE_DEPTH;
+        return token;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public MqttDeliveryToken publishAndWaitForCompletion() throws MqttException
+    {
+        final MqttDeliveryToken token = newPublication();
+        token.waitForCompletion();
+        return token;
+    }
+
+    private MqttDeliveryToken newPublication() throws MqttException
+    {
+        final MqttTopic topic = connector.getPublisherTopic(TOPIC_NAME);
+        final MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos.getCode());
+        return topic.publish(message);
+    }
+}
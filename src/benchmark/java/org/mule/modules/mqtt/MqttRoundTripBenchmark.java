@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a message going through the broker, from its publication to its processing by a
+ * listener sharing the client of the publisher, per QoS and persistence.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MqttRoundTripBenchmark
+{
+    private static final String TOPIC_NAME = "benchmark/roundtrip";
+
+    @Param({"FIRE_AND_FORGET", "AT_LEAST_ONCE", "ONLY_ONCE"})
+    public DeliveryQoS qos;
+
+    @Param({MqttBenchmarkSupport.NO_PERSISTENCE, "FILE"})
+    public String persistence;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private MqttTestBroker broker;
+    private File persistenceDirectory;
+    private MqttConnector connector;
+    private MqttTopicListener listener;
+    private byte[] payload;
+    private final Semaphore processed = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final int port = MqttBenchmarkSupport.findFreePort();
+        broker = MqttBenchmarkSupport.startBroker(port);
+        persistenceDirectory = MqttBenchmarkSupport.createTempDirectory("mqtt-roundtrip-benchmark");
+        connector = MqttBenchmarkSupport.connect(port, "benchmarkRoundTrip", persistence, persistenceDirectory);
+
+        listener = new MqttTopicListener(connector, MqttBenchmarkSupport.newCountingCallback(processed),
+            Collections.singletonList(new MqttTopicSubscription(TOPIC_NAME, qos)));
+        listener.connect();
+
+        payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        try
+        {
+            listener.stop();
+            connector.disconnect();
+        }
+        finally
+        {
+            MqttBenchmarkSupport.stopBroker(broker);
+            FileUtils.deleteQuietly(persistenceDirectory);
+        }
+    }
+
+    @Benchmark
+    public void publishAndReceive() throws Exception
+    {
+        final MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos.getCode());
+        connector.getPublisherTopic(TOPIC_NAME).publish(message);
+
+        // QoS 0 messages can be lost, which must not hang the benchmark
+        processed.tryAcquire(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+
+/**
+ * Counts and latencies of a load test, per QoS. Each payload starts with the time it was due to be
+ * published and its QoS, so the latency from its publication to its processing is measured by the
+ * subscriber in the same JVM.
+ */
+public class MqttLoadReport
+{
+    /**
+     * Bytes at the start of the payloads holding the due time and the QoS.
+     */
+    public static final int HEADER_LENGTH = 9;
+
+    private static final class QoSCounters
+    {
+        private final AtomicLong publishedCount = new AtomicLong();
+        private final AtomicLong failedCount = new AtomicLong();
+        private final AtomicLong receivedCount = new AtomicLong();
+        private final MqttLatencyHistogram latencies = new MqttLatencyHistogram();
+    }
+
+    private final QoSCounters[] counters = new QoSCounters[DeliveryQoS.values().length];
+    private final MqttLatencyHistogram publishLatencies = new MqttLatencyHistogram();
+    private final AtomicLong brokerRestartCount = new AtomicLong();
+    private volatile long startTime = System.nanoTime();
+
+    public MqttLoadReport()
+    {
+        for (int i = 0; i < counters.length; i++)
+        {
+            counters[i] = new QoSCounters();
+        }
+    }
+
+    /**
+     * @param dueTime the {@link System#nanoTime()} at which the payload is due to be published.
+     * @return a new payload of the given size starting with the due time and the QoS.
+     */
+    public static byte[] newPayload(final int size, final long dueTime, final DeliveryQoS qos)
+    {
+        final byte[] payload = new byte[Math.max(HEADER_LENGTH, size)];
+        ByteBuffer.wrap(payload).putLong(dueTime).put((byte) qos.getCode());
+        return payload;
+    }
+
+    /**
+     * @param publishTime time in nanoseconds spent publishing the payload.
+     */
+    public void published(final DeliveryQoS qos, final long publishTime)
+    {
+        counters[qos.ordinal()].publishedCount.incrementAndGet();
+        publishLatencies.record(publishTime);
+    }
+
+    public void failed(final DeliveryQoS qos)
+    {
+        counters[qos.ordinal()].failedCount.incrementAndGet();
+    }
+
+    public void received(final byte[] payload)
+    {
+        if (payload.length < HEADER_LENGTH)
+        {
+            return;
+        }
+
+        final ByteBuffer header = ByteBuffer.wrap(payload);
+        final long dueTime = header.getLong();
+        final QoSCounters qosCounters = counters[DeliveryQoS.fromCode(header.get()).ordinal()];
+        qosCounters.receivedCount.incrementAndGet();
+        qosCounters.latencies.record(System.nanoTime() - dueTime);
+    }
+
+    public void brokerRestarted()
+    {
+        brokerRestartCount.incrementAndGet();
+    }
+
+    /**
+     * Forgets everything recorded so far, at the end of the warm up.
+     */
+    public void reset()
+    {
+        for (final QoSCounters qosCounters : counters)
+        {
+            qosCounters.publishedCount.set(0L);
+            qosCounters.failedCount.set(0L);
+            qosCounters.receivedCount.set(0L);
+            qosCounters.latencies.reset();
+        }
+        publishLatencies.reset();
+        brokerRestartCount.set(0L);
+        startTime = System.nanoTime();
+    }
+
+    public long getPublishedCount()
+    {
+        long publishedCount = 0L;
+        for (final QoSCounters qosCounters : counters)
+        {
+            publishedCount += qosCounters.publishedCount.get();
+        }
+        return publishedCount;
+    }
+
+    public long getReceivedCount()
+    {
+        long receivedCount = 0L;
+        for (final QoSCounters qosCounters : counters)
+        {
+            receivedCount += qosCounters.receivedCount.get();
+        }
+        return receivedCount;
+    }
+
+    /**
+     * @return a one line summary of the progress of the test.
+     */
+    public String progress()
+    {
+        final double elapsedSeconds = elapsedSeconds();
+        final MqttLatencyHistogram latencies = counters[DeliveryQoS.AT_LEAST_ONCE.ordinal()].latencies;
+        return String.format("%6.0fs published: %d (%.0f/s) received: %d (%.0f/s) QoS 1 p99: %.2fms",
+            elapsedSeconds, getPublishedCount(), getPublishedCount() / elapsedSeconds, getReceivedCount(),
+            getReceivedCount() / elapsedSeconds, millis(latencies.getValueAtPercentile(99.0)));
+    }
+
+    /**
+     * @param connectors the connectors whose connection losses and reconnections are reported.
+     */
+    public String summary(final String settings, final Collection<MqttConnector> connectors)
+    {
+        final double elapsedSeconds = elapsedSeconds();
+
+        long connectionLostCount = 0L;
+        long reconnectionCount = 0L;
+        for (final MqttConnector connector : connectors)
+        {
+            connectionLostCount += connector.getStatistics().getConnectionLostCount();
+            reconnectionCount += connector.getStatistics().getReconnectionCount();
+        }
+
+        final StringBuilder summary = new StringBuilder();
+        summary.append(settings).append('\n');
+        summary.append(String.format("Duration: %.0fs - Broker restarts: %d - Connections lost: %d - "
+                                     + "Reconnections: %d%n", elapsedSeconds, brokerRestartCount.get(),
+            connectionLostCount, reconnectionCount));
+        summary.append(String.format("Throughput: published %.0f msg/s - received %.0f msg/s%n",
+            getPublishedCount() / elapsedSeconds, getReceivedCount() / elapsedSeconds));
+        summary.append(String.format("%-17s %10s %10s %10s %10s %9s %9s %9s %9s%n", "Latency (ms)", "Published",
+            "Failed", "Received", "Missing", "p50", "p99", "p999", "max"));
+        for (final DeliveryQoS qos : DeliveryQoS.values())
+        {
+            final QoSCounters qosCounters = counters[qos.ordinal()];
+            // in flight when the test stopped, lost, or duplicated for negative numbers
+            final long missingCount = qosCounters.publishedCount.get() - qosCounters.receivedCount.get();
+            summary.append(String.format("%-17s %10d %10d %10d %10d %s%n", qos, qosCounters.publishedCount.get(),
+                qosCounters.failedCount.get(), qosCounters.receivedCount.get(), missingCount,
+                percentiles(qosCounters.latencies)));
+        }
+        summary.append(String.format("%-17s %10s %10s %10s %10s %s%n", "publish call", "", "", "", "",
+            percentiles(publishLatencies)));
+        return summary.toString();
+    }
+
+    private static String percentiles(final MqttLatencyHistogram latencies)
+    {
+        return String.format("%9.2f %9.2f %9.2f %9.2f", millis(latencies.getValueAtPercentile(50.0)),
+            millis(latencies.getValueAtPercentile(99.0)), millis(latencies.getValueAtPercentile(99.9)),
+            millis(latencies.getMax()));
+    }
+
+    private double elapsedSeconds()
+    {
+        return Math.max(1L, System.nanoTime() - startTime) / (double) TimeUnit.SECONDS.toNanos(1L);
+    }
+
+    private static double millis(final long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+}
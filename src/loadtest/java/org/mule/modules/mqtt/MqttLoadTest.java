@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dna.mqtt.moquette.server.Server;
+import org.mule.api.MuleEvent;
+import org.mule.api.MuleMessage;
+import org.mule.api.callback.SourceCallback;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.modules.mqtt.MqttConnector.DuplicateDetection;
+import org.mule.modules.mqtt.MqttConnector.OverflowPolicy;
+import org.mule.modules.mqtt.MqttConnector.PayloadCompression;
+import org.mule.util.FileUtils;
+import org.mule.util.StringUtils;
+
+/**
+ * Load and soak test of the connector outside of Mule: a fleet of simulated devices publishes
+ * through the <code>publish</code> processor of a number of client connections, while subscribers
+ * receive everything through the <code>subscribe</code> source. The embedded test broker can be
+ * restarted periodically to cause reconnection storms.
+ * <p/>
+ * Latencies are measured from the time each message was due to be published to its processing by
+ * a subscriber, so the messages delayed by stalled publishers are accounted for. The test is
+ * configured with the following system properties:
+ * <ul>
+ * <li><code>loadtest.devices</code>: number of simulated devices, each publishing on its own topic.</li>
+ * <li><code>loadtest.clients</code>: number of client connections the devices are spread over.</li>
+ * <li><code>loadtest.subscribers</code>: number of subscriber connections the topics are spread
+ * over.</li>
+ * <li><code>loadtest.rate</code>: messages per second published by each device.</li>
+ * <li><code>loadtest.payloadSize</code>: size in bytes of the payloads.</li>
+ * <li><code>loadtest.qosMix</code>: weights of the QoS of the devices, like
+ * <code>FIRE_AND_FORGET:20,AT_LEAST_ONCE:70,ONLY_ONCE:10</code>.</li>
+ * <li><code>loadtest.publisherThreads</code>: number of threads publishing for the devices.</li>
+ * <li><code>loadtest.dispatcherThreads</code>: dispatcher threads of each subscriber, zero to
+ * process messages on the client thread.</li>
+ * <li><code>loadtest.offlineQueueSize</code>: size of the offline queue of the clients, zero to fail
+ * publications while disconnected.</li>
+ * <li><code>loadtest.warmUp</code>, <code>loadtest.duration</code>: in seconds.</li>
+ * <li><code>loadtest.brokerRestartInterval</code>, <code>loadtest.brokerDowntime</code>: in
+ * seconds, zero for no restart.</li>
+ * <li><code>loadtest.brokerServerUri</code>: URI of an external broker to use instead of the
+ * embedded one, which is then never restarted.</li>
+ * <li><code>loadtest.reportInterval</code>: in seconds, and <code>loadtest.reportFile</code>: where
+ * the final report is written.</li>
+ * </ul>
+ * Progress and the final report are logged at INFO level, so runs within tests are as verbose as
+ * their logging configuration.
+ */
+public class MqttLoadTest
+{
+    private static final Log LOGGER = LogFactory.getLog(MqttLoadTest.class);
+
+    private static final String PROPERTY_PREFIX = "loadtest.";
+    private static final String TOPIC_PREFIX = "loadtest/";
+
+    /**
+     * Time given to the messages in flight to arrive once publications stop.
+     */
+    private static final long DRAIN_TIME_OUT = TimeUnit.SECONDS.toMillis(30L);
+
+    private final int deviceCount = intProperty("devices", 10000);
+    private final int clientCount = intProperty("clients", 20);
+    private final int subscriberCount = intProperty("subscribers", 2);
+    private final double rate = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "rate", "1"));
+    private final int payloadSize = intProperty("payloadSize", 256);
+    private final String qosMix = System.getProperty(PROPERTY_PREFIX + "qosMix",
+        "FIRE_AND_FORGET:20,AT_LEAST_ONCE:70,ONLY_ONCE:10");
+    private final int publisherThreads = intProperty("publisherThreads", 4);
+    private final int dispatcherThreads = intProperty("dispatcherThreads", 4);
+    private final int offlineQueueSize = intProperty("offlineQueueSize", 100000);
+    private final long warmUp = TimeUnit.SECONDS.toMillis(intProperty("warmUp", 10));
+    private final long duration = TimeUnit.SECONDS.toMillis(intProperty("duration", 60));
+    private final long brokerRestartInterval = TimeUnit.SECONDS.toMillis(intProperty("brokerRestartInterval", 0));
+    private final long brokerDowntime = TimeUnit.SECONDS.toMillis(intProperty("brokerDowntime", 5));
+    private final String brokerServerUri = System.getProperty(PROPERTY_PREFIX + "brokerServerUri");
+    private final long reportInterval = TimeUnit.SECONDS.toMillis(intProperty("reportInterval", 5));
+    private final String reportFile = System.getProperty(PROPERTY_PREFIX + "reportFile");
+
+    private final MqttLoadReport report = new MqttLoadReport();
+    private final List<MqttConnector> clients = new ArrayList<MqttConnector>();
+    private final List<MqttConnector> subscribers = new ArrayList<MqttConnector>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final DeliveryQoS[] deviceQoS;
+    private volatile boolean running = true;
+    private int port;
+    private MqttTestBroker broker;
+
+    public MqttLoadTest()
+    {
+        deviceQoS = assignQoS(deviceCount, qosMix);
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final MqttLoadTest loadTest = new MqttLoadTest();
+        try
+        {
+            loadTest.run();
+        }
+        finally
+        {
+            loadTest.stop();
+        }
+
+        // the client and broker threads don't all stop with their owners
+        System.exit(0);
+    }
+
+    public void run() throws Exception
+    {
+        LOGGER.info(settings());
+
+        if (StringUtils.isBlank(brokerServerUri))
+        {
+            port = findFreePort();
+            startBroker();
+        }
+
+        for (int i = 0; i < subscriberCount; i++)
+        {
+            subscribers.add(connect("loadtestSubscriber" + i, 0));
+            startSubscription(subscribers.get(i), TOPIC_PREFIX + i + "/#");
+        }
+        for (int i = 0; i < clientCount; i++)
+        {
+            clients.add(connect("loadtestClient" + i, offlineQueueSize));
+        }
+
+        for (int i = 0; i < publisherThreads; i++)
+        {
+            start("mqtt-loadtest-publisher-" + i, newPublisher(i));
+        }
+        if ((brokerRestartInterval > 0L) && (broker != null))
+        {
+            start("mqtt-loadtest-fault-injector", newFaultInjector());
+        }
+
+        final long warmUpEnd = System.currentTimeMillis() + warmUp;
+        final long end = warmUpEnd + duration;
+        boolean warmingUp = warmUp > 0L;
+        while (System.currentTimeMillis() < end)
+        {
+            Thread.sleep(Math.min(reportInterval, Math.max(1L, (warmingUp ? warmUpEnd : end)
+                                                               - System.currentTimeMillis())));
+
+            if ((warmingUp) && (System.currentTimeMillis() >= warmUpEnd))
+            {
+                report.reset();
+                warmingUp = false;
+                LOGGER.info("Warm up done");
+            }
+            else
+            {
+                LOGGER.info((warmingUp ? "warm up " : "") + report.progress());
+            }
+        }
+
+        running = false;
+        for (final Thread thread : threads)
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(10L));
+        }
+        awaitDrain();
+
+        final List<MqttConnector> connectors = new ArrayList<MqttConnector>(clients);
+        connectors.addAll(subscribers);
+        final String summary = report.summary(settings(), connectors);
+        LOGGER.info(summary);
+        if (StringUtils.isNotBlank(reportFile))
+        {
+            FileUtils.writeStringToFile(new File(reportFile), summary);
+        }
+    }
+
+    public void stop()
+    {
+        running = false;
+
+        // the publishers and the fault injector may be parked or sleeping between broker restarts
+        for (final Thread thread : threads)
+        {
+            thread.interrupt();
+        }
+
+        final List<MqttConnector> connectors = new ArrayList<MqttConnector>(clients);
+        connectors.addAll(subscribers);
+        for (final MqttConnector connector : connectors)
+        {
+            try
+            {
+                connector.disconnect();
+            }
+            catch (final Exception e)
+            {
+                LOGGER.warn("Failed to disconnect " + connector.getActiveClientId(), e);
+            }
+        }
+
+        stopBroker();
+    }
+
+    MqttLoadReport getReport()
+    {
+        return report;
+    }
+
+    private String settings()
+    {
+        return String.format("Load test: %d devices on %d clients and %d subscribers - %s msg/s per device - "
+                             + "%d bytes - QoS mix: %s - broker restart every %ds for %ds", deviceCount,
+            clientCount, subscriberCount, rate, payloadSize, qosMix,
+            TimeUnit.MILLISECONDS.toSeconds(brokerRestartInterval), TimeUnit.MILLISECONDS.toSeconds(brokerDowntime));
+    }
+
+    private MqttConnector connect(final String clientId, final int clientOfflineQueueSize) throws Exception
+    {
+        final MqttConnector connector = new MqttConnector();
+        connector.setBrokerServerUri(StringUtils.isBlank(brokerServerUri)
+            ? "tcp://localhost:" + port : brokerServerUri);
+        connector.setCleanSession(true);
+        connector.setOfflineQueueSize(clientOfflineQueueSize);
+        connector.connect(clientId);
+        return connector;
+    }
+
+    private void startSubscription(final MqttConnector subscriber, final String topicFilter) throws Exception
+    {
+        // the subscribe source returns once subscribed, its listener and dispatcher threads being
+        // stopped when the subscriber disconnects
+        subscriber.subscribe(topicFilter, DeliveryQoS.ONLY_ONCE, null, dispatcherThreads, 1024, 0,
+            OverflowPolicy.BLOCK, null, false, DuplicateDetection.NONE, 60000L, 10000, 0, null, null, null, null,
+            null, null, newReportingCallback());
+    }
+
+    /**
+     * Publishes for the devices assigned to the thread, each at the configured rate. Once late, the
+     * publisher catches up by publishing without pause.
+     */
+    private Runnable newPublisher(final int publisherIndex)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                final List<Integer> devices = new ArrayList<Integer>();
+                for (int device = publisherIndex; device < deviceCount; device += publisherThreads)
+                {
+                    devices.add(device);
+                }
+                if ((devices.isEmpty()) || (rate <= 0.0))
+                {
+                    return;
+                }
+
+                final long interval = (long) (TimeUnit.SECONDS.toNanos(1L) / (rate * devices.size()));
+                final MuleEvent muleEvent = newMuleEvent();
+                long dueTime = System.nanoTime();
+                int index = 0;
+                while (running)
+                {
+                    final long wait = dueTime - System.nanoTime();
+                    if (wait > 0L)
+                    {
+                        LockSupport.parkNanos(wait);
+                        continue;
+                    }
+
+                    publish(devices.get(index), dueTime, muleEvent);
+                    index = (index + 1) % devices.size();
+                    dueTime += interval;
+                }
+            }
+        };
+    }
+
+    private void publish(final int device, final long dueTime, final MuleEvent muleEvent)
+    {
+        final DeliveryQoS qos = deviceQoS[device];
+        final String topicName = TOPIC_PREFIX + (device % subscriberCount) + "/devices/" + device;
+        final byte[] payload = MqttLoadReport.newPayload(payloadSize, dueTime, qos);
+
+        final long publishStart = System.nanoTime();
+        try
+        {
+            clients.get(device % clientCount).publish(topicName, null, qos, PayloadCompression.NONE, 256, false, 0L,
+                65536, payload, muleEvent);
+            report.published(qos, System.nanoTime() - publishStart);
+        }
+        catch (final Exception e)
+        {
+            report.failed(qos);
+        }
+    }
+
+    /**
+     * Stops the broker periodically, restarting it on the same port after the downtime.
+     */
+    private Runnable newFaultInjector()
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    while (running)
+                    {
+                        Thread.sleep(brokerRestartInterval);
+                        if (!running)
+                        {
+                            return;
+                        }
+
+                        LOGGER.info("Stopping broker for " + brokerDowntime + "ms");
+                        stopBroker();
+                        Thread.sleep(brokerDowntime);
+                        startBroker();
+                        report.brokerRestarted();
+                        LOGGER.info("Broker restarted");
+                    }
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (final IOException ioe)
+                {
+                    LOGGER.error("Failed to restart broker", ioe);
+                }
+            }
+        };
+    }
+
+    private void awaitDrain() throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + DRAIN_TIME_OUT;
+        long receivedCount = -1L;
+        while ((report.getReceivedCount() != receivedCount) && (System.currentTimeMillis() < deadline))
+        {
+            receivedCount = report.getReceivedCount();
+            Thread.sleep(1000L);
+        }
+    }
+
+    private void start(final String name, final Runnable runnable)
+    {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private synchronized void startBroker() throws IOException
+    {
+        FileUtils.deleteQuietly(new File(Server.STORAGE_FILE_PATH));
+
+        broker = new MqttTestBroker();
+        broker.startServer(port);
+    }
+
+    private synchronized void stopBroker()
+    {
+        if (broker != null)
+        {
+            broker.stopServer();
+            broker = null;
+        }
+
+        FileUtils.deleteQuietly(new File(Server.STORAGE_FILE_PATH));
+    }
+
+    /**
+     * @return the QoS of each device, spread according to the weights of the mix.
+     */
+    static DeliveryQoS[] assignQoS(final int deviceCount, final String qosMix)
+    {
+        final List<DeliveryQoS> weightedQoS = new ArrayList<DeliveryQoS>();
+        for (final String weight : StringUtils.splitAndTrim(qosMix, ","))
+        {
+            final String[] parts = StringUtils.splitAndTrim(weight, ":");
+            final DeliveryQoS qos = DeliveryQoS.valueOf(parts[0]);
+            final int count = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            for (int i = 0; i < count; i++)
+            {
+                weightedQoS.add(qos);
+            }
+        }
+        if (weightedQoS.isEmpty())
+        {
+            throw new IllegalArgumentException("Invalid QoS mix: " + qosMix);
+        }
+
+        final DeliveryQoS[] deviceQoS = new DeliveryQoS[deviceCount];
+        for (int device = 0; device < deviceCount; device++)
+        {
+            deviceQoS[device] = weightedQoS.get(device % weightedQoS.size());
+        }
+        return deviceQoS;
+    }
+
+    private static int intProperty(final String name, final int defaultValue)
+    {
+        return Integer.getInteger(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    private static int findFreePort() throws IOException
+    {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        try
+        {
+            return serverSocket.getLocalPort();
+        }
+        finally
+        {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * @return a {@link SourceCallback} recording the latency of each message it processes.
+     */
+    private SourceCallback newReportingCallback()
+    {
+        final InvocationHandler handler = new InvocationHandler()
+        {
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                if (method.getDeclaringClass() == Object.class)
+                {
+                    return method.invoke(this, args);
+                }
+
+                if ((args != null) && (args.length > 0) && (args[0] instanceof byte[]))
+                {
+                    report.received((byte[]) args[0]);
+                }
+                return (args == null) || (args.length == 0) ? null : args[0];
+            }
+        };
+
+        return (SourceCallback) Proxy.newProxyInstance(SourceCallback.class.getClassLoader(),
+            new Class<?>[]{SourceCallback.class}, handler);
+    }
+
+    /**
+     * @return a {@link MuleEvent} good enough for the publish processor, which only reads the
+     *         encoding of byte array payloads and sets the delivery token variable.
+     */
+    private static MuleEvent newMuleEvent()
+    {
+        final MuleMessage muleMessage = (MuleMessage) Proxy.newProxyInstance(MuleMessage.class.getClassLoader(),
+            new Class<?>[]{MuleMessage.class}, new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    return "getEncoding".equals(method.getName()) ? "UTF-8" : null;
+                }
+            });
+
+        return (MuleEvent) Proxy.newProxyInstance(MuleEvent.class.getClassLoader(),
+            new Class<?>[]{MuleEvent.class}, new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    return "getMessage".equals(method.getName()) ? muleMessage : null;
+                }
+            });
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+
+/**
+ * Item of a batch publication that overrides the batch topic name and QoS.
+ */
+public class MqttBatchMessage
+{
+    private String topicName;
+    private DeliveryQoS qos;
+    private byte[] payload;
+
+    public MqttBatchMessage()
+    {
+        // NOOP
+    }
+
+    public MqttBatchMessage(final String topicName, final DeliveryQoS qos, final byte[] payload)
+    {
+        this.topicName = topicName;
+        this.qos = qos;
+        this.payload = payload;
+    }
+
+    public String getTopicName()
+    {
+        return topicName;
+    }
+
+    public void setTopicName(final String topicName)
+    {
+        this.topicName = topicName;
+    }
+
+    public DeliveryQoS getQos()
+    {
+        return qos;
+    }
+
+    public void setQos(final DeliveryQoS qos)
+    {
+        this.qos = qos;
+    }
+
+    public byte[] getPayload()
+    {
+        return payload;
+    }
+
+    public void setPayload(final byte[] payload)
+    {
+        this.payload = payload;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Topic Name: " + getTopicName() + " - QoS: " + getQos();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+
+/**
+ * Aggregated delivery result of a batch publication.
+ */
+public class MqttBatchResult
+{
+    private final List<MqttDeliveryToken> deliveryTokens;
+
+    public MqttBatchResult(final List<MqttDeliveryToken> deliveryTokens)
+    {
+        this.deliveryTokens = Collections.unmodifiableList(deliveryTokens);
+    }
+
+    /**
+     * @return the tokens of the published messages, in publication order.
+     */
+    public List<MqttDeliveryToken> getDeliveryTokens()
+    {
+        return deliveryTokens;
+    }
+
+    public int getPublishedCount()
+    {
+        return deliveryTokens.size();
+    }
+
+    public int getCompletedCount()
+    {
+        int completedCount = 0;
+        for (final MqttDeliveryToken token : deliveryTokens)
+        {
+            if (token.isComplete())
+            {
+                completedCount++;
+            }
+        }
+        return completedCount;
+    }
+
+    public boolean isComplete()
+    {
+        return getCompletedCount() == getPublishedCount();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Published: " + getPublishedCount() + " - Completed: " + getCompletedCount();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.modules.mqtt.MqttConnector.BrokerSelection;
+import org.mule.util.StringUtils;
+
+/**
+ * Chooses the broker each connection of the connector connects to, among the brokers of a comma
+ * separated list of URIs. Brokers are health checked by periodically opening a TCP connection to
+ * them, which also measures their round-trip time. Brokers failing a check, or a connection, are
+ * avoided until they pass a check again, unless all the brokers are down.
+ * <p/>
+ * Brokers are chosen whenever a connection is made. A connection that is lost reconnects to the
+ * same broker while it is up, and only moves to the selected broker when it is down, so its
+ * session and in-flight messages stay with the broker that knows them.
+ */
+public class MqttBrokerSelector
+{
+    private static final Log LOGGER = LogFactory.getLog(MqttBrokerSelector.class);
+
+    private static final int DEFAULT_TCP_PORT = 1883;
+    private static final int DEFAULT_SSL_PORT = 8883;
+
+    /**
+     * Weight of a new round-trip time sample in the smoothed value.
+     */
+    private static final double RTT_SMOOTHING = 0.25d;
+
+    private static final class Broker
+    {
+        private final String serverUri;
+        private final String host;
+        private final int port;
+        private volatile boolean healthy = true;
+        private volatile long smoothedRtt = -1L;
+
+        private Broker(final String serverUri)
+        {
+            this.serverUri = serverUri;
+
+            final URI uri;
+            try
+            {
+                uri = new URI(serverUri);
+            }
+            catch (final URISyntaxException use)
+            {
+                throw new IllegalArgumentException("Invalid broker server URI: " + serverUri, use);
+            }
+
+            // only TCP based brokers can be probed
+            final boolean probed = (uri.getHost() != null)
+                                   && (("tcp".equals(uri.getScheme())) || ("ssl".equals(uri.getScheme())));
+            this.host = probed ? uri.getHost() : null;
+            this.port = uri.getPort() >= 0 ? uri.getPort() : "ssl".equals(uri.getScheme())
+                ? DEFAULT_SSL_PORT : DEFAULT_TCP_PORT;
+        }
+
+        private void recordRoundTripTime(final long rtt)
+        {
+            smoothedRtt = smoothedRtt < 0L ? rtt : (long) (smoothedRtt * (1d - RTT_SMOOTHING) + rtt * RTT_SMOOTHING);
+        }
+    }
+
+    private final List<Broker> brokers;
+    private final BrokerSelection selection;
+    private final AtomicInteger roundRobinCounter = new AtomicInteger();
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * @param serverUris comma separated list of broker URIs, in order of preference.
+     */
+    public MqttBrokerSelector(final String serverUris, final BrokerSelection selection)
+    {
+        final List<Broker> parsedBrokers = new ArrayList<Broker>();
+        for (final String serverUri : StringUtils.splitAndTrim(serverUris, ","))
+        {
+            parsedBrokers.add(new Broker(serverUri));
+        }
+        if (parsedBrokers.isEmpty())
+        {
+            throw new IllegalArgumentException("No broker server URI in: " + serverUris);
+        }
+
+        this.brokers = Collections.unmodifiableList(parsedBrokers);
+        this.selection = selection;
+    }
+
+    public int size()
+    {
+        return brokers.size();
+    }
+
+    /**
+     * @return the URI of the broker a new connection should connect to.
+     */
+    public String select()
+    {
+        if (brokers.size() == 1)
+        {
+            return brokers.get(0).serverUri;
+        }
+
+        List<Broker> candidates = new ArrayList<Broker>(brokers.size());
+        for (final Broker broker : brokers)
+        {
+            if (broker.healthy)
+            {
+                candidates.add(broker);
+            }
+        }
+        if (candidates.isEmpty())
+        {
+            candidates = brokers;
+        }
+
+        switch (selection)
+        {
+            case ROUND_ROBIN :
+                return candidates.get((roundRobinCounter.getAndIncrement() & Integer.MAX_VALUE)
+                                      % candidates.size()).serverUri;
+
+            case LEAST_LATENCY :
+                Broker fastest = candidates.get(0);
+                for (final Broker broker : candidates)
+                {
+                    // brokers not probed yet come last
+                    if ((broker.smoothedRtt >= 0L)
+                        && ((fastest.smoothedRtt < 0L) || (broker.smoothedRtt < fastest.smoothedRtt)))
+                    {
+                        fastest = broker;
+                    }
+                }
+                return fastest.serverUri;
+
+            default :
+                return candidates.get(0).serverUri;
+        }
+    }
+
+    /**
+     * Records a failure to connect to a broker, which is avoided until it passes a health check.
+     */
+    public void connectionFailed(final String serverUri)
+    {
+        for (final Broker broker : brokers)
+        {
+            if ((broker.serverUri.equals(serverUri)) && (broker.healthy) && (brokers.size() > 1))
+            {
+                broker.healthy = false;
+                LOGGER.warn("Broker marked as down after a connection failure: " + serverUri);
+            }
+        }
+    }
+
+    /**
+     * @return the smoothed round-trip time of the broker in microseconds, -1 if unknown.
+     */
+    public long getRoundTripTime(final String serverUri)
+    {
+        for (final Broker broker : brokers)
+        {
+            if (broker.serverUri.equals(serverUri))
+            {
+                return broker.smoothedRtt < 0L ? -1L : TimeUnit.NANOSECONDS.toMicros(broker.smoothedRtt);
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * @return true if the broker passed its last check and hasn't failed a connection since.
+     */
+    public boolean isHealthy(final String serverUri)
+    {
+        for (final Broker broker : brokers)
+        {
+            if (broker.serverUri.equals(serverUri))
+            {
+                return broker.healthy;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts checking the brokers periodically, if there is a choice to be made.
+     * 
+     * @param interval time in milliseconds between two checks of a broker.
+     * @param timeout time in milliseconds after which a broker not accepting a connection is down.
+     */
+    public synchronized void startHealthChecks(final String name, final long interval, final int timeout)
+    {
+        if ((healthChecker != null) || (interval <= 0L) || (brokers.size() == 1))
+        {
+            return;
+        }
+
+        healthChecker = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, name + "-health-checker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        healthChecker.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                checkHealth(timeout);
+            }
+        }, 0L, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopHealthChecks()
+    {
+        if (healthChecker != null)
+        {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Probes all the brokers once.
+     */
+    void checkHealth(final int timeout)
+    {
+        for (final Broker broker : brokers)
+        {
+            if (broker.host == null)
+            {
+                continue;
+            }
+
+            final Socket socket = new Socket();
+            try
+            {
+                // resolved for each check so DNS based failovers are followed
+                final InetSocketAddress address = new InetSocketAddress(broker.host, broker.port);
+                final long startTime = System.nanoTime();
+                socket.connect(address, timeout);
+                broker.recordRoundTripTime(System.nanoTime() - startTime);
+
+                if (!broker.healthy)
+                {
+                    broker.healthy = true;
+                    LOGGER.info("Broker back up: " + broker.serverUri);
+                }
+            }
+            catch (final IOException ioe)
+            {
+                if (broker.healthy)
+                {
+                    broker.healthy = false;
+                    LOGGER.warn("Broker marked as down after a failed health check: " + broker.serverUri + ": "
+                                + ioe);
+                }
+            }
+            finally
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (final IOException ioe)
+                {
+                    // NOOP
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Codec of the CBOR binary format (RFC 7049), a compact equivalent of JSON. Maps, collections,
+ * arrays, strings, byte arrays, numbers, booleans and nulls are encoded, and decoded back into
+ * {@link LinkedHashMap}, {@link ArrayList}, {@link String}, <code>byte[]</code>, {@link Integer} or
+ * {@link Long}, {@link Float} or {@link Double}, {@link Boolean} and null. Tags are ignored when
+ * decoding.
+ * <p/>
+ * {@link Byte}, {@link Short}, {@link Integer} and {@link Long} are encoded exactly, other numbers
+ * as doubles: {@link java.math.BigInteger} and {@link java.math.BigDecimal} values are lossy, losing
+ * the digits a double can't hold, and come back as a {@link Double}.
+ * <p/>
+ * Map keys repeat from one message to the next, so the encoded form of short string keys is kept,
+ * up to a number of keys. Messages are encoded in a buffer reused by each thread.
+ */
+public class MqttCborCodec implements MqttPayloadCodec
+{
+    public static final String NAME = "cbor";
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int FLOAT_32 = 0xFA;
+    private static final int FLOAT_64 = 0xFB;
+    private static final int BREAK = 0xFF;
+    private static final int INDEFINITE_LENGTH = 31;
+
+    /**
+     * Nesting depth beyond which payloads are rejected, so a malicious payload can't overflow the
+     * stack of the decoding thread.
+     */
+    private static final int MAX_DEPTH = 256;
+
+    private static final int MAX_CACHED_KEYS = 1024;
+    private static final int MAX_CACHED_KEY_LENGTH = 64;
+
+    /**
+     * Buffers larger than this are not kept for reuse, to avoid pinning the memory of a rare large
+     * message to a thread.
+     */
+    private static final int MAX_REUSED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<Output> OUTPUT = new ThreadLocal<Output>()
+    {
+        @Override
+        protected Output initialValue()
+        {
+            return new Output();
+        }
+    };
+
+    private static final class Output
+    {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        private void write(final int b)
+        {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        private void write(final byte[] source)
+        {
+            ensureCapacity(source.length);
+            System.arraycopy(source, 0, bytes, length, source.length);
+            length += source.length;
+        }
+
+        private void ensureCapacity(final int extra)
+        {
+            if (length + extra > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    private static final class Input
+    {
+        private final byte[] bytes;
+        private int position;
+
+        private Input(final byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        private int read() throws IOException
+        {
+            if (position >= bytes.length)
+            {
+                throw new IOException("Truncated CBOR payload at: " + position);
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        private long readNumber(final int count) throws IOException
+        {
+            long value = 0L;
+            for (int i = 0; i < count; i++)
+            {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        private byte[] readBytes(final long count) throws IOException
+        {
+            // checked before allocating, the length comes from the payload
+            if ((count < 0L) || (count > bytes.length - position))
+            {
+                throw new IOException("Truncated CBOR payload at: " + position);
+            }
+            final byte[] read = Arrays.copyOfRange(bytes, position, position + (int) count);
+            position += (int) count;
+            return read;
+        }
+    }
+
+    private final ConcurrentMap<String, byte[]> encodedKeys = new ConcurrentHashMap<String, byte[]>();
+
+    public String getName()
+    {
+        return NAME;
+    }
+
+    public byte[] encode(final Object value) throws IOException
+    {
+        final Output output = OUTPUT.get();
+        try
+        {
+            write(output, value, 0);
+            return Arrays.copyOf(output.bytes, output.length);
+        }
+        finally
+        {
+            output.length = 0;
+            if (output.bytes.length > MAX_REUSED_BUFFER_SIZE)
+            {
+                OUTPUT.remove();
+            }
+        }
+    }
+
+    private void write(final Output output, final Object value, final int depth) throws IOException
+    {
+        if (depth > MAX_DEPTH)
+        {
+            throw new IOException("Value nested deeper than " + MAX_DEPTH + " levels");
+        }
+
+        if (value == null)
+        {
+            output.write(NULL);
+        }
+        else if (value instanceof Boolean)
+        {
+            output.write(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        }
+        else if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short)
+                 || (value instanceof Byte))
+        {
+            final long number = ((Number) value).longValue();
+            if (number >= 0L)
+            {
+                writeHeader(output, MAJOR_UNSIGNED, number);
+            }
+            else
+            {
+                writeHeader(output, MAJOR_NEGATIVE, ~number);
+            }
+        }
+        else if (value instanceof Float)
+        {
+            output.write(FLOAT_32);
+            writeBytes(output, Float.floatToIntBits((Float) value), 4);
+        }
+        else if (value instanceof Number)
+        {
+            // lossy for BigInteger and BigDecimal
+            output.write(FLOAT_64);
+            writeBytes(output, Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+        }
+        else if ((value instanceof String) || (value instanceof Character))
+        {
+            final byte[] text = value.toString().getBytes(UTF_8);
+            writeHeader(output, MAJOR_TEXT, text.length);
+            output.write(text);
+        }
+        else if (value instanceof byte[])
+        {
+            writeHeader(output, MAJOR_BYTES, ((byte[]) value).length);
+            output.write((byte[]) value);
+        }
+        else if (value instanceof Map)
+        {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            writeHeader(output, MAJOR_MAP, map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet())
+            {
+                if (entry.getKey() instanceof String)
+                {
+                    writeKey(output, (String) entry.getKey());
+                }
+                else
+                {
+                    write(output, entry.getKey(), depth + 1);
+                }
+                write(output, entry.getValue(), depth + 1);
+            }
+        }
+        else if (value instanceof Collection)
+        {
+            final Collection<?> collection = (Collection<?>) value;
+            writeHeader(output, MAJOR_ARRAY, collection.size());
+            for (final Object item : collection)
+            {
+                write(output, item, depth + 1);
+            }
+        }
+        else if (value instanceof Object[])
+        {
+            final Object[] array = (Object[]) value;
+            writeHeader(output, MAJOR_ARRAY, array.length);
+            for (final Object item : array)
+            {
+                write(output, item, depth + 1);
+            }
+        }
+        else
+        {
+            throw new IOException("Unsupported type for CBOR encoding: " + value.getClass().getName());
+        }
+    }
+
+    private void writeKey(final Output output, final String key)
+    {
+        byte[] encodedKey = encodedKeys.get(key);
+        if (encodedKey == null)
+        {
+            final byte[] text = key.getBytes(UTF_8);
+            final Output keyOutput = new Output();
+            writeHeader(keyOutput, MAJOR_TEXT, text.length);
+            keyOutput.write(text);
+            encodedKey = Arrays.copyOf(keyOutput.bytes, keyOutput.length);
+
+            if ((key.length() <= MAX_CACHED_KEY_LENGTH) && (encodedKeys.size() < MAX_CACHED_KEYS))
+            {
+                encodedKeys.put(key, encodedKey);
+            }
+        }
+        output.write(encodedKey);
+    }
+
+    private static void writeHeader(final Output output, final int major, final long argument)
+    {
+        final int type = major << 5;
+        if (argument < 24L)
+        {
+            output.write(type | (int) argument);
+        }
+        else if (argument <= 0xFFL)
+        {
+            output.write(type | 24);
+            writeBytes(output, argument, 1);
+        }
+        else if (argument <= 0xFFFFL)
+        {
+            output.write(type | 25);
+            writeBytes(output, argument, 2);
+        }
+        else if (argument <= 0xFFFFFFFFL)
+        {
+            output.write(type | 26);
+            writeBytes(output, argument, 4);
+        }
+        else
+        {
+            output.write(type | 27);
+            writeBytes(output, argument, 8);
+        }
+    }
+
+    private static void writeBytes(final Output output, final long value, final int count)
+    {
+        for (int i = count - 1; i >= 0; i--)
+        {
+            output.write((int) (value >>> (8 * i)));
+        }
+    }
+
+    public Object decode(final byte[] payload) throws IOException
+    {
+        final Input input = new Input(payload);
+        final Object value = read(input, 0);
+        if (input.position != payload.length)
+        {
+            throw new IOException("Unexpected bytes after CBOR value at: " + input.position);
+        }
+        return value;
+    }
+
+    private static Object read(final Input input, final int depth) throws IOException
+    {
+        if (depth > MAX_DEPTH)
+        {
+            throw new IOException("CBOR payload nested deeper than " + MAX_DEPTH + " levels");
+        }
+
+        final int initialByte = input.read();
+        final int major = initialByte >>> 5;
+        final int info = initialByte & 0x1F;
+
+        switch (major)
+        {
+            case MAJOR_UNSIGNED :
+                return toInteger(readArgument(input, info), false);
+
+            case MAJOR_NEGATIVE :
+                return toInteger(readArgument(input, info), true);
+
+            case MAJOR_BYTES :
+                return info == INDEFINITE_LENGTH ? readChunks(input, MAJOR_BYTES)
+                    : input.readBytes(readArgument(input, info));
+
+            case MAJOR_TEXT :
+                return new String(info == INDEFINITE_LENGTH ? readChunks(input, MAJOR_TEXT)
+                    : input.readBytes(readArgument(input, info)), UTF_8);
+
+            case MAJOR_ARRAY :
+                return readArray(input, info, depth);
+
+            case MAJOR_MAP :
+                return readMap(input, info, depth);
+
+            case MAJOR_TAG :
+                readArgument(input, info);
+                return read(input, depth + 1);
+
+            default :
+                // major type 7: floats and simple values
+                return readSimple(input, initialByte);
+        }
+    }
+
+    private static List<Object> readArray(final Input input, final int info, final int depth) throws IOException
+    {
+        final List<Object> array = new ArrayList<Object>();
+        if (info == INDEFINITE_LENGTH)
+        {
+            while (!isBreak(input))
+            {
+                array.add(read(input, depth + 1));
+            }
+            return array;
+        }
+
+        final long size = readArgument(input, info);
+        // every item takes a byte at least
+        checkSize(input, size);
+        for (long i = 0; i < size; i++)
+        {
+            array.add(read(input, depth + 1));
+        }
+        return array;
+    }
+
+    private static Map<Object, Object> readMap(final Input input, final int info, final int depth) throws IOException
+    {
+        final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        if (info == INDEFINITE_LENGTH)
+        {
+            while (!isBreak(input))
+            {
+                map.put(read(input, depth + 1), read(input, depth + 1));
+            }
+            return map;
+        }
+
+        final long size = readArgument(input, info);
+        checkSize(input, size * 2);
+        for (long i = 0; i < size; i++)
+        {
+            map.put(read(input, depth + 1), read(input, depth + 1));
+        }
+        return map;
+    }
+
+    private static Object readSimple(final Input input, final int initialByte) throws IOException
+    {
+        switch (initialByte)
+        {
+            case FALSE :
+                return Boolean.FALSE;
+
+            case TRUE :
+                return Boolean.TRUE;
+
+            case NULL :
+            case NULL + 1 :
+                // undefined is read as null
+                return null;
+
+            case FLOAT_32 - 1 :
+                return Float.valueOf(halfToFloat((int) input.readNumber(2)));
+
+            case FLOAT_32 :
+                return Float.valueOf(Float.intBitsToFloat((int) input.readNumber(4)));
+
+            case FLOAT_64 :
+                return Double.valueOf(Double.longBitsToDouble(input.readNumber(8)));
+
+            default :
+                throw new IOException("Unsupported CBOR simple value: " + (initialByte & 0x1F) + " at: "
+                                      + (input.position - 1));
+        }
+    }
+
+    private static byte[] readChunks(final Input input, final int major) throws IOException
+    {
+        final Output chunks = new Output();
+        while (!isBreak(input))
+        {
+            final int initialByte = input.read();
+            if ((initialByte >>> 5 != major) || ((initialByte & 0x1F) == INDEFINITE_LENGTH))
+            {
+                throw new IOException("Invalid chunk of CBOR string at: " + (input.position - 1));
+            }
+            chunks.write(input.readBytes(readArgument(input, initialByte & 0x1F)));
+        }
+        return Arrays.copyOf(chunks.bytes, chunks.length);
+    }
+
+    private static boolean isBreak(final Input input) throws IOException
+    {
+        if (input.position >= input.bytes.length)
+        {
+            throw new IOException("Truncated CBOR payload at: " + input.position);
+        }
+        if ((input.bytes[input.position] & 0xFF) == BREAK)
+        {
+            input.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private static long readArgument(final Input input, final int info) throws IOException
+    {
+        if (info < 24)
+        {
+            return info;
+        }
+        switch (info)
+        {
+            case 24 :
+                return input.readNumber(1);
+            case 25 :
+                return input.readNumber(2);
+            case 26 :
+                return input.readNumber(4);
+            case 27 :
+                return input.readNumber(8);
+            default :
+                throw new IOException("Invalid CBOR argument at: " + (input.position - 1));
+        }
+    }
+
+    private static void checkSize(final Input input, final long size) throws IOException
+    {
+        if ((size < 0L) || (size > input.bytes.length - input.position))
+        {
+            throw new IOException("Truncated CBOR payload at: " + input.position);
+        }
+    }
+
+    private static Number toInteger(final long argument, final boolean negative) throws IOException
+    {
+        // beyond the range of a long, the argument is read as negative
+        if (argument < 0L)
+        {
+            throw new IOException("CBOR integer out of range");
+        }
+
+        final long value = negative ? ~argument : argument;
+        if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE))
+        {
+            return Integer.valueOf((int) value);
+        }
+        return Long.valueOf(value);
+    }
+
+    private static float halfToFloat(final int half)
+    {
+        final int exponent = (half >>> 10) & 0x1F;
+        final int mantissa = half & 0x3FF;
+        final float magnitude;
+        if (exponent == 0)
+        {
+            magnitude = mantissa * (float) Math.pow(2, -24);
+        }
+        else if (exponent == 0x1F)
+        {
+            magnitude = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        }
+        else
+        {
+            magnitude = (1024 + mantissa) * (float) Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) == 0 ? magnitude : -magnitude;
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME + " - Cached keys: " + encodedKeys.size();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.modules.mqtt.MqttConnector.PayloadCompression;
+
+/**
+ * Coalesces the messages published to a topic into batch envelopes, sent once the first message of
+ * the batch has lingered for the configured time or once the batch reaches the configured size,
+ * whichever comes first. A batch holds messages published with the same QoS and compression: a
+ * message published with other settings sends the pending batch of its topic first. A message
+ * identifier, when attached, identifies the whole batch.
+ * <p/>
+ * Batches reaching their size are sent by the publishing thread, batches reaching their linger
+ * time by the coalescer thread. The batches of a topic are sent one at a time and in order: a
+ * thread takes the send lock of the topic before removing a batch and keeps it until the batch is
+ * sent. Send locks are striped, so topics sharing a stripe also wait for each other. A batch failing to be sent is handed back to the {@link Sender},
+ * which may keep it for later. Messages pending in a batch are lost if the JVM stops.
+ */
+public class MqttCoalescer
+{
+    public interface Sender
+    {
+        void send(String topicName, byte[] payload, DeliveryQoS qos) throws MqttException;
+
+        /**
+         * Called when a batch fails to be sent.
+         * 
+         * @param messageCount the number of messages coalesced in the batch.
+         * @return true if the batch has been kept to be sent later, false if it's lost.
+         */
+        boolean sendFailed(String topicName, byte[] payload, DeliveryQoS qos, int messageCount);
+    }
+
+    private static final Log LOGGER = LogFactory.getLog(MqttCoalescer.class);
+
+    private static final int SEND_LOCK_STRIPES = 64;
+
+    private static final class PendingBatch
+    {
+        private final DeliveryQoS qos;
+        private final PayloadCompression compression;
+        private final int compressionThreshold;
+        private final boolean attachMessageId;
+        private final List<byte[]> payloads = new ArrayList<byte[]>();
+        private int size;
+        private ScheduledFuture<?> lingerTask;
+
+        private PendingBatch(final DeliveryQoS qos,
+                             final PayloadCompression compression,
+                             final int compressionThreshold,
+                             final boolean attachMessageId)
+        {
+            this.qos = qos;
+            this.compression = compression;
+            this.compressionThreshold = compressionThreshold;
+            this.attachMessageId = attachMessageId;
+        }
+
+        private boolean accepts(final DeliveryQoS otherQos,
+                                final PayloadCompression otherCompression,
+                                final int otherCompressionThreshold,
+                                final boolean otherAttachMessageId)
+        {
+            return (qos == otherQos) && (compression == otherCompression)
+                   && (compressionThreshold == otherCompressionThreshold)
+                   && (attachMessageId == otherAttachMessageId);
+        }
+    }
+
+    private final Sender sender;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, PendingBatch> pendingBatches = new HashMap<String, PendingBatch>();
+    private final Object[] sendLocks = new Object[SEND_LOCK_STRIPES];
+
+    public MqttCoalescer(final String name, final Sender sender)
+    {
+        this.sender = sender;
+
+        for (int i = 0; i < sendLocks.length; i++)
+        {
+            sendLocks[i] = new Object();
+        }
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, name + "-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void add(final String topicName,
+                    final byte[] payload,
+                    final DeliveryQoS qos,
+                    final PayloadCompression compression,
+                    final int compressionThreshold,
+                    final long lingerTime,
+                    final int maxBytes) throws MqttException
+    {
+        add(topicName, payload, qos, compression, compressionThreshold, false, lingerTime, maxBytes);
+    }
+
+    /**
+     * Adds a message to the pending batch of its topic, sending the batch if it reaches the maximum
+     * size.
+     * 
+     * @param attachMessageId attach a {@link MqttMessageId} to the batch, identifying it as a whole.
+     * @param lingerTime time in milliseconds the first message of a batch waits for others.
+     * @param maxBytes size in bytes of the payloads at which a batch is sent without waiting.
+     * @throws MqttException thrown if a batch sent by this call fails to be published and isn't
+     *             kept by the sender.
+     */
+    public void add(final String topicName,
+                    final byte[] payload,
+                    final DeliveryQoS qos,
+                    final PayloadCompression compression,
+                    final int compressionThreshold,
+                    final boolean attachMessageId,
+                    final long lingerTime,
+                    final int maxBytes) throws MqttException
+    {
+        synchronized (sendLockOf(topicName))
+        {
+            PendingBatch replacedBatch = null;
+            PendingBatch fullBatch = null;
+
+            synchronized (this)
+            {
+                PendingBatch batch = pendingBatches.get(topicName);
+                if ((batch != null) && (!batch.accepts(qos, compression, compressionThreshold, attachMessageId)))
+                {
+                    replacedBatch = remove(topicName);
+                    batch = null;
+                }
+
+                if (batch == null)
+                {
+                    batch = new PendingBatch(qos, compression, compressionThreshold, attachMessageId);
+                    pendingBatches.put(topicName, batch);
+                    batch.lingerTask = scheduler.schedule(newLingerTask(topicName, batch), lingerTime,
+                        TimeUnit.MILLISECONDS);
+                }
+
+                batch.payloads.add(payload);
+                batch.size += payload.length;
+
+                if (batch.size >= maxBytes)
+                {
+                    fullBatch = remove(topicName);
+                }
+            }
+
+            if (replacedBatch != null)
+            {
+                send(topicName, replacedBatch);
+            }
+            if (fullBatch != null)
+            {
+                send(topicName, fullBatch);
+            }
+        }
+    }
+
+    /**
+     * Sends all the pending batches right away.
+     */
+    public void flush()
+    {
+        final List<String> topicNames;
+        synchronized (this)
+        {
+            topicNames = new ArrayList<String>(pendingBatches.keySet());
+        }
+
+        for (final String topicName : topicNames)
+        {
+            synchronized (sendLockOf(topicName))
+            {
+                final PendingBatch batch;
+                synchronized (this)
+                {
+                    batch = remove(topicName);
+                }
+
+                // the batch may have been sent already
+                if (batch != null)
+                {
+                    sendQuietly(topicName, batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends all the pending batches and stops the coalescer thread.
+     */
+    public void close()
+    {
+        flush();
+        scheduler.shutdown();
+    }
+
+    public synchronized int getPendingMessageCount()
+    {
+        int pendingMessageCount = 0;
+        for (final PendingBatch batch : pendingBatches.values())
+        {
+            pendingMessageCount += batch.payloads.size();
+        }
+        return pendingMessageCount;
+    }
+
+    private PendingBatch remove(final String topicName)
+    {
+        final PendingBatch batch = pendingBatches.remove(topicName);
+        if ((batch != null) && (batch.lingerTask != null))
+        {
+            batch.lingerTask.cancel(false);
+        }
+        return batch;
+    }
+
+    /**
+     * @return the lock held while removing a batch of the topic and sending it.
+     */
+    private Object sendLockOf(final String topicName)
+    {
+        return sendLocks[(topicName.hashCode() & Integer.MAX_VALUE) % sendLocks.length];
+    }
+
+    private Runnable newLingerTask(final String topicName, final PendingBatch batch)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                synchronized (sendLockOf(topicName))
+                {
+                    synchronized (MqttCoalescer.this)
+                    {
+                        // the batch may have been sent already
+                        if (pendingBatches.get(topicName) != batch)
+                        {
+                            return;
+                        }
+                        pendingBatches.remove(topicName);
+                    }
+
+                    sendQuietly(topicName, batch);
+                }
+            }
+        };
+    }
+
+    private void sendQuietly(final String topicName, final PendingBatch batch)
+    {
+        try
+        {
+            send(topicName, batch);
+        }
+        catch (final MqttException me)
+        {
+            LOGGER.error("Failed to publish a batch of " + batch.payloads.size() + " messages to topic: "
+                         + topicName + ", the messages are lost", me);
+        }
+    }
+
+    private void send(final String topicName, final PendingBatch batch) throws MqttException
+    {
+        // a lone message is sent as if it had not been coalesced
+        final MqttMessageId messageId = batch.attachMessageId ? MqttMessageId.next() : null;
+        final byte[] payload = batch.payloads.size() == 1 ? MqttEnvelope.wrap(batch.payloads.get(0), messageId,
+            batch.compression, batch.compressionThreshold) : MqttEnvelope.wrapBatch(batch.payloads, messageId,
+            batch.compression, batch.compressionThreshold);
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Publishing a batch of " + batch.payloads.size() + " messages to topic: " + topicName);
+        }
+
+        try
+        {
+            sender.send(topicName, payload, batch.qos);
+        }
+        catch (final MqttException me)
+        {
+            if (!sender.sendFailed(topicName, payload, batch.qos, batch.payloads.size()))
+            {
+                throw me;
+            }
+            LOGGER.warn("Failed to publish a batch of " + batch.payloads.size() + " messages to topic: "
+                        + topicName + ", kept to be published later", me);
+        }
+    }
+}
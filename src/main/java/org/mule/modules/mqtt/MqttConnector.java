@@ -9,8 +9,19 @@
 
 package org.mule.modules.mqtt;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -48,6 +59,7 @@ import org.mule.api.context.MuleContextAware;
 import org.mule.api.expression.ExpressionManager;
 import org.mule.modules.mqtt.holders.MqttTopicSubscriptionExpressionHolder;
 import org.mule.util.StringUtils;
+import org.mule.util.UUID;
 
 /**
  * Mule MQTT Module.
@@ -55,6 +67,24 @@ import org.mule.util.StringUtils;
  * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-1}
  * <p/>
  * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-2}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-3}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-4}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-5}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-6}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-7}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-8}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-9}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-10}
+ * <p/>
+ * {@sample.config ../../../doc/mqtt-connector.xml.sample mqtt:config-11}
  * 
  * @author dmiller@angrygiant.com
  */
@@ -65,6 +95,8 @@ public class MqttConnector implements MuleContextAware
     {
         FIRE_AND_FORGET(0), AT_LEAST_ONCE(1), ONLY_ONCE(2);
 
+        private static final DeliveryQoS[] BY_CODE = {FIRE_AND_FORGET, AT_LEAST_ONCE, ONLY_ONCE};
+
         private final int code;
 
         private DeliveryQoS(final int code)
@@ -79,30 +111,84 @@ public class MqttConnector implements MuleContextAware
 
         public static DeliveryQoS fromCode(final int code)
         {
-            for (final DeliveryQoS qos : values())
+            if ((code < 0) || (code >= BY_CODE.length))
             {
-                if (qos.getCode() == code)
-                {
-                    return qos;
-                }
+                throw new IllegalArgumentException(code + " is not a valid QoS value");
+            }
+            return BY_CODE[code];
+        }
+    }
+
+    public static enum OverflowPolicy
+    {
+        BLOCK, DROP_OLDEST, DROP_NEWEST, SPILL_TO_DISK
+    }
+
+    public static enum PersistenceType
+    {
+        FILE, MAPPED_LOG, MEMORY
+    }
+
+    public static enum PayloadCompression
+    {
+        NONE(0), DEFLATE(1), LZF(2);
+
+        private static final PayloadCompression[] BY_CODE = {NONE, DEFLATE, LZF};
+
+        private final int code;
+
+        private PayloadCompression(final int code)
+        {
+            this.code = code;
+        }
+
+        public int getCode()
+        {
+            return code;
+        }
+
+        public static PayloadCompression fromCode(final int code)
+        {
+            if ((code < 0) || (code >= BY_CODE.length))
+            {
+                throw new IllegalArgumentException(code + " is not a valid compression value");
             }
-            throw new IllegalArgumentException(code + " is not a valid QoS value");
+            return BY_CODE[code];
         }
     }
 
+    public static enum DuplicateDetection
+    {
+        NONE, MESSAGE_ID, PAYLOAD_HASH
+    }
+
+    public static enum BrokerSelection
+    {
+        FAILOVER_PRIORITY, ROUND_ROBIN, LEAST_LATENCY
+    }
+
     private static final Log LOGGER = LogFactory.getLog(MqttConnector.class);
 
     public static final String MQTT_PROPERTIES_PREFIX = "mqtt";
     public static final String MQTT_TOPIC_NAME_PROPERTY = MQTT_PROPERTIES_PREFIX + ".topicName";
     public static final String MQTT_QOS_PROPERTY = MQTT_PROPERTIES_PREFIX + ".qos";
     public static final String MQTT_DELIVERY_TOKEN_VARIABLE = MQTT_PROPERTIES_PREFIX + ".deliveryToken";
+    public static final String MQTT_CORRELATION_ID_PROPERTY = MQTT_PROPERTIES_PREFIX + ".correlationId";
+    public static final String MQTT_REPLY_TOPIC_PROPERTY = MQTT_PROPERTIES_PREFIX + ".replyTopic";
 
     public static final String MQTT_DEFAULT_BROKER_URI = "tcp://localhost:1883";
     private static final String MQTT_DEFAULT_QOS_STRING = "AT_LEAST_ONCE";
     public static final DeliveryQoS MQTT_DEFAULT_QOS = DeliveryQoS.valueOf(MQTT_DEFAULT_QOS_STRING);
 
     /**
-     * MQTT broker server URI.
+     * Maximum number of distinct topic templates kept parsed, beyond which they are parsed on each
+     * use.
+     */
+    private static final int MAX_TOPIC_TEMPLATES = 1000;
+
+    /**
+     * MQTT broker server URI, or a comma separated list of URIs of brokers to choose from with the
+     * broker selection.
      */
     @Configurable
     @Optional
@@ -185,10 +271,224 @@ public class MqttConnector implements MuleContextAware
     @Optional
     private String persistenceLocation;
 
+    /**
+     * How messages are persisted in the persistence location: one file per message, an append-only
+     * log of memory-mapped segments synced to disk every second, or in memory up to the memory
+     * threshold with the extra messages spilled to a log (in the temporary directory if no
+     * persistence location is set).
+     */
+    @Configurable
+    @Optional
+    @Default("FILE")
+    private PersistenceType persistenceType = PersistenceType.FILE;
+
+    /**
+     * Maximum number of messages kept in memory by the memory persistence before spilling to disk.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int persistenceMemoryThreshold = 1000;
+
+    /**
+     * Maximum number of publications that can be awaiting delivery completion without blocking the
+     * publishing flow. Zero disables the in-flight window.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int maxInFlight;
+
+    /**
+     * Time in milliseconds a publication waits for a free slot when the in-flight window is full.
+     */
+    @Configurable
+    @Optional
+    @Default("30000")
+    private long inFlightWindowTimeOut = 30000L;
+
+    /**
+     * Number of clients publications are spread over, each topic being consistently published by the
+     * same client. Subscriptions are always handled by the first client, the other ones getting their
+     * IDs derived from the active client ID: followed by <code>-n</code>, or shortened with a hash to
+     * fit in the 23 characters of MQTT 3.1.
+     */
+    @Configurable
+    @Optional
+    @Default("1")
+    private int publisherShards = 1;
+
+    /**
+     * Maximum number of topic handles kept for publishing, the least recently used ones being
+     * evicted first. Zero disables the cache.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int topicCacheSize = 1000;
+
+    /**
+     * Register the statistics of the connector as a JMX MBean named after the client ID while it is
+     * connected.
+     */
+    @Configurable
+    @Optional
+    @Default("true")
+    private boolean statisticsMBeanEnabled = true;
+
+    /**
+     * Time in milliseconds before the second attempt to reconnect a lost connection, the first one
+     * being immediate. The delay doubles after each failed attempt, with a random jitter.
+     */
+    @Configurable
+    @Optional
+    @Default("100")
+    private long reconnectInitialDelay = 100L;
+
+    /**
+     * Maximum time in milliseconds between two attempts to reconnect a lost connection.
+     */
+    @Configurable
+    @Optional
+    @Default("30000")
+    private long reconnectMaxDelay = 30000L;
+
+    /**
+     * Number of attempts to reconnect a lost connection before giving up, zero to keep trying until
+     * the connector is disconnected.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int reconnectMaxAttempts;
+
+    /**
+     * Maximum number of messages kept in memory while the connection is lost, to be published once
+     * it's back. Zero disables the offline queue, publications failing while disconnected.
+     * Publications awaiting completion are never queued. Messages still queued when the connector
+     * is disconnected are discarded.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int offlineQueueSize;
+
+    /**
+     * Maximum number of messages journaled to disk, in the persistence location or the temporary
+     * directory, once the offline queue memory is full. Zero keeps offline messages in memory only.
+     * The journal is a non-durable overflow of the memory: each connection uses a journal file of
+     * its own, deleted on disconnect, and the messages journaled before a restart are not
+     * published.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int offlineJournalSize;
+
+    /**
+     * Maximum number of queued offline messages published per second once the connection is back,
+     * zero for no limit.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int offlineDrainRate = 1000;
+
+    /**
+     * How the broker of each connection is chosen when several broker server URIs are configured:
+     * the first healthy broker in the list, the healthy brokers in turn, which spreads publisher
+     * shards over them, or the healthy broker with the lowest round-trip time. A lost connection
+     * reconnects to its broker while it is up, and fails over to the selected broker, with its
+     * in-flight messages, once it is down.
+     */
+    @Configurable
+    @Optional
+    @Default("FAILOVER_PRIORITY")
+    private BrokerSelection brokerSelection = BrokerSelection.FAILOVER_PRIORITY;
+
+    /**
+     * Time in milliseconds between two health checks of the brokers, which also measure their
+     * round-trip time, when several broker server URIs are configured. Zero disables health checks,
+     * brokers being then only avoided after a connection failure.
+     */
+    @Configurable
+    @Optional
+    @Default("5000")
+    private long brokerHealthCheckInterval = 5000L;
+
+    /**
+     * Maximum number of topics whose last received message is kept for the get-last-value
+     * operation, the least recently updated topics being evicted first. Zero disables the cache.
+     * Only the messages received by the subscriptions of the connector are cached.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int lastValueCacheSize;
+
+    /**
+     * Time in milliseconds after which a cached last value is evicted, zero to keep last values
+     * until evicted by newer topics.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private long lastValueCacheTtl;
+
+    /**
+     * Prefix of the topic the replies to the requests of the connector are received on, the client
+     * ID being appended to it.
+     */
+    @Configurable
+    @Optional
+    @Default("mule/replies/")
+    private String replyTopicPrefix = "mule/replies/";
+
+    /**
+     * Maximum number of requests awaiting their reply, further requests waiting for one of them to
+     * complete.
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int maxPendingRequests = 1000;
+
+    /**
+     * Codecs of the payloads of topics, as a comma separated list of
+     * <code>topicFilter=codecName</code>, like <code>sensors/#=cbor</code>. Published objects are
+     * encoded and received payloads decoded by the codec of their topic, the first filter listed
+     * matching it. Built-in codecs are <code>cbor</code> and <code>records</code>, others are
+     * discovered as {@link MqttPayloadCodec} services. Received payloads the codec can't decode are
+     * processed undecoded, as <code>byte[]</code>, and counted in the DecodingFailureCount
+     * statistic.
+     */
+    @Configurable
+    @Optional
+    private String payloadCodecs;
+
+    private final MqttConnectorCallback connectorCallback = new MqttConnectorCallback(this);
+    private final MqttConnectorStatistics statistics = new MqttConnectorStatistics(this);
+    private final ConcurrentMap<String, MqttCountingPersistence> clientPersistences =
+        new ConcurrentHashMap<String, MqttCountingPersistence>();
+    private final ConcurrentMap<String, MqttTopicTemplate> topicTemplates =
+        new ConcurrentHashMap<String, MqttTopicTemplate>();
+    private final List<MqttTopicListener> topicListeners = new CopyOnWriteArrayList<MqttTopicListener>();
+
     private MuleContext muleContext;
     private String clientId;
+    private volatile String activeClientId;
     private MqttClient client;
     private MqttConnectOptions connectOptions;
+    private MqttInFlightWindow inFlightWindow;
+    private MqttPublisherShards shards;
+    private MqttTopicCache topicCache;
+    private volatile MqttCoalescer coalescer;
+    private MqttReconnector reconnector;
+    private volatile MqttOfflineQueue offlineQueue;
+    private MqttBrokerSelector brokerSelector;
+    private MqttLastValueCache lastValueCache;
+    private MqttPayloadCodecRegistry payloadCodecRegistry;
+    private volatile MqttRequestor requestor;
 
     /**
      * Connects the MQTT client.
@@ -199,15 +499,25 @@ public class MqttConnector implements MuleContextAware
     public void connect(@ConnectionKey final String clientId) throws ConnectionException
     {
         this.clientId = clientId;
+        // an expression is evaluated once per connection, the client keeping the same identifier
+        this.activeClientId = resolveClientId();
 
-        final MqttClientPersistence clientPersistence = initializeClientPersistence();
+        final MqttClientPersistence clientPersistence = initializeClientPersistence(getActiveClientId());
 
         setupConnectOptions();
 
+        if (brokerSelector == null)
+        {
+            brokerSelector = new MqttBrokerSelector(getBrokerServerUri(), getBrokerSelection());
+        }
+        brokerSelector.startHealthChecks("mqtt-" + getActiveClientId(), getBrokerHealthCheckInterval(),
+            (int) TimeUnit.SECONDS.toMillis(getConnectionTimeout()));
+        final String serverUri = brokerSelector.select();
+
         try
         {
             LOGGER.debug("Creating client with ID of " + getActiveClientId());
-            client = new MqttClient(getBrokerServerUri(), getActiveClientId(), clientPersistence);
+            client = new MqttClient(serverUri, getActiveClientId(), clientPersistence);
         }
         catch (final MqttException me)
         {
@@ -215,6 +525,41 @@ public class MqttConnector implements MuleContextAware
                 "Failed to create the MQTT client", me);
         }
 
+        client.setCallback(connectorCallback);
+
+        if ((getMaxInFlight() > 0) && (inFlightWindow == null))
+        {
+            inFlightWindow = new MqttInFlightWindow(getMaxInFlight());
+            LOGGER.info("In-flight window activated with a size of: " + getMaxInFlight());
+        }
+
+        if ((getOfflineQueueSize() > 0) && (offlineQueue == null))
+        {
+            offlineQueue = createOfflineQueue();
+        }
+
+        // last values outlive connections, they are only evicted by age or size
+        if ((getLastValueCacheSize() > 0) && (lastValueCache == null))
+        {
+            lastValueCache = new MqttLastValueCache(getLastValueCacheSize(), getLastValueCacheTtl());
+        }
+
+        if (StringUtils.isNotBlank(getPayloadCodecs()) && (payloadCodecRegistry == null))
+        {
+            payloadCodecRegistry = new MqttPayloadCodecRegistry(getPayloadCodecs(),
+                Thread.currentThread().getContextClassLoader());
+            LOGGER.info("Payload codecs activated: " + getPayloadCodecs());
+        }
+
+        if ((getTopicCacheSize() > 0) && (topicCache == null))
+        {
+            topicCache = new MqttTopicCache(getTopicCacheSize());
+        }
+        else if (topicCache != null)
+        {
+            topicCache.clear();
+        }
+
         if ((StringUtils.isNotBlank(getLwtTopicName())) && (StringUtils.isNotEmpty(getLwtMessage())))
         {
             LOGGER.debug("Setting up last will information...");
@@ -230,89 +575,472 @@ public class MqttConnector implements MuleContextAware
         }
         catch (final MqttException me)
         {
+            brokerSelector.connectionFailed(serverUri);
             throw new ConnectionException(ConnectionExceptionCode.UNKNOWN, null,
                 "Failed to connect the MQTT client", me);
         }
 
-        LOGGER.info("MQTT client successfully connected with ID: " + getActiveClientId() + " at: "
-                    + getBrokerServerUri());
-    }
+        LOGGER.info("MQTT client successfully connected with ID: " + getActiveClientId() + " at: " + serverUri);
 
-    private MqttClientPersistence initializeClientPersistence() throws ConnectionException
-    {
-        if (StringUtils.isBlank(getPersistenceLocation()))
+        if (getPublisherShards() > 1)
         {
-            return null;
+            connectPublisherShards();
         }
 
-        try
+        if (isStatisticsMBeanEnabled())
         {
-            final MqttClientPersistence clientPersistence = new MqttDefaultFilePersistence(
-                getPersistenceLocation());
-            LOGGER.info("File persistence activated at: " + getPersistenceLocation());
-            return clientPersistence;
+            statistics.register(getActiveClientId());
         }
-        catch (final MqttPersistenceException mpe)
+
+        reconnector = new MqttReconnector("mqtt-" + getActiveClientId(), new MqttReconnector.Connection()
         {
-            throw new ConnectionException(ConnectionExceptionCode.UNKNOWN, "",
-                "Error creating file persistence for messages", mpe);
+            public void reconnect() throws Exception
+            {
+                reconnectInPlace();
+            }
+
+            public boolean isConnected()
+            {
+                return isClientConnected();
+            }
+        }, getReconnectInitialDelay(), getReconnectMaxDelay(), getReconnectMaxAttempts());
+
+        if (offlineQueue != null)
+        {
+            offlineQueue.drain();
         }
     }
 
-    /**
-     * Method that sets up the MqttConnectOptions class for use. This reads the settings given via
-     * the mqtt:config element.
-     */
-    private void setupConnectOptions()
+    private MqttOfflineQueue createOfflineQueue() throws ConnectionException
     {
-        connectOptions = new MqttConnectOptions();
-        connectOptions.setCleanSession(isCleanSession());
-        connectOptions.setConnectionTimeout(getConnectionTimeout());
-        connectOptions.setKeepAliveInterval(getKeepAliveInterval());
-        connectOptions.setUserName(getUsername());
+        final String name = "mqtt-" + getActiveClientId();
 
-        if (StringUtils.isNotBlank(getPassword()))
+        MqttMessageJournal journal = null;
+        if (getOfflineJournalSize() > 0)
         {
-            connectOptions.setPassword(getPassword().toCharArray());
+            final String directory = StringUtils.isNotBlank(getPersistenceLocation())
+                ? getPersistenceLocation() : System.getProperty("java.io.tmpdir");
+            final File journalFile = new File(directory, name + "-" + UUID.getUUID() + ".offline");
+            try
+            {
+                journal = new MqttMessageJournal(journalFile);
+            }
+            catch (final IOException ioe)
+            {
+                throw new ConnectionException(ConnectionExceptionCode.UNKNOWN, "",
+                    "Error creating offline journal: " + journalFile, ioe);
+            }
+            LOGGER.info("Offline journal activated at: " + journalFile);
         }
+
+        return new MqttOfflineQueue(name, new MqttOfflineQueue.Sender()
+        {
+            public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+                throws MqttException
+            {
+                if (!isClientConnected())
+                {
+                    throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+                }
+                publishMessage(getPublisherTopic(topicName), payload, qos, true);
+            }
+        }, getOfflineQueueSize(), journal, getOfflineJournalSize(), getOfflineDrainRate());
     }
 
     /**
-     * Disconnects the client.
-     * 
-     * @throws MqttException
+     * Connects again the clients that lost their connection, keeping their persistence, so messages
+     * in-flight are delivered, and their options. Subscriptions of all the listeners are then
+     * restored at once. Clients whose broker is down are replaced by clients connected to the
+     * selected broker, taking over their in-flight messages.
      */
-    @Disconnect
-    public void disconnect() throws MqttException
+    private void reconnectInPlace() throws MqttException, ConnectionException
     {
-        if ((client != null) && (client.isConnected()))
+        // the clients are discarded if the connector is disconnected meanwhile
+        final MqttClient currentClient = client;
+        final MqttConnectOptions currentConnectOptions = connectOptions;
+        final MqttPublisherShards currentShards = shards;
+        if ((currentClient == null) || (currentConnectOptions == null))
         {
-            LOGGER.info("Diconnecting from MQTT broker...");
-            client.disconnect();
+            return;
         }
 
-        client = null;
-        connectOptions = null;
+        if (!currentClient.isConnected())
+        {
+            final MqttClient reconnectedClient = replaceClientOfDownBroker(currentClient);
+            if (reconnectedClient != currentClient)
+            {
+                client = reconnectedClient;
+                if (currentShards != null)
+                {
+                    currentShards.setClient(0, reconnectedClient);
+                }
+                if (topicCache != null)
+                {
+                    topicCache.clear();
+                }
+            }
+            reconnectClient(reconnectedClient, currentConnectOptions);
+            connectorCallback.resubscribe();
+        }
+
+        if (currentShards != null)
+        {
+            for (int i = 1; i < currentShards.size(); i++)
+            {
+                final MqttClient shardClient = currentShards.getClient(i);
+                if (!shardClient.isConnected())
+                {
+                    final MqttClient reconnectedShardClient = replaceClientOfDownBroker(shardClient);
+                    if (reconnectedShardClient != shardClient)
+                    {
+                        currentShards.setClient(i, reconnectedShardClient);
+                        if (topicCache != null)
+                        {
+                            topicCache.clear();
+                        }
+                    }
+                    reconnectClient(reconnectedShardClient, currentShards.getConnectOptions(i));
+                }
+            }
+        }
+
+        statistics.reconnected();
+
+        final MqttOfflineQueue currentOfflineQueue = offlineQueue;
+        if (currentOfflineQueue != null)
+        {
+            currentOfflineQueue.drain();
+        }
     }
 
     /**
-     * Are we connected
+     * Keeps a client on the broker it was connected to, unless this broker is down and another one
+     * is up. The client is then closed and replaced by a new client with the same ID for the selected
+     * broker, and the messages of its persistence are moved to the persistence of the new client.
+     * The new client is used even if its connection fails, so the messages aren't left behind.
      */
-    @ValidateConnection
-    public boolean isConnected()
+    private MqttClient replaceClientOfDownBroker(final MqttClient lostClient)
+        throws MqttException, ConnectionException
     {
-        return client != null && client.isConnected();
+        String serverUri = lostClient.getServerURI();
+        if (!brokerSelector.isHealthy(serverUri))
+        {
+            final String selectedServerUri = brokerSelector.select();
+            if (brokerSelector.isHealthy(selectedServerUri))
+            {
+                serverUri = selectedServerUri;
+            }
+        }
+
+        if (serverUri.equals(lostClient.getServerURI()))
+        {
+            return lostClient;
+        }
+
+        LOGGER.info("Moving client with ID of " + lostClient.getClientId() + " from: "
+                    + lostClient.getServerURI() + " to: " + serverUri);
+        return moveClient(lostClient, serverUri);
     }
 
-    /**
-     * Connection Identifier
-     */
-    @ConnectionIdentifier
-    public String getActiveClientId()
+    private void reconnectClient(final MqttClient reconnectedClient, final MqttConnectOptions options)
+        throws MqttException
     {
-        final boolean isExpression = StringUtils.startsWith(clientId,
-            ExpressionManager.DEFAULT_EXPRESSION_PREFIX);
-        return isExpression ? muleContext.getExpressionLanguage().<String> evaluate(clientId) : clientId;
+        try
+        {
+            LOGGER.debug("Reconnecting client with ID of " + reconnectedClient.getClientId());
+            reconnectedClient.connect(options);
+        }
+        catch (final MqttException me)
+        {
+            brokerSelector.connectionFailed(reconnectedClient.getServerURI());
+            throw me;
+        }
+    }
+
+    private MqttClient moveClient(final MqttClient lostClient, final String serverUri)
+        throws MqttException, ConnectionException
+    {
+        final String lostClientId = lostClient.getClientId();
+        closeLostClient(lostClient);
+
+        final MqttCountingPersistence lostPersistence = clientPersistences.remove(lostClientId);
+        final MqttCountingPersistence movedPersistence = initializeClientPersistence(lostClientId);
+        if (lostPersistence != null)
+        {
+            try
+            {
+                lostPersistence.moveTo(movedPersistence, serverUri);
+            }
+            catch (final MqttPersistenceException mpe)
+            {
+                LOGGER.warn("Failed to move the in-flight messages of client with ID of " + lostClientId
+                            + ", they are left in: " + lostPersistence, mpe);
+                closeClientPersistence(lostPersistence);
+            }
+        }
+
+        final MqttClient movedClient = new MqttClient(serverUri, lostClientId, movedPersistence);
+        movedClient.setCallback(connectorCallback);
+        return movedClient;
+    }
+
+    private static void closeLostClient(final MqttClient lostClient)
+    {
+        try
+        {
+            lostClient.disconnect();
+        }
+        catch (final MqttException me)
+        {
+            // its connection is gone already
+            LOGGER.debug("Failed to disconnect lost client with ID of " + lostClient.getClientId(), me);
+        }
+    }
+
+    private void connectPublisherShards() throws ConnectionException
+    {
+        final MqttClient[] shardClients = new MqttClient[getPublisherShards()];
+        final MqttConnectOptions[] shardConnectOptions = new MqttConnectOptions[shardClients.length];
+        shardClients[0] = client;
+        shardConnectOptions[0] = connectOptions;
+        final MqttPublisherShards newShards = new MqttPublisherShards(shardClients, shardConnectOptions);
+
+        boolean connected = false;
+        try
+        {
+            for (int i = 1; i < shardClients.length; i++)
+            {
+                final String shardClientId = MqttPublisherShards.shardClientId(getActiveClientId(), i);
+                final String shardServerUri = brokerSelector.select();
+                try
+                {
+                    LOGGER.debug("Connecting publisher shard with ID of " + shardClientId + " at: "
+                                 + shardServerUri);
+                    shardClients[i] = new MqttClient(shardServerUri, shardClientId,
+                        initializeClientPersistence(shardClientId));
+                    shardClients[i].setCallback(connectorCallback);
+                    shardConnectOptions[i] = createConnectOptions();
+                    shardClients[i].connect(shardConnectOptions[i]);
+                }
+                catch (final MqttException me)
+                {
+                    brokerSelector.connectionFailed(shardServerUri);
+                    throw new ConnectionException(ConnectionExceptionCode.UNKNOWN, null,
+                        "Failed to connect the MQTT publisher shard: " + shardClientId, me);
+                }
+            }
+            connected = true;
+        }
+        finally
+        {
+            // whatever the failure, the shards already connected must not be left open
+            if (!connected)
+            {
+                newShards.disconnect();
+            }
+        }
+
+        shards = newShards;
+        LOGGER.info("MQTT publisher shards successfully connected: " + shardClients.length);
+    }
+
+    /**
+     * @return a new persistence counting the messages of the client, or null if messages aren't
+     *         persisted.
+     */
+    private MqttCountingPersistence initializeClientPersistence(final String clientId)
+        throws ConnectionException
+    {
+        final MqttClientPersistence clientPersistence = createClientPersistence();
+        if (clientPersistence == null)
+        {
+            return null;
+        }
+
+        final MqttCountingPersistence countingPersistence = new MqttCountingPersistence(clientPersistence);
+        clientPersistences.put(clientId, countingPersistence);
+        return countingPersistence;
+    }
+
+    private MqttClientPersistence createClientPersistence() throws ConnectionException
+    {
+        if (getPersistenceType() == PersistenceType.MEMORY)
+        {
+            final String spillLocation = StringUtils.isNotBlank(getPersistenceLocation())
+                ? getPersistenceLocation() : System.getProperty("java.io.tmpdir");
+            LOGGER.info("Memory persistence activated with spilling at: " + spillLocation);
+            return new MqttMemoryPersistence(getPersistenceMemoryThreshold(), new MqttMappedLogPersistence(
+                spillLocation));
+        }
+
+        if (StringUtils.isBlank(getPersistenceLocation()))
+        {
+            return null;
+        }
+
+        if (getPersistenceType() == PersistenceType.MAPPED_LOG)
+        {
+            LOGGER.info("Mapped log persistence activated at: " + getPersistenceLocation());
+            return new MqttMappedLogPersistence(getPersistenceLocation());
+        }
+
+        try
+        {
+            final MqttClientPersistence clientPersistence = new MqttDefaultFilePersistence(
+                getPersistenceLocation());
+            LOGGER.info("File persistence activated at: " + getPersistenceLocation());
+            return clientPersistence;
+        }
+        catch (final MqttPersistenceException mpe)
+        {
+            throw new ConnectionException(ConnectionExceptionCode.UNKNOWN, "",
+                "Error creating file persistence for messages", mpe);
+        }
+    }
+
+    /**
+     * Method that sets up the MqttConnectOptions class for use. This reads the settings given via
+     * the mqtt:config element.
+     */
+    private void setupConnectOptions()
+    {
+        connectOptions = createConnectOptions();
+    }
+
+    private MqttConnectOptions createConnectOptions()
+    {
+        final MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(isCleanSession());
+        options.setConnectionTimeout(getConnectionTimeout());
+        options.setKeepAliveInterval(getKeepAliveInterval());
+        options.setUserName(getUsername());
+
+        if (StringUtils.isNotBlank(getPassword()))
+        {
+            options.setPassword(getPassword().toCharArray());
+        }
+
+        return options;
+    }
+
+    /**
+     * Disconnects the client.
+     * 
+     * @throws MqttException
+     */
+    @Disconnect
+    public void disconnect() throws MqttException
+    {
+        statistics.unregister();
+
+        if (brokerSelector != null)
+        {
+            brokerSelector.stopHealthChecks();
+        }
+
+        if (reconnector != null)
+        {
+            reconnector.stop();
+            reconnector = null;
+        }
+
+        closeTopicListeners();
+        closeCoalescer();
+        closeRequestor();
+        closeOfflineQueue();
+
+        try
+        {
+            if (shards != null)
+            {
+                shards.disconnect();
+                shards = null;
+            }
+
+            if ((client != null) && (client.isConnected()))
+            {
+                LOGGER.info("Diconnecting from MQTT broker...");
+                client.disconnect();
+            }
+        }
+        finally
+        {
+            // persistences keep threads and mapped files open, and one left open could compact the
+            // log of the persistence a new connection opens for the same client
+            closeClientPersistences();
+        }
+
+        if (inFlightWindow != null)
+        {
+            inFlightWindow.clear();
+        }
+
+        if (topicCache != null)
+        {
+            LOGGER.debug("Clearing topic cache: " + topicCache);
+            topicCache.clear();
+        }
+
+        client = null;
+        connectOptions = null;
+        activeClientId = null;
+    }
+
+    private void closeClientPersistences()
+    {
+        for (final MqttCountingPersistence clientPersistence : clientPersistences.values())
+        {
+            closeClientPersistence(clientPersistence);
+        }
+        clientPersistences.clear();
+    }
+
+    private static void closeClientPersistence(final MqttClientPersistence clientPersistence)
+    {
+        try
+        {
+            clientPersistence.close();
+        }
+        catch (final MqttPersistenceException mpe)
+        {
+            // the client may have closed it already
+            LOGGER.debug("Failed to close client persistence: " + clientPersistence, mpe);
+        }
+    }
+
+    /**
+     * Are we connected, or reconnecting while publications are queued offline
+     */
+    @ValidateConnection
+    public boolean isConnected()
+    {
+        return isClientConnected()
+               || ((offlineQueue != null) && (reconnector != null) && (reconnector.isReconnecting()));
+    }
+
+    /**
+     * @return true if all the clients are connected to the broker.
+     */
+    public boolean isClientConnected()
+    {
+        return client != null && client.isConnected() && (shards == null || shards.isConnected());
+    }
+
+    /**
+     * Connection Identifier
+     */
+    @ConnectionIdentifier
+    public String getActiveClientId()
+    {
+        final String resolvedClientId = activeClientId;
+        return resolvedClientId != null ? resolvedClientId : resolveClientId();
+    }
+
+    private String resolveClientId()
+    {
+        final boolean isExpression = StringUtils.startsWith(clientId,
+            ExpressionManager.DEFAULT_EXPRESSION_PREFIX);
+        return isExpression ? muleContext.getExpressionLanguage().<String> evaluate(clientId) : clientId;
     }
 
     /**
@@ -320,74 +1048,707 @@ public class MqttConnector implements MuleContextAware
      * {@link MqttConnector#MQTT_DELIVERY_TOKEN_VARIABLE} will contain the {@link MqttDeliveryToken}
      * that can be used for further awaiting completion.
      * <p/>
+     * When no completion time out is provided and an in-flight window is configured, QoS 1 and 2
+     * publications are tracked in this window: the flow only blocks when the window is full and the
+     * delivery is completed asynchronously by the client callback.
+     * <p/>
+     * When a linger time is provided and no completion time out, the message is coalesced with the
+     * other messages published to the same topic into a batch sent later on: no delivery token is
+     * available then. The same goes for messages queued by the offline queue while the connection
+     * is lost, which are published in order once it's back.
+     * <p/>
      * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-1}
      * <p/>
      * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-2}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-3}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-4}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-5}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-6}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-7}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-8}
      * 
-     * @param topicName topic to publish message to.
+     * @param topicName topic to publish message to, or a {@link MqttTopicTemplate} like
+     *            <code>devices/%{flowVars.deviceId}/cmd</code> filled in without evaluating any
+     *            expression.
      * @param waitForCompletionTimeOut time in milliseconds to wait for the delivery to occur.
      * @param qos QoS level to use when publishing message.
-     * @param messagePayload the payload that will be published over MQTT.
+     * @param compression compression of the payload, which subscribers must decode from its
+     *            {@link MqttEnvelope}.
+     * @param compressionThreshold size in bytes under which payloads are not compressed.
+     * @param attachMessageId attach a unique {@link MqttMessageId} to the message, or to the batch
+     *            when coalescing, so subscribers can drop its redeliveries. Subscribers must decode
+     *            the {@link MqttEnvelope}.
+     * @param lingerTime time in milliseconds a message waits for others to be coalesced with, zero
+     *            to publish it right away. Subscribers must decode the batch {@link MqttEnvelope}.
+     *            The operation returns once the message is coalesced: a batch failing to be
+     *            published later goes to the offline queue if enabled, or else its messages are
+     *            lost, and counted as such in the LostCount statistic.
+     * @param lingerMaxBytes size in bytes of the coalesced payloads at which a batch is published
+     *            without waiting for the linger time.
+     * @param messagePayload the payload that will be published over MQTT, encoded by the
+     *            {@link MqttPayloadCodec} of the topic if any, <code>byte[]</code> included.
+     *            Otherwise <code>byte[]</code>, {@link String}, {@link java.nio.ByteBuffer},
+     *            {@link java.io.File} and {@link java.io.InputStream} are read directly into the
+     *            message, other types being transformed to <code>byte[]</code> by Mule.
+     * @param muleEvent the in-flight {@link MuleEvent}.
+     * @return the <code>byte[]</code> that was published.
+     * @throws MqttException thrown if the MQTT publish fails.
+     * @throws Exception thrown if the payload can't be read or transformed.
+     */
+    @Processor
+    @Inject
+    public byte[] publish(final String topicName,
+                          @Optional final Long waitForCompletionTimeOut,
+                          @Optional @Default(MQTT_DEFAULT_QOS_STRING) final DeliveryQoS qos,
+                          @Optional @Default("NONE") final PayloadCompression compression,
+                          @Optional @Default("256") final int compressionThreshold,
+                          @Optional @Default("false") final boolean attachMessageId,
+                          @Optional @Default("0") final long lingerTime,
+                          @Optional @Default("65536") final int lingerMaxBytes,
+                          @Payload final Object messagePayload,
+                          final MuleEvent muleEvent) throws Exception
+    {
+        final String actualTopicName = resolveTopicName(topicName, muleEvent);
+        final byte[] messageBytes = toMessageBytes(actualTopicName, messagePayload, muleEvent);
+
+        if ((lingerTime > 0L) && (waitForCompletionTimeOut == null))
+        {
+            getCoalescer().add(actualTopicName, messageBytes, qos, compression, compressionThreshold,
+                attachMessageId, lingerTime, lingerMaxBytes);
+            return messageBytes;
+        }
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Retrieving topic '" + actualTopicName + "'");
+        }
+
+        final MqttMessageId messageId = attachMessageId ? MqttMessageId.next() : null;
+        final byte[] payload = MqttEnvelope.wrap(messageBytes, messageId, compression, compressionThreshold);
+
+        final MqttDeliveryToken token;
+        if (waitForCompletionTimeOut == null)
+        {
+            token = publishOrQueue(actualTopicName, payload, qos);
+            if (token == null)
+            {
+                // queued offline, no delivery token until it's actually published
+                return messageBytes;
+            }
+        }
+        else
+        {
+            token = publishMessage(getPublisherTopic(actualTopicName), payload, qos, false);
+
+            if (LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Waiting for completion for a maximum of " + waitForCompletionTimeOut + "ms");
+            }
+
+            token.waitForCompletion(waitForCompletionTimeOut);
+        }
+
+        // exposed as a flowVar so further/custom completion handling can be done downstream
+        muleEvent.setFlowVariable(MQTT_DELIVERY_TOKEN_VARIABLE, token);
+
+        return messageBytes;
+    }
+
+    /**
+     * Publish a batch of messages in one go. The payload must be an {@link Iterable}, an
+     * {@link Iterator} or an array whose items are either <code>byte[]</code>, published to the
+     * batch topic with the batch QoS, or {@link MqttBatchMessage} that can override both. All the
+     * messages are sent before any completion is awaited, so a single time out applies to the whole
+     * batch.
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-batch-1}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:publish-batch-2}
+     * 
+     * @param topicName topic to publish messages to when not defined by the item itself.
+     * @param waitForCompletionTimeOut time in milliseconds to wait for the delivery of the whole
+     *            batch to occur.
+     * @param qos QoS level to use when not defined by the item itself.
+     * @param messagePayloads the collection of payloads that will be published over MQTT.
+     * @return the {@link MqttBatchResult} of the publication.
+     * @throws MqttException thrown if one of the MQTT publish fails, or with the
+     *             {@link MqttException#REASON_CODE_CLIENT_TIMEOUT} reason if the batch isn't
+     *             delivered within the time out.
+     */
+    @Processor
+    public MqttBatchResult publishBatch(@Optional final String topicName,
+                                        @Optional final Long waitForCompletionTimeOut,
+                                        @Optional @Default(MQTT_DEFAULT_QOS_STRING) final DeliveryQoS qos,
+                                        @Payload final Object messagePayloads) throws MqttException
+    {
+        final Iterator<?> items = toIterator(messagePayloads);
+        final List<MqttDeliveryToken> tokens = new ArrayList<MqttDeliveryToken>();
+
+        while (items.hasNext())
+        {
+            final Object item = items.next();
+
+            String itemTopicName = topicName;
+            DeliveryQoS itemQos = qos;
+            byte[] itemPayload;
+
+            if (item instanceof MqttBatchMessage)
+            {
+                final MqttBatchMessage batchMessage = (MqttBatchMessage) item;
+                if (batchMessage.getTopicName() != null)
+                {
+                    itemTopicName = batchMessage.getTopicName();
+                }
+                if (batchMessage.getQos() != null)
+                {
+                    itemQos = batchMessage.getQos();
+                }
+                itemPayload = batchMessage.getPayload();
+            }
+            else if (item instanceof byte[])
+            {
+                itemPayload = (byte[]) item;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unsupported batch item: " + item);
+            }
+
+            Validate.notEmpty(itemTopicName, "No topic name has been defined for batch item: " + item);
+
+            final MqttTopic topic = getPublisherTopic(itemTopicName);
+
+            tokens.add(publishMessage(topic, itemPayload, itemQos, waitForCompletionTimeOut == null));
+        }
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Published a batch of " + tokens.size() + " messages");
+        }
+
+        final MqttBatchResult batchResult = new MqttBatchResult(tokens);
+        if (waitForCompletionTimeOut != null)
+        {
+            final long deadline = System.currentTimeMillis() + waitForCompletionTimeOut;
+            for (final MqttDeliveryToken token : tokens)
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L)
+                {
+                    break;
+                }
+                token.waitForCompletion(remaining);
+            }
+
+            if (!batchResult.isComplete())
+            {
+                LOGGER.warn("Batch not delivered in " + waitForCompletionTimeOut + "ms: " + batchResult);
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+        }
+
+        return batchResult;
+    }
+
+    private static Iterator<?> toIterator(final Object messagePayloads)
+    {
+        if (messagePayloads instanceof Iterable)
+        {
+            return ((Iterable<?>) messagePayloads).iterator();
+        }
+        if (messagePayloads instanceof Iterator)
+        {
+            return (Iterator<?>) messagePayloads;
+        }
+        if (messagePayloads instanceof Object[])
+        {
+            return Arrays.asList((Object[]) messagePayloads).iterator();
+        }
+        throw new IllegalArgumentException("Unsupported batch payload: " + messagePayloads);
+    }
+
+    private MqttCoalescer getCoalescer()
+    {
+        final MqttCoalescer currentCoalescer = coalescer;
+        return currentCoalescer != null ? currentCoalescer : createCoalescer();
+    }
+
+    private synchronized MqttCoalescer createCoalescer()
+    {
+        if (coalescer == null)
+        {
+            coalescer = new MqttCoalescer("mqtt-" + getActiveClientId(), new MqttCoalescer.Sender()
+            {
+                public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+                    throws MqttException
+                {
+                    publishOrQueue(topicName, payload, qos);
+                }
+
+                public boolean sendFailed(final String topicName,
+                                          final byte[] payload,
+                                          final DeliveryQoS qos,
+                                          final int messageCount)
+                {
+                    final MqttOfflineQueue currentOfflineQueue = offlineQueue;
+                    if ((currentOfflineQueue != null) && (currentOfflineQueue.offer(topicName, payload, qos)))
+                    {
+                        if (isClientConnected())
+                        {
+                            currentOfflineQueue.drain();
+                        }
+                        return true;
+                    }
+
+                    statistics.messagesLost(messageCount);
+                    return false;
+                }
+            });
+        }
+        return coalescer;
+    }
+
+    /**
+     * Publishes the pending batches, as long as the client can still publish them.
+     */
+    private synchronized void closeCoalescer()
+    {
+        if (coalescer != null)
+        {
+            coalescer.close();
+            coalescer = null;
+        }
+    }
+
+    /**
+     * Stops draining the offline queue and deletes its journal, the messages still queued being
+     * discarded.
+     */
+    private void closeOfflineQueue()
+    {
+        if (offlineQueue != null)
+        {
+            offlineQueue.close();
+            offlineQueue = null;
+        }
+    }
+
+    /**
+     * @return the requestor of the connector, subscribed to its reply topic with the first request.
+     */
+    private MqttRequestor getRequestor() throws MqttException
+    {
+        final MqttRequestor currentRequestor = requestor;
+        return currentRequestor != null ? currentRequestor : createRequestor();
+    }
+
+    private synchronized MqttRequestor createRequestor() throws MqttException
+    {
+        if (requestor == null)
+        {
+            // the reply subscription can only be made while connected, not while reconnecting
+            final MqttClient currentClient = client;
+            if ((currentClient == null) || (!currentClient.isConnected()))
+            {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+
+            final MqttRequestor newRequestor = new MqttRequestor(new MqttRequestor.Sender()
+            {
+                public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+                    throws MqttException
+                {
+                    publishMessage(getPublisherTopic(topicName), payload, qos, true);
+                }
+            }, getReplyTopicPrefix() + getActiveClientId(), getMaxPendingRequests());
+
+            // registered as a listener, the reply subscription is restored on reconnection
+            final MqttTopicSubscription replySubscription = new MqttTopicSubscription(
+                newRequestor.getReplyTopic(), MQTT_DEFAULT_QOS);
+            connectorCallback.addListener(newRequestor, Collections.singletonList(replySubscription));
+            try
+            {
+                currentClient.subscribe(newRequestor.getReplyTopic(), MQTT_DEFAULT_QOS.getCode());
+            }
+            catch (final MqttException me)
+            {
+                connectorCallback.removeListener(newRequestor);
+                throw me;
+            }
+
+            LOGGER.info("Subscribed to reply topic: " + newRequestor.getReplyTopic());
+            requestor = newRequestor;
+        }
+        return requestor;
+    }
+
+    /**
+     * Stops receiving replies, the pending requests failing at once.
+     */
+    private synchronized void closeRequestor()
+    {
+        if (requestor != null)
+        {
+            connectorCallback.removeListener(requestor);
+            requestor.close();
+            requestor = null;
+        }
+    }
+
+    /**
+     * Sends a message without waiting for its completion or, if the offline queue is enabled, queues
+     * it while the connection is lost or queued messages are waiting to be published first.
+     * 
+     * @return the delivery token, or null if the message has been queued.
+     */
+    private MqttDeliveryToken publishOrQueue(final String topicName, final byte[] payload, final DeliveryQoS qos)
+        throws MqttException
+    {
+        // the queue is closed when the connector is disconnected
+        final MqttOfflineQueue currentOfflineQueue = offlineQueue;
+        if (currentOfflineQueue == null)
+        {
+            return publishMessage(getPublisherTopic(topicName), payload, qos, true);
+        }
+
+        final boolean connected = isClientConnected();
+        if (((!connected) || (!currentOfflineQueue.isEmpty()))
+            && (currentOfflineQueue.offer(topicName, payload, qos)))
+        {
+            if (connected)
+            {
+                currentOfflineQueue.drain();
+            }
+            return null;
+        }
+
+        try
+        {
+            return publishMessage(getPublisherTopic(topicName), payload, qos, true);
+        }
+        catch (final MqttException me)
+        {
+            // the connection has been lost meanwhile
+            if ((!isClientConnected()) && (currentOfflineQueue.offer(topicName, payload, qos)))
+            {
+                return null;
+            }
+            throw me;
+        }
+    }
+
+    /**
+     * Sends a message, going through the in-flight window if it's active and the caller doesn't
+     * intend to wait for completion.
+     */
+    private MqttDeliveryToken publishMessage(final MqttTopic topic,
+                                             final byte[] messagePayload,
+                                             final DeliveryQoS qos,
+                                             final boolean asynchronous) throws MqttException
+    {
+        final MqttMessage mqttMessage = new MqttMessage(messagePayload);
+        mqttMessage.setQos(qos.getCode());
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Publishing message to broker with QoS: " + qos);
+        }
+
+        final boolean windowed = asynchronous && (inFlightWindow != null)
+                                 && (qos != DeliveryQoS.FIRE_AND_FORGET);
+        if (windowed)
+        {
+            inFlightWindow.acquire(getInFlightWindowTimeOut());
+        }
+
+        final MqttDeliveryToken token;
+        try
+        {
+            token = topic.publish(mqttMessage);
+        }
+        catch (final MqttException me)
+        {
+            if (windowed)
+            {
+                inFlightWindow.release();
+            }
+            statistics.publishFailed();
+            throw me;
+        }
+
+        final String publisherClientId = getPublisherClient(topic.getName()).getClientId();
+        if (windowed)
+        {
+            inFlightWindow.register(token, publisherClientId);
+        }
+        statistics.published(token, publisherClientId, windowed);
+
+        return token;
+    }
+
+    /**
+     * Publish a request to a topic and wait for its reply. The request is wrapped in a
+     * {@link MqttEnvelope} carrying a correlation identifier and the reply topic of the connector:
+     * responders must publish their reply to this topic, wrapped in an envelope carrying the same
+     * correlation identifier, which the reply operation does. The replies to all the requests of
+     * the connector are received through a single subscription to its reply topic, made with the
+     * first request.
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:request-1}
+     * 
+     * @param topicName topic to publish the request to, or a {@link MqttTopicTemplate}.
+     * @param timeOut time in milliseconds to wait for the reply, including the time waiting for one
+     *            of the pending requests to complete when too many are.
+     * @param qos QoS level to use when publishing the request.
+     * @param messagePayload the payload of the request, read like the payload of the publish
+     *            operation.
+     * @param muleEvent the in-flight {@link MuleEvent}.
+     * @return the payload of the reply, decoded by the codec mapped to the reply topic, if any, or
+     *         as <code>byte[]</code> if none is or the codec can't decode it.
+     * @throws MqttException thrown if the client isn't connected, the request can't be published, no
+     *             reply arrived in time or the connector disconnected meanwhile.
+     * @throws Exception thrown if the payload can't be read or transformed.
+     */
+    @Processor
+    @Inject
+    public Object request(final String topicName,
+                          @Optional @Default("10000") final long timeOut,
+                          @Optional @Default(MQTT_DEFAULT_QOS_STRING) final DeliveryQoS qos,
+                          @Payload final Object messagePayload,
+                          final MuleEvent muleEvent) throws Exception
+    {
+        final String actualTopicName = resolveTopicName(topicName, muleEvent);
+        final byte[] messageBytes = toMessageBytes(actualTopicName, messagePayload, muleEvent);
+
+        final MqttRequestor currentRequestor = getRequestor();
+        final byte[] reply = currentRequestor.request(actualTopicName, messageBytes, qos, timeOut);
+        return fromMessageBytes(currentRequestor.getReplyTopic(), reply);
+    }
+
+    /**
+     * @return the payload decoded by the codec mapped to the topic, or as is if none is or the codec
+     *         can't decode it, which is counted as a decoding failure.
+     */
+    private Object fromMessageBytes(final String topicName, final byte[] messageBytes)
+    {
+        final MqttPayloadCodec codec = payloadCodecRegistry != null
+            ? payloadCodecRegistry.codecFor(topicName) : null;
+        if (codec == null)
+        {
+            return messageBytes;
+        }
+
+        try
+        {
+            return codec.decode(messageBytes);
+        }
+        catch (final IOException ioe)
+        {
+            statistics.decodingFailed();
+            LOGGER.warn("Failed to decode payload received on topic: " + topicName + " with codec: "
+                        + codec.getName() + ", returning it undecoded", ioe);
+            return messageBytes;
+        }
+    }
+
+    /**
+     * @return the topic name, or the resolved name if it's a {@link MqttTopicTemplate}.
+     */
+    private String resolveTopicName(final String topicName, final MuleEvent muleEvent)
+    {
+        if (!MqttTopicTemplate.isTemplate(topicName))
+        {
+            return topicName;
+        }
+
+        MqttTopicTemplate topicTemplate = topicTemplates.get(topicName);
+        if (topicTemplate == null)
+        {
+            topicTemplate = new MqttTopicTemplate(topicName);
+            if (topicTemplates.size() < MAX_TOPIC_TEMPLATES)
+            {
+                topicTemplates.putIfAbsent(topicName, topicTemplate);
+            }
+        }
+        return topicTemplate.resolve(muleEvent);
+    }
+
+    /**
+     * @return the payload encoded by the codec mapped to the topic, <code>byte[]</code> included so
+     *         subscribers decode what was encoded, or read as is if none is.
+     */
+    private byte[] toMessageBytes(final String topicName, final Object messagePayload, final MuleEvent muleEvent)
+        throws Exception
+    {
+        final MqttPayloadCodec codec = payloadCodecRegistry != null
+            ? payloadCodecRegistry.codecFor(topicName) : null;
+        if (codec != null)
+        {
+            return codec.encode(messagePayload);
+        }
+
+        return MqttPayloads.isSupported(messagePayload)
+            ? MqttPayloads.toByteArray(messagePayload, muleEvent.getMessage().getEncoding())
+            : muleEvent.getMessage().getPayloadAsBytes();
+    }
+
+    /**
+     * Publish the reply to a request received by a subscription decoding envelopes. The reply topic
+     * and correlation identifier default to the inbound properties
+     * {@link MqttConnector#MQTT_REPLY_TOPIC_PROPERTY} and
+     * {@link MqttConnector#MQTT_CORRELATION_ID_PROPERTY} of the request.
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:reply-1}
+     * 
+     * @param replyTopic topic to publish the reply to, or a {@link MqttTopicTemplate}.
+     * @param correlationId identifier of the request replied to.
+     * @param qos QoS level to use when publishing the reply.
+     * @param messagePayload the payload of the reply, read like the payload of the publish
+     *            operation.
      * @param muleEvent the in-flight {@link MuleEvent}.
      * @return the <code>byte[]</code> that was published.
      * @throws MqttException thrown if the MQTT publish fails.
+     * @throws Exception thrown if the payload can't be read or transformed.
+     */
+    @Processor
+    @Inject
+    public byte[] reply(@Optional final String replyTopic,
+                        @Optional final String correlationId,
+                        @Optional @Default(MQTT_DEFAULT_QOS_STRING) final DeliveryQoS qos,
+                        @Payload final Object messagePayload,
+                        final MuleEvent muleEvent) throws Exception
+    {
+        final String actualReplyTopic = StringUtils.isNotBlank(replyTopic) ? resolveTopicName(replyTopic, muleEvent)
+            : muleEvent.getMessage().<String> getInboundProperty(MQTT_REPLY_TOPIC_PROPERTY);
+        final String actualCorrelationId = StringUtils.isNotBlank(correlationId) ? correlationId
+            : muleEvent.getMessage().<String> getInboundProperty(MQTT_CORRELATION_ID_PROPERTY);
+        Validate.notEmpty(actualReplyTopic, "No reply topic, the message is not a request");
+        Validate.notEmpty(actualCorrelationId, "No correlation identifier, the message is not a request");
+
+        final byte[] messageBytes = toMessageBytes(actualReplyTopic, messagePayload, muleEvent);
+
+        publishOrQueue(actualReplyTopic,
+            MqttEnvelope.wrapReply(messageBytes, MqttMessageId.fromString(actualCorrelationId)), qos);
+        return messageBytes;
+    }
+
+    /**
+     * Read the last message received on a topic by the subscriptions of the connector, from the
+     * last value cache and without any request to the broker. Retained messages being delivered on
+     * subscription, this includes the retained value of the subscribed topics.
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:get-last-value-1}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:get-last-value-2}
+     * 
+     * @param topic topic name to read the last value of, or topic filter with wildcards to read the
+     *            last values of all the matching topics.
+     * @return the <code>byte[]</code> payload of the last message received on the topic, null if
+     *         none is cached, or for a topic filter the {@link Map} of the payloads by topic name.
      */
     @Processor
-    @Inject
-    public byte[] publish(final String topicName,
-                          @Optional final Long waitForCompletionTimeOut,
-                          @Optional @Default(MQTT_DEFAULT_QOS_STRING) final DeliveryQoS qos,
-                          @Payload final byte[] messagePayload,
-                          final MuleEvent muleEvent) throws MqttException
+    public Object getLastValue(final String topic)
     {
-        if (LOGGER.isDebugEnabled())
-        {
-            LOGGER.debug("Retrieving topic '" + topicName + "'");
-        }
-
-        final MqttTopic topic = client.getTopic(topicName);
-
-        if (LOGGER.isDebugEnabled())
-        {
-            LOGGER.debug("Preparing message");
-        }
-
-        final MqttMessage mqttMessage = new MqttMessage(messagePayload);
-        mqttMessage.setQos(qos.getCode());
-
-        if (LOGGER.isDebugEnabled())
-        {
-            LOGGER.debug("Publishing message to broker with QoS: " + qos);
-        }
+        Validate.isTrue(lastValueCache != null,
+            "The last value cache is disabled, configure a lastValueCacheSize");
 
-        final MqttDeliveryToken token = topic.publish(mqttMessage);
-
-        if (waitForCompletionTimeOut != null)
+        if (MqttLastValueCache.isTopicFilter(topic))
         {
-            if (LOGGER.isDebugEnabled())
+            final Map<String, byte[]> payloads = new LinkedHashMap<String, byte[]>();
+            for (final MqttLastValueCache.Entry entry : lastValueCache.match(topic).values())
             {
-                LOGGER.debug("Waiting for completion for a maximum of " + waitForCompletionTimeOut + "ms");
+                payloads.put(entry.getTopicName(), entry.getPayload());
             }
-
-            token.waitForCompletion(waitForCompletionTimeOut);
+            return payloads;
         }
 
-        // exposed as a flowVar so further/custom completion handling can be done downstream
-        muleEvent.setFlowVariable(MQTT_DELIVERY_TOKEN_VARIABLE, token);
-
-        return messagePayload;
+        final MqttLastValueCache.Entry entry = lastValueCache.get(topic);
+        return entry == null ? null : entry.getPayload();
     }
 
     /**
-     * Subscribe to a single or multiple topic filters.
+     * Subscribe to a single or multiple topic filters. Messages are received as <code>byte[]</code>,
+     * or decoded by the {@link MqttPayloadCodec} of their topic if the connector maps one to it and
+     * they are valid for it.
      * <p/>
      * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-1}
      * <p/>
      * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-2}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-3}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-4}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-5}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-6}
+     * <p/>
+     * {@sample.xml ../../../doc/mqtt-connector.xml.sample mqtt:subscribe-7}
      * 
      * @param topicFilter single topic filter to subscribe to.
      * @param qos QoS level to use when subscribing to a single topic.
      * @param topicSubscriptions a {@link List} of {@link MqttTopicSubscription} to subscribe to.
+     * @param dispatcherThreads number of threads processing the received messages, messages of a
+     *            same topic being always processed in order by the same thread. Zero processes the
+     *            messages on the MQTT client thread. With dispatcher threads, QoS 1 and 2 messages
+     *            are acknowledged to the broker once queued, before the flow processes them: a
+     *            message whose processing fails is not redelivered, and the messages still queued
+     *            when the connector disconnects or the process dies are lost.
+     * @param dispatcherQueueSize maximum number of received messages waiting for each dispatcher
+     *            thread, the MQTT client thread being blocked when reached. Not used when
+     *            maxOutstandingMessages is set, each queue then holding up to that many messages.
+     * @param maxOutstandingMessages maximum number of received messages queued or being processed
+     *            by the flow, zero for no limit other than the dispatcher queues size. Requires at
+     *            least one dispatcher thread, which is used if none is configured. Replaces
+     *            dispatcherQueueSize, as any worker can hold all the outstanding messages.
+     * @param overflowPolicy what to do with messages received while the maximum number of
+     *            outstanding messages is reached: block the MQTT client, which stops reading from
+     *            the broker, drop the oldest queued message, drop the received message, or spill it
+     *            to disk until credits are available.
+     * @param spillDirectory directory where messages are spilled to, defaults to the persistence
+     *            location or the temporary directory. The spill journal only extends the dispatcher
+     *            queues beyond memory: the spilled messages have been acknowledged to the broker and
+     *            are lost when the connector disconnects or the process dies, the journal being
+     *            emptied on creation and deleted on stop.
+     * @param decodeEnvelopes decode the {@link MqttEnvelope} of the messages published with
+     *            compression or coalescing, each message of a batch being received separately.
+     *            Other messages are received as is, like those with a corrupted envelope, which are
+     *            counted in the DecodingFailureCount statistic.
+     * @param duplicateDetection drop the messages received before, as identified by the
+     *            {@link MqttMessageId} attached by their publisher or, with PAYLOAD_HASH, by a hash of
+     *            their topic and payload when they have none. Gives effectively-once processing with
+     *            the AT_LEAST_ONCE QoS, as long as redeliveries happen within the duplicate window.
+     *            Beware that PAYLOAD_HASH can't tell a redelivery from a new message: a message
+     *            repeating the payload of a message received on the same topic within the duplicate
+     *            window (60 seconds by default) is dropped, even if legitimately published again, as
+     *            a sensor publishing an unchanged reading would.
+     * @param duplicateWindow time in milliseconds during which received messages are remembered.
+     * @param duplicateCacheSize maximum number of message identifiers remembered, the oldest ones
+     *            being forgotten first.
+     * @param duplicateBloomFilterBits size in bits of a Bloom filter remembering the identifiers
+     *            beyond the cache size, zero to disable it. It uses a fixed amount of memory but
+     *            may take messages for duplicates: about 1 in 200 when sized with 16 bits per
+     *            message received during the window.
+     * @param filterTopicPattern regular expression the topic names of the processed messages must
+     *            match. Like all the filters, it's checked before any Mule event is created, the
+     *            other messages being dropped.
+     * @param filterTopicFilters comma separated MQTT topic filters, with <code>+</code> and
+     *            <code>#</code> wildcards, one of which the topic names of the processed messages
+     *            must match.
+     * @param filterMinPayloadSize minimum size in bytes of the payloads of the processed messages.
+     * @param filterMaxPayloadSize maximum size in bytes of the payloads of the processed messages.
+     * @param filterPayloadPrefix bytes the payloads of the processed messages must start with,
+     *            written as text or, following <code>0x</code>, as hexadecimal digits.
+     * @param filterJsonField predicate on a field of the JSON payloads of the processed messages,
+     *            like <code>sensor.type = temperature</code> or <code>value &gt;= 30</code>, as
+     *            supported by {@link MqttJsonFieldPredicate}. The payload is scanned without being
+     *            parsed into objects.
      * @param callback the {@link SourceCallback} used by Mule to dispatch the received messages.
      * @throws ConnectionException thrown if the MQTT subscribe fails.
      */
@@ -395,6 +1756,22 @@ public class MqttConnector implements MuleContextAware
     public void subscribe(@Optional final String topicFilter,
                           @Optional @Default(MQTT_DEFAULT_QOS_STRING) final DeliveryQoS qos,
                           @Optional final List<MqttTopicSubscription> topicSubscriptions,
+                          @Optional @Default("0") final int dispatcherThreads,
+                          @Optional @Default("1024") final int dispatcherQueueSize,
+                          @Optional @Default("0") final int maxOutstandingMessages,
+                          @Optional @Default("BLOCK") final OverflowPolicy overflowPolicy,
+                          @Optional final String spillDirectory,
+                          @Optional @Default("false") final boolean decodeEnvelopes,
+                          @Optional @Default("NONE") final DuplicateDetection duplicateDetection,
+                          @Optional @Default("60000") final long duplicateWindow,
+                          @Optional @Default("10000") final int duplicateCacheSize,
+                          @Optional @Default("0") final int duplicateBloomFilterBits,
+                          @Optional final String filterTopicPattern,
+                          @Optional final String filterTopicFilters,
+                          @Optional final Integer filterMinPayloadSize,
+                          @Optional final Integer filterMaxPayloadSize,
+                          @Optional final String filterPayloadPrefix,
+                          @Optional final String filterJsonField,
                           final SourceCallback callback) throws ConnectionException
     {
         final List<MqttTopicSubscription> actualSubscriptions = new ArrayList<MqttTopicSubscription>();
@@ -425,7 +1802,77 @@ public class MqttConnector implements MuleContextAware
 
         Validate.notEmpty(actualSubscriptions, "No topic filter has been defined to subscribe to");
 
-        new MqttTopicListener(this, callback, actualSubscriptions).connect();
+        final MqttInboundDispatcher dispatcher = createInboundDispatcher(dispatcherThreads,
+            dispatcherQueueSize, maxOutstandingMessages, overflowPolicy, spillDirectory);
+
+        final MqttDuplicateFilter duplicateFilter = duplicateDetection == DuplicateDetection.NONE
+            ? null
+            : new MqttDuplicateFilter(duplicateWindow, duplicateCacheSize, duplicateBloomFilterBits);
+
+        final MqttInboundFilter inboundFilter = MqttInboundFilter.create(filterTopicPattern, filterTopicFilters,
+            filterMinPayloadSize, filterMaxPayloadSize, filterPayloadPrefix, filterJsonField);
+
+        final MqttTopicListener listener = new MqttTopicListener(this, callback, actualSubscriptions,
+            dispatcher, decodeEnvelopes, duplicateDetection, duplicateFilter, inboundFilter);
+        try
+        {
+            listener.connect();
+        }
+        catch (final ConnectionException ce)
+        {
+            listener.stop();
+            throw ce;
+        }
+
+        // the source returns, releasing this connector instance to the other sources and processors
+        // of its configuration, and the listener is closed when the connector disconnects
+        topicListeners.add(listener);
+    }
+
+    private void closeTopicListeners()
+    {
+        for (final MqttTopicListener listener : topicListeners)
+        {
+            listener.close();
+        }
+        topicListeners.clear();
+    }
+
+    private MqttInboundDispatcher createInboundDispatcher(final int dispatcherThreads,
+                                                         final int dispatcherQueueSize,
+                                                         final int maxOutstandingMessages,
+                                                         final OverflowPolicy overflowPolicy,
+                                                         final String spillDirectory)
+        throws ConnectionException
+    {
+        if ((dispatcherThreads <= 0) && (maxOutstandingMessages <= 0))
+        {
+            return null;
+        }
+
+        final String name = "mqtt-" + getActiveClientId();
+
+        MqttMessageJournal spillJournal = null;
+        if ((maxOutstandingMessages > 0) && (overflowPolicy == OverflowPolicy.SPILL_TO_DISK))
+        {
+            final String directory = StringUtils.isNotBlank(spillDirectory) ? spillDirectory
+                : StringUtils.isNotBlank(getPersistenceLocation()) ? getPersistenceLocation()
+                : System.getProperty("java.io.tmpdir");
+            final File spillFile = new File(directory, name + "-" + UUID.getUUID() + ".spill");
+            try
+            {
+                spillJournal = new MqttMessageJournal(spillFile);
+            }
+            catch (final IOException ioe)
+            {
+                throw new ConnectionException(ConnectionExceptionCode.UNKNOWN, "",
+                    "Error creating spill journal: " + spillFile, ioe);
+            }
+            LOGGER.info("Spill journal activated at: " + spillFile);
+        }
+
+        return new MqttInboundDispatcher(name, Math.max(1, dispatcherThreads), dispatcherQueueSize,
+            maxOutstandingMessages, overflowPolicy, spillJournal);
     }
 
     // Getters and Setters
@@ -444,6 +1891,141 @@ public class MqttConnector implements MuleContextAware
         return client;
     }
 
+    /**
+     * @return the client that publishes to the given topic: the primary client unless publisher
+     *         shards are active.
+     */
+    public MqttClient getPublisherClient(final String topicName)
+    {
+        return shards == null ? client : shards.getClient(topicName);
+    }
+
+    /**
+     * @return the IDs of the clients, the main one and the publisher shards, that aren't connected.
+     */
+    public List<String> getLostClientIds()
+    {
+        final List<String> lostClientIds = new ArrayList<String>();
+        final MqttClient currentClient = client;
+        if ((currentClient != null) && (!currentClient.isConnected()))
+        {
+            lostClientIds.add(currentClient.getClientId());
+        }
+
+        final MqttPublisherShards currentShards = shards;
+        if (currentShards != null)
+        {
+            for (int i = 1; i < currentShards.size(); i++)
+            {
+                final MqttClient shardClient = currentShards.getClient(i);
+                if (!shardClient.isConnected())
+                {
+                    lostClientIds.add(shardClient.getClientId());
+                }
+            }
+        }
+        return lostClientIds;
+    }
+
+    /**
+     * @return the handle of the topic from the client that publishes to it, going through the topic
+     *         cache if it's active.
+     */
+    public MqttTopic getPublisherTopic(final String topicName)
+    {
+        if (topicCache == null)
+        {
+            return getPublisherClient(topicName).getTopic(topicName);
+        }
+
+        MqttTopic topic = topicCache.get(topicName);
+        if (topic == null)
+        {
+            topic = getPublisherClient(topicName).getTopic(topicName);
+            topicCache.put(topicName, topic);
+        }
+        return topic;
+    }
+
+    public MqttTopicCache getTopicCache()
+    {
+        return topicCache;
+    }
+
+    /**
+     * @return the cache of the last value of the received topics, null if disabled.
+     */
+    public MqttLastValueCache getLastValueCache()
+    {
+        return lastValueCache;
+    }
+
+    public MqttPayloadCodecRegistry getPayloadCodecRegistry()
+    {
+        return payloadCodecRegistry;
+    }
+
+    public MqttConnectorCallback getConnectorCallback()
+    {
+        return connectorCallback;
+    }
+
+    public MqttInFlightWindow getInFlightWindow()
+    {
+        return inFlightWindow;
+    }
+
+    /**
+     * @return the reconnector of the clients, null while disconnected.
+     */
+    public MqttReconnector getReconnector()
+    {
+        return reconnector;
+    }
+
+    public MqttConnectorStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * @return the number of publications of all the publisher clients awaiting delivery completion.
+     */
+    public int getPendingDeliveryCount()
+    {
+        final MqttPublisherShards currentShards = shards;
+        if (currentShards != null)
+        {
+            int pendingDeliveryCount = 0;
+            for (int i = 0; i < currentShards.size(); i++)
+            {
+                // shards are only all set once connected
+                final MqttClient shardClient = currentShards.getClient(i);
+                if (shardClient != null)
+                {
+                    pendingDeliveryCount += shardClient.getPendingDeliveryTokens().length;
+                }
+            }
+            return pendingDeliveryCount;
+        }
+
+        final MqttClient currentClient = client;
+        return currentClient == null ? 0 : currentClient.getPendingDeliveryTokens().length;
+    }
+
+    /**
+     * @return the number of messages held by the persistence of all the clients.
+     */
+    public int getPersistedMessageCount()
+    {
+        int persistedMessageCount = 0;
+        for (final MqttCountingPersistence clientPersistence : clientPersistences.values())
+        {
+            persistedMessageCount += clientPersistence.getCount();
+        }
+        return persistedMessageCount;
+    }
+
     public String getBrokerServerUri()
     {
         return brokerServerUri;
@@ -553,4 +2135,204 @@ public class MqttConnector implements MuleContextAware
     {
         this.lwtRetained = lwtRetained;
     }
+
+    public PersistenceType getPersistenceType()
+    {
+        return persistenceType;
+    }
+
+    public void setPersistenceType(final PersistenceType persistenceType)
+    {
+        this.persistenceType = persistenceType;
+    }
+
+    public int getPersistenceMemoryThreshold()
+    {
+        return persistenceMemoryThreshold;
+    }
+
+    public void setPersistenceMemoryThreshold(final int persistenceMemoryThreshold)
+    {
+        this.persistenceMemoryThreshold = persistenceMemoryThreshold;
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(final int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public long getInFlightWindowTimeOut()
+    {
+        return inFlightWindowTimeOut;
+    }
+
+    public void setInFlightWindowTimeOut(final long inFlightWindowTimeOut)
+    {
+        this.inFlightWindowTimeOut = inFlightWindowTimeOut;
+    }
+
+    public int getPublisherShards()
+    {
+        return publisherShards;
+    }
+
+    public void setPublisherShards(final int publisherShards)
+    {
+        this.publisherShards = publisherShards;
+    }
+
+    public int getTopicCacheSize()
+    {
+        return topicCacheSize;
+    }
+
+    public void setTopicCacheSize(final int topicCacheSize)
+    {
+        this.topicCacheSize = topicCacheSize;
+    }
+
+    public boolean isStatisticsMBeanEnabled()
+    {
+        return statisticsMBeanEnabled;
+    }
+
+    public void setStatisticsMBeanEnabled(final boolean statisticsMBeanEnabled)
+    {
+        this.statisticsMBeanEnabled = statisticsMBeanEnabled;
+    }
+
+    public long getReconnectInitialDelay()
+    {
+        return reconnectInitialDelay;
+    }
+
+    public void setReconnectInitialDelay(final long reconnectInitialDelay)
+    {
+        this.reconnectInitialDelay = reconnectInitialDelay;
+    }
+
+    public long getReconnectMaxDelay()
+    {
+        return reconnectMaxDelay;
+    }
+
+    public void setReconnectMaxDelay(final long reconnectMaxDelay)
+    {
+        this.reconnectMaxDelay = reconnectMaxDelay;
+    }
+
+    public int getReconnectMaxAttempts()
+    {
+        return reconnectMaxAttempts;
+    }
+
+    public void setReconnectMaxAttempts(final int reconnectMaxAttempts)
+    {
+        this.reconnectMaxAttempts = reconnectMaxAttempts;
+    }
+
+    public int getOfflineQueueSize()
+    {
+        return offlineQueueSize;
+    }
+
+    public void setOfflineQueueSize(final int offlineQueueSize)
+    {
+        this.offlineQueueSize = offlineQueueSize;
+    }
+
+    public int getOfflineJournalSize()
+    {
+        return offlineJournalSize;
+    }
+
+    public void setOfflineJournalSize(final int offlineJournalSize)
+    {
+        this.offlineJournalSize = offlineJournalSize;
+    }
+
+    public int getOfflineDrainRate()
+    {
+        return offlineDrainRate;
+    }
+
+    public void setOfflineDrainRate(final int offlineDrainRate)
+    {
+        this.offlineDrainRate = offlineDrainRate;
+    }
+
+    public BrokerSelection getBrokerSelection()
+    {
+        return brokerSelection;
+    }
+
+    public void setBrokerSelection(final BrokerSelection brokerSelection)
+    {
+        this.brokerSelection = brokerSelection;
+    }
+
+    public long getBrokerHealthCheckInterval()
+    {
+        return brokerHealthCheckInterval;
+    }
+
+    public void setBrokerHealthCheckInterval(final long brokerHealthCheckInterval)
+    {
+        this.brokerHealthCheckInterval = brokerHealthCheckInterval;
+    }
+
+    public int getLastValueCacheSize()
+    {
+        return lastValueCacheSize;
+    }
+
+    public void setLastValueCacheSize(final int lastValueCacheSize)
+    {
+        this.lastValueCacheSize = lastValueCacheSize;
+    }
+
+    public long getLastValueCacheTtl()
+    {
+        return lastValueCacheTtl;
+    }
+
+    public void setLastValueCacheTtl(final long lastValueCacheTtl)
+    {
+        this.lastValueCacheTtl = lastValueCacheTtl;
+    }
+
+    public String getReplyTopicPrefix()
+    {
+        return replyTopicPrefix;
+    }
+
+    public void setReplyTopicPrefix(final String replyTopicPrefix)
+    {
+        this.replyTopicPrefix = replyTopicPrefix;
+    }
+
+    public int getMaxPendingRequests()
+    {
+        return maxPendingRequests;
+    }
+
+    public void setMaxPendingRequests(final int maxPendingRequests)
+    {
+        this.maxPendingRequests = maxPendingRequests;
+    }
+
+    public String getPayloadCodecs()
+    {
+        return payloadCodecs;
+    }
+
+    public void setPayloadCodecs(final String payloadCodecs)
+    {
+        this.payloadCodecs = payloadCodecs;
+    }
 }
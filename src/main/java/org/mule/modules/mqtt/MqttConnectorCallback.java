@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Callback installed on the {@link MqttConnector} client: completes in-flight publications and
+ * routes each received message to all the listeners having a subscription matching its topic, so
+ * any number of listeners can share the client. Lost connections are recovered in place by the
+ * {@link MqttReconnector} of the connector.
+ */
+public class MqttConnectorCallback implements MqttCallback
+{
+    private static final Log LOGGER = LogFactory.getLog(MqttConnectorCallback.class);
+
+    private final MqttConnector connector;
+    private final MqttTopicFilterTrie<MqttCallback> listenersTrie = new MqttTopicFilterTrie<MqttCallback>();
+    private final Map<MqttCallback, List<MqttTopicSubscription>> listenersSubscriptions = new ConcurrentHashMap<MqttCallback, List<MqttTopicSubscription>>();
+
+    public MqttConnectorCallback(final MqttConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Routes the messages matching the subscriptions to the listener. The subscriptions themselves
+     * must be done separately.
+     */
+    public void addListener(final MqttCallback listener, final List<MqttTopicSubscription> subscriptions)
+    {
+        if (listenersSubscriptions.put(listener, subscriptions) != null)
+        {
+            return;
+        }
+
+        for (final MqttTopicSubscription subscription : subscriptions)
+        {
+            listenersTrie.add(subscription.getTopicFilter(), listener);
+        }
+    }
+
+    /**
+     * Stops routing messages to the listener.
+     * 
+     * @return the topic filters that are not used by any other listener anymore.
+     */
+    public List<String> removeListener(final MqttCallback listener)
+    {
+        final List<String> unusedTopicFilters = new ArrayList<String>();
+        final List<MqttTopicSubscription> subscriptions = listenersSubscriptions.remove(listener);
+        if (subscriptions == null)
+        {
+            return unusedTopicFilters;
+        }
+
+        for (final MqttTopicSubscription subscription : subscriptions)
+        {
+            listenersTrie.remove(subscription.getTopicFilter(), listener);
+            if (!isSubscribed(subscription.getTopicFilter()))
+            {
+                unusedTopicFilters.add(subscription.getTopicFilter());
+            }
+        }
+        return unusedTopicFilters;
+    }
+
+    private boolean isSubscribed(final String topicFilter)
+    {
+        for (final List<MqttTopicSubscription> subscriptions : listenersSubscriptions.values())
+        {
+            for (final MqttTopicSubscription subscription : subscriptions)
+            {
+                if (subscription.getTopicFilter().equals(topicFilter))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Subscribes again all the listeners at once, typically after a reconnection.
+     */
+    public void resubscribe() throws MqttException
+    {
+        final List<MqttTopicSubscription> subscriptions = new ArrayList<MqttTopicSubscription>();
+        for (final List<MqttTopicSubscription> listenerSubscriptions : listenersSubscriptions.values())
+        {
+            subscriptions.addAll(listenerSubscriptions);
+        }
+
+        if (subscriptions.isEmpty())
+        {
+            return;
+        }
+
+        final String[] topicFilters = new String[subscriptions.size()];
+        final int[] qoss = new int[subscriptions.size()];
+        int i = 0;
+        for (final MqttTopicSubscription subscription : subscriptions)
+        {
+            topicFilters[i] = subscription.getTopicFilter();
+            qoss[i] = subscription.getQos().getCode();
+            i++;
+        }
+
+        connector.getMqttClient().subscribe(topicFilters, qoss);
+
+        LOGGER.info("Subscribed again to: " + subscriptions);
+    }
+
+    public void connectionLost(final Throwable throwable)
+    {
+        // the callback is shared by the clients, the lost ones are those not connected anymore
+        final List<String> lostClientIds = connector.getLostClientIds();
+        connector.getStatistics().connectionLost(lostClientIds);
+
+        // deliveries pending on the lost connections will never complete, unlike those of the
+        // publisher shards still connected
+        final MqttInFlightWindow inFlightWindow = connector.getInFlightWindow();
+        if (inFlightWindow != null)
+        {
+            for (final String lostClientId : lostClientIds)
+            {
+                inFlightWindow.clear(lostClientId);
+            }
+        }
+
+        final MqttReconnector reconnector = connector.getReconnector();
+        if (reconnector == null)
+        {
+            // the connector is being disconnected
+            LOGGER.warn("Lost connection to MQTT broker", throwable);
+            return;
+        }
+
+        if (reconnector.reconnect())
+        {
+            LOGGER.error("Lost connection to MQTT broker, reconnecting", throwable);
+        }
+    }
+
+    public void messageArrived(final MqttTopic mqttTopic, final MqttMessage mqttMessage) throws Exception
+    {
+        connector.getStatistics().received();
+
+        final Set<MqttCallback> listeners = listenersTrie.match(mqttTopic.getName());
+        if ((listeners.isEmpty()) && (LOGGER.isDebugEnabled()))
+        {
+            LOGGER.debug("No listener for message arrived on topic: " + mqttTopic.getName());
+        }
+
+        // all the listeners get the message, the first failure is reported to the client afterwards
+        Exception failure = null;
+        for (final MqttCallback listener : listeners)
+        {
+            try
+            {
+                listener.messageArrived(mqttTopic, mqttMessage);
+            }
+            catch (final Exception e)
+            {
+                if (failure == null)
+                {
+                    failure = e;
+                }
+                else
+                {
+                    LOGGER.error("Listener failed to process message arrived on topic: " + mqttTopic.getName(), e);
+                }
+            }
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    public void deliveryComplete(final MqttDeliveryToken mqttDeliveryToken)
+    {
+        final MqttInFlightWindow inFlightWindow = connector.getInFlightWindow();
+        final long inFlightTime = inFlightWindow != null ? inFlightWindow.complete(mqttDeliveryToken) : -1L;
+
+        connector.getStatistics().deliveryCompleted(mqttDeliveryToken, inFlightTime);
+    }
+}
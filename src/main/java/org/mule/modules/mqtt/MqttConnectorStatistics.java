@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+
+/**
+ * Counters, gauges and latency histograms of a {@link MqttConnector}, kept for the whole life of the
+ * connector across reconnections. Delivery latency goes from the publication of a message to its
+ * delivery completion and processing latency from the arrival of a message to the end of its
+ * processing by the flow, including the time spent in the dispatcher queues.
+ * <p/>
+ * The statistics are registered as an MBean named after the client ID while the connector is
+ * connected.
+ */
+public class MqttConnectorStatistics implements MqttConnectorStatisticsMBean
+{
+    public static final String JMX_DOMAIN = "org.mule.modules.mqtt";
+
+    private static final Log LOGGER = LogFactory.getLog(MqttConnectorStatistics.class);
+
+    private final MqttConnector connector;
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong publishFailureCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+    private final AtomicLong deliveryCompletedCount = new AtomicLong();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong filteredCount = new AtomicLong();
+    private final AtomicLong decodingFailureCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong processingFailureCount = new AtomicLong();
+    private final AtomicLong connectionLostCount = new AtomicLong();
+    private final AtomicLong reconnectionCount = new AtomicLong();
+    private final MqttLatencyHistogram deliveryLatency = new MqttLatencyHistogram();
+    private final MqttLatencyHistogram processingLatency = new MqttLatencyHistogram();
+    private final Map<MqttDeliveryToken, Publication> publications = new ConcurrentHashMap<MqttDeliveryToken, Publication>();
+    private ObjectName objectName;
+
+    private static final class Publication
+    {
+        private final String clientId;
+        private final long publicationTime = System.nanoTime();
+
+        private Publication(final String clientId)
+        {
+            this.clientId = clientId;
+        }
+    }
+
+    public MqttConnectorStatistics(final MqttConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Records a publication, whose delivery latency is tracked here unless it's tracked by the
+     * in-flight window.
+     * 
+     * @param clientId the ID of the client the publication was sent by.
+     */
+    public void published(final MqttDeliveryToken token,
+                          final String clientId,
+                          final boolean trackedByInFlightWindow)
+    {
+        publishedCount.incrementAndGet();
+
+        if (!trackedByInFlightWindow)
+        {
+            publications.put(token, new Publication(clientId));
+            // the delivery may have completed before being tracked
+            if (token.isComplete())
+            {
+                publications.remove(token);
+            }
+        }
+    }
+
+    public void publishFailed()
+    {
+        publishFailureCount.incrementAndGet();
+    }
+
+    /**
+     * @param messageCount the number of messages lost after their publication failed while no
+     *            caller was waiting for it.
+     */
+    public void messagesLost(final int messageCount)
+    {
+        lostCount.addAndGet(messageCount);
+    }
+
+    /**
+     * @param inFlightTime the delivery latency measured by the in-flight window, negative if the
+     *            publication wasn't tracked by the window.
+     */
+    public void deliveryCompleted(final MqttDeliveryToken token, final long inFlightTime)
+    {
+        deliveryCompletedCount.incrementAndGet();
+
+        if (inFlightTime >= 0L)
+        {
+            deliveryLatency.record(inFlightTime);
+            return;
+        }
+
+        final Publication publication = publications.remove(token);
+        if (publication != null)
+        {
+            deliveryLatency.record(System.nanoTime() - publication.publicationTime);
+        }
+    }
+
+    public void received()
+    {
+        receivedCount.incrementAndGet();
+    }
+
+    public void duplicateDropped()
+    {
+        duplicateCount.incrementAndGet();
+    }
+
+    public void filtered()
+    {
+        filteredCount.incrementAndGet();
+    }
+
+    public void decodingFailed()
+    {
+        decodingFailureCount.incrementAndGet();
+    }
+
+    /**
+     * @param arrivalTime the {@link System#nanoTime()} at which the message arrived.
+     */
+    public void processed(final long arrivalTime, final boolean successful)
+    {
+        processingLatency.record(System.nanoTime() - arrivalTime);
+
+        if (successful)
+        {
+            processedCount.incrementAndGet();
+        }
+        else
+        {
+            processingFailureCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param lostClientIds the IDs of the clients whose connection is lost.
+     */
+    public void connectionLost(final Collection<String> lostClientIds)
+    {
+        connectionLostCount.incrementAndGet();
+
+        // deliveries pending on the lost connections will never complete
+        for (final Map.Entry<MqttDeliveryToken, Publication> entry : publications.entrySet())
+        {
+            if (lostClientIds.contains(entry.getValue().clientId))
+            {
+                publications.remove(entry.getKey());
+            }
+        }
+    }
+
+    public void reconnected()
+    {
+        reconnectionCount.incrementAndGet();
+    }
+
+    /**
+     * Registers the statistics in the platform MBean server, replacing the statistics previously
+     * registered for the same client ID. Failures are logged as the connector works without them.
+     */
+    public synchronized void register(final String clientId)
+    {
+        unregister();
+
+        try
+        {
+            final ObjectName name = new ObjectName(JMX_DOMAIN + ":type=MqttConnector,clientId="
+                                                   + ObjectName.quote(clientId));
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(name))
+            {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(this, name);
+            objectName = name;
+        }
+        catch (final JMException jme)
+        {
+            LOGGER.warn("Failed to register statistics MBean for client ID: " + clientId, jme);
+        }
+    }
+
+    public synchronized void unregister()
+    {
+        if (objectName == null)
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (final JMException jme)
+        {
+            LOGGER.warn("Failed to unregister statistics MBean: " + objectName, jme);
+        }
+        objectName = null;
+    }
+
+    public MqttLatencyHistogram getDeliveryLatency()
+    {
+        return deliveryLatency;
+    }
+
+    public MqttLatencyHistogram getProcessingLatency()
+    {
+        return processingLatency;
+    }
+
+    public String getClientId()
+    {
+        return connector.getActiveClientId();
+    }
+
+    public long getPublishedCount()
+    {
+        return publishedCount.get();
+    }
+
+    public long getPublishFailureCount()
+    {
+        return publishFailureCount.get();
+    }
+
+    public long getLostCount()
+    {
+        return lostCount.get();
+    }
+
+    public long getDeliveryCompletedCount()
+    {
+        return deliveryCompletedCount.get();
+    }
+
+    public long getReceivedCount()
+    {
+        return receivedCount.get();
+    }
+
+    public long getDuplicateCount()
+    {
+        return duplicateCount.get();
+    }
+
+    public long getFilteredCount()
+    {
+        return filteredCount.get();
+    }
+
+    public long getDecodingFailureCount()
+    {
+        return decodingFailureCount.get();
+    }
+
+    public long getProcessedCount()
+    {
+        return processedCount.get();
+    }
+
+    public long getProcessingFailureCount()
+    {
+        return processingFailureCount.get();
+    }
+
+    public long getConnectionLostCount()
+    {
+        return connectionLostCount.get();
+    }
+
+    public long getReconnectionCount()
+    {
+        return reconnectionCount.get();
+    }
+
+    public int getInFlightCount()
+    {
+        return connector.getPendingDeliveryCount();
+    }
+
+    public int getPersistedCount()
+    {
+        return connector.getPersistedMessageCount();
+    }
+
+    public long getDeliveryLatencyMean()
+    {
+        return toMicros(deliveryLatency.getMean());
+    }
+
+    public long getDeliveryLatency50thPercentile()
+    {
+        return toMicros(deliveryLatency.getValueAtPercentile(50.0));
+    }
+
+    public long getDeliveryLatency99thPercentile()
+    {
+        return toMicros(deliveryLatency.getValueAtPercentile(99.0));
+    }
+
+    public long getDeliveryLatency999thPercentile()
+    {
+        return toMicros(deliveryLatency.getValueAtPercentile(99.9));
+    }
+
+    public long getDeliveryLatencyMax()
+    {
+        return toMicros(deliveryLatency.getMax());
+    }
+
+    public long getProcessingLatencyMean()
+    {
+        return toMicros(processingLatency.getMean());
+    }
+
+    public long getProcessingLatency50thPercentile()
+    {
+        return toMicros(processingLatency.getValueAtPercentile(50.0));
+    }
+
+    public long getProcessingLatency99thPercentile()
+    {
+        return toMicros(processingLatency.getValueAtPercentile(99.0));
+    }
+
+    public long getProcessingLatency999thPercentile()
+    {
+        return toMicros(processingLatency.getValueAtPercentile(99.9));
+    }
+
+    public long getProcessingLatencyMax()
+    {
+        return toMicros(processingLatency.getMax());
+    }
+
+    public void reset()
+    {
+        publishedCount.set(0L);
+        publishFailureCount.set(0L);
+        lostCount.set(0L);
+        deliveryCompletedCount.set(0L);
+        receivedCount.set(0L);
+        duplicateCount.set(0L);
+        filteredCount.set(0L);
+        decodingFailureCount.set(0L);
+        processedCount.set(0L);
+        processingFailureCount.set(0L);
+        connectionLostCount.set(0L);
+        reconnectionCount.set(0L);
+        deliveryLatency.reset();
+        processingLatency.reset();
+    }
+
+    private static long toMicros(final long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
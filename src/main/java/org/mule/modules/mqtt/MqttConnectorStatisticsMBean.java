@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+/**
+ * JMX view of the {@link MqttConnectorStatistics} of a connector. Latencies are in microseconds.
+ */
+public interface MqttConnectorStatisticsMBean
+{
+    String getClientId();
+
+    long getPublishedCount();
+
+    long getPublishFailureCount();
+
+    long getLostCount();
+
+    long getDeliveryCompletedCount();
+
+    long getReceivedCount();
+
+    long getDuplicateCount();
+
+    long getFilteredCount();
+
+    long getDecodingFailureCount();
+
+    long getProcessedCount();
+
+    long getProcessingFailureCount();
+
+    long getConnectionLostCount();
+
+    long getReconnectionCount();
+
+    int getInFlightCount();
+
+    int getPersistedCount();
+
+    long getDeliveryLatencyMean();
+
+    long getDeliveryLatency50thPercentile();
+
+    long getDeliveryLatency99thPercentile();
+
+    long getDeliveryLatency999thPercentile();
+
+    long getDeliveryLatencyMax();
+
+    long getProcessingLatencyMean();
+
+    long getProcessingLatency50thPercentile();
+
+    long getProcessingLatency99thPercentile();
+
+    long getProcessingLatency999thPercentile();
+
+    long getProcessingLatencyMax();
+
+    void reset();
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Enumeration;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * {@link MqttClientPersistence} counting the messages held by the persistence it decorates, so
+ * they can be monitored without listing them. The keys are only listed when the persistence is
+ * opened, to count the messages recovered from a previous run.
+ */
+public class MqttCountingPersistence implements MqttClientPersistence
+{
+    private final MqttClientPersistence persistence;
+    private volatile int count;
+    private String clientId;
+    private String serverURI;
+    private boolean opened;
+
+    public MqttCountingPersistence(final MqttClientPersistence persistence)
+    {
+        this.persistence = persistence;
+    }
+
+    public synchronized void open(final String clientId, final String serverURI) throws MqttPersistenceException
+    {
+        persistence.open(clientId, serverURI);
+        this.clientId = clientId;
+        this.serverURI = serverURI;
+        opened = true;
+
+        int recoveredCount = 0;
+        for (final Enumeration<?> keys = persistence.keys(); keys.hasMoreElements(); keys.nextElement())
+        {
+            recoveredCount++;
+        }
+        count = recoveredCount;
+    }
+
+    public synchronized void close() throws MqttPersistenceException
+    {
+        count = 0;
+        opened = false;
+        persistence.close();
+    }
+
+    public synchronized void put(final String key, final MqttPersistable persistable)
+        throws MqttPersistenceException
+    {
+        final boolean added = !persistence.containsKey(key);
+        persistence.put(key, persistable);
+        if (added)
+        {
+            count++;
+        }
+    }
+
+    public MqttPersistable get(final String key) throws MqttPersistenceException
+    {
+        return persistence.get(key);
+    }
+
+    public synchronized void remove(final String key) throws MqttPersistenceException
+    {
+        final boolean removed = persistence.containsKey(key);
+        persistence.remove(key);
+        if (removed)
+        {
+            count--;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Enumeration keys() throws MqttPersistenceException
+    {
+        return persistence.keys();
+    }
+
+    public synchronized void clear() throws MqttPersistenceException
+    {
+        persistence.clear();
+        count = 0;
+    }
+
+    public boolean containsKey(final String key) throws MqttPersistenceException
+    {
+        return persistence.containsKey(key);
+    }
+
+    /**
+     * Copies the messages held by this persistence to another one, opened for the same client and
+     * the given broker, then clears and closes this persistence. The other persistence is closed
+     * once the messages are copied, ready for the client that will recover them, which requires it
+     * to keep them when closed, as {@link MqttMemoryPersistence} does for those it holds in memory.
+     */
+    public synchronized void moveTo(final MqttClientPersistence target, final String targetServerURI)
+        throws MqttPersistenceException
+    {
+        if (clientId == null)
+        {
+            // never opened, so there is nothing to move
+            return;
+        }
+        if (!opened)
+        {
+            open(clientId, serverURI);
+        }
+
+        target.open(clientId, targetServerURI);
+        try
+        {
+            for (final Enumeration<?> keys = persistence.keys(); keys.hasMoreElements();)
+            {
+                final String key = (String) keys.nextElement();
+                target.put(key, persistence.get(key));
+            }
+        }
+        finally
+        {
+            target.close();
+        }
+
+        clear();
+        close();
+    }
+
+    /**
+     * @return the number of messages held by the persistence.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return persistence.toString();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the identifiers of the messages received during a time window, so redeliveries of
+ * these messages can be recognized. Identifiers are kept in a bounded cache, evicting the oldest
+ * ones first.
+ * <p/>
+ * An optional Bloom filter also remembers the identifiers evicted from the cache because of its
+ * size: it uses a fixed number of bits whatever the rate of messages, at the price of false
+ * positives, that is of messages wrongly taken for duplicates. The filter is made of two
+ * generations rotated each window, so identifiers are remembered between one and two windows.
+ */
+public class MqttDuplicateFilter
+{
+    private static final int BLOOM_HASH_COUNT = 4;
+
+    private final long windowNanos;
+    private final int maxSize;
+    private final Map<MqttMessageId, Long> receptionTimes;
+    private final int bloomBits;
+    private long[] currentBloomGeneration;
+    private long[] previousBloomGeneration;
+    private long bloomGenerationStart;
+
+    /**
+     * @param window time in milliseconds during which identifiers are remembered.
+     * @param maxSize maximum number of identifiers in the cache.
+     * @param bloomBits number of bits of each generation of the Bloom filter, zero to disable it.
+     */
+    public MqttDuplicateFilter(final long window, final int maxSize, final int bloomBits)
+    {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+        this.maxSize = maxSize;
+        this.receptionTimes = new LinkedHashMap<MqttMessageId, Long>(Math.min(maxSize, 1024) * 2);
+        this.bloomBits = bloomBits;
+
+        if (bloomBits > 0)
+        {
+            currentBloomGeneration = new long[(bloomBits + 63) / 64];
+            previousBloomGeneration = new long[currentBloomGeneration.length];
+            bloomGenerationStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Tells if a message has been recorded before.
+     */
+    public synchronized boolean isDuplicate(final MqttMessageId messageId)
+    {
+        expire(System.nanoTime());
+
+        return receptionTimes.containsKey(messageId) || ((bloomBits > 0) && (bloomContains(messageId)));
+    }
+
+    /**
+     * Records the reception of a message, which is only done once it's safe to drop its
+     * redeliveries: a message failing to be processed must be accepted again.
+     */
+    public synchronized void record(final MqttMessageId messageId)
+    {
+        final long now = System.nanoTime();
+        expire(now);
+
+        // refreshed identifiers move to the end, preserving the reception order
+        receptionTimes.remove(messageId);
+        receptionTimes.put(messageId, now);
+        if (receptionTimes.size() > maxSize)
+        {
+            final Iterator<MqttMessageId> eldest = receptionTimes.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        if (bloomBits > 0)
+        {
+            bloomAdd(messageId);
+        }
+    }
+
+    public synchronized int getCachedCount()
+    {
+        return receptionTimes.size();
+    }
+
+    private void expire(final long now)
+    {
+        // identifiers are in reception order, so the expired ones come first
+        for (final Iterator<Long> times = receptionTimes.values().iterator(); times.hasNext();)
+        {
+            if (now - times.next() <= windowNanos)
+            {
+                break;
+            }
+            times.remove();
+        }
+
+        if ((bloomBits > 0) && (now - bloomGenerationStart > windowNanos))
+        {
+            final long[] recycledGeneration = previousBloomGeneration;
+            Arrays.fill(recycledGeneration, 0L);
+            previousBloomGeneration = currentBloomGeneration;
+            currentBloomGeneration = recycledGeneration;
+            bloomGenerationStart = now;
+        }
+    }
+
+    private boolean bloomContains(final MqttMessageId messageId)
+    {
+        final long hash1 = bloomHash1(messageId);
+        final long hash2 = bloomHash2(messageId, hash1);
+        return bloomContains(currentBloomGeneration, hash1, hash2)
+               || bloomContains(previousBloomGeneration, hash1, hash2);
+    }
+
+    private boolean bloomContains(final long[] generation, final long hash1, final long hash2)
+    {
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++)
+        {
+            final int bit = bloomBit(hash1, hash2, i);
+            if ((generation[bit >>> 6] & (1L << bit)) == 0L)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void bloomAdd(final MqttMessageId messageId)
+    {
+        final long hash1 = bloomHash1(messageId);
+        final long hash2 = bloomHash2(messageId, hash1);
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++)
+        {
+            final int bit = bloomBit(hash1, hash2, i);
+            currentBloomGeneration[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * The hash functions are derived from two hashes of the identifier, mixed so that sequential
+     * identifiers spread over the whole filter.
+     */
+    private static long bloomHash1(final MqttMessageId messageId)
+    {
+        return mix(messageId.getLow() ^ messageId.getHigh());
+    }
+
+    private static long bloomHash2(final MqttMessageId messageId, final long hash1)
+    {
+        return mix(hash1 ^ messageId.getHigh()) | 1L;
+    }
+
+    private int bloomBit(final long hash1, final long hash2, final int hashIndex)
+    {
+        return (int) (((hash1 + hashIndex * hash2) & Long.MAX_VALUE) % bloomBits);
+    }
+
+    private static long mix(final long value)
+    {
+        long mixed = value;
+        mixed = (mixed ^ (mixed >>> 33)) * 0xFF51AFD7ED558CCDL;
+        mixed = (mixed ^ (mixed >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return mixed ^ (mixed >>> 33);
+    }
+}
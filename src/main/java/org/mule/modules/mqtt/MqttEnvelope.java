@@ -0,0 +1,684 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.mule.modules.mqtt.MqttConnector.PayloadCompression;
+
+/**
+ * Envelope wrapped around the payload of messages the connector publishes with features the
+ * subscribers must be aware of, like compression or batching. The envelope is a header made of:
+ * <ul>
+ * <li>2 magic bytes and a version byte, telling envelopes apart from raw payloads,</li>
+ * <li>a byte of flags telling which optional fields follow,</li>
+ * <li>when identified, the 16 bytes of the {@link MqttMessageId},</li>
+ * <li>for requests and replies, the 16 bytes of the {@link MqttMessageId} correlating them,</li>
+ * <li>for requests, the topic to reply to, as 2 bytes of length followed by its UTF-8 bytes,</li>
+ * <li>when compressed, the {@link PayloadCompression} code and the 4 bytes of the uncompressed body
+ * length,</li>
+ * </ul>
+ * followed by the body, which is either the payload or, for batches, a sequence of payloads each
+ * preceded by its length as a variable length integer. Compression applies to the whole body.
+ * Compressors, decompressors and buffers are reused by each thread.
+ */
+public class MqttEnvelope
+{
+    private static final byte MAGIC_0 = (byte) 0xE7;
+    private static final byte MAGIC_1 = (byte) 0x4D;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+    private static final int COMPRESSION_HEADER_LENGTH = 5;
+
+    private static final int FLAG_COMPRESSED = 0x01;
+    private static final int FLAG_BATCH = 0x02;
+    private static final int FLAG_MESSAGE_ID = 0x04;
+    private static final int FLAG_CORRELATION_ID = 0x08;
+    private static final int FLAG_REPLY_TOPIC = 0x10;
+
+    /**
+     * Buffers larger than this are not kept for reuse, to avoid pinning the memory of a rare large
+     * message to a thread.
+     */
+    private static final int MAX_REUSED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater(true);
+        }
+    };
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>();
+
+    private final MqttMessageId messageId;
+    private final MqttMessageId correlationId;
+    private final String replyTopic;
+    private final PayloadCompression compression;
+    private final boolean batch;
+    private final List<byte[]> payloads;
+
+    private MqttEnvelope(final MqttMessageId messageId,
+                         final MqttMessageId correlationId,
+                         final String replyTopic,
+                         final PayloadCompression compression,
+                         final boolean batch,
+                         final List<byte[]> payloads)
+    {
+        this.messageId = messageId;
+        this.correlationId = correlationId;
+        this.replyTopic = replyTopic;
+        this.compression = compression;
+        this.batch = batch;
+        this.payloads = payloads;
+    }
+
+    /**
+     * @return the identifier of the message, or null if it was published without.
+     */
+    public MqttMessageId getMessageId()
+    {
+        return messageId;
+    }
+
+    /**
+     * @return the identifier correlating a request and its reply, or null if the message is neither.
+     */
+    public MqttMessageId getCorrelationId()
+    {
+        return correlationId;
+    }
+
+    /**
+     * @return the topic the reply to a request must be published to, or null if the message is not
+     *         a request.
+     */
+    public String getReplyTopic()
+    {
+        return replyTopic;
+    }
+
+    public PayloadCompression getCompression()
+    {
+        return compression;
+    }
+
+    public boolean isBatch()
+    {
+        return batch;
+    }
+
+    /**
+     * @return the payload of an envelope that is not a batch.
+     */
+    public byte[] getPayload()
+    {
+        if (batch)
+        {
+            throw new IllegalStateException("A batch envelope holds " + payloads.size() + " payloads");
+        }
+        return payloads.get(0);
+    }
+
+    /**
+     * @return the payloads of a batch, in publication order, or the only payload of other
+     *         envelopes.
+     */
+    public List<byte[]> getPayloads()
+    {
+        return payloads;
+    }
+
+    /**
+     * Wraps a payload in a compressed envelope, unless it's smaller than the threshold or doesn't
+     * compress, in which case the payload is returned as is.
+     */
+    public static byte[] wrap(final byte[] payload, final PayloadCompression compression, final int compressionThreshold)
+    {
+        return wrap(payload, null, compression, compressionThreshold);
+    }
+
+    /**
+     * Wraps a payload in an envelope carrying the message identifier, compressed if the payload
+     * reaches the threshold and compresses. Without identifier, the payload is returned as is if it
+     * isn't compressed.
+     */
+    public static byte[] wrap(final byte[] payload,
+                              final MqttMessageId messageId,
+                              final PayloadCompression compression,
+                              final int compressionThreshold)
+    {
+        if (messageId == null)
+        {
+            final byte[] envelope = compress(0, null, payload, 0, payload.length, payload.length, compression,
+                compressionThreshold);
+            return envelope == null ? payload : envelope;
+        }
+
+        final int headerLength = headerLength(FLAG_MESSAGE_ID);
+        final byte[] envelope = compress(FLAG_MESSAGE_ID, messageId, payload, 0, payload.length, headerLength
+                                                                                              + payload.length,
+            compression, compressionThreshold);
+        if (envelope != null)
+        {
+            return envelope;
+        }
+
+        final byte[] plainEnvelope = new byte[headerLength + payload.length];
+        writeHeader(plainEnvelope, FLAG_MESSAGE_ID, messageId);
+        System.arraycopy(payload, 0, plainEnvelope, headerLength, payload.length);
+        return plainEnvelope;
+    }
+
+    /**
+     * Wraps payloads in a batch envelope, compressed if the batch body reaches the threshold and
+     * compresses.
+     */
+    public static byte[] wrapBatch(final List<byte[]> payloads,
+                                   final PayloadCompression compression,
+                                   final int compressionThreshold)
+    {
+        return wrapBatch(payloads, null, compression, compressionThreshold);
+    }
+
+    /**
+     * Wraps payloads in a batch envelope carrying the message identifier, if not null, compressed if
+     * the batch body reaches the threshold and compresses.
+     */
+    public static byte[] wrapBatch(final List<byte[]> payloads,
+                                   final MqttMessageId messageId,
+                                   final PayloadCompression compression,
+                                   final int compressionThreshold)
+    {
+        final int flags = messageId == null ? FLAG_BATCH : FLAG_BATCH | FLAG_MESSAGE_ID;
+        final int headerLength = headerLength(flags);
+
+        int bodyLength = 0;
+        for (final byte[] payload : payloads)
+        {
+            bodyLength += varIntLength(payload.length) + payload.length;
+        }
+
+        final byte[] framed = new byte[headerLength + bodyLength];
+        int position = headerLength;
+        for (final byte[] payload : payloads)
+        {
+            position = writeVarInt(framed, position, payload.length);
+            System.arraycopy(payload, 0, framed, position, payload.length);
+            position += payload.length;
+        }
+
+        final byte[] envelope = compress(flags, messageId, framed, headerLength, bodyLength, framed.length,
+            compression, compressionThreshold);
+        if (envelope != null)
+        {
+            return envelope;
+        }
+
+        writeHeader(framed, flags, messageId);
+        return framed;
+    }
+
+    /**
+     * Wraps the payload of a request in an envelope carrying the identifier correlating it with its
+     * reply and the topic to reply to. Requests are not compressed.
+     */
+    public static byte[] wrapRequest(final byte[] payload, final MqttMessageId correlationId, final String replyTopic)
+    {
+        final byte[] replyTopicBytes = replyTopic.getBytes(UTF_8);
+        if (replyTopicBytes.length > 0xFFFF)
+        {
+            throw new IllegalArgumentException("Reply topic too long: " + replyTopic);
+        }
+
+        final int flags = FLAG_CORRELATION_ID | FLAG_REPLY_TOPIC;
+        final int headerLength = headerLength(flags, replyTopicBytes.length);
+        final byte[] envelope = new byte[headerLength + payload.length];
+        writeHeader(envelope, flags, null);
+        writeLong(envelope, HEADER_LENGTH, correlationId.getHigh());
+        writeLong(envelope, HEADER_LENGTH + 8, correlationId.getLow());
+        envelope[HEADER_LENGTH + MqttMessageId.LENGTH] = (byte) (replyTopicBytes.length >>> 8);
+        envelope[HEADER_LENGTH + MqttMessageId.LENGTH + 1] = (byte) replyTopicBytes.length;
+        System.arraycopy(replyTopicBytes, 0, envelope, HEADER_LENGTH + MqttMessageId.LENGTH + 2,
+            replyTopicBytes.length);
+        System.arraycopy(payload, 0, envelope, headerLength, payload.length);
+        return envelope;
+    }
+
+    /**
+     * Wraps the payload of a reply in an envelope carrying the identifier of the request it answers.
+     * Replies are not compressed.
+     */
+    public static byte[] wrapReply(final byte[] payload, final MqttMessageId correlationId)
+    {
+        final int headerLength = headerLength(FLAG_CORRELATION_ID);
+        final byte[] envelope = new byte[headerLength + payload.length];
+        writeHeader(envelope, FLAG_CORRELATION_ID, null);
+        writeLong(envelope, HEADER_LENGTH, correlationId.getHigh());
+        writeLong(envelope, HEADER_LENGTH + 8, correlationId.getLow());
+        System.arraycopy(payload, 0, envelope, headerLength, payload.length);
+        return envelope;
+    }
+
+    /**
+     * @return true if the bytes start like an envelope.
+     */
+    public static boolean isEnvelope(final byte[] bytes)
+    {
+        return (bytes != null) && (bytes.length >= HEADER_LENGTH) && (bytes[0] == MAGIC_0) && (bytes[1] == MAGIC_1)
+               && (bytes[2] == VERSION);
+    }
+
+    /**
+     * Reads the message identifier of an envelope without decoding its body.
+     * 
+     * @return the identifier, or null if the bytes are a raw payload or an envelope without
+     *         identifier.
+     */
+    public static MqttMessageId readMessageId(final byte[] bytes)
+    {
+        if ((!isEnvelope(bytes)) || ((bytes[3] & FLAG_MESSAGE_ID) == 0)
+            || (bytes.length < HEADER_LENGTH + MqttMessageId.LENGTH))
+        {
+            return null;
+        }
+        return new MqttMessageId(readLong(bytes, HEADER_LENGTH), readLong(bytes, HEADER_LENGTH + 8));
+    }
+
+    /**
+     * Reads an envelope, decompressing and splitting its body if needed.
+     * 
+     * @return the envelope, or null if the bytes are a raw payload.
+     * @throws IOException if the envelope is corrupted.
+     */
+    public static MqttEnvelope read(final byte[] bytes) throws IOException
+    {
+        if (!isEnvelope(bytes))
+        {
+            return null;
+        }
+
+        final int flags = bytes[3];
+        final boolean batch = (flags & FLAG_BATCH) != 0;
+        final int correlationOffset = headerLength(flags & FLAG_MESSAGE_ID);
+        final int replyTopicOffset = headerLength(flags & (FLAG_MESSAGE_ID | FLAG_CORRELATION_ID));
+
+        int replyTopicLength = 0;
+        if ((flags & FLAG_REPLY_TOPIC) != 0)
+        {
+            if (bytes.length < replyTopicOffset + 2)
+            {
+                throw new IOException("Truncated envelope of " + bytes.length + " bytes");
+            }
+            replyTopicLength = ((bytes[replyTopicOffset] & 0xFF) << 8) | (bytes[replyTopicOffset + 1] & 0xFF);
+        }
+
+        final int headerLength = headerLength(flags, replyTopicLength);
+        if (bytes.length < headerLength)
+        {
+            throw new IOException("Truncated envelope of " + bytes.length + " bytes");
+        }
+
+        final MqttMessageId messageId = readMessageId(bytes);
+        final MqttMessageId correlationId = (flags & FLAG_CORRELATION_ID) == 0 ? null : new MqttMessageId(
+            readLong(bytes, correlationOffset), readLong(bytes, correlationOffset + 8));
+        final String replyTopic = (flags & FLAG_REPLY_TOPIC) == 0 ? null : new String(bytes, replyTopicOffset + 2,
+            replyTopicLength, UTF_8);
+
+        PayloadCompression compression = PayloadCompression.NONE;
+        byte[] body = bytes;
+        int bodyOffset = headerLength;
+        int bodyLength = bytes.length - headerLength;
+
+        if ((flags & FLAG_COMPRESSED) != 0)
+        {
+            final int compressionHeaderOffset = headerLength - COMPRESSION_HEADER_LENGTH;
+            try
+            {
+                compression = PayloadCompression.fromCode(bytes[compressionHeaderOffset]);
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new IOException("Unknown compression in envelope", iae);
+            }
+
+            final int uncompressedLength = readInt(bytes, compressionHeaderOffset + 1);
+            if ((uncompressedLength < 0) || (uncompressedLength > MqttPayloads.MAX_PAYLOAD_SIZE))
+            {
+                throw new IOException("Invalid uncompressed length in envelope: " + uncompressedLength);
+            }
+
+            body = decompress(compression, bytes, headerLength, uncompressedLength);
+            bodyOffset = 0;
+            bodyLength = body.length;
+        }
+
+        if (batch)
+        {
+            return new MqttEnvelope(messageId, correlationId, replyTopic, compression, true, split(body,
+                bodyOffset, bodyLength));
+        }
+
+        if (body == bytes)
+        {
+            final byte[] payload = new byte[bodyLength];
+            System.arraycopy(bytes, bodyOffset, payload, 0, bodyLength);
+            body = payload;
+        }
+        return new MqttEnvelope(messageId, correlationId, replyTopic, compression, false,
+            Collections.singletonList(body));
+    }
+
+    /**
+     * @return the length of the header of an envelope with the given flags and no reply topic.
+     */
+    private static int headerLength(final int flags)
+    {
+        return headerLength(flags, 0);
+    }
+
+    /**
+     * @return the length of the header of an envelope with the given flags and length in bytes of
+     *         the reply topic.
+     */
+    private static int headerLength(final int flags, final int replyTopicLength)
+    {
+        int headerLength = HEADER_LENGTH;
+        if ((flags & FLAG_MESSAGE_ID) != 0)
+        {
+            headerLength += MqttMessageId.LENGTH;
+        }
+        if ((flags & FLAG_CORRELATION_ID) != 0)
+        {
+            headerLength += MqttMessageId.LENGTH;
+        }
+        if ((flags & FLAG_REPLY_TOPIC) != 0)
+        {
+            headerLength += 2 + replyTopicLength;
+        }
+        if ((flags & FLAG_COMPRESSED) != 0)
+        {
+            headerLength += COMPRESSION_HEADER_LENGTH;
+        }
+        return headerLength;
+    }
+
+    /**
+     * Compresses a body into an envelope.
+     * 
+     * @param uncompressedLength the size of the message without compression, which the envelope
+     *            must be smaller than.
+     * @return the envelope, or null if the compression doesn't apply or doesn't pay off.
+     */
+    private static byte[] compress(final int flags,
+                                   final MqttMessageId messageId,
+                                   final byte[] in,
+                                   final int inOffset,
+                                   final int inLength,
+                                   final int uncompressedLength,
+                                   final PayloadCompression compression,
+                                   final int compressionThreshold)
+    {
+        if ((compression == null) || (compression == PayloadCompression.NONE) || (inLength < compressionThreshold))
+        {
+            return null;
+        }
+
+        final int compressedFlags = flags | FLAG_COMPRESSED;
+        final int bodyOffset = headerLength(compressedFlags);
+        final int bodyLength;
+        final byte[] buffer;
+
+        if (compression == PayloadCompression.LZF)
+        {
+            buffer = buffer(bodyOffset + MqttLzfCodec.maxCompressedLength(inLength));
+            bodyLength = MqttLzfCodec.compress(in, inOffset, inLength, buffer, bodyOffset);
+        }
+        else
+        {
+            // only room for a gain: compression stops as soon as it can't beat the uncompressed size
+            buffer = buffer(Math.max(bodyOffset, uncompressedLength));
+            bodyLength = deflate(in, inOffset, inLength, buffer, bodyOffset, uncompressedLength - bodyOffset);
+        }
+
+        if ((bodyLength < 0) || (bodyOffset + bodyLength >= uncompressedLength))
+        {
+            return null;
+        }
+
+        writeHeader(buffer, compressedFlags, messageId);
+        buffer[bodyOffset - COMPRESSION_HEADER_LENGTH] = (byte) compression.getCode();
+        writeInt(buffer, bodyOffset - COMPRESSION_HEADER_LENGTH + 1, inLength);
+
+        final byte[] envelope = new byte[bodyOffset + bodyLength];
+        System.arraycopy(buffer, 0, envelope, 0, envelope.length);
+        return envelope;
+    }
+
+    private static byte[] decompress(final PayloadCompression compression,
+                                     final byte[] bytes,
+                                     final int offset,
+                                     final int uncompressedLength) throws IOException
+    {
+        final byte[] body = new byte[uncompressedLength];
+        if (compression == PayloadCompression.LZF)
+        {
+            try
+            {
+                MqttLzfCodec.decompress(bytes, offset, bytes.length - offset, body);
+            }
+            catch (final IllegalArgumentException iae)
+            {
+                throw new IOException("Corrupted LZF envelope", iae);
+            }
+        }
+        else
+        {
+            inflate(bytes, offset, body);
+        }
+        return body;
+    }
+
+    /**
+     * @return the payloads of a body where each is preceded by its length as a variable length
+     *         integer.
+     */
+    static List<byte[]> split(final byte[] body, final int offset, final int length) throws IOException
+    {
+        final List<byte[]> payloads = new ArrayList<byte[]>();
+        final int end = offset + length;
+        int position = offset;
+
+        while (position < end)
+        {
+            int payloadLength = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                if ((position == end) || (shift > 28))
+                {
+                    throw new IOException("Corrupted payload length at: " + (position - offset));
+                }
+                b = body[position++];
+                payloadLength |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+
+            if ((payloadLength < 0) || (payloadLength > end - position))
+            {
+                throw new IOException("Truncated payload at: " + (position - offset));
+            }
+
+            final byte[] payload = new byte[payloadLength];
+            System.arraycopy(body, position, payload, 0, payloadLength);
+            payloads.add(payload);
+            position += payloadLength;
+        }
+        return payloads;
+    }
+
+    /**
+     * @return the length of the deflated data, or -1 if it exceeds the maximum length.
+     */
+    private static int deflate(final byte[] in,
+                               final int inOffset,
+                               final int inLength,
+                               final byte[] out,
+                               final int outOffset,
+                               final int maxLength)
+    {
+        if (maxLength <= 0)
+        {
+            return -1;
+        }
+
+        final Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(in, inOffset, inLength);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished())
+        {
+            if (length == maxLength)
+            {
+                return -1;
+            }
+            length += deflater.deflate(out, outOffset + length, maxLength - length);
+        }
+        return length;
+    }
+
+    private static void inflate(final byte[] bytes, final int offset, final byte[] out) throws IOException
+    {
+        final Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset, bytes.length - offset);
+
+        try
+        {
+            int length = 0;
+            while (length < out.length)
+            {
+                final int inflated = inflater.inflate(out, length, out.length - length);
+                if ((inflated == 0) && ((inflater.finished()) || (inflater.needsInput()) || (inflater.needsDictionary())))
+                {
+                    throw new IOException("Deflate envelope inflated to " + length + " bytes instead of "
+                                          + out.length);
+                }
+                length += inflated;
+            }
+        }
+        catch (final DataFormatException dfe)
+        {
+            throw new IOException("Corrupted deflate envelope", dfe);
+        }
+    }
+
+    private static byte[] buffer(final int size)
+    {
+        if (size > MAX_REUSED_BUFFER_SIZE)
+        {
+            return new byte[size];
+        }
+
+        byte[] buffer = BUFFER.get();
+        if ((buffer == null) || (buffer.length < size))
+        {
+            buffer = new byte[Math.max(size, buffer == null ? 4096 : Math.min(buffer.length * 2, MAX_REUSED_BUFFER_SIZE))];
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static void writeHeader(final byte[] bytes, final int flags, final MqttMessageId messageId)
+    {
+        bytes[0] = MAGIC_0;
+        bytes[1] = MAGIC_1;
+        bytes[2] = VERSION;
+        bytes[3] = (byte) flags;
+
+        if (messageId != null)
+        {
+            writeLong(bytes, HEADER_LENGTH, messageId.getHigh());
+            writeLong(bytes, HEADER_LENGTH + 8, messageId.getLow());
+        }
+    }
+
+    static int varIntLength(final int value)
+    {
+        int length = 1;
+        for (int remaining = value >>> 7; remaining != 0; remaining >>>= 7)
+        {
+            length++;
+        }
+        return length;
+    }
+
+    static int writeVarInt(final byte[] bytes, final int offset, final int value)
+    {
+        int position = offset;
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0)
+        {
+            bytes[position++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        bytes[position++] = (byte) remaining;
+        return position;
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value)
+    {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(final byte[] bytes, final int offset, final long value)
+    {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+
+    private static long readLong(final byte[] bytes, final int offset)
+    {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int readInt(final byte[] bytes, final int offset)
+    {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+               | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * Bounded window of publications awaiting delivery completion. Publishers only block when the
+ * window is full, slots are given back by the client callback when the delivery completes. Tokens
+ * are tracked with the ID of the client they were sent by, so the slots of a client losing its
+ * connection are freed without touching those of the other clients.
+ */
+public class MqttInFlightWindow
+{
+    private static final Log LOGGER = LogFactory.getLog(MqttInFlightWindow.class);
+
+    private final int size;
+    private final Semaphore slots;
+    private final ConcurrentMap<MqttDeliveryToken, InFlight> inFlightTokens = new ConcurrentHashMap<MqttDeliveryToken, InFlight>();
+
+    private static final class InFlight
+    {
+        private final String clientId;
+        private final long registrationTime = System.nanoTime();
+
+        private InFlight(final String clientId)
+        {
+            this.clientId = clientId;
+        }
+    }
+
+    public MqttInFlightWindow(final int size)
+    {
+        this.size = size;
+        this.slots = new Semaphore(size);
+    }
+
+    /**
+     * Reserves a slot in the window, waiting if it is full.
+     *
+     * @param timeOut time in milliseconds to wait for a free slot.
+     * @throws MqttException thrown if no slot became available in time.
+     */
+    public void acquire(final long timeOut) throws MqttException
+    {
+        try
+        {
+            if (!slots.tryAcquire(timeOut, TimeUnit.MILLISECONDS))
+            {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ie);
+        }
+    }
+
+    /**
+     * Gives back a slot that was reserved for a publication that could not be sent.
+     */
+    public void release()
+    {
+        slots.release();
+    }
+
+    /**
+     * Tracks the token of a publication sent with a previously acquired slot.
+     * 
+     * @param clientId the ID of the client the publication was sent by.
+     */
+    public void register(final MqttDeliveryToken token, final String clientId)
+    {
+        inFlightTokens.put(token, new InFlight(clientId));
+
+        // the delivery may have completed before the token got tracked
+        if (token.isComplete())
+        {
+            complete(token);
+        }
+    }
+
+    /**
+     * Completes the delivery of a tracked token and frees its slot.
+     *
+     * @return the time in nanoseconds the delivery has been in flight, or -1 if the token wasn't
+     *         tracked (or has already been completed).
+     */
+    public long complete(final MqttDeliveryToken token)
+    {
+        final InFlight inFlight = inFlightTokens.remove(token);
+        if (inFlight == null)
+        {
+            return -1L;
+        }
+
+        slots.release();
+        return System.nanoTime() - inFlight.registrationTime;
+    }
+
+    /**
+     * Frees all the slots held by tracked tokens, typically because the connector is disconnected.
+     */
+    public void clear()
+    {
+        clear(null);
+    }
+
+    /**
+     * Frees the slots held by the tokens sent by a client, because the connection they were sent
+     * over is gone.
+     * 
+     * @param clientId the ID of the client, null for all the clients.
+     */
+    public void clear(final String clientId)
+    {
+        int cleared = 0;
+        for (final Map.Entry<MqttDeliveryToken, InFlight> entry : inFlightTokens.entrySet())
+        {
+            if (((clientId == null) || (clientId.equals(entry.getValue().clientId)))
+                && (complete(entry.getKey()) >= 0))
+            {
+                cleared++;
+            }
+        }
+
+        if ((cleared > 0) && (LOGGER.isDebugEnabled()))
+        {
+            LOGGER.debug("Released " + cleared + " in-flight slots");
+        }
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getInFlightCount()
+    {
+        return inFlightTokens.size();
+    }
+}
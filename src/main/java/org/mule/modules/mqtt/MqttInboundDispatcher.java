@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.mule.modules.mqtt.MqttConnector.OverflowPolicy;
+
+/**
+ * Hands received messages over from the client callback thread to a pool of workers. Each worker
+ * consumes its own bounded queue and a topic is always assigned to the same worker, so messages
+ * of a topic are processed in order while different topics are processed in parallel.
+ * <p/>
+ * When credits are configured, the number of messages queued or being processed is bounded and the
+ * {@link OverflowPolicy} decides what happens to messages received while no credit is left. Blocking
+ * the client callback thread stops the client from reading (and acknowledging) further messages, so
+ * the broker holds them back.
+ * <p/>
+ * Messages are acknowledged to the broker once dispatched, so the delivery guarantee of QoS 1 and 2
+ * ends at the queue: failed messages are not redelivered and queued messages are lost on stop.
+ */
+public class MqttInboundDispatcher
+{
+    public interface Handler
+    {
+        /**
+         * @param arrivalTime the {@link System#nanoTime()} at which the message was dispatched.
+         */
+        void handle(String topicName, MqttMessage mqttMessage, long arrivalTime) throws Exception;
+    }
+
+    private static final Log LOGGER = LogFactory.getLog(MqttInboundDispatcher.class);
+
+    private static final class Delivery
+    {
+        private final String topicName;
+        private final MqttMessage mqttMessage;
+        private final long arrivalTime;
+
+        private Delivery(final String topicName, final MqttMessage mqttMessage, final long arrivalTime)
+        {
+            this.topicName = topicName;
+            this.mqttMessage = mqttMessage;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+    private final BlockingQueue<Delivery>[] queues;
+    private final Thread[] workers;
+    private final Semaphore credits;
+    private final OverflowPolicy overflowPolicy;
+    private final MqttMessageJournal spillJournal;
+    private final Object spillLock = new Object();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private Handler handler;
+    private volatile boolean running;
+
+    public MqttInboundDispatcher(final String name, final int workerCount, final int queueSize)
+    {
+        this(name, workerCount, queueSize, 0, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * @param queueSize capacity of each worker queue, replaced by maxOutstanding when set.
+     * @param maxOutstanding maximum number of messages queued or being processed, zero for no limit
+     *            other than the queues size.
+     * @param overflowPolicy what to do with messages received while the maximum number of
+     *            outstanding messages is reached.
+     * @param spillJournal the journal messages are spilled to, required by
+     *            {@link OverflowPolicy#SPILL_TO_DISK}. Spilled messages are as volatile as queued
+     *            ones: the journal is closed, and deleted, on stop.
+     */
+    @SuppressWarnings("unchecked")
+    public MqttInboundDispatcher(final String name,
+                                 final int workerCount,
+                                 final int queueSize,
+                                 final int maxOutstanding,
+                                 final OverflowPolicy overflowPolicy,
+                                 final MqttMessageJournal spillJournal)
+    {
+        this.queues = new BlockingQueue[workerCount];
+        this.workers = new Thread[workerCount];
+        this.credits = maxOutstanding > 0 ? new Semaphore(maxOutstanding) : null;
+        this.overflowPolicy = overflowPolicy;
+        this.spillJournal = spillJournal;
+
+        // queues can hold all the credits so enqueuing never blocks once a credit is granted, a
+        // worker moving spilled messages to its own queue included: the queue size is not used
+        final int capacity = maxOutstanding > 0 ? maxOutstanding : queueSize;
+
+        for (int i = 0; i < workerCount; i++)
+        {
+            final BlockingQueue<Delivery> queue = new ArrayBlockingQueue<Delivery>(capacity);
+            queues[i] = queue;
+            workers[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    consume(queue);
+                }
+            }, name + "-dispatcher-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    public void start(final Handler handler)
+    {
+        this.handler = handler;
+        running = true;
+        for (final Thread worker : workers)
+        {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers, the messages still queued being dropped.
+     */
+    public void stop()
+    {
+        final int queuedCount = getQueuedCount();
+        if (queuedCount > 0)
+        {
+            LOGGER.warn("Dispatcher stopped, dropping queued messages: " + queuedCount);
+        }
+
+        running = false;
+        for (final Thread worker : workers)
+        {
+            worker.interrupt();
+        }
+
+        if (spillJournal != null)
+        {
+            spillJournal.close();
+        }
+    }
+
+    /**
+     * Queues a message for processing, applying the overflow policy if no credit is left or
+     * blocking the caller while the queue of the worker in charge of the topic is full.
+     */
+    public void dispatch(final String topicName, final MqttMessage mqttMessage, final long arrivalTime)
+        throws Exception
+    {
+        if (credits == null)
+        {
+            queueFor(topicName).put(new Delivery(topicName, mqttMessage, arrivalTime));
+            return;
+        }
+
+        switch (overflowPolicy)
+        {
+            case DROP_NEWEST :
+                if (!credits.tryAcquire())
+                {
+                    drop(topicName);
+                    return;
+                }
+                break;
+
+            case DROP_OLDEST :
+                while (!credits.tryAcquire())
+                {
+                    if (!dropOldest(topicName))
+                    {
+                        // all the credits are held by messages being processed
+                        credits.acquire();
+                        break;
+                    }
+                }
+                break;
+
+            case SPILL_TO_DISK :
+                synchronized (spillLock)
+                {
+                    // once spilling, keep spilling until drained so ordering is preserved
+                    if ((!spillJournal.isEmpty()) || (!credits.tryAcquire()))
+                    {
+                        spillJournal.append(topicName, mqttMessage.getPayload(), mqttMessage.getQos(),
+                            mqttMessage.isRetained());
+                        spilledCount.incrementAndGet();
+                        return;
+                    }
+                    queueFor(topicName).put(new Delivery(topicName, mqttMessage, arrivalTime));
+                }
+                return;
+
+            default :
+                credits.acquire();
+        }
+
+        queueFor(topicName).put(new Delivery(topicName, mqttMessage, arrivalTime));
+    }
+
+    private void drop(final String topicName)
+    {
+        droppedCount.incrementAndGet();
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("No credit left, dropped message received on topic: " + topicName);
+        }
+    }
+
+    /**
+     * Drops the oldest message waiting for the worker of the topic, or for any other worker if it
+     * has none queued.
+     */
+    private boolean dropOldest(final String topicName)
+    {
+        Delivery dropped = queueFor(topicName).poll();
+        for (int i = 0; (dropped == null) && (i < queues.length); i++)
+        {
+            dropped = queues[i].poll();
+        }
+
+        if (dropped == null)
+        {
+            return false;
+        }
+
+        credits.release();
+        drop(dropped.topicName);
+        return true;
+    }
+
+    /**
+     * Gives back the credit of a processed message and, if messages have been spilled, moves the
+     * oldest of them to its worker queue.
+     */
+    private void releaseCredit()
+    {
+        if (credits == null)
+        {
+            return;
+        }
+
+        credits.release();
+
+        if (spillJournal == null)
+        {
+            return;
+        }
+
+        synchronized (spillLock)
+        {
+            while ((!spillJournal.isEmpty()) && (credits.tryAcquire()))
+            {
+                try
+                {
+                    // the arrival time of spilled messages isn't journaled, their latency is
+                    // measured from the moment they're read back
+                    final MqttMessageJournal.Entry entry = spillJournal.poll();
+                    queueFor(entry.getTopicName()).put(
+                        new Delivery(entry.getTopicName(), entry.getMqttMessage(), System.nanoTime()));
+                }
+                catch (final IOException ioe)
+                {
+                    credits.release();
+                    LOGGER.error("Failed to read spilled message, discarding the spill journal", ioe);
+                    discardSpillJournal();
+                    return;
+                }
+                catch (final InterruptedException ie)
+                {
+                    credits.release();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void discardSpillJournal()
+    {
+        try
+        {
+            while (spillJournal.poll() != null)
+            {
+                droppedCount.incrementAndGet();
+            }
+        }
+        catch (final IOException ioe)
+        {
+            LOGGER.error("Failed to discard the spill journal", ioe);
+        }
+    }
+
+    private BlockingQueue<Delivery> queueFor(final String topicName)
+    {
+        int hash = topicName.hashCode();
+        hash ^= (hash >>> 16);
+        return queues[(hash & Integer.MAX_VALUE) % queues.length];
+    }
+
+    private void consume(final BlockingQueue<Delivery> queue)
+    {
+        while (running)
+        {
+            final Delivery delivery;
+            try
+            {
+                delivery = queue.take();
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            try
+            {
+                handler.handle(delivery.topicName, delivery.mqttMessage, delivery.arrivalTime);
+            }
+            catch (final Exception e)
+            {
+                LOGGER.error("Failed to process message received on topic: " + delivery.topicName, e);
+            }
+            finally
+            {
+                releaseCredit();
+            }
+        }
+    }
+
+    public int getQueuedCount()
+    {
+        int queuedCount = 0;
+        for (final BlockingQueue<Delivery> queue : queues)
+        {
+            queuedCount += queue.size();
+        }
+        return queuedCount;
+    }
+
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    public long getSpilledCount()
+    {
+        return spilledCount.get();
+    }
+
+    public int getSpillJournalSize()
+    {
+        return spillJournal == null ? 0 : spillJournal.size();
+    }
+}
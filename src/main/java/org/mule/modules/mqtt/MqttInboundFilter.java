@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.mule.util.StringUtils;
+
+/**
+ * Conditions a received message must meet to be processed by a flow, checked before any Mule event
+ * is created for it. Conditions are on the topic name, matched against a regular expression or MQTT
+ * topic filters, and on the payload: its size, its first bytes and a {@link MqttJsonFieldPredicate}.
+ * <p/>
+ * Topic names repeat, so the outcome of the topic conditions is cached per topic name, up to a
+ * number of topics.
+ */
+public class MqttInboundFilter
+{
+    public static final int DEFAULT_MAX_TOPICS = 10000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String HEX_PREFIX = "0x";
+
+    private final Pattern topicPattern;
+    private final MqttTopicFilterTrie<Boolean> topicFilters;
+    private final Integer minPayloadSize;
+    private final Integer maxPayloadSize;
+    private final byte[] payloadPrefix;
+    private final MqttJsonFieldPredicate jsonFieldPredicate;
+    private final ConcurrentMap<String, Boolean> acceptedTopics = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param topicPattern regular expression topic names must match, or null.
+     * @param topicFilters comma separated MQTT topic filters one of which topic names must match, or
+     *            null.
+     * @param minPayloadSize minimum size in bytes of the payloads, or null.
+     * @param maxPayloadSize maximum size in bytes of the payloads, or null.
+     * @param payloadPrefix bytes payloads must start with, written as text encoded in UTF-8 or as
+     *            hexadecimal digits following <code>0x</code>, or null.
+     * @param jsonFieldPredicate the {@link MqttJsonFieldPredicate} payloads must satisfy, or null.
+     * @throws IllegalArgumentException if a condition is invalid.
+     */
+    public MqttInboundFilter(final String topicPattern,
+                             final String topicFilters,
+                             final Integer minPayloadSize,
+                             final Integer maxPayloadSize,
+                             final String payloadPrefix,
+                             final String jsonFieldPredicate)
+    {
+        this.topicPattern = StringUtils.isBlank(topicPattern) ? null : Pattern.compile(topicPattern);
+
+        if (StringUtils.isBlank(topicFilters))
+        {
+            this.topicFilters = null;
+        }
+        else
+        {
+            this.topicFilters = new MqttTopicFilterTrie<Boolean>();
+            for (final String topicFilter : StringUtils.splitAndTrim(topicFilters, ","))
+            {
+                this.topicFilters.add(topicFilter, Boolean.TRUE);
+            }
+        }
+
+        this.minPayloadSize = minPayloadSize;
+        this.maxPayloadSize = maxPayloadSize;
+        this.payloadPrefix = StringUtils.isEmpty(payloadPrefix) ? null : parsePrefix(payloadPrefix);
+        this.jsonFieldPredicate = StringUtils.isBlank(jsonFieldPredicate) ? null : new MqttJsonFieldPredicate(
+            jsonFieldPredicate);
+    }
+
+    /**
+     * @return the filter, or null if none of the conditions is set.
+     */
+    public static MqttInboundFilter create(final String topicPattern,
+                                           final String topicFilters,
+                                           final Integer minPayloadSize,
+                                           final Integer maxPayloadSize,
+                                           final String payloadPrefix,
+                                           final String jsonFieldPredicate)
+    {
+        if ((StringUtils.isBlank(topicPattern)) && (StringUtils.isBlank(topicFilters)) && (minPayloadSize == null)
+            && (maxPayloadSize == null) && (StringUtils.isEmpty(payloadPrefix))
+            && (StringUtils.isBlank(jsonFieldPredicate)))
+        {
+            return null;
+        }
+        return new MqttInboundFilter(topicPattern, topicFilters, minPayloadSize, maxPayloadSize, payloadPrefix,
+            jsonFieldPredicate);
+    }
+
+    public boolean acceptsTopic(final String topicName)
+    {
+        if ((topicPattern == null) && (topicFilters == null))
+        {
+            return true;
+        }
+
+        final Boolean cachedAccepted = acceptedTopics.get(topicName);
+        if (cachedAccepted != null)
+        {
+            return cachedAccepted.booleanValue();
+        }
+
+        final boolean accepted = ((topicPattern == null) || (topicPattern.matcher(topicName).matches()))
+                                 && ((topicFilters == null) || (!topicFilters.match(topicName).isEmpty()));
+        if (acceptedTopics.size() < DEFAULT_MAX_TOPICS)
+        {
+            acceptedTopics.put(topicName, Boolean.valueOf(accepted));
+        }
+        return accepted;
+    }
+
+    public boolean hasPayloadConditions()
+    {
+        return (minPayloadSize != null) || (maxPayloadSize != null) || (payloadPrefix != null)
+               || (jsonFieldPredicate != null);
+    }
+
+    /**
+     * Checks the cheapest conditions first, the JSON predicate being checked last.
+     */
+    public boolean acceptsPayload(final byte[] payload)
+    {
+        if (((minPayloadSize != null) && (payload.length < minPayloadSize))
+            || ((maxPayloadSize != null) && (payload.length > maxPayloadSize)))
+        {
+            return false;
+        }
+
+        if (payloadPrefix != null)
+        {
+            if (payload.length < payloadPrefix.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < payloadPrefix.length; i++)
+            {
+                if (payload[i] != payloadPrefix[i])
+                {
+                    return false;
+                }
+            }
+        }
+
+        return (jsonFieldPredicate == null) || (jsonFieldPredicate.accepts(payload));
+    }
+
+    private static byte[] parsePrefix(final String payloadPrefix)
+    {
+        if ((!payloadPrefix.startsWith(HEX_PREFIX)) || (payloadPrefix.length() == HEX_PREFIX.length()))
+        {
+            return payloadPrefix.getBytes(UTF_8);
+        }
+
+        final String digits = payloadPrefix.substring(HEX_PREFIX.length());
+        if (digits.length() % 2 != 0)
+        {
+            throw new IllegalArgumentException("Odd number of hexadecimal digits in payload prefix: "
+                                               + payloadPrefix);
+        }
+
+        final byte[] prefix = new byte[digits.length() / 2];
+        for (int i = 0; i < prefix.length; i++)
+        {
+            prefix[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return prefix;
+    }
+}
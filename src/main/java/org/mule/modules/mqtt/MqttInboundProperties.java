@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+
+/**
+ * Bounded cache of the immutable inbound properties of received messages, one set per topic name
+ * and QoS, so that receiving a message on a known topic allocates no property map. Topic names are
+ * canonicalized by the cache, so all messages of a topic share the same name instance.
+ */
+public class MqttInboundProperties
+{
+    public static final int DEFAULT_MAX_TOPICS = 10000;
+
+    private final int maxTopics;
+    private final ConcurrentMap<String, Map<String, Object>[]> propertiesByTopic = new ConcurrentHashMap<String, Map<String, Object>[]>();
+
+    public MqttInboundProperties()
+    {
+        this(DEFAULT_MAX_TOPICS);
+    }
+
+    /**
+     * @param maxTopics maximum number of topics to cache properties for, the properties of other
+     *            topics being built for each message.
+     */
+    public MqttInboundProperties(final int maxTopics)
+    {
+        this.maxTopics = maxTopics;
+    }
+
+    /**
+     * @return the immutable properties of a message received on the topic with the QoS code.
+     */
+    public Map<String, Object> get(final String topicName, final int qosCode)
+    {
+        final DeliveryQoS qos = DeliveryQoS.fromCode(qosCode);
+
+        Map<String, Object>[] properties = propertiesByTopic.get(topicName);
+        if (properties == null)
+        {
+            if (propertiesByTopic.size() >= maxTopics)
+            {
+                return newProperties(topicName, qos);
+            }
+
+            properties = newPropertiesByQoS(topicName);
+            final Map<String, Object>[] existing = propertiesByTopic.putIfAbsent(topicName, properties);
+            if (existing != null)
+            {
+                properties = existing;
+            }
+        }
+        return properties[qos.ordinal()];
+    }
+
+    public int getCachedTopicCount()
+    {
+        return propertiesByTopic.size();
+    }
+
+    public void clear()
+    {
+        propertiesByTopic.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newPropertiesByQoS(final String topicName)
+    {
+        final DeliveryQoS[] qoss = DeliveryQoS.values();
+        final Map<String, Object>[] properties = new Map[qoss.length];
+        for (final DeliveryQoS qos : qoss)
+        {
+            properties[qos.ordinal()] = newProperties(topicName, qos);
+        }
+        return properties;
+    }
+
+    private static Map<String, Object> newProperties(final String topicName, final DeliveryQoS qos)
+    {
+        final Map<String, Object> properties = new HashMap<String, Object>(4);
+        properties.put(MqttConnector.MQTT_TOPIC_NAME_PROPERTY, topicName);
+        properties.put(MqttConnector.MQTT_QOS_PROPERTY, qos);
+        return Collections.unmodifiableMap(properties);
+    }
+}
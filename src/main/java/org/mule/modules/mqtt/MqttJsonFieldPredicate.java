@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.nio.charset.Charset;
+
+import org.mule.util.StringUtils;
+
+/**
+ * Predicate on a field of a JSON payload, written <code>path op value</code> where the path is a
+ * dot separated list of object member names, the operator one of <code>=</code>, <code>!=</code>,
+ * <code>&lt;</code>, <code>&lt;=</code>, <code>&gt;</code> or <code>&gt;=</code>, the last four
+ * comparing numbers. A path alone tests the presence of the field. A missing field only satisfies
+ * <code>!=</code>, as does a payload that is not a JSON object.
+ * <p/>
+ * The payload bytes are scanned in place, skipping the members not on the path without decoding
+ * them, so no object is built for the payload.
+ */
+public class MqttJsonFieldPredicate
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static enum Operator
+    {
+        // operators starting with another one come first, so "<=" isn't taken for "<"
+        EXISTS(""), NOT_EQUAL("!="), LESS_OR_EQUAL("<="), GREATER_OR_EQUAL(">="), EQUAL("="), LESS("<"), GREATER(">");
+
+        private final String symbol;
+
+        private Operator(final String symbol)
+        {
+            this.symbol = symbol;
+        }
+    }
+
+    private final String expression;
+    private final byte[][] path;
+    private final Operator operator;
+    private final String value;
+    private final Double numericValue;
+
+    /**
+     * @throws IllegalArgumentException if the expression is not a valid predicate.
+     */
+    public MqttJsonFieldPredicate(final String expression)
+    {
+        this.expression = expression;
+
+        Operator parsedOperator = Operator.EXISTS;
+        int operatorIndex = -1;
+        for (final Operator candidate : Operator.values())
+        {
+            // the leftmost operator wins, ties going to the first one declared
+            final int index = candidate == Operator.EXISTS ? -1 : expression.indexOf(candidate.symbol);
+            if ((index >= 0) && ((operatorIndex < 0) || (index < operatorIndex)))
+            {
+                parsedOperator = candidate;
+                operatorIndex = index;
+            }
+        }
+        this.operator = parsedOperator;
+
+        final String pathExpression = (operatorIndex < 0 ? expression : expression.substring(0, operatorIndex)).trim();
+        if (StringUtils.isBlank(pathExpression))
+        {
+            throw new IllegalArgumentException("No field in JSON predicate: " + expression);
+        }
+        final String[] names = StringUtils.splitAndTrim(pathExpression, ".");
+        this.path = new byte[names.length][];
+        for (int i = 0; i < names.length; i++)
+        {
+            path[i] = names[i].getBytes(UTF_8);
+        }
+
+        this.value = operatorIndex < 0 ? null : unquote(expression.substring(
+            operatorIndex + operator.symbol.length()).trim());
+        this.numericValue = value == null ? null : parseNumber(value);
+
+        if ((numericValue == null)
+            && ((operator == Operator.LESS) || (operator == Operator.LESS_OR_EQUAL)
+                || (operator == Operator.GREATER) || (operator == Operator.GREATER_OR_EQUAL)))
+        {
+            throw new IllegalArgumentException("Numeric value expected in JSON predicate: " + expression);
+        }
+    }
+
+    public boolean accepts(final byte[] payload)
+    {
+        final String fieldValue = findField(payload);
+        if (fieldValue == null)
+        {
+            return operator == Operator.NOT_EQUAL;
+        }
+
+        switch (operator)
+        {
+            case EXISTS :
+                return true;
+
+            case EQUAL :
+                return valueEquals(fieldValue);
+
+            case NOT_EQUAL :
+                return !valueEquals(fieldValue);
+
+            default :
+                final Double fieldNumber = parseNumber(fieldValue);
+                if (fieldNumber == null)
+                {
+                    return false;
+                }
+                final int comparison = fieldNumber.compareTo(numericValue);
+                return operator == Operator.LESS ? comparison < 0 : operator == Operator.LESS_OR_EQUAL
+                    ? comparison <= 0 : operator == Operator.GREATER ? comparison > 0 : comparison >= 0;
+        }
+    }
+
+    private boolean valueEquals(final String fieldValue)
+    {
+        if (fieldValue.equals(value))
+        {
+            return true;
+        }
+        // 21.50 is 21.5
+        final Double fieldNumber = parseNumber(fieldValue);
+        return (fieldNumber != null) && (fieldNumber.equals(numericValue));
+    }
+
+    /**
+     * @return the text of the field: strings are unescaped, other values are returned as written.
+     *         Null if the field is missing or the payload is not valid enough to find it.
+     */
+    private String findField(final byte[] payload)
+    {
+        int position = 0;
+        for (int level = 0; level < path.length; level++)
+        {
+            position = skipWhitespaces(payload, position);
+            if ((position < 0) || (payload[position] != '{'))
+            {
+                return null;
+            }
+            position = findMember(payload, position + 1, path[level]);
+            if (position < 0)
+            {
+                return null;
+            }
+        }
+
+        position = skipWhitespaces(payload, position);
+        if (position < 0)
+        {
+            return null;
+        }
+        final int end = skipValue(payload, position);
+        if (end < 0)
+        {
+            return null;
+        }
+        return payload[position] == '"' ? decodeString(payload, position + 1, end - 1) : new String(payload,
+            position, end - position, UTF_8);
+    }
+
+    /**
+     * @return the position of the value of the member, or -1 if the object doesn't have it.
+     */
+    private static int findMember(final byte[] payload, final int objectStart, final byte[] name)
+    {
+        int position = objectStart;
+        while (true)
+        {
+            position = skipWhitespaces(payload, position);
+            if ((position < 0) || (payload[position] != '"'))
+            {
+                return -1;
+            }
+
+            final int nameEnd = skipString(payload, position);
+            if (nameEnd < 0)
+            {
+                return -1;
+            }
+            final boolean found = nameEquals(payload, position + 1, nameEnd - 1, name);
+
+            position = skipWhitespaces(payload, nameEnd);
+            if ((position < 0) || (payload[position] != ':'))
+            {
+                return -1;
+            }
+            position = skipWhitespaces(payload, position + 1);
+            if ((found) || (position < 0))
+            {
+                return position;
+            }
+
+            position = skipWhitespaces(payload, skipValue(payload, position));
+            if ((position < 0) || (payload[position] != ','))
+            {
+                return -1;
+            }
+            position++;
+        }
+    }
+
+    private static boolean nameEquals(final byte[] payload, final int start, final int end, final byte[] name)
+    {
+        if (end - start != name.length)
+        {
+            // escaped names are compared decoded
+            for (int i = start; i < end; i++)
+            {
+                if (payload[i] == '\\')
+                {
+                    return decodeString(payload, start, end).equals(new String(name, UTF_8));
+                }
+            }
+            return false;
+        }
+
+        for (int i = 0; i < name.length; i++)
+        {
+            if (payload[start + i] != name[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position following the value, or -1 if it's truncated.
+     */
+    private static int skipValue(final byte[] payload, final int start)
+    {
+        if ((start < 0) || (start >= payload.length))
+        {
+            return -1;
+        }
+
+        final byte first = payload[start];
+        if (first == '"')
+        {
+            return skipString(payload, start);
+        }
+
+        if ((first == '{') || (first == '['))
+        {
+            int depth = 0;
+            int position = start;
+            while (position < payload.length)
+            {
+                final byte b = payload[position];
+                if (b == '"')
+                {
+                    position = skipString(payload, position);
+                    if (position < 0)
+                    {
+                        return -1;
+                    }
+                    continue;
+                }
+                if ((b == '{') || (b == '['))
+                {
+                    depth++;
+                }
+                else if (((b == '}') || (b == ']')) && (--depth == 0))
+                {
+                    return position + 1;
+                }
+                position++;
+            }
+            return -1;
+        }
+
+        // number, true, false or null
+        int position = start;
+        while ((position < payload.length) && (payload[position] != ',') && (payload[position] != '}')
+               && (payload[position] != ']') && (!isWhitespace(payload[position])))
+        {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return the position following the closing quote, or -1 if the string is truncated.
+     */
+    private static int skipString(final byte[] payload, final int start)
+    {
+        int position = start + 1;
+        while (position < payload.length)
+        {
+            final byte b = payload[position];
+            if (b == '"')
+            {
+                return position + 1;
+            }
+            position += b == '\\' ? 2 : 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the next non whitespace byte, or -1 if there is none.
+     */
+    private static int skipWhitespaces(final byte[] payload, final int start)
+    {
+        if (start < 0)
+        {
+            return -1;
+        }
+
+        int position = start;
+        while ((position < payload.length) && (isWhitespace(payload[position])))
+        {
+            position++;
+        }
+        return position < payload.length ? position : -1;
+    }
+
+    private static boolean isWhitespace(final byte b)
+    {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+    }
+
+    private static String decodeString(final byte[] payload, final int start, final int end)
+    {
+        final String raw = new String(payload, start, end - start, UTF_8);
+        if (raw.indexOf('\\') < 0)
+        {
+            return raw;
+        }
+
+        final StringBuilder decoded = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++)
+        {
+            char c = raw.charAt(i);
+            if ((c == '\\') && (i + 1 < raw.length()))
+            {
+                c = raw.charAt(++i);
+                switch (c)
+                {
+                    case 'b' :
+                        c = '\b';
+                        break;
+                    case 'f' :
+                        c = '\f';
+                        break;
+                    case 'n' :
+                        c = '\n';
+                        break;
+                    case 'r' :
+                        c = '\r';
+                        break;
+                    case 't' :
+                        c = '\t';
+                        break;
+                    case 'u' :
+                        if (i + 4 < raw.length())
+                        {
+                            try
+                            {
+                                c = (char) Integer.parseInt(raw.substring(i + 1, i + 5), 16);
+                                i += 4;
+                            }
+                            catch (final NumberFormatException nfe)
+                            {
+                                // kept as is
+                            }
+                        }
+                        break;
+                    default :
+                        // \" \\ and \/ stand for themselves
+                        break;
+                }
+            }
+            decoded.append(c);
+        }
+        return decoded.toString();
+    }
+
+    private static String unquote(final String text)
+    {
+        return (text.length() >= 2) && (text.startsWith("\"")) && (text.endsWith("\"")) ? text.substring(1,
+            text.length() - 1) : text;
+    }
+
+    private static Double parseNumber(final String text)
+    {
+        if ((text.length() == 0) || ((!Character.isDigit(text.charAt(0))) && (text.charAt(0) != '-')))
+        {
+            return null;
+        }
+        try
+        {
+            return Double.valueOf(text);
+        }
+        catch (final NumberFormatException nfe)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.util.StringUtils;
+
+/**
+ * Keeps the last message received on each topic, so flows can read the latest value of a topic
+ * without subscribing or going through the broker. Retained messages being delivered on
+ * subscription, the cache also holds the retained value of the subscribed topics.
+ * <p/>
+ * Values are evicted once older than the time to live, or when the cache is full, the least
+ * recently updated topics first. Topic names are also indexed level by level, so a topic filter
+ * with wildcards is looked up by walking the matching levels only.
+ */
+public class MqttLastValueCache
+{
+    /**
+     * Last message received on a topic.
+     */
+    public static final class Entry
+    {
+        private final String topicName;
+        private final byte[] payload;
+        private final DeliveryQoS qos;
+        private final boolean retained;
+        private final long arrivalTime;
+
+        private Entry(final String topicName,
+                      final byte[] payload,
+                      final DeliveryQoS qos,
+                      final boolean retained,
+                      final long arrivalTime)
+        {
+            this.topicName = topicName;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.arrivalTime = arrivalTime;
+        }
+
+        public String getTopicName()
+        {
+            return topicName;
+        }
+
+        public byte[] getPayload()
+        {
+            return payload;
+        }
+
+        public DeliveryQoS getQos()
+        {
+            return qos;
+        }
+
+        public boolean isRetained()
+        {
+            return retained;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} at which the message arrived.
+         */
+        public long getArrivalTime()
+        {
+            return arrivalTime;
+        }
+    }
+
+    private static final class Node
+    {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private Entry entry;
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && (entry == null);
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    private final Node root = new Node();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of topics to keep the value of.
+     * @param ttl time in milliseconds after which a value is evicted, zero to keep values until
+     *            the cache is full.
+     */
+    public MqttLastValueCache(final int maxSize, final long ttl)
+    {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Entry>(Math.min(maxSize, 1024) * 2);
+    }
+
+    /**
+     * Updates the value of a topic, unless it has been updated by a message arrived later, which
+     * happens when messages are processed by several threads.
+     */
+    public synchronized void put(final String topicName,
+                                 final byte[] payload,
+                                 final DeliveryQoS qos,
+                                 final boolean retained,
+                                 final long arrivalTime)
+    {
+        final long now = System.nanoTime();
+        expire(now);
+
+        final Entry current = entries.get(topicName);
+        if ((current != null) && (current.arrivalTime - arrivalTime > 0L))
+        {
+            return;
+        }
+
+        final Entry entry = new Entry(topicName, payload, qos, retained, arrivalTime);
+
+        // updated topics move to the end, preserving the update order
+        entries.remove(topicName);
+        entries.put(topicName, entry);
+        index(topicName).entry = entry;
+
+        if (entries.size() > maxSize)
+        {
+            final Iterator<Entry> eldest = entries.values().iterator();
+            final Entry evicted = eldest.next();
+            eldest.remove();
+            unindex(evicted.topicName);
+        }
+    }
+
+    /**
+     * @return the last value of the topic, or null if unknown or expired.
+     */
+    public synchronized Entry get(final String topicName)
+    {
+        expire(System.nanoTime());
+
+        final Entry entry = entries.get(topicName);
+        if (entry == null)
+        {
+            missCount.incrementAndGet();
+        }
+        else
+        {
+            hitCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * @return the last values of all the topics matching the topic filter, by topic name.
+     */
+    public synchronized Map<String, Entry> match(final String topicFilter)
+    {
+        expire(System.nanoTime());
+
+        final Map<String, Entry> matches = new LinkedHashMap<String, Entry>();
+        final String[] levels = split(topicFilter);
+        match(root, levels, 0, true, matches);
+
+        if (matches.isEmpty())
+        {
+            missCount.incrementAndGet();
+        }
+        else
+        {
+            hitCount.incrementAndGet();
+        }
+        return matches;
+    }
+
+    private void match(final Node node,
+                       final String[] levels,
+                       final int index,
+                       final boolean firstLevel,
+                       final Map<String, Entry> matches)
+    {
+        if (index == levels.length)
+        {
+            if (node.entry != null)
+            {
+                matches.put(node.entry.topicName, node.entry);
+            }
+            return;
+        }
+
+        // topics starting with $ are not matched by filters starting with a wildcard
+        final String level = levels[index];
+        if (MqttTopicFilterTrie.MULTI_LEVEL_WILDCARD.equals(level))
+        {
+            // "a/#" matches "a" and everything below it
+            if ((node.entry != null) && (!firstLevel))
+            {
+                matches.put(node.entry.topicName, node.entry);
+            }
+            for (final Map.Entry<String, Node> child : node.children.entrySet())
+            {
+                if ((!firstLevel) || (!child.getKey().startsWith("$")))
+                {
+                    collect(child.getValue(), matches);
+                }
+            }
+        }
+        else if (MqttTopicFilterTrie.SINGLE_LEVEL_WILDCARD.equals(level))
+        {
+            for (final Map.Entry<String, Node> child : node.children.entrySet())
+            {
+                if ((!firstLevel) || (!child.getKey().startsWith("$")))
+                {
+                    match(child.getValue(), levels, index + 1, false, matches);
+                }
+            }
+        }
+        else
+        {
+            final Node child = node.children.get(level);
+            if (child != null)
+            {
+                match(child, levels, index + 1, false, matches);
+            }
+        }
+    }
+
+    private void collect(final Node node, final Map<String, Entry> matches)
+    {
+        if (node.entry != null)
+        {
+            matches.put(node.entry.topicName, node.entry);
+        }
+        for (final Node child : node.children.values())
+        {
+            collect(child, matches);
+        }
+    }
+
+    public static boolean isTopicFilter(final String topic)
+    {
+        return StringUtils.contains(topic, MqttTopicFilterTrie.SINGLE_LEVEL_WILDCARD)
+               || StringUtils.contains(topic, MqttTopicFilterTrie.MULTI_LEVEL_WILDCARD);
+    }
+
+    public synchronized int getCachedCount()
+    {
+        return entries.size();
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        root.children.clear();
+        root.entry = null;
+    }
+
+    private void expire(final long now)
+    {
+        if (ttlNanos <= 0L)
+        {
+            return;
+        }
+
+        // entries are in update order, so the expired ones come first
+        for (final Iterator<Entry> eldest = entries.values().iterator(); eldest.hasNext();)
+        {
+            final Entry entry = eldest.next();
+            if (now - entry.arrivalTime <= ttlNanos)
+            {
+                break;
+            }
+            eldest.remove();
+            unindex(entry.topicName);
+        }
+    }
+
+    private Node index(final String topicName)
+    {
+        Node node = root;
+        for (final String level : split(topicName))
+        {
+            Node child = node.children.get(level);
+            if (child == null)
+            {
+                child = new Node();
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private void unindex(final String topicName)
+    {
+        unindex(root, split(topicName), 0);
+    }
+
+    private void unindex(final Node node, final String[] levels, final int index)
+    {
+        if (index == levels.length)
+        {
+            node.entry = null;
+            return;
+        }
+
+        final Node child = node.children.get(levels[index]);
+        if (child == null)
+        {
+            return;
+        }
+
+        unindex(child, levels, index + 1);
+        if (child.isEmpty())
+        {
+            node.children.remove(levels[index]);
+        }
+    }
+
+    private static String[] split(final String topic)
+    {
+        // keep empty levels, they are significant in MQTT
+        return StringUtils.splitPreserveAllTokens(topic, MqttTopicFilterTrie.LEVEL_SEPARATOR);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Cached: " + getCachedCount() + " - Hits: " + getHitCount() + " - Misses: " + getMissCount();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, with log-linear buckets in the fashion of HDR
+ * histograms: each power of two is split in {@value #SUB_BUCKET_COUNT} linear buckets, so
+ * percentiles are reported with a relative error below 12.5% whatever the magnitude, for a fixed
+ * footprint. Recording is a couple of atomic increments, cheap enough to stay on permanently.
+ */
+public class MqttLatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest power of two with buckets, around 4.9 hours: longer latencies fall in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 44;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long nanos)
+    {
+        final long value = Math.max(0L, nanos);
+
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while ((value > (currentMax = max.get())) && (!max.compareAndSet(currentMax, value)))
+        {
+            // retry until this value is recorded or a higher one is
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, zero if nothing has been recorded.
+     */
+    public long getMean()
+    {
+        final long currentCount = count.get();
+        return currentCount == 0L ? 0L : sum.get() / currentCount;
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the highest latency in nanoseconds of the bucket holding the percentile, zero if
+     *         nothing has been recorded.
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            total += buckets.get(i);
+        }
+        if (total == 0L)
+        {
+            return 0L;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long cumulated = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            cumulated += buckets.get(i);
+            if (cumulated >= rank)
+            {
+                // the last bucket is unbounded
+                return i == BUCKET_COUNT - 1 ? getMax() : Math.min(bucketHighestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets all the recorded latencies. Latencies recorded concurrently may be partially lost.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    static int bucketIndex(final long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+        {
+            return (int) value;
+        }
+
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        if (exponent == MAX_EXPONENT && (value >>> MAX_EXPONENT) > 1L)
+        {
+            return BUCKET_COUNT - 1;
+        }
+
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketHighestValue(final int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+        {
+            return index;
+        }
+
+        final int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKET_COUNT;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((SUB_BUCKET_COUNT + subBucket + 1L) << shift) - 1L;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Arrays;
+
+/**
+ * Compressor and decompressor of the LZF format: a byte oriented LZ77 variant trading compression
+ * ratio for speed, with no entropy coding. The data is a sequence of chunks, each starting with a
+ * control byte:
+ * <ul>
+ * <li><code>000LLLLL</code>: a literal run of <code>L + 1</code> bytes follows,</li>
+ * <li><code>LLLooooo oooooooo</code>: a back reference of <code>L + 2</code> bytes at offset
+ * <code>o + 1</code>,</li>
+ * <li><code>111ooooo LLLLLLLL oooooooo</code>: a back reference of <code>L + 9</code> bytes at offset
+ * <code>o + 1</code>.</li>
+ * </ul>
+ * The hash table is the only state and is reused by each thread. Rather than being cleared on each
+ * call, it stores positions offset by a base that grows with the data compressed, so the positions
+ * stored by previous calls fall below the base and are ignored.
+ */
+public final class MqttLzfCodec
+{
+    private static final int HASH_BITS = 14;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    private static final int MAX_LITERAL = 1 << 5;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+
+    private static final class HashTable
+    {
+        private final int[] positions = new int[HASH_SIZE];
+        private int base;
+    }
+
+    private static final ThreadLocal<HashTable> HASH_TABLE = new ThreadLocal<HashTable>()
+    {
+        @Override
+        protected HashTable initialValue()
+        {
+            return new HashTable();
+        }
+    };
+
+    private MqttLzfCodec()
+    {
+        // NOOP
+    }
+
+    /**
+     * @return the size of a buffer large enough to hold the compression of data of the given length,
+     *         even if it doesn't compress.
+     */
+    public static int maxCompressedLength(final int length)
+    {
+        return length + (length / MAX_LITERAL) + 1;
+    }
+
+    /**
+     * Compresses the input range into the output buffer, which must be at least
+     * {@link #maxCompressedLength(int)} long.
+     * 
+     * @return the compressed length.
+     */
+    public static int compress(final byte[] in,
+                               final int inOffset,
+                               final int inLength,
+                               final byte[] out,
+                               final int outOffset)
+    {
+        final HashTable table = HASH_TABLE.get();
+        if (table.base > Integer.MAX_VALUE - inLength)
+        {
+            Arrays.fill(table.positions, 0);
+            table.base = 0;
+        }
+        final int[] hashTable = table.positions;
+        // positions are stored above the base, so the entries of previous calls hold no candidate
+        final int shift = table.base + 1 - inOffset;
+        table.base += inLength;
+
+        final int inEnd = inOffset + inLength;
+        int inPos = inOffset;
+        int outPos = outOffset + 1;
+        int literalStart = outOffset;
+        int literals = 0;
+
+        while (inPos < inEnd - 2)
+        {
+            final int hash = hash(in, inPos);
+            final int candidate = hashTable[hash] - shift;
+            hashTable[hash] = inPos + shift;
+
+            final int offset = inPos - candidate - 1;
+            if ((candidate >= inOffset) && (offset < MAX_OFFSET) && (in[candidate] == in[inPos])
+                && (in[candidate + 1] == in[inPos + 1]) && (in[candidate + 2] == in[inPos + 2]))
+            {
+                final int maxLength = Math.min(MAX_REFERENCE, inEnd - inPos);
+                int length = 3;
+                while ((length < maxLength) && (in[candidate + length] == in[inPos + length]))
+                {
+                    length++;
+                }
+
+                // close the pending literal run, dropping its control byte if empty
+                if (literals > 0)
+                {
+                    out[literalStart] = (byte) (literals - 1);
+                }
+                else
+                {
+                    outPos--;
+                }
+
+                final int encodedLength = length - 2;
+                if (encodedLength < 7)
+                {
+                    out[outPos++] = (byte) ((encodedLength << 5) + (offset >> 8));
+                }
+                else
+                {
+                    out[outPos++] = (byte) ((7 << 5) + (offset >> 8));
+                    out[outPos++] = (byte) (encodedLength - 7);
+                }
+                out[outPos++] = (byte) offset;
+
+                // index the positions covered by the reference so later data can refer to them
+                final int end = inPos + length;
+                for (inPos++; (inPos < end) && (inPos < inEnd - 2); inPos++)
+                {
+                    hashTable[hash(in, inPos)] = inPos + shift;
+                }
+                inPos = end;
+
+                literalStart = outPos++;
+                literals = 0;
+            }
+            else
+            {
+                out[outPos++] = in[inPos++];
+                if (++literals == MAX_LITERAL)
+                {
+                    out[literalStart] = (byte) (MAX_LITERAL - 1);
+                    literalStart = outPos++;
+                    literals = 0;
+                }
+            }
+        }
+
+        while (inPos < inEnd)
+        {
+            out[outPos++] = in[inPos++];
+            if (++literals == MAX_LITERAL)
+            {
+                out[literalStart] = (byte) (MAX_LITERAL - 1);
+                literalStart = outPos++;
+                literals = 0;
+            }
+        }
+
+        if (literals > 0)
+        {
+            out[literalStart] = (byte) (literals - 1);
+        }
+        else
+        {
+            outPos--;
+        }
+
+        return outPos - outOffset;
+    }
+
+    /**
+     * Decompresses the input into the output, whose length must be the exact decompressed length.
+     * 
+     * @throws IllegalArgumentException if the input is corrupted.
+     */
+    public static void decompress(final byte[] in, final int inOffset, final int inLength, final byte[] out)
+    {
+        final int inEnd = inOffset + inLength;
+        int inPos = inOffset;
+        int outPos = 0;
+
+        try
+        {
+            while (inPos < inEnd)
+            {
+                final int control = in[inPos++] & 0xFF;
+                if (control < MAX_LITERAL)
+                {
+                    final int length = control + 1;
+                    System.arraycopy(in, inPos, out, outPos, length);
+                    inPos += length;
+                    outPos += length;
+                    continue;
+                }
+
+                int length = control >> 5;
+                if (length == 7)
+                {
+                    length += in[inPos++] & 0xFF;
+                }
+                length += 2;
+
+                final int reference = outPos - (((control & 0x1F) << 8) + (in[inPos++] & 0xFF)) - 1;
+                if (reference < 0)
+                {
+                    throw new IllegalArgumentException("Invalid LZF back reference at: " + (inPos - inOffset));
+                }
+
+                // byte by byte as the reference may overlap the bytes being written
+                for (int i = 0; i < length; i++)
+                {
+                    out[outPos++] = out[reference + i];
+                }
+            }
+        }
+        catch (final ArrayIndexOutOfBoundsException aioobe)
+        {
+            throw new IllegalArgumentException("Corrupted LZF data", aioobe);
+        }
+
+        if (outPos != out.length)
+        {
+            throw new IllegalArgumentException("LZF data decompressed to " + outPos + " bytes instead of "
+                                               + out.length);
+        }
+    }
+
+    private static int hash(final byte[] in, final int pos)
+    {
+        final int value = ((in[pos] & 0xFF) << 16) | ((in[pos + 1] & 0xFF) << 8) | (in[pos + 2] & 0xFF);
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * {@link MqttClientPersistence} storing messages in an append-only log made of memory-mapped
+ * segment files. Stores and removals (as tombstones) are appended to the active segment and an
+ * in-memory index locates the live records, so no file is created, synced or deleted per message.
+ * <p/>
+ * Segments are synced to disk periodically, and the oldest segments are compacted in the
+ * background once most of their records are dead. On open, the index is rebuilt by scanning the
+ * segments, stopping at the first torn or corrupted record of each one.
+ */
+public class MqttMappedLogPersistence implements MqttClientPersistence
+{
+    private static final Log LOGGER = LogFactory.getLog(MqttMappedLogPersistence.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String KEY_ENCODING = "UTF-8";
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_TOMBSTONE = 2;
+    // type + key length + header length + payload length
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4 + 4;
+    private static final int RECORD_CHECKSUM_SIZE = 4;
+    private static final double COMPACTION_THRESHOLD = 0.5d;
+
+    private static final class Segment
+    {
+        private final long id;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private long liveBytes;
+
+        private Segment(final long id, final File file, final int capacity) throws IOException
+        {
+            this.id = id;
+            this.file = file;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if (randomAccessFile.length() < capacity)
+            {
+                randomAccessFile.setLength(capacity);
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+                randomAccessFile.length());
+        }
+
+        private int capacity()
+        {
+            return buffer.capacity();
+        }
+
+        private int remaining()
+        {
+            return capacity() - writePosition;
+        }
+
+        private void close()
+        {
+            try
+            {
+                buffer.force();
+                randomAccessFile.close();
+            }
+            catch (final IOException ioe)
+            {
+                LOGGER.warn("Failed to close segment: " + file, ioe);
+            }
+        }
+    }
+
+    private static final class Location
+    {
+        private final Segment segment;
+        private final int offset;
+        private final int keyLength;
+        private final int headerLength;
+        private final int payloadLength;
+
+        private Location(final Segment segment,
+                         final int offset,
+                         final int keyLength,
+                         final int headerLength,
+                         final int payloadLength)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.headerLength = headerLength;
+            this.payloadLength = payloadLength;
+        }
+
+        private int recordLength()
+        {
+            return RECORD_HEADER_SIZE + keyLength + headerLength + payloadLength + RECORD_CHECKSUM_SIZE;
+        }
+    }
+
+    private final File baseDirectory;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private File directory;
+    private Segment activeSegment;
+    private long nextSegmentId;
+    private ScheduledExecutorService maintenanceExecutor;
+
+    public MqttMappedLogPersistence(final String baseDirectory)
+    {
+        this(baseDirectory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param baseDirectory directory under which each client gets its own log directory.
+     * @param segmentSize size in bytes of the segment files.
+     * @param syncInterval time in milliseconds between two syncs of the active segment to disk.
+     */
+    public MqttMappedLogPersistence(final String baseDirectory, final int segmentSize, final long syncInterval)
+    {
+        this.baseDirectory = new File(baseDirectory);
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+    }
+
+    public synchronized void open(final String clientId, final String serverURI) throws MqttPersistenceException
+    {
+        directory = new File(baseDirectory, (clientId + "-" + serverURI).replaceAll("[^a-zA-Z0-9_.-]", "_"));
+        if ((!directory.isDirectory()) && (!directory.mkdirs()))
+        {
+            throw new MqttPersistenceException(new IOException("Can't create directory: " + directory));
+        }
+
+        try
+        {
+            recover();
+        }
+        catch (final IOException ioe)
+        {
+            closeSegments();
+            throw new MqttPersistenceException(ioe);
+        }
+
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "mqtt-persistence-" + clientId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maintenanceExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                maintain();
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+
+        LOGGER.info("Mapped log persistence opened at: " + directory + " with " + index.size()
+                    + " persisted messages");
+    }
+
+    public void close() throws MqttPersistenceException
+    {
+        final ScheduledExecutorService executor;
+        synchronized (this)
+        {
+            executor = maintenanceExecutor;
+            maintenanceExecutor = null;
+        }
+
+        if (executor != null)
+        {
+            executor.shutdown();
+            try
+            {
+                executor.awaitTermination(syncInterval, TimeUnit.MILLISECONDS);
+            }
+            catch (final InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this)
+        {
+            closeSegments();
+        }
+    }
+
+    public synchronized void put(final String key, final MqttPersistable persistable)
+        throws MqttPersistenceException
+    {
+        final byte[] keyBytes = encodeKey(key);
+        final int headerLength = persistable.getHeaderLength();
+        final int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+
+        final ByteBuffer record = newRecord(RECORD_PUT, keyBytes, headerLength, payloadLength);
+        record.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+        if (payloadLength > 0)
+        {
+            record.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+        }
+
+        final Location location = append(record, keyBytes.length, headerLength, payloadLength);
+        kill(index.put(key, location));
+        location.segment.liveBytes += location.recordLength();
+    }
+
+    public synchronized MqttPersistable get(final String key) throws MqttPersistenceException
+    {
+        final Location location = index.get(key);
+        if (location == null)
+        {
+            return null;
+        }
+
+        final ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + RECORD_HEADER_SIZE + location.keyLength);
+        final byte[] header = new byte[location.headerLength];
+        buffer.get(header);
+        final byte[] payload = new byte[location.payloadLength];
+        buffer.get(payload);
+        return new MqttPersistedData(header, payload);
+    }
+
+    public synchronized void remove(final String key) throws MqttPersistenceException
+    {
+        final Location location = index.remove(key);
+        if (location == null)
+        {
+            return;
+        }
+
+        kill(location);
+        final byte[] keyBytes = encodeKey(key);
+        append(newRecord(RECORD_TOMBSTONE, keyBytes, 0, 0), keyBytes.length, 0, 0);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public synchronized Enumeration keys() throws MqttPersistenceException
+    {
+        return Collections.enumeration(new ArrayList<String>(index.keySet()));
+    }
+
+    public synchronized void clear() throws MqttPersistenceException
+    {
+        index.clear();
+        for (final Segment segment : segments)
+        {
+            segment.close();
+            if (!segment.file.delete())
+            {
+                LOGGER.warn("Failed to delete segment: " + segment.file);
+            }
+        }
+        segments.clear();
+        activeSegment = null;
+    }
+
+    public synchronized boolean containsKey(final String key) throws MqttPersistenceException
+    {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return the number of persisted messages.
+     */
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    private ByteBuffer newRecord(final byte type,
+                                 final byte[] keyBytes,
+                                 final int headerLength,
+                                 final int payloadLength)
+    {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + headerLength
+                                                      + payloadLength + RECORD_CHECKSUM_SIZE);
+        record.put(type);
+        record.putInt(keyBytes.length);
+        record.putInt(headerLength);
+        record.putInt(payloadLength);
+        record.put(keyBytes);
+        return record;
+    }
+
+    /**
+     * Seals the record with its checksum and writes it at the end of the log.
+     */
+    private Location append(final ByteBuffer record,
+                            final int keyLength,
+                            final int headerLength,
+                            final int payloadLength) throws MqttPersistenceException
+    {
+        final byte[] bytes = record.array();
+        final int checksumOffset = bytes.length - RECORD_CHECKSUM_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, checksumOffset);
+        record.putInt(checksumOffset, (int) crc.getValue());
+
+        if ((activeSegment == null) || (activeSegment.remaining() < bytes.length))
+        {
+            roll(bytes.length);
+        }
+
+        final int offset = activeSegment.writePosition;
+        final ByteBuffer buffer = activeSegment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(bytes);
+        activeSegment.writePosition += bytes.length;
+
+        return new Location(activeSegment, offset, keyLength, headerLength, payloadLength);
+    }
+
+    private void roll(final int minimumCapacity) throws MqttPersistenceException
+    {
+        if (activeSegment != null)
+        {
+            activeSegment.buffer.force();
+        }
+
+        try
+        {
+            activeSegment = openSegment(nextSegmentId++, Math.max(segmentSize, minimumCapacity));
+        }
+        catch (final IOException ioe)
+        {
+            throw new MqttPersistenceException(ioe);
+        }
+        segments.addLast(activeSegment);
+    }
+
+    private Segment openSegment(final long id, final int capacity) throws IOException
+    {
+        return new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), capacity);
+    }
+
+    private void kill(final Location location)
+    {
+        if (location != null)
+        {
+            location.segment.liveBytes -= location.recordLength();
+        }
+    }
+
+    /**
+     * Rebuilds the index by replaying all the segments in order.
+     */
+    private void recover() throws IOException
+    {
+        index.clear();
+        segments.clear();
+        activeSegment = null;
+        nextSegmentId = 0L;
+
+        final File[] files = directory.listFiles(new FilenameFilter()
+        {
+            public boolean accept(final File dir, final String name)
+            {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        final long[] ids = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < ids.length; i++)
+        {
+            final String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+
+        for (final long id : ids)
+        {
+            final Segment segment = openSegment(id, 0);
+            segments.addLast(segment);
+            replay(segment);
+            activeSegment = segment;
+            nextSegmentId = id + 1L;
+        }
+    }
+
+    private void replay(final Segment segment) throws UnsupportedEncodingException
+    {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        final CRC32 crc = new CRC32();
+        int position = 0;
+
+        while (position + RECORD_HEADER_SIZE + RECORD_CHECKSUM_SIZE <= buffer.capacity())
+        {
+            final byte type = buffer.get(position);
+            if ((type != RECORD_PUT) && (type != RECORD_TOMBSTONE))
+            {
+                break;
+            }
+
+            final int keyLength = buffer.getInt(position + 1);
+            final int headerLength = buffer.getInt(position + 5);
+            final int payloadLength = buffer.getInt(position + 9);
+            final long recordLength = (long) RECORD_HEADER_SIZE + keyLength + headerLength + payloadLength
+                                      + RECORD_CHECKSUM_SIZE;
+            if ((keyLength < 0) || (headerLength < 0) || (payloadLength < 0)
+                || (position + recordLength > buffer.capacity()))
+            {
+                break;
+            }
+
+            final byte[] bytes = new byte[(int) recordLength - RECORD_CHECKSUM_SIZE];
+            buffer.position(position);
+            buffer.get(bytes);
+            crc.reset();
+            crc.update(bytes);
+            if ((int) crc.getValue() != buffer.getInt())
+            {
+                LOGGER.warn("Corrupted record found in segment: " + segment.file + " at: " + position);
+                break;
+            }
+
+            final String key = new String(bytes, RECORD_HEADER_SIZE, keyLength, KEY_ENCODING);
+            if (type == RECORD_PUT)
+            {
+                final Location location = new Location(segment, position, keyLength, headerLength, payloadLength);
+                kill(index.put(key, location));
+                segment.liveBytes += recordLength;
+            }
+            else
+            {
+                kill(index.remove(key));
+            }
+
+            position += recordLength;
+        }
+
+        segment.writePosition = position;
+    }
+
+    /**
+     * Syncs the active segment and compacts the oldest segments while they are mostly dead. Only
+     * the oldest segment is ever compacted: its tombstones can't hide records of an older segment,
+     * so they can be dropped with it.
+     */
+    private synchronized void maintain()
+    {
+        if (activeSegment == null)
+        {
+            return;
+        }
+
+        activeSegment.buffer.force();
+
+        try
+        {
+            while (segments.size() > 1)
+            {
+                final Segment oldest = segments.getFirst();
+                if (oldest.liveBytes > oldest.writePosition * COMPACTION_THRESHOLD)
+                {
+                    break;
+                }
+                compact(oldest);
+            }
+        }
+        catch (final MqttPersistenceException mpe)
+        {
+            LOGGER.error("Failed to compact persistence at: " + directory, mpe);
+        }
+    }
+
+    private void compact(final Segment segment) throws MqttPersistenceException
+    {
+        final List<Map.Entry<String, Location>> liveEntries = new ArrayList<Map.Entry<String, Location>>();
+        for (final Map.Entry<String, Location> entry : index.entrySet())
+        {
+            if (entry.getValue().segment == segment)
+            {
+                liveEntries.add(entry);
+            }
+        }
+
+        for (final Map.Entry<String, Location> entry : liveEntries)
+        {
+            put(entry.getKey(), get(entry.getKey()));
+        }
+
+        activeSegment.buffer.force();
+        segments.remove(segment);
+        segment.close();
+        if (!segment.file.delete())
+        {
+            LOGGER.warn("Failed to delete compacted segment: " + segment.file);
+        }
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Compacted segment " + segment.id + ", moved " + liveEntries.size() + " live records");
+        }
+    }
+
+    private void closeSegments()
+    {
+        for (final Segment segment : segments)
+        {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+        activeSegment = null;
+    }
+
+    private static byte[] encodeKey(final String key) throws MqttPersistenceException
+    {
+        try
+        {
+            return key.getBytes(KEY_ENCODING);
+        }
+        catch (final UnsupportedEncodingException uee)
+        {
+            throw new MqttPersistenceException(uee);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * {@link MqttClientPersistence} keeping up to a given number of messages in memory and spilling the
+ * extra ones to a disk persistence, so disk I/O only happens during bursts.
+ * <p/>
+ * Messages held in memory are kept when the persistence is closed and opened again, and are only
+ * lost when {@link #clear()} is called or the instance is discarded: when the JVM stops, or when the
+ * connector disconnects, each connection creating its own persistence. Spilled messages are
+ * recovered from disk on open.
+ * <p/>
+ * The client uses keys made of a prefix and a message ID, which are stored in arrays indexed by the
+ * message ID instead of a hash map. Other keys are kept in a regular map.
+ */
+public class MqttMemoryPersistence implements MqttClientPersistence
+{
+    private static final Log LOGGER = LogFactory.getLog(MqttMemoryPersistence.class);
+
+    private static final String[] KEY_PREFIXES = {"s-", "sc-", "r-"};
+    private static final int MAX_MESSAGE_ID = 65535;
+
+    private final int threshold;
+    private final MqttClientPersistence spillPersistence;
+    private final MqttPersistedData[][] slots = new MqttPersistedData[KEY_PREFIXES.length][];
+    private final Map<String, MqttPersistedData> otherEntries = new HashMap<String, MqttPersistedData>();
+    private final Set<String> spilledKeys = new HashSet<String>();
+    private final AtomicLong spillCount = new AtomicLong();
+    private int memoryCount;
+    private long memoryBytes;
+
+    /**
+     * @param threshold maximum number of messages kept in memory.
+     * @param spillPersistence the persistence extra messages are spilled to.
+     */
+    public MqttMemoryPersistence(final int threshold, final MqttClientPersistence spillPersistence)
+    {
+        this.threshold = threshold;
+        this.spillPersistence = spillPersistence;
+    }
+
+    public synchronized void open(final String clientId, final String serverURI) throws MqttPersistenceException
+    {
+        spillPersistence.open(clientId, serverURI);
+
+        // messages spilled before a restart are still on disk, and take precedence over the copy
+        // held in memory since the persistence was last closed, if any
+        spilledKeys.clear();
+        for (final Enumeration<?> keys = spillPersistence.keys(); keys.hasMoreElements();)
+        {
+            final String key = (String) keys.nextElement();
+            spilledKeys.add(key);
+
+            final MqttPersistedData removed = removeFromMemory(key);
+            if (removed != null)
+            {
+                memoryCount--;
+                memoryBytes -= removed.size();
+            }
+        }
+
+        LOGGER.info("Memory persistence opened with a threshold of " + threshold + " messages, "
+                    + memoryCount + " messages in memory and " + spilledKeys.size() + " spilled messages");
+    }
+
+    /**
+     * Closes the spill persistence, keeping the messages held in memory for when the persistence is
+     * opened again.
+     */
+    public synchronized void close() throws MqttPersistenceException
+    {
+        spilledKeys.clear();
+        spillPersistence.close();
+    }
+
+    public synchronized void put(final String key, final MqttPersistable persistable)
+        throws MqttPersistenceException
+    {
+        if (spilledKeys.contains(key))
+        {
+            spillPersistence.put(key, persistable);
+            return;
+        }
+
+        final MqttPersistedData data = MqttPersistedData.copyOf(persistable);
+        final MqttPersistedData previous = getFromMemory(key);
+        if ((previous == null) && (memoryCount >= threshold))
+        {
+            spillPersistence.put(key, data);
+            spilledKeys.add(key);
+            spillCount.incrementAndGet();
+            return;
+        }
+
+        putInMemory(key, data);
+        if (previous == null)
+        {
+            memoryCount++;
+        }
+        else
+        {
+            memoryBytes -= previous.size();
+        }
+        memoryBytes += data.size();
+    }
+
+    public synchronized MqttPersistable get(final String key) throws MqttPersistenceException
+    {
+        if (spilledKeys.contains(key))
+        {
+            return spillPersistence.get(key);
+        }
+        return getFromMemory(key);
+    }
+
+    public synchronized void remove(final String key) throws MqttPersistenceException
+    {
+        if (spilledKeys.remove(key))
+        {
+            spillPersistence.remove(key);
+            return;
+        }
+
+        final MqttPersistedData removed = removeFromMemory(key);
+        if (removed != null)
+        {
+            memoryCount--;
+            memoryBytes -= removed.size();
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    public synchronized Enumeration keys() throws MqttPersistenceException
+    {
+        final List<String> keys = new ArrayList<String>(memoryCount + spilledKeys.size());
+        for (int prefix = 0; prefix < slots.length; prefix++)
+        {
+            if (slots[prefix] == null)
+            {
+                continue;
+            }
+            for (int messageId = 0; messageId < slots[prefix].length; messageId++)
+            {
+                if (slots[prefix][messageId] != null)
+                {
+                    keys.add(KEY_PREFIXES[prefix] + messageId);
+                }
+            }
+        }
+        keys.addAll(otherEntries.keySet());
+        keys.addAll(spilledKeys);
+        return Collections.enumeration(keys);
+    }
+
+    public synchronized void clear() throws MqttPersistenceException
+    {
+        clearMemory();
+        spilledKeys.clear();
+        spillPersistence.clear();
+    }
+
+    public synchronized boolean containsKey(final String key) throws MqttPersistenceException
+    {
+        return spilledKeys.contains(key) || (getFromMemory(key) != null);
+    }
+
+    public synchronized int getMemoryCount()
+    {
+        return memoryCount;
+    }
+
+    public synchronized long getMemoryBytes()
+    {
+        return memoryBytes;
+    }
+
+    public synchronized int getSpilledCount()
+    {
+        return spilledKeys.size();
+    }
+
+    /**
+     * @return the number of messages that have been spilled to disk since creation.
+     */
+    public long getSpillCount()
+    {
+        return spillCount.get();
+    }
+
+    private void clearMemory()
+    {
+        for (int prefix = 0; prefix < slots.length; prefix++)
+        {
+            slots[prefix] = null;
+        }
+        otherEntries.clear();
+        memoryCount = 0;
+        memoryBytes = 0L;
+    }
+
+    private MqttPersistedData getFromMemory(final String key)
+    {
+        final int prefix = prefixIndex(key);
+        if (prefix < 0)
+        {
+            return otherEntries.get(key);
+        }
+        final MqttPersistedData[] prefixSlots = slots[prefix];
+        return prefixSlots == null ? null : prefixSlots[messageId(key, prefix)];
+    }
+
+    private void putInMemory(final String key, final MqttPersistedData data)
+    {
+        final int prefix = prefixIndex(key);
+        if (prefix < 0)
+        {
+            otherEntries.put(key, data);
+            return;
+        }
+        if (slots[prefix] == null)
+        {
+            slots[prefix] = new MqttPersistedData[MAX_MESSAGE_ID + 1];
+        }
+        slots[prefix][messageId(key, prefix)] = data;
+    }
+
+    private MqttPersistedData removeFromMemory(final String key)
+    {
+        final int prefix = prefixIndex(key);
+        if (prefix < 0)
+        {
+            return otherEntries.remove(key);
+        }
+        final MqttPersistedData[] prefixSlots = slots[prefix];
+        if (prefixSlots == null)
+        {
+            return null;
+        }
+        final int messageId = messageId(key, prefix);
+        final MqttPersistedData removed = prefixSlots[messageId];
+        prefixSlots[messageId] = null;
+        return removed;
+    }
+
+    /**
+     * @return the index of the prefix of a key made of a known prefix and a message ID, -1 otherwise.
+     */
+    private static int prefixIndex(final String key)
+    {
+        for (int prefix = 0; prefix < KEY_PREFIXES.length; prefix++)
+        {
+            final int prefixLength = KEY_PREFIXES[prefix].length();
+            if (key.startsWith(KEY_PREFIXES[prefix]) && (key.length() > prefixLength)
+                && (key.length() <= prefixLength + 5) && (isMessageId(key, prefixLength)))
+            {
+                return prefix;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isMessageId(final String key, final int start)
+    {
+        // leading zeros would not survive the round trip through the slot index
+        if ((key.charAt(start) == '0') && (key.length() > start + 1))
+        {
+            return false;
+        }
+
+        int messageId = 0;
+        for (int i = start; i < key.length(); i++)
+        {
+            final char c = key.charAt(i);
+            if ((c < '0') || (c > '9'))
+            {
+                return false;
+            }
+            messageId = messageId * 10 + (c - '0');
+        }
+        return messageId <= MAX_MESSAGE_ID;
+    }
+
+    private static int messageId(final String key, final int prefix)
+    {
+        int messageId = 0;
+        for (int i = KEY_PREFIXES[prefix].length(); i < key.length(); i++)
+        {
+            messageId = messageId * 10 + (key.charAt(i) - '0');
+        }
+        return messageId;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 128 bits identifier of a published message, carried in its {@link MqttEnvelope} so subscribers
+ * can recognize redeliveries. Identifiers are made of a random prefix drawn once per JVM and a
+ * sequence, which is cheaper than random UUIDs and unique across publishers in practice.
+ */
+public final class MqttMessageId
+{
+    public static final int LENGTH = 16;
+
+    private static final long PREFIX = new SecureRandom().nextLong();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final long high;
+    private final long low;
+
+    public MqttMessageId(final long high, final long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @return a new identifier, unique for this JVM.
+     */
+    public static MqttMessageId next()
+    {
+        return new MqttMessageId(PREFIX, SEQUENCE.incrementAndGet());
+    }
+
+    /**
+     * @return an identifier derived from the topic name and payload of a message, for messages
+     *         published without identifier.
+     */
+    public static MqttMessageId fromContent(final String topicName, final byte[] payload)
+    {
+        return new MqttMessageId(fnv1a(topicName), fnv1a(payload));
+    }
+
+    /**
+     * @return the identifier represented by the string returned by its {@link #toString()}.
+     * @throws IllegalArgumentException if the string doesn't represent an identifier.
+     */
+    public static MqttMessageId fromString(final String value)
+    {
+        if ((value == null) || (value.length() != 2 * LENGTH))
+        {
+            throw new IllegalArgumentException("Invalid message identifier: " + value);
+        }
+        return new MqttMessageId(parseHexLong(value, 0), parseHexLong(value, LENGTH));
+    }
+
+    public long getHigh()
+    {
+        return high;
+    }
+
+    public long getLow()
+    {
+        return low;
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        if (this == other)
+        {
+            return true;
+        }
+        if (!(other instanceof MqttMessageId))
+        {
+            return false;
+        }
+        final MqttMessageId otherId = (MqttMessageId) other;
+        return (high == otherId.high) && (low == otherId.low);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        final long mixed = high * 31L + low;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%016x%016x", high, low);
+    }
+
+    private static long parseHexLong(final String value, final int offset)
+    {
+        // halves parsed separately, Long.parseLong rejects values above Long.MAX_VALUE
+        return (Long.parseLong(value.substring(offset, offset + 8), 16) << 32)
+               | Long.parseLong(value.substring(offset + 8, offset + 16), 16);
+    }
+
+    private static long fnv1a(final String value)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long fnv1a(final byte[] value)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : value)
+        {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
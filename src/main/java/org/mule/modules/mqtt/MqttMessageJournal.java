@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * First-in first-out journal of messages stored in a file. Records are appended at the end of the
+ * file and read from a separate position, the file being truncated whenever all the records have
+ * been read. When appends keep pace with reads, the journal never empties: the records left to
+ * read are then moved to the start of the file once the records read take more room than them,
+ * beyond a threshold, so the file stays within about twice the size of its records.
+ * <p/>
+ * The journal is an overflow of memory rather than a durable store: it is emptied when opened and
+ * deleted when closed, so its records don't survive a restart.
+ */
+public class MqttMessageJournal
+{
+    /**
+     * A journaled message along with the topic it's bound to.
+     */
+    public static final class Entry
+    {
+        private final String topicName;
+        private final MqttMessage mqttMessage;
+
+        public Entry(final String topicName, final MqttMessage mqttMessage)
+        {
+            this.topicName = topicName;
+            this.mqttMessage = mqttMessage;
+        }
+
+        public String getTopicName()
+        {
+            return topicName;
+        }
+
+        public MqttMessage getMqttMessage()
+        {
+            return mqttMessage;
+        }
+    }
+
+    private static final Log LOGGER = LogFactory.getLog(MqttMessageJournal.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 1024L * 1024L;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final RandomAccessFile journal;
+    private final long compactionThreshold;
+    private long readPosition;
+    private long writePosition;
+    private int size;
+
+    public MqttMessageJournal(final File file) throws IOException
+    {
+        this(file, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param compactionThreshold size in bytes of the records read beyond which the file is
+     *            compacted.
+     */
+    public MqttMessageJournal(final File file, final long compactionThreshold) throws IOException
+    {
+        this.file = file;
+        this.compactionThreshold = compactionThreshold;
+        file.getParentFile().mkdirs();
+        journal = new RandomAccessFile(file, "rw");
+        journal.setLength(0L);
+    }
+
+    public synchronized void append(final String topicName, final byte[] payload, final int qos, final boolean retained)
+        throws IOException
+    {
+        final byte[] topicNameBytes = topicName.getBytes(ENCODING);
+        journal.seek(writePosition);
+        journal.writeInt(topicNameBytes.length);
+        journal.write(topicNameBytes);
+        journal.writeByte(qos);
+        journal.writeBoolean(retained);
+        journal.writeInt(payload.length);
+        journal.write(payload);
+        writePosition = journal.getFilePointer();
+        size++;
+    }
+
+    /**
+     * @return the oldest journaled entry, or null if the journal is empty.
+     */
+    public synchronized Entry poll() throws IOException
+    {
+        if (size == 0)
+        {
+            return null;
+        }
+
+        journal.seek(readPosition);
+        final byte[] topicNameBytes = new byte[journal.readInt()];
+        journal.readFully(topicNameBytes);
+        final int qos = journal.readByte();
+        final boolean retained = journal.readBoolean();
+        final byte[] payload = new byte[journal.readInt()];
+        journal.readFully(payload);
+        readPosition = journal.getFilePointer();
+        size--;
+
+        if (size == 0)
+        {
+            readPosition = 0L;
+            writePosition = 0L;
+            journal.setLength(0L);
+        }
+        else if ((readPosition >= compactionThreshold) && (readPosition >= writePosition - readPosition))
+        {
+            compact();
+        }
+
+        final MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(retained);
+        return new Entry(new String(topicNameBytes, ENCODING), mqttMessage);
+    }
+
+    /**
+     * Moves the records left to read to the start of the file, the copy being paid for by the
+     * records read since the last compaction, which are at least as large.
+     */
+    private void compact() throws IOException
+    {
+        final byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, writePosition - readPosition)];
+        long source = readPosition;
+        long target = 0L;
+        while (source < writePosition)
+        {
+            final int length = (int) Math.min(buffer.length, writePosition - source);
+            journal.seek(source);
+            journal.readFully(buffer, 0, length);
+            journal.seek(target);
+            journal.write(buffer, 0, length);
+            source += length;
+            target += length;
+        }
+
+        writePosition = target;
+        readPosition = 0L;
+        journal.setLength(writePosition);
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            journal.close();
+        }
+        catch (final IOException ioe)
+        {
+            LOGGER.warn("Failed to close message journal: " + file, ioe);
+        }
+
+        if (!file.delete())
+        {
+            LOGGER.warn("Failed to delete message journal: " + file);
+        }
+    }
+}
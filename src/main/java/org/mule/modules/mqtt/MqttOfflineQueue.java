@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+
+/**
+ * Holds the messages published while the connection to the broker is lost, and publishes them in
+ * order once it's back. Messages are kept in memory up to a number of messages, the extra ones being
+ * appended to a {@link MqttMessageJournal} if one is configured: once messages are journaled, new
+ * ones are journaled too until the journal is drained, which keeps them in order.
+ * <p/>
+ * Draining happens on a dedicated thread, at a capped rate so a backlog doesn't flood the broker
+ * right after it recovers. It stops at the first failure, the failed message staying first in
+ * line for the next drain.
+ */
+public class MqttOfflineQueue
+{
+    public interface Sender
+    {
+        void send(String topicName, byte[] payload, DeliveryQoS qos) throws MqttException;
+    }
+
+    private static final Log LOGGER = LogFactory.getLog(MqttOfflineQueue.class);
+
+    private final Sender sender;
+    private final int memoryCapacity;
+    private final MqttMessageJournal journal;
+    private final int journalCapacity;
+    private final long drainInterval;
+    private final Queue<MqttMessageJournal.Entry> memoryQueue = new ArrayDeque<MqttMessageJournal.Entry>();
+    private final ExecutorService drainer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Entry read from the journal but not sent yet.
+     */
+    private MqttMessageJournal.Entry journalHead;
+
+    /**
+     * @param memoryCapacity maximum number of messages kept in memory.
+     * @param journal the journal messages overflowing the memory are appended to, or null to only
+     *            keep messages in memory.
+     * @param journalCapacity maximum number of messages in the journal.
+     * @param drainRate maximum number of messages published per second when draining, zero for no
+     *            limit.
+     */
+    public MqttOfflineQueue(final String name,
+                            final Sender sender,
+                            final int memoryCapacity,
+                            final MqttMessageJournal journal,
+                            final int journalCapacity,
+                            final int drainRate)
+    {
+        this.sender = sender;
+        this.memoryCapacity = memoryCapacity;
+        this.journal = journal;
+        this.journalCapacity = journalCapacity;
+        this.drainInterval = drainRate > 0 ? TimeUnit.SECONDS.toNanos(1L) / drainRate : 0L;
+
+        this.drainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, name + "-offline-drainer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Queues a message.
+     * 
+     * @return false if the queue is full.
+     */
+    public synchronized boolean offer(final String topicName, final byte[] payload, final DeliveryQoS qos)
+    {
+        final boolean journaling = (journalHead != null) || ((journal != null) && (!journal.isEmpty()));
+        if ((!journaling) && (memoryQueue.size() < memoryCapacity))
+        {
+            final MqttMessage mqttMessage = new MqttMessage(payload);
+            mqttMessage.setQos(qos.getCode());
+            memoryQueue.add(new MqttMessageJournal.Entry(topicName, mqttMessage));
+            return true;
+        }
+
+        if ((journal == null) || (journal.size() >= journalCapacity))
+        {
+            return false;
+        }
+
+        try
+        {
+            journal.append(topicName, payload, qos.getCode(), false);
+            return true;
+        }
+        catch (final IOException ioe)
+        {
+            LOGGER.error("Failed to journal offline message for topic: " + topicName, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Starts publishing the queued messages, unless already doing so.
+     */
+    public void drain()
+    {
+        if ((isEmpty()) || (!draining.compareAndSet(false, true)))
+        {
+            return;
+        }
+
+        try
+        {
+            drainer.execute(new Runnable()
+            {
+                public void run()
+                {
+                    boolean drained = false;
+                    try
+                    {
+                        drained = drainQueue();
+                    }
+                    finally
+                    {
+                        draining.set(false);
+                    }
+
+                    // messages queued while the drain was ending
+                    if (drained)
+                    {
+                        drain();
+                    }
+                }
+            });
+        }
+        catch (final RuntimeException re)
+        {
+            // closed meanwhile
+            draining.set(false);
+        }
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return memoryQueue.isEmpty() && (journalHead == null) && ((journal == null) || (journal.isEmpty()));
+    }
+
+    public synchronized int size()
+    {
+        return memoryQueue.size() + (journalHead != null ? 1 : 0) + (journal != null ? journal.size() : 0);
+    }
+
+    /**
+     * Stops draining and deletes the journal, the messages still queued being lost.
+     */
+    public void close()
+    {
+        drainer.shutdownNow();
+
+        synchronized (this)
+        {
+            if (!isEmpty())
+            {
+                LOGGER.warn("Discarding " + size() + " offline messages");
+            }
+            memoryQueue.clear();
+            journalHead = null;
+            if (journal != null)
+            {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the queue has been drained, false if interrupted or failing.
+     */
+    private boolean drainQueue()
+    {
+        int drainedCount = 0;
+        long nextSendTime = System.nanoTime();
+
+        while (!Thread.currentThread().isInterrupted())
+        {
+            final MqttMessageJournal.Entry entry = peek();
+            if (entry == null)
+            {
+                if (drainedCount > 0)
+                {
+                    LOGGER.info("Drained " + drainedCount + " offline messages");
+                }
+                return true;
+            }
+
+            if (drainInterval > 0L)
+            {
+                final long waitTime = nextSendTime - System.nanoTime();
+                if (waitTime > 0L)
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.sleep(waitTime);
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                // a slow send doesn't earn a burst afterwards
+                nextSendTime = Math.max(nextSendTime, System.nanoTime() - drainInterval) + drainInterval;
+            }
+
+            final MqttMessage mqttMessage = entry.getMqttMessage();
+            try
+            {
+                sender.send(entry.getTopicName(), mqttMessage.getPayload(),
+                    DeliveryQoS.fromCode(mqttMessage.getQos()));
+            }
+            catch (final MqttException me)
+            {
+                LOGGER.warn("Stopped draining offline messages after " + drainedCount + ", " + size()
+                            + " left: " + me);
+                return false;
+            }
+
+            remove(entry);
+            drainedCount++;
+        }
+        return false;
+    }
+
+    private synchronized MqttMessageJournal.Entry peek()
+    {
+        if (!memoryQueue.isEmpty())
+        {
+            return memoryQueue.peek();
+        }
+
+        if ((journalHead == null) && (journal != null))
+        {
+            try
+            {
+                journalHead = journal.poll();
+            }
+            catch (final IOException ioe)
+            {
+                LOGGER.error("Failed to read offline message, discarding the " + journal.size()
+                             + " journaled messages", ioe);
+                discardJournal();
+            }
+        }
+        return journalHead;
+    }
+
+    private synchronized void remove(final MqttMessageJournal.Entry entry)
+    {
+        if (entry == journalHead)
+        {
+            journalHead = null;
+        }
+        else
+        {
+            memoryQueue.poll();
+        }
+    }
+
+    private void discardJournal()
+    {
+        try
+        {
+            while (journal.poll() != null)
+            {
+                // NOOP
+            }
+        }
+        catch (final IOException ioe)
+        {
+            LOGGER.error("Failed to discard the offline journal", ioe);
+        }
+    }
+}
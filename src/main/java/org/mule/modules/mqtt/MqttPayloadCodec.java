@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+
+/**
+ * Converts the objects flows publish into payload bytes and the payload bytes received back into
+ * objects, without going through Mule transformers. Besides the built-in codecs, implementations
+ * are discovered with {@link java.util.ServiceLoader}, listed in
+ * <code>META-INF/services/org.mule.modules.mqtt.MqttPayloadCodec</code>. A single instance of each
+ * codec is used by all the threads, so implementations must be thread safe.
+ */
+public interface MqttPayloadCodec
+{
+    /**
+     * @return the name the codec is mapped to topics with.
+     */
+    String getName();
+
+    /**
+     * @throws IOException thrown if the value can't be encoded by the codec.
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * @throws IOException thrown if the payload is not valid for the codec.
+     */
+    Object decode(byte[] payload) throws IOException;
+}
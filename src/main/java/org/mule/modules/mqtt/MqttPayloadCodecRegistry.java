@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.util.StringUtils;
+
+/**
+ * The {@link MqttPayloadCodec}s available to a connector and the topics they are mapped to. Codecs
+ * are the built-in ones and those discovered with {@link ServiceLoader}, which are loaded once and
+ * can replace a built-in codec of the same name.
+ * <p/>
+ * Codecs are mapped with a comma separated list of <code>topicFilter=codecName</code>, like
+ * <code>sensors/#=cbor, logs/+/batch=records</code>. When several filters match a topic, the first
+ * one listed wins. Topic names repeat, so the codec of each topic name is cached, up to a number of
+ * topics.
+ */
+public class MqttPayloadCodecRegistry
+{
+    public static final int DEFAULT_MAX_TOPICS = 10000;
+
+    private static final Log LOGGER = LogFactory.getLog(MqttPayloadCodecRegistry.class);
+
+    private static final String MAPPING_SEPARATOR = "=";
+
+    private static final class Mapping
+    {
+        private final int index;
+        private final MqttPayloadCodec codec;
+
+        private Mapping(final int index, final MqttPayloadCodec codec)
+        {
+            this.index = index;
+            this.codec = codec;
+        }
+    }
+
+    private static final Mapping NO_MAPPING = new Mapping(Integer.MAX_VALUE, null);
+
+    private final Map<String, MqttPayloadCodec> codecs = new LinkedHashMap<String, MqttPayloadCodec>();
+    private final MqttTopicFilterTrie<Mapping> mappings = new MqttTopicFilterTrie<Mapping>();
+    private final ConcurrentMap<String, Mapping> topicMappings = new ConcurrentHashMap<String, Mapping>();
+
+    /**
+     * @param codecMappings comma separated list of <code>topicFilter=codecName</code>.
+     * @param classLoader where codecs are discovered.
+     * @throws IllegalArgumentException if a mapping is invalid or its codec unknown.
+     */
+    public MqttPayloadCodecRegistry(final String codecMappings, final ClassLoader classLoader)
+    {
+        register(new MqttCborCodec());
+        register(new MqttRecordsCodec());
+        for (final MqttPayloadCodec codec : ServiceLoader.load(MqttPayloadCodec.class, classLoader))
+        {
+            LOGGER.info("Payload codec discovered: " + codec.getName() + " (" + codec.getClass().getName() + ")");
+            register(codec);
+        }
+
+        final String[] mappingDefinitions = StringUtils.splitAndTrim(StringUtils.defaultString(codecMappings), ",");
+        for (int i = 0; i < mappingDefinitions.length; i++)
+        {
+            final String[] parts = StringUtils.splitAndTrim(mappingDefinitions[i], MAPPING_SEPARATOR);
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException("Invalid payload codec mapping, topicFilter=codecName expected: "
+                                                   + mappingDefinitions[i]);
+            }
+
+            final MqttPayloadCodec codec = codecs.get(parts[1]);
+            if (codec == null)
+            {
+                throw new IllegalArgumentException("Unknown payload codec: " + parts[1] + ", available: "
+                                                   + codecs.keySet());
+            }
+            mappings.add(parts[0], new Mapping(i, codec));
+        }
+    }
+
+    private void register(final MqttPayloadCodec codec)
+    {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * @return the codec, or null if unknown.
+     */
+    public MqttPayloadCodec getCodec(final String name)
+    {
+        return codecs.get(name);
+    }
+
+    /**
+     * @return the codec mapped to the topic, or null if none is.
+     */
+    public MqttPayloadCodec codecFor(final String topicName)
+    {
+        Mapping topicMapping = topicMappings.get(topicName);
+        if (topicMapping == null)
+        {
+            topicMapping = NO_MAPPING;
+            for (final Mapping mapping : mappings.match(topicName))
+            {
+                if (mapping.index < topicMapping.index)
+                {
+                    topicMapping = mapping;
+                }
+            }
+
+            if (topicMappings.size() < DEFAULT_MAX_TOPICS)
+            {
+                topicMappings.put(topicName, topicMapping);
+            }
+        }
+        return topicMapping.codec;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Codecs: " + codecs.keySet() + " - Cached topics: " + topicMappings.size();
+    }
+}
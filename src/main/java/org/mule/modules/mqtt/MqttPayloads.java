@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Turns the payload types the connector publishes into the <code>byte[]</code> an MQTT message is
+ * made of, with exactly one allocation of the message size whenever the size is known upfront.
+ * Streams of unknown size are read into an array growing by half its length, trimmed once at the
+ * end: while growing or trimming, up to about 2.5 times the size read is briefly held.
+ */
+public final class MqttPayloads
+{
+    /**
+     * Maximum size of an MQTT message payload, as allowed by the remaining length of the fixed header.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 268435455;
+
+    private static final int DEFAULT_STREAM_BUFFER_SIZE = 8 * 1024;
+
+    private MqttPayloads()
+    {
+        // NOOP
+    }
+
+    /**
+     * @return true if the payload can be converted without going through a Mule transformer.
+     */
+    public static boolean isSupported(final Object payload)
+    {
+        return (payload instanceof byte[]) || (payload instanceof String) || (payload instanceof ByteBuffer)
+               || (payload instanceof File) || (payload instanceof InputStream);
+    }
+
+    /**
+     * Converts a supported payload to bytes. Streams are fully consumed and closed.
+     *
+     * @param encoding the encoding of {@link String} payloads.
+     */
+    public static byte[] toByteArray(final Object payload, final String encoding) throws IOException
+    {
+        if (payload instanceof byte[])
+        {
+            return (byte[]) payload;
+        }
+        if (payload instanceof String)
+        {
+            return ((String) payload).getBytes(encoding);
+        }
+        if (payload instanceof ByteBuffer)
+        {
+            return toByteArray((ByteBuffer) payload);
+        }
+        if (payload instanceof File)
+        {
+            return toByteArray((File) payload);
+        }
+        if (payload instanceof InputStream)
+        {
+            final InputStream inputStream = (InputStream) payload;
+            try
+            {
+                return inputStream instanceof FileInputStream
+                    ? toByteArray(((FileInputStream) inputStream).getChannel()) : toByteArray(inputStream);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(inputStream);
+            }
+        }
+        throw new IllegalArgumentException("Unsupported payload type: " + payload.getClass().getName());
+    }
+
+    private static byte[] toByteArray(final ByteBuffer byteBuffer)
+    {
+        // a buffer wrapping a whole array can be published as is
+        if ((byteBuffer.hasArray()) && (byteBuffer.arrayOffset() == 0) && (byteBuffer.position() == 0)
+            && (byteBuffer.remaining() == byteBuffer.array().length))
+        {
+            return byteBuffer.array();
+        }
+
+        final byte[] bytes = new byte[checkSize(byteBuffer.remaining())];
+        byteBuffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] toByteArray(final File file) throws IOException
+    {
+        final FileInputStream fileInputStream = new FileInputStream(file);
+        try
+        {
+            return toByteArray(fileInputStream.getChannel());
+        }
+        finally
+        {
+            IOUtils.closeQuietly(fileInputStream);
+        }
+    }
+
+    /**
+     * Reads the remaining content of a file channel straight into the message bytes, with
+     * positional reads that leave the channel position unchanged.
+     */
+    private static byte[] toByteArray(final FileChannel fileChannel) throws IOException
+    {
+        final long position = fileChannel.position();
+        final byte[] bytes = new byte[checkSize(fileChannel.size() - position)];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        while (byteBuffer.hasRemaining())
+        {
+            if (fileChannel.read(byteBuffer, position + byteBuffer.position()) == -1)
+            {
+                // the file has been truncated meanwhile
+                return Arrays.copyOf(bytes, byteBuffer.position());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a stream into an array sized from the bytes available without blocking, so streams
+     * knowing their size, like those of byte arrays, are read without growing nor trimming it.
+     */
+    private static byte[] toByteArray(final InputStream inputStream) throws IOException
+    {
+        final int available = inputStream.available();
+        byte[] bytes = new byte[available > 0 ? checkSize(available) : DEFAULT_STREAM_BUFFER_SIZE];
+        int size = 0;
+
+        while (true)
+        {
+            if (size == bytes.length)
+            {
+                // checking for the end of the stream before growing spares a copy when it's reached
+                final int next = inputStream.read();
+                if (next == -1)
+                {
+                    return bytes;
+                }
+                bytes = grow(bytes, size + 1);
+                bytes[size++] = (byte) next;
+            }
+
+            final int read = inputStream.read(bytes, size, bytes.length - size);
+            if (read == -1)
+            {
+                return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+            }
+            size += read;
+        }
+    }
+
+    private static byte[] grow(final byte[] bytes, final int minLength)
+    {
+        checkSize(minLength);
+        final long length = Math.max(minLength, bytes.length + (long) (bytes.length >> 1));
+        return Arrays.copyOf(bytes, (int) Math.min(length, MAX_PAYLOAD_SIZE));
+    }
+
+    private static int checkSize(final long size)
+    {
+        if (size > MAX_PAYLOAD_SIZE)
+        {
+            throw new IllegalArgumentException("Payload of " + size + " bytes exceeds the maximum MQTT payload size of "
+                                               + MAX_PAYLOAD_SIZE + " bytes");
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * {@link MqttPersistable} holding its own copy of the header and payload bytes, as returned by the
+ * persistence implementations of the module.
+ */
+public class MqttPersistedData implements MqttPersistable
+{
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] header;
+    private final byte[] payload;
+
+    public MqttPersistedData(final byte[] header, final byte[] payload)
+    {
+        this.header = header;
+        this.payload = payload == null ? EMPTY : payload;
+    }
+
+    /**
+     * Copies the content of a persistable, which may be reused by the client once stored.
+     */
+    public static MqttPersistedData copyOf(final MqttPersistable persistable) throws MqttPersistenceException
+    {
+        final byte[] header = new byte[persistable.getHeaderLength()];
+        System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), header, 0, header.length);
+
+        final byte[] payload;
+        if ((persistable.getPayloadBytes() == null) || (persistable.getPayloadLength() == 0))
+        {
+            payload = EMPTY;
+        }
+        else
+        {
+            payload = new byte[persistable.getPayloadLength()];
+            System.arraycopy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payload, 0,
+                payload.length);
+        }
+
+        return new MqttPersistedData(header, payload);
+    }
+
+    public byte[] getHeaderBytes()
+    {
+        return header;
+    }
+
+    public int getHeaderLength()
+    {
+        return header.length;
+    }
+
+    public int getHeaderOffset()
+    {
+        return 0;
+    }
+
+    public byte[] getPayloadBytes()
+    {
+        return payload;
+    }
+
+    public int getPayloadLength()
+    {
+        return payload.length;
+    }
+
+    public int getPayloadOffset()
+    {
+        return 0;
+    }
+
+    /**
+     * @return the number of bytes held by this data.
+     */
+    public int size()
+    {
+        return header.length + payload.length;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * Set of clients used to spread publications over several connections. The first shard is the
+ * connector's primary client, the other ones are only used for publishing. Topics are mapped to
+ * shards with a consistent hash so messages sent to the same topic always share a connection,
+ * which preserves their ordering.
+ */
+public class MqttPublisherShards
+{
+    /**
+     * Maximum length of a client identifier in MQTT 3.1.
+     */
+    public static final int MAX_CLIENT_ID_LENGTH = 23;
+
+    private static final Log LOGGER = LogFactory.getLog(MqttPublisherShards.class);
+
+    private final MqttClient[] clients;
+    private final MqttConnectOptions[] connectOptions;
+
+    /**
+     * @param clients the clients of the shards, the first one being the primary client.
+     * @param connectOptions the options the clients of the shards are connected with, reused when
+     *            they reconnect.
+     */
+    public MqttPublisherShards(final MqttClient[] clients, final MqttConnectOptions[] connectOptions)
+    {
+        this.clients = clients;
+        this.connectOptions = connectOptions;
+    }
+
+    public MqttClient getClient(final String topicName)
+    {
+        return clients[jumpConsistentHash(mix(topicName.hashCode()), clients.length)];
+    }
+
+    public MqttClient getClient(final int shard)
+    {
+        return clients[shard];
+    }
+
+    public MqttConnectOptions getConnectOptions(final int shard)
+    {
+        return connectOptions[shard];
+    }
+
+    /**
+     * Replaces the client of a shard, typically by one connected to another broker.
+     */
+    public void setClient(final int shard, final MqttClient client)
+    {
+        clients[shard] = client;
+    }
+
+    public int size()
+    {
+        return clients.length;
+    }
+
+    /**
+     * @return true if all the secondary shards are connected.
+     */
+    public boolean isConnected()
+    {
+        for (int i = 1; i < clients.length; i++)
+        {
+            if ((clients[i] == null) || (!clients[i].isConnected()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Disconnects the secondary shards, the primary client being managed by the connector.
+     */
+    public void disconnect()
+    {
+        for (int i = 1; i < clients.length; i++)
+        {
+            if ((clients[i] != null) && (clients[i].isConnected()))
+            {
+                try
+                {
+                    clients[i].disconnect();
+                }
+                catch (final MqttException me)
+                {
+                    LOGGER.warn("Failed to cleanly disconnect publisher shard: " + clients[i].getClientId(), me);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the client identifier of a secondary shard: the primary identifier followed by the
+     *         shard number or, when that would be too long for MQTT 3.1, its beginning followed by
+     *         its hash and the shard number, so shards of different primary clients don't clash.
+     */
+    public static String shardClientId(final String clientId, final int shard)
+    {
+        final String suffix = "-" + shard;
+        if (clientId.length() + suffix.length() <= MAX_CLIENT_ID_LENGTH)
+        {
+            return clientId + suffix;
+        }
+
+        final String hash = String.format("%08x", clientId.hashCode());
+        final int prefixLength = Math.max(0, MAX_CLIENT_ID_LENGTH - hash.length() - suffix.length());
+        return clientId.substring(0, Math.min(prefixLength, clientId.length())) + hash + suffix;
+    }
+
+    private static long mix(final int hash)
+    {
+        long key = hash;
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach): maps a key to a bucket so that only 1/n of the keys
+     * move when going from n - 1 to n buckets.
+     */
+    static int jumpConsistentHash(final long key, final int buckets)
+    {
+        long k = key;
+        long b = -1L;
+        long j = 0L;
+        while (j < buckets)
+        {
+            b = j;
+            k = k * 2862933555777941757L + 1L;
+            j = (long) ((b + 1L) * ((double) (1L << 31) / (double) ((k >>> 33) + 1L)));
+        }
+        return (int) b;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reconnects a lost connection in the background, retrying with an exponential backoff. The first
+ * attempt is made right away so a broker failover is recovered from as soon as the new broker
+ * accepts connections. The following delays double from the initial delay up to the maximum delay,
+ * each one randomized between half and all of its value so clients disconnected together don't
+ * reconnect together.
+ */
+public class MqttReconnector
+{
+    public interface Connection
+    {
+        /**
+         * Connects again whatever has been lost, leaving the rest untouched.
+         */
+        void reconnect() throws Exception;
+
+        boolean isConnected();
+    }
+
+    private static final Log LOGGER = LogFactory.getLog(MqttReconnector.class);
+
+    private final Connection connection;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private final Random random = new Random();
+    private volatile long reconnectionStartTime;
+
+    /**
+     * @param initialDelay delay in milliseconds before the second attempt.
+     * @param maxDelay maximum delay in milliseconds between two attempts.
+     * @param maxAttempts number of attempts before giving up, zero to retry until stopped.
+     */
+    public MqttReconnector(final String name,
+                           final Connection connection,
+                           final long initialDelay,
+                           final long maxDelay,
+                           final int maxAttempts)
+    {
+        this.connection = connection;
+        this.initialDelay = Math.max(1L, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.maxAttempts = maxAttempts;
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, name + "-reconnector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts reconnecting, unless a reconnection is already in progress.
+     * 
+     * @return true if a reconnection has been started.
+     */
+    public boolean reconnect()
+    {
+        if ((scheduler.isShutdown()) || (!reconnecting.compareAndSet(false, true)))
+        {
+            return false;
+        }
+
+        reconnectionStartTime = System.nanoTime();
+        schedule(1, 0L);
+        return true;
+    }
+
+    public boolean isReconnecting()
+    {
+        return reconnecting.get();
+    }
+
+    /**
+     * Stops reconnecting, interrupting the attempt in progress if any.
+     */
+    public void stop()
+    {
+        scheduler.shutdownNow();
+        reconnecting.set(false);
+    }
+
+    /**
+     * @return the delay in milliseconds before the attempt following the given one.
+     */
+    long backoffDelay(final int attempt)
+    {
+        long delay = initialDelay;
+        for (int i = 1; (i < attempt) && (delay < maxDelay); i++)
+        {
+            delay *= 2L;
+        }
+        delay = Math.min(delay, maxDelay);
+
+        final long halfDelay = delay / 2L;
+        return halfDelay + (long) (random.nextDouble() * (delay - halfDelay + 1L));
+    }
+
+    private void schedule(final int attempt, final long delay)
+    {
+        try
+        {
+            scheduler.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    attempt(attempt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (final RuntimeException re)
+        {
+            // stopped while reconnecting
+            reconnecting.set(false);
+        }
+    }
+
+    private void attempt(final int attempt)
+    {
+        try
+        {
+            connection.reconnect();
+            reconnecting.set(false);
+
+            LOGGER.info("Reconnected after " + attempt + " attempt(s) in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconnectionStartTime) + "ms");
+
+            // a loss reported while reconnecting has been ignored
+            if (!connection.isConnected())
+            {
+                reconnect();
+            }
+        }
+        catch (final Exception e)
+        {
+            if ((maxAttempts > 0) && (attempt >= maxAttempts))
+            {
+                reconnecting.set(false);
+                LOGGER.error("Giving up reconnecting after " + attempt + " attempts", e);
+                return;
+            }
+
+            final long delay = backoffDelay(attempt);
+            LOGGER.warn("Reconnection attempt " + attempt + " failed, retrying in " + delay + "ms: " + e);
+            schedule(attempt + 1, delay);
+        }
+    }
+}
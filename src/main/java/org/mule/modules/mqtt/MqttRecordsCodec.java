@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Codec of sequences of records, each preceded by its length as a variable length integer, like
+ * the payloads of batch {@link MqttEnvelope}s. Collections and arrays of <code>byte[]</code> or
+ * {@link String}, encoded in UTF-8, are encoded, and decoded back into a {@link List} of
+ * <code>byte[]</code>. A single <code>byte[]</code> or {@link String} is encoded as one record.
+ */
+public class MqttRecordsCodec implements MqttPayloadCodec
+{
+    public static final String NAME = "records";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public String getName()
+    {
+        return NAME;
+    }
+
+    public byte[] encode(final Object value) throws IOException
+    {
+        final Collection<?> items;
+        if (value instanceof Collection)
+        {
+            items = (Collection<?>) value;
+        }
+        else if (value instanceof Object[])
+        {
+            items = Arrays.asList((Object[]) value);
+        }
+        else if ((value instanceof byte[]) || (value instanceof String))
+        {
+            items = Collections.singletonList(value);
+        }
+        else
+        {
+            throw new IOException("Records must be a collection or an array, not: "
+                                  + (value == null ? null : value.getClass().getName()));
+        }
+
+        final List<byte[]> records = new ArrayList<byte[]>(items.size());
+        int length = 0;
+        for (final Object item : items)
+        {
+            final byte[] record;
+            if (item instanceof byte[])
+            {
+                record = (byte[]) item;
+            }
+            else if (item instanceof String)
+            {
+                record = ((String) item).getBytes(UTF_8);
+            }
+            else
+            {
+                throw new IOException("Records must be byte[] or String, not: "
+                                      + (item == null ? null : item.getClass().getName()));
+            }
+            records.add(record);
+            length += MqttEnvelope.varIntLength(record.length) + record.length;
+        }
+
+        final byte[] payload = new byte[length];
+        int position = 0;
+        for (final byte[] record : records)
+        {
+            position = MqttEnvelope.writeVarInt(payload, position, record.length);
+            System.arraycopy(record, 0, payload, position, record.length);
+            position += record.length;
+        }
+        return payload;
+    }
+
+    public Object decode(final byte[] payload) throws IOException
+    {
+        return MqttEnvelope.split(payload, 0, payload.length);
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME;
+    }
+}
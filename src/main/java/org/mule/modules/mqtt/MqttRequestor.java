@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+
+/**
+ * Sends requests and waits for their replies. Each request is published in an {@link MqttEnvelope}
+ * carrying a correlation identifier and the reply topic of the requestor, which receives the replies
+ * to all its requests through a single subscription: no subscription is made per request.
+ * <p/>
+ * Requests awaiting their reply are kept in a table bounded in size, new requests waiting for a
+ * free slot when it's full. Replies arriving after their request timed out are dropped. Once the
+ * requestor is closed, pending and new requests fail without waiting for their time out.
+ */
+public class MqttRequestor implements MqttCallback
+{
+    public interface Sender
+    {
+        void send(String topicName, byte[] payload, DeliveryQoS qos) throws MqttException;
+    }
+
+    private static final Log LOGGER = LogFactory.getLog(MqttRequestor.class);
+
+    private static final class PendingRequest
+    {
+        private final CountDownLatch replied = new CountDownLatch(1);
+        private volatile byte[] reply;
+        private volatile boolean failed;
+    }
+
+    private final Sender sender;
+    private final String replyTopic;
+    private final Semaphore slots;
+    private final ConcurrentMap<MqttMessageId, PendingRequest> pendingRequests = new ConcurrentHashMap<MqttMessageId, PendingRequest>();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong lateReplyCount = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param replyTopic the topic the requestor receives the replies on, which must be unique to it.
+     * @param maxPendingRequests maximum number of requests awaiting their reply.
+     */
+    public MqttRequestor(final Sender sender, final String replyTopic, final int maxPendingRequests)
+    {
+        this.sender = sender;
+        this.replyTopic = replyTopic;
+        this.slots = new Semaphore(maxPendingRequests);
+    }
+
+    public String getReplyTopic()
+    {
+        return replyTopic;
+    }
+
+    /**
+     * Publishes a request and waits for its reply.
+     * 
+     * @param timeOut time in milliseconds to wait for the reply, including the wait for a free slot
+     *            in the table of pending requests.
+     * @return the payload of the reply.
+     * @throws MqttException thrown if the request can't be published, no reply arrived in time or
+     *             the requestor is closed.
+     */
+    public byte[] request(final String topicName, final byte[] payload, final DeliveryQoS qos, final long timeOut)
+        throws MqttException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeOut);
+        try
+        {
+            if (!slots.tryAcquire(timeOut, TimeUnit.MILLISECONDS))
+            {
+                timedOutCount.incrementAndGet();
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ie);
+        }
+
+        final MqttMessageId correlationId = MqttMessageId.next();
+        final PendingRequest pendingRequest = new PendingRequest();
+        pendingRequests.put(correlationId, pendingRequest);
+        try
+        {
+            // checked once the request is pending, so a concurrent close fails it either way
+            if (closed)
+            {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+
+            sender.send(topicName, MqttEnvelope.wrapRequest(payload, correlationId, replyTopic), qos);
+
+            if (!pendingRequest.replied.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+            {
+                timedOutCount.incrementAndGet();
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+            if ((pendingRequest.reply == null) && (pendingRequest.failed))
+            {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            return pendingRequest.reply;
+        }
+        catch (final InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ie);
+        }
+        finally
+        {
+            pendingRequests.remove(correlationId);
+            slots.release();
+        }
+    }
+
+    /**
+     * Completes the pending request the reply correlates to, if it's still waiting.
+     * 
+     * @return true if a request has been completed.
+     */
+    public boolean complete(final MqttMessageId correlationId, final byte[] reply)
+    {
+        final PendingRequest pendingRequest = pendingRequests.get(correlationId);
+        if (pendingRequest == null)
+        {
+            lateReplyCount.incrementAndGet();
+            if (LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Dropped reply to request " + correlationId + " which is not pending anymore");
+            }
+            return false;
+        }
+
+        pendingRequest.reply = reply;
+        pendingRequest.replied.countDown();
+        return true;
+    }
+
+    /**
+     * Fails the pending requests and the requests made from now on, as no reply can be received
+     * anymore.
+     */
+    public void close()
+    {
+        closed = true;
+        for (final PendingRequest pendingRequest : pendingRequests.values())
+        {
+            pendingRequest.failed = true;
+            pendingRequest.replied.countDown();
+        }
+    }
+
+    public int getPendingCount()
+    {
+        return pendingRequests.size();
+    }
+
+    public long getTimedOutCount()
+    {
+        return timedOutCount.get();
+    }
+
+    public long getLateReplyCount()
+    {
+        return lateReplyCount.get();
+    }
+
+    public void connectionLost(final Throwable throwable)
+    {
+        // NOOP reconnection is handled by the connector callback, pending requests time out
+    }
+
+    public void messageArrived(final MqttTopic mqttTopic, final MqttMessage mqttMessage) throws Exception
+    {
+        final MqttEnvelope envelope;
+        try
+        {
+            envelope = MqttEnvelope.read(mqttMessage.getPayload());
+        }
+        catch (final IOException ioe)
+        {
+            // acknowledged anyway, a redelivery would be just as corrupted
+            LOGGER.warn("Dropped corrupted reply received on topic: " + mqttTopic.getName(), ioe);
+            return;
+        }
+
+        if ((envelope == null) || (envelope.getCorrelationId() == null) || (envelope.isBatch()))
+        {
+            LOGGER.warn("Dropped message without correlation identifier received on reply topic: "
+                        + mqttTopic.getName());
+            return;
+        }
+
+        complete(envelope.getCorrelationId(), envelope.getPayload());
+    }
+
+    public void deliveryComplete(final MqttDeliveryToken mqttDeliveryToken)
+    {
+        // NOOP
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Bounded least-recently-used cache of {@link MqttTopic} handles. Entries are spread over
+ * independently locked segments to limit contention between publishing threads.
+ */
+public class MqttTopicCache
+{
+    private static final int SEGMENT_COUNT = 16;
+
+    private static final class Segment extends LinkedHashMap<String, MqttTopic>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(final int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, MqttTopic> eldest)
+        {
+            return size() > capacity;
+        }
+    }
+
+    private final int size;
+    private final Segment[] segments;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public MqttTopicCache(final int size)
+    {
+        this.size = size;
+        final int segmentCount = Math.min(SEGMENT_COUNT, size);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            // distribute the remainder so the total capacity is exactly the cache size
+            segments[i] = new Segment(size / segmentCount + (i < size % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * @return the cached topic, or null if absent.
+     */
+    public MqttTopic get(final String topicName)
+    {
+        final Segment segment = segmentFor(topicName);
+        final MqttTopic topic;
+        synchronized (segment)
+        {
+            topic = segment.get(topicName);
+        }
+
+        if (topic == null)
+        {
+            missCount.incrementAndGet();
+        }
+        else
+        {
+            hitCount.incrementAndGet();
+        }
+        return topic;
+    }
+
+    public void put(final String topicName, final MqttTopic topic)
+    {
+        final Segment segment = segmentFor(topicName);
+        synchronized (segment)
+        {
+            segment.put(topicName, topic);
+        }
+    }
+
+    /**
+     * Empties the cache, which must be done whenever the client the topics come from is replaced.
+     */
+    public void clear()
+    {
+        for (final Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(final String topicName)
+    {
+        int hash = topicName.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getCachedCount()
+    {
+        int cachedCount = 0;
+        for (final Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                cachedCount += segment.size();
+            }
+        }
+        return cachedCount;
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Cached: " + getCachedCount() + " - Hits: " + getHitCount() + " - Misses: " + getMissCount();
+    }
+}
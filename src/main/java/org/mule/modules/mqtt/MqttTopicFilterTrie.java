@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mule.util.StringUtils;
+
+/**
+ * Trie of MQTT topic filters, one node per topic level, supporting the <code>+</code> single level
+ * and <code>#</code> multi level wildcards. Matching a topic name walks the trie level by level, so
+ * its cost depends on the number of levels of the topic and not on the number of filters.
+ * 
+ * @param <T> the type of values associated to the filters.
+ */
+public class MqttTopicFilterTrie<T>
+{
+    public static final String LEVEL_SEPARATOR = "/";
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private static final class Node<T>
+    {
+        private final Map<String, Node<T>> children = new HashMap<String, Node<T>>();
+        private final Set<T> values = new LinkedHashSet<T>();
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && values.isEmpty();
+        }
+    }
+
+    private final Node<T> root = new Node<T>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void add(final String topicFilter, final T value)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Node<T> node = root;
+            for (final String level : split(topicFilter))
+            {
+                Node<T> child = node.children.get(level);
+                if (child == null)
+                {
+                    child = new Node<T>();
+                    node.children.put(level, child);
+                }
+                node = child;
+            }
+            node.values.add(value);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(final String topicFilter, final T value)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            remove(root, split(topicFilter), 0, value);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(final Node<T> node, final String[] levels, final int index, final T value)
+    {
+        if (index == levels.length)
+        {
+            node.values.remove(value);
+            return;
+        }
+
+        final Node<T> child = node.children.get(levels[index]);
+        if (child == null)
+        {
+            return;
+        }
+
+        remove(child, levels, index + 1, value);
+        if (child.isEmpty())
+        {
+            node.children.remove(levels[index]);
+        }
+    }
+
+    /**
+     * @return the values of all the filters matching the topic name, each value being present once.
+     */
+    public Set<T> match(final String topicName)
+    {
+        final Set<T> matches = new LinkedHashSet<T>();
+        final String[] levels = split(topicName);
+
+        lock.readLock().lock();
+        try
+        {
+            // topics starting with $ are not matched by filters starting with a wildcard
+            final boolean wildcardsAllowed = (levels.length == 0) || (!levels[0].startsWith("$"));
+            match(root, levels, 0, wildcardsAllowed, matches);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return matches;
+    }
+
+    private void match(final Node<T> node,
+                       final String[] levels,
+                       final int index,
+                       final boolean wildcardsAllowed,
+                       final Set<T> matches)
+    {
+        if (wildcardsAllowed)
+        {
+            // "a/#" matches "a" and everything below it
+            final Node<T> multiLevel = node.children.get(MULTI_LEVEL_WILDCARD);
+            if (multiLevel != null)
+            {
+                matches.addAll(multiLevel.values);
+            }
+        }
+
+        if (index == levels.length)
+        {
+            matches.addAll(node.values);
+            return;
+        }
+
+        final Node<T> exact = node.children.get(levels[index]);
+        if (exact != null)
+        {
+            match(exact, levels, index + 1, true, matches);
+        }
+
+        if (wildcardsAllowed)
+        {
+            final Node<T> singleLevel = node.children.get(SINGLE_LEVEL_WILDCARD);
+            if (singleLevel != null)
+            {
+                match(singleLevel, levels, index + 1, true, matches);
+            }
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return root.isEmpty();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String[] split(final String topic)
+    {
+        // keep empty levels, they are significant in MQTT
+        return StringUtils.splitPreserveAllTokens(topic, LEVEL_SEPARATOR);
+    }
+}
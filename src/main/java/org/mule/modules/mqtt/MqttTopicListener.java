@@ -9,6 +9,7 @@
 
 package org.mule.modules.mqtt;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,33 +24,126 @@ import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.mule.api.ConnectionException;
 import org.mule.api.ConnectionExceptionCode;
 import org.mule.api.callback.SourceCallback;
-import org.mule.api.config.MuleProperties;
-import org.mule.api.retry.RetryCallback;
-import org.mule.api.retry.RetryContext;
-import org.mule.api.retry.RetryPolicyTemplate;
 import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.modules.mqtt.MqttConnector.DuplicateDetection;
 
 /**
- * Topic Listener for the Mule MQTT Module.
+ * Topic Listener for the Mule MQTT Module. Listeners share the client of their connector, which
+ * routes the received messages and handles reconnections on their behalf.
  * 
  * @author dmiller@angrygiant.com
  */
-// TODO remove all the locally managed reconnection strategy when DEVKIT-353 is done
-public class MqttTopicListener implements MqttCallback
+public class MqttTopicListener implements MqttCallback, MqttInboundDispatcher.Handler
 {
     private static final Log LOGGER = LogFactory.getLog(MqttTopicListener.class);
 
     private final MqttConnector connector;
     private final SourceCallback callback;
     private final List<MqttTopicSubscription> subscriptions;
+    private final MqttInboundDispatcher dispatcher;
+    private final boolean decodeEnvelopes;
+    private final DuplicateDetection duplicateDetection;
+    private final MqttDuplicateFilter duplicateFilter;
+    private final MqttInboundFilter inboundFilter;
+    private final MqttInboundProperties inboundProperties = new MqttInboundProperties();
 
     public MqttTopicListener(final MqttConnector connector,
                              final SourceCallback callback,
                              final List<MqttTopicSubscription> subscriptions)
+    {
+        this(connector, callback, subscriptions, null, false);
+    }
+
+    public MqttTopicListener(final MqttConnector connector,
+                             final SourceCallback callback,
+                             final List<MqttTopicSubscription> subscriptions,
+                             final MqttInboundDispatcher dispatcher,
+                             final boolean decodeEnvelopes)
+    {
+        this(connector, callback, subscriptions, dispatcher, decodeEnvelopes, DuplicateDetection.NONE, null, null);
+    }
+
+    /**
+     * Creates a listener that processes the received messages with the threads of the provided
+     * dispatcher instead of the client callback thread.
+     * 
+     * @param dispatcher the dispatcher to start, or null to process messages on the client callback
+     *            thread.
+     * @param decodeEnvelopes decode the {@link MqttEnvelope} of the messages that have one.
+     * @param duplicateDetection how the identifiers of the messages checked by the duplicate filter
+     *            are obtained.
+     * @param duplicateFilter the filter dropping the messages received before, required unless
+     *            duplicates are not detected.
+     * @param inboundFilter the conditions messages must meet to be processed, or null to process
+     *            all of them.
+     */
+    public MqttTopicListener(final MqttConnector connector,
+                             final SourceCallback callback,
+                             final List<MqttTopicSubscription> subscriptions,
+                             final MqttInboundDispatcher dispatcher,
+                             final boolean decodeEnvelopes,
+                             final DuplicateDetection duplicateDetection,
+                             final MqttDuplicateFilter duplicateFilter,
+                             final MqttInboundFilter inboundFilter)
     {
         this.connector = connector;
         this.callback = callback;
         this.subscriptions = subscriptions;
+        this.dispatcher = dispatcher;
+        this.decodeEnvelopes = decodeEnvelopes;
+        this.duplicateDetection = duplicateDetection;
+        this.duplicateFilter = duplicateFilter;
+        this.inboundFilter = inboundFilter;
+
+        if (dispatcher != null)
+        {
+            dispatcher.start(this);
+        }
+    }
+
+    public List<MqttTopicSubscription> getSubscriptions()
+    {
+        return subscriptions;
+    }
+
+    /**
+     * Stops receiving messages, unsubscribing from the topic filters no other listener uses, and
+     * stops the dispatcher threads, if any.
+     */
+    public void stop()
+    {
+        final List<String> unusedTopicFilters = connector.getConnectorCallback().removeListener(this);
+        if ((!unusedTopicFilters.isEmpty()) && (connector.isClientConnected()))
+        {
+            try
+            {
+                connector.getMqttClient().unsubscribe(
+                    unusedTopicFilters.toArray(new String[unusedTopicFilters.size()]));
+            }
+            catch (final MqttException me)
+            {
+                LOGGER.warn("Failed to unsubscribe from: " + unusedTopicFilters, me);
+            }
+        }
+
+        if (dispatcher != null)
+        {
+            dispatcher.stop();
+        }
+    }
+
+    /**
+     * Stops receiving messages and stops the dispatcher threads, if any, keeping the subscriptions
+     * of the client, which the broker remembers for clients not cleaning their session.
+     */
+    public void close()
+    {
+        connector.getConnectorCallback().removeListener(this);
+
+        if (dispatcher != null)
+        {
+            dispatcher.stop();
+        }
     }
 
     public void connect() throws ConnectionException
@@ -66,7 +160,7 @@ public class MqttTopicListener implements MqttCallback
 
         try
         {
-            connector.getMqttClient().setCallback(this);
+            connector.getConnectorCallback().addListener(this, subscriptions);
             connector.getMqttClient().subscribe(topicFilters, qoss);
         }
         catch (final MqttException me)
@@ -79,63 +173,218 @@ public class MqttTopicListener implements MqttCallback
 
     public void connectionLost(final Throwable throwable)
     {
-        try
+        // NOOP reconnection is handled by the connector callback
+    }
+
+    public void messageArrived(final MqttTopic mqttTopic, final MqttMessage mqttMessage) throws Exception
+    {
+        final long arrivalTime = System.nanoTime();
+        final String topicName = mqttTopic.getName();
+
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Message arrived on topic: " + topicName + " is: " + mqttMessage);
+        }
+
+        if ((inboundFilter != null) && (!accepts(topicName, mqttMessage.getPayload())))
+        {
+            connector.getStatistics().filtered();
+            if (LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Filtered out message received on topic: " + topicName);
+            }
+            return;
+        }
+
+        final MqttMessageId messageId = messageId(topicName, mqttMessage);
+        if (messageId != null)
+        {
+            if (duplicateFilter.isDuplicate(messageId))
+            {
+                connector.getStatistics().duplicateDropped();
+                if (LOGGER.isDebugEnabled())
+                {
+                    LOGGER.debug("Dropped duplicate message " + messageId + " received on topic: " + topicName);
+                }
+                return;
+            }
+
+            if (dispatcher != null)
+            {
+                // failures of dispatched messages don't lead to redeliveries
+                duplicateFilter.record(messageId);
+            }
+        }
+
+        if (dispatcher != null)
         {
-            reconnect(throwable);
+            dispatcher.dispatch(topicName, mqttMessage, arrivalTime);
         }
-        catch (final Exception e)
+        else
         {
-            LOGGER.error("Failed to reconnect listener for: " + subscriptions, e);
+            handle(topicName, mqttMessage, arrivalTime);
+
+            // a failure leads to a redelivery by the broker, which must not be taken for a duplicate
+            if (messageId != null)
+            {
+                duplicateFilter.record(messageId);
+            }
         }
     }
 
-    private void reconnect(final Throwable throwable) throws Exception
+    private boolean accepts(final String topicName, final byte[] payload)
     {
-        final RetryPolicyTemplate retryPolicyTemplate = connector.getMuleContext()
-            .getRegistry()
-            .lookupObject(MuleProperties.OBJECT_DEFAULT_RETRY_POLICY_TEMPLATE);
+        if (!inboundFilter.acceptsTopic(topicName))
+        {
+            return false;
+        }
+
+        // the payloads of envelopes are checked once decoded
+        return (!inboundFilter.hasPayloadConditions()) || ((decodeEnvelopes) && (MqttEnvelope.isEnvelope(payload)))
+               || (inboundFilter.acceptsPayload(payload));
+    }
+
+    /**
+     * @return the identifier of the message for the duplicate filter, or null if it's not checked.
+     */
+    private MqttMessageId messageId(final String topicName, final MqttMessage mqttMessage)
+    {
+        switch (duplicateDetection)
+        {
+            case MESSAGE_ID :
+                return MqttEnvelope.readMessageId(mqttMessage.getPayload());
+
+            case PAYLOAD_HASH :
+                final MqttMessageId messageId = MqttEnvelope.readMessageId(mqttMessage.getPayload());
+                return messageId != null ? messageId : MqttMessageId.fromContent(topicName,
+                    mqttMessage.getPayload());
+
+            default :
+                return null;
+        }
+    }
+
+    public void handle(final String topicName, final MqttMessage mqttMessage, final long arrivalTime)
+        throws Exception
+    {
+        final byte[] payload = mqttMessage.getPayload();
+        Map<String, Object> properties = inboundProperties.get(topicName, mqttMessage.getQos());
+
+        final MqttEnvelope envelope = decodeEnvelopes ? readEnvelope(topicName, payload) : null;
+        final List<byte[]> payloads = envelope == null ? null : envelope.getPayloads();
+
+        if ((envelope != null) && (envelope.getReplyTopic() != null))
+        {
+            // the properties of a request tell where and how to reply to it
+            properties = new HashMap<String, Object>(properties);
+            properties.put(MqttConnector.MQTT_CORRELATION_ID_PROPERTY, envelope.getCorrelationId().toString());
+            properties.put(MqttConnector.MQTT_REPLY_TOPIC_PROPERTY, envelope.getReplyTopic());
+        }
+
+        final MqttLastValueCache lastValueCache = connector.getLastValueCache();
+        if ((lastValueCache != null) && ((payloads == null) || (!payloads.isEmpty())))
+        {
+            // the last message of a batch is the latest value of the topic
+            lastValueCache.put(topicName, envelope == null ? payload : payloads.get(payloads.size() - 1),
+                DeliveryQoS.fromCode(mqttMessage.getQos()), mqttMessage.isRetained(), arrivalTime);
+        }
+
+        // the codec is resolved once for all the messages of a batch
+        final MqttPayloadCodecRegistry payloadCodecRegistry = connector.getPayloadCodecRegistry();
+        final MqttPayloadCodec codec = payloadCodecRegistry != null ? payloadCodecRegistry.codecFor(topicName) : null;
+
+        if (envelope == null)
+        {
+            process(payload, codec, properties, arrivalTime);
+            return;
+        }
 
-        retryPolicyTemplate.execute(new RetryCallback()
+        // all the messages of a batch are processed, the first failure is reported afterwards
+        Exception failure = null;
+        for (final byte[] envelopePayload : payloads)
         {
-            @Override
-            public String getWorkDescription()
+            if ((inboundFilter != null) && (!inboundFilter.acceptsPayload(envelopePayload)))
             {
-                return "Reconnection of listener for: " + subscriptions;
+                connector.getStatistics().filtered();
+                continue;
             }
 
-            @Override
-            public void doWork(final RetryContext context) throws Exception
+            try
             {
-                LOGGER.error("Disconnecting connector after losing connection", throwable);
-
-                try
+                process(envelopePayload, codec, properties, arrivalTime);
+            }
+            catch (final Exception e)
+            {
+                if (failure == null)
                 {
-                    connector.disconnect();
+                    failure = e;
                 }
-                catch (final MqttException me)
+                else
                 {
-                    LOGGER.warn("Failed to cleanly disconnect connector", me);
+                    LOGGER.error("Failed to process batched message received on topic: " + topicName, e);
                 }
-
-                connector.connect(connector.getActiveClientId());
-
-                connect();
             }
-        }, connector.getMuleContext().getWorkManager());
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
     }
 
-    public void messageArrived(final MqttTopic mqttTopic, final MqttMessage mqttMessage) throws Exception
+    /**
+     * @return the envelope of the payload, or null if it has none or it's corrupted: failing would
+     *         have the broker redeliver it forever.
+     */
+    private MqttEnvelope readEnvelope(final String topicName, final byte[] payload)
     {
-        if (LOGGER.isDebugEnabled())
+        try
+        {
+            return MqttEnvelope.read(payload);
+        }
+        catch (final IOException ioe)
         {
-            LOGGER.debug("Message arrived on topic: " + mqttTopic.getName() + " is: " + mqttMessage);
+            connector.getStatistics().decodingFailed();
+            LOGGER.warn("Failed to decode envelope of message received on topic: " + topicName
+                        + ", processing its payload as is", ioe);
+            return null;
         }
+    }
 
-        final Map<String, Object> properties = new HashMap<String, Object>();
-        properties.put(MqttConnector.MQTT_TOPIC_NAME_PROPERTY, mqttTopic.getName());
-        properties.put(MqttConnector.MQTT_QOS_PROPERTY, DeliveryQoS.fromCode(mqttMessage.getQos()));
+    private void process(final byte[] payload,
+                         final MqttPayloadCodec codec,
+                         final Map<String, Object> properties,
+                         final long arrivalTime) throws Exception
+    {
+        boolean successful = false;
+        try
+        {
+            callback.process(codec != null ? decode(payload, codec) : payload, properties);
+            successful = true;
+        }
+        finally
+        {
+            connector.getStatistics().processed(arrivalTime, successful);
+        }
+    }
 
-        callback.process(mqttMessage.getPayload(), properties);
+    /**
+     * @return the decoded payload, or the payload as is if it's not valid for the codec: failing
+     *         would have the broker redeliver it forever.
+     */
+    private Object decode(final byte[] payload, final MqttPayloadCodec codec)
+    {
+        try
+        {
+            return codec.decode(payload);
+        }
+        catch (final IOException ioe)
+        {
+            connector.getStatistics().decodingFailed();
+            LOGGER.warn("Failed to decode payload with codec: " + codec.getName()
+                        + ", processing it undecoded", ioe);
+            return payload;
+        }
     }
 
     public void deliveryComplete(final MqttDeliveryToken mqttDeliveryToken)
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mule.api.MuleEvent;
+import org.mule.api.MuleMessage;
+import org.mule.util.StringUtils;
+
+/**
+ * Topic name with placeholders filled in from the in-flight event, like
+ * <code>devices/%{inboundProperties.deviceId}/cmd</code>. Placeholders are
+ * <code>%{inboundProperties.name}</code>, <code>%{outboundProperties.name}</code>,
+ * <code>%{flowVars.name}</code>, <code>%{sessionVars.name}</code>, or <code>%{name}</code> for the
+ * flow variable, or else the inbound property, of that name.
+ * <p/>
+ * Braces are legal in topic names, so only <code>%{</code> starts a placeholder: other braces are
+ * kept as they are. The <code>${...}</code> syntax is left to the property placeholders of the
+ * configuration.
+ * <p/>
+ * Templates are parsed once, resolving them is a lookup per placeholder and a concatenation: no
+ * expression is evaluated. Values can't contain wildcards, so a template can't be resolved into a
+ * topic filter.
+ */
+public class MqttTopicTemplate
+{
+    public static final String PLACEHOLDER_START = "%{";
+    public static final char PLACEHOLDER_END = '}';
+
+    private static enum Source
+    {
+        INBOUND_PROPERTY("inboundProperties."), OUTBOUND_PROPERTY("outboundProperties."),
+        FLOW_VARIABLE("flowVars."), SESSION_VARIABLE("sessionVars."), ANY("");
+
+        private final String prefix;
+
+        private Source(final String prefix)
+        {
+            this.prefix = prefix;
+        }
+    }
+
+    private static final class Placeholder
+    {
+        private final Source source;
+        private final String name;
+
+        private Placeholder(final Source source, final String name)
+        {
+            this.source = source;
+            this.name = name;
+        }
+    }
+
+    private final String template;
+    // literal parts and placeholders, in order
+    private final List<Object> parts = new ArrayList<Object>();
+    private final int literalLength;
+
+    /**
+     * @throws IllegalArgumentException if a placeholder is not closed or empty.
+     */
+    public MqttTopicTemplate(final String template)
+    {
+        this.template = template;
+
+        int length = 0;
+        int position = 0;
+        while (position < template.length())
+        {
+            final int start = template.indexOf(PLACEHOLDER_START, position);
+            if (start < 0)
+            {
+                break;
+            }
+            final int end = template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0)
+            {
+                throw new IllegalArgumentException("Unclosed placeholder in topic template: " + template);
+            }
+
+            if (start > position)
+            {
+                parts.add(template.substring(position, start));
+                length += start - position;
+            }
+            parts.add(parsePlaceholder(template.substring(start + PLACEHOLDER_START.length(), end).trim()));
+            position = end + 1;
+        }
+        if (position < template.length())
+        {
+            parts.add(template.substring(position));
+            length += template.length() - position;
+        }
+
+        this.literalLength = length;
+    }
+
+    /**
+     * @return true if the topic name has placeholders to resolve.
+     */
+    public static boolean isTemplate(final String topicName)
+    {
+        return (topicName != null) && (topicName.contains(PLACEHOLDER_START));
+    }
+
+    /**
+     * @return the topic name with the placeholders replaced by their values in the event.
+     * @throws IllegalArgumentException if a placeholder has no value or a value with wildcards.
+     */
+    public String resolve(final MuleEvent muleEvent)
+    {
+        final StringBuilder topicName = new StringBuilder(literalLength + 16 * (parts.size()));
+        for (final Object part : parts)
+        {
+            if (part instanceof String)
+            {
+                topicName.append((String) part);
+                continue;
+            }
+
+            final Placeholder placeholder = (Placeholder) part;
+            final Object value = lookUp(placeholder, muleEvent);
+            if (value == null)
+            {
+                throw new IllegalArgumentException("No value for " + placeholder.source.prefix + placeholder.name
+                                                   + " in topic template: " + template);
+            }
+
+            final String text = value.toString();
+            if ((StringUtils.contains(text, MqttTopicFilterTrie.SINGLE_LEVEL_WILDCARD))
+                || (StringUtils.contains(text, MqttTopicFilterTrie.MULTI_LEVEL_WILDCARD)))
+            {
+                throw new IllegalArgumentException("Wildcard in value of " + placeholder.source.prefix
+                                                   + placeholder.name + " for topic template: " + template);
+            }
+            topicName.append(text);
+        }
+        return topicName.toString();
+    }
+
+    private static Object lookUp(final Placeholder placeholder, final MuleEvent muleEvent)
+    {
+        final MuleMessage muleMessage = muleEvent.getMessage();
+        switch (placeholder.source)
+        {
+            case INBOUND_PROPERTY :
+                return muleMessage.<Object> getInboundProperty(placeholder.name);
+
+            case OUTBOUND_PROPERTY :
+                return muleMessage.<Object> getOutboundProperty(placeholder.name);
+
+            case FLOW_VARIABLE :
+                return muleEvent.<Object> getFlowVariable(placeholder.name);
+
+            case SESSION_VARIABLE :
+                return muleEvent.<Object> getSessionVariable(placeholder.name);
+
+            default :
+                final Object flowVariable = muleEvent.<Object> getFlowVariable(placeholder.name);
+                return flowVariable != null ? flowVariable : muleMessage.<Object> getInboundProperty(placeholder.name);
+        }
+    }
+
+    private Placeholder parsePlaceholder(final String expression)
+    {
+        for (final Source source : Source.values())
+        {
+            if (expression.startsWith(source.prefix) && (expression.length() > source.prefix.length()))
+            {
+                return new Placeholder(source, expression.substring(source.prefix.length()));
+            }
+        }
+        throw new IllegalArgumentException("Empty placeholder in topic template: " + template);
+    }
+
+    @Override
+    public String toString()
+    {
+        return template;
+    }
+}
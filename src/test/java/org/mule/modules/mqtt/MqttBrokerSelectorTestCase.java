@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.BrokerSelection;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttBrokerSelectorTestCase extends AbstractMuleTestCase
+{
+    private static final String BROKERS = "tcp://broker1:1883, tcp://broker2:1883,tcp://broker3:1883";
+
+    @Test
+    public void failoverPrioritySelectsFirstHealthyBroker()
+    {
+        final MqttBrokerSelector selector = new MqttBrokerSelector(BROKERS, BrokerSelection.FAILOVER_PRIORITY);
+        assertThat(selector.size(), is(3));
+        assertThat(selector.select(), is("tcp://broker1:1883"));
+
+        selector.connectionFailed("tcp://broker1:1883");
+        assertThat(selector.select(), is("tcp://broker2:1883"));
+
+        selector.connectionFailed("tcp://broker2:1883");
+        selector.connectionFailed("tcp://broker3:1883");
+        assertThat(selector.select(), is("tcp://broker1:1883"));
+    }
+
+    @Test
+    public void roundRobinSpreadsConnections()
+    {
+        final MqttBrokerSelector selector = new MqttBrokerSelector(BROKERS, BrokerSelection.ROUND_ROBIN);
+
+        assertThat(new HashSet<String>(Arrays.asList(selector.select(), selector.select(), selector.select())),
+            is(new HashSet<String>(Arrays.asList("tcp://broker1:1883", "tcp://broker2:1883",
+                "tcp://broker3:1883"))));
+
+        selector.connectionFailed("tcp://broker2:1883");
+        for (int i = 0; i < 6; i++)
+        {
+            assertTrue(!"tcp://broker2:1883".equals(selector.select()));
+        }
+    }
+
+    @Test
+    public void healthChecksProbeBrokers() throws Exception
+    {
+        final ServerSocket liveBroker = new ServerSocket(0);
+        final ServerSocket deadBroker = new ServerSocket(0);
+        deadBroker.close();
+        try
+        {
+            final String liveUri = "tcp://localhost:" + liveBroker.getLocalPort();
+            final String deadUri = "tcp://localhost:" + deadBroker.getLocalPort();
+            final MqttBrokerSelector selector = new MqttBrokerSelector(deadUri + "," + liveUri,
+                BrokerSelection.LEAST_LATENCY);
+
+            selector.checkHealth(1000);
+
+            assertThat(selector.isHealthy(deadUri), is(false));
+            assertThat(selector.isHealthy(liveUri), is(true));
+            assertTrue(selector.getRoundTripTime(liveUri) >= 0L);
+            assertThat(selector.getRoundTripTime(deadUri), is(-1L));
+            assertThat(selector.select(), is(liveUri));
+        }
+        finally
+        {
+            liveBroker.close();
+        }
+    }
+
+    @Test
+    public void singleBrokerIsAlwaysSelected()
+    {
+        final MqttBrokerSelector selector = new MqttBrokerSelector(MqttConnector.MQTT_DEFAULT_BROKER_URI,
+            BrokerSelection.LEAST_LATENCY);
+        selector.connectionFailed(MqttConnector.MQTT_DEFAULT_BROKER_URI);
+
+        assertThat(selector.select(), is(MqttConnector.MQTT_DEFAULT_BROKER_URI));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.modules.mqtt.MqttConnector.PayloadCompression;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttCoalescerTestCase extends AbstractMuleTestCase
+{
+    private final List<MqttEnvelope> sentEnvelopes = new CopyOnWriteArrayList<MqttEnvelope>();
+    private final CountDownLatch sentLatch = new CountDownLatch(1);
+
+    private final MqttCoalescer coalescer = new MqttCoalescer("test", new MqttCoalescer.Sender()
+    {
+        public void send(final String topicName, final byte[] payload, final DeliveryQoS qos) throws MqttException
+        {
+            try
+            {
+                sentEnvelopes.add(MqttEnvelope.read(payload));
+            }
+            catch (final IOException ioe)
+            {
+                throw new MqttException(ioe);
+            }
+            sentLatch.countDown();
+        }
+
+        public boolean sendFailed(final String topicName,
+                                  final byte[] payload,
+                                  final DeliveryQoS qos,
+                                  final int messageCount)
+        {
+            return false;
+        }
+    });
+
+    private final List<Integer> failedMessageCounts = new CopyOnWriteArrayList<Integer>();
+    private final CountDownLatch failedLatch = new CountDownLatch(1);
+    private volatile boolean keepFailedBatches;
+
+    private final MqttCoalescer failingCoalescer = new MqttCoalescer("failing", new MqttCoalescer.Sender()
+    {
+        public void send(final String topicName, final byte[] payload, final DeliveryQoS qos) throws MqttException
+        {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+
+        public boolean sendFailed(final String topicName,
+                                  final byte[] payload,
+                                  final DeliveryQoS qos,
+                                  final int messageCount)
+        {
+            failedMessageCounts.add(messageCount);
+            failedLatch.countDown();
+            return keepFailedBatches;
+        }
+    });
+
+    private final List<Integer> orderedSequenceNumbers = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private final MqttCoalescer slowLingerCoalescer = new MqttCoalescer("slowLinger", new MqttCoalescer.Sender()
+    {
+        public void send(final String topicName, final byte[] payload, final DeliveryQoS qos) throws MqttException
+        {
+            // the batches sent after their linger time take longer to publish, so a batch filled
+            // meanwhile would overtake them if sent concurrently
+            if (Thread.currentThread().getName().endsWith("-coalescer"))
+            {
+                try
+                {
+                    Thread.sleep(10L);
+                }
+                catch (final InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            try
+            {
+                final MqttEnvelope envelope = MqttEnvelope.read(payload);
+                for (final byte[] batchedPayload : envelope == null
+                    ? Collections.singletonList(payload) : envelope.getPayloads())
+                {
+                    orderedSequenceNumbers.add(ByteBuffer.wrap(batchedPayload).getInt());
+                }
+            }
+            catch (final IOException ioe)
+            {
+                throw new MqttException(ioe);
+            }
+        }
+
+        public boolean sendFailed(final String topicName,
+                                  final byte[] payload,
+                                  final DeliveryQoS qos,
+                                  final int messageCount)
+        {
+            return false;
+        }
+    });
+
+    @After
+    public void closeCoalescer()
+    {
+        coalescer.close();
+        failingCoalescer.close();
+        slowLingerCoalescer.close();
+    }
+
+    @Test
+    public void batchIsSentWhenFull() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            coalescer.add("test/topic", new byte[10], DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0,
+                60000L, 30);
+            assertThat(sentEnvelopes.size(), is(i < 2 ? 0 : 1));
+        }
+
+        assertThat(sentEnvelopes.get(0).getPayloads().size(), is(3));
+        assertThat(coalescer.getPendingMessageCount(), is(0));
+    }
+
+    @Test
+    public void batchIsSentAfterLingerTime() throws Exception
+    {
+        coalescer.add("test/topic", "first".getBytes(), DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0,
+            50L, 1024);
+        coalescer.add("test/topic", "second".getBytes(), DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0,
+            50L, 1024);
+
+        assertThat(sentLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(sentEnvelopes.size(), is(1));
+        assertThat(new String(sentEnvelopes.get(0).getPayloads().get(1)), is("second"));
+    }
+
+    @Test
+    public void batchIsSentWhenSettingsChange() throws Exception
+    {
+        coalescer.add("test/topic", new byte[10], DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0, 60000L,
+            1024);
+        coalescer.add("test/topic", new byte[10], DeliveryQoS.ONLY_ONCE, PayloadCompression.NONE, 0, 60000L, 1024);
+
+        assertThat(sentEnvelopes.size(), is(1));
+        assertThat(coalescer.getPendingMessageCount(), is(1));
+    }
+
+    @Test
+    public void batchesOfATopicAreSentInOrder() throws Exception
+    {
+        final int messageCount = 500;
+        final List<Integer> expectedSequenceNumbers = new ArrayList<Integer>();
+        for (int i = 0; i < messageCount; i++)
+        {
+            slowLingerCoalescer.add("test/topic", ByteBuffer.allocate(4).putInt(i).array(),
+                DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0, 1L, 16);
+            expectedSequenceNumbers.add(i);
+
+            // pausing lets some batches reach their linger time before being full
+            if (i % 25 == 0)
+            {
+                Thread.sleep(3L);
+            }
+        }
+        slowLingerCoalescer.flush();
+
+        assertThat(orderedSequenceNumbers, is(expectedSequenceNumbers));
+    }
+
+    @Test
+    public void failedBatchIsHandedBackAfterLingerTime() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            failingCoalescer.add("test/topic", new byte[10], DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0,
+                50L, 1024);
+        }
+
+        assertThat(failedLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(failedMessageCounts.get(0), is(3));
+        assertThat(failingCoalescer.getPendingMessageCount(), is(0));
+    }
+
+    @Test
+    public void keptFailedBatchIsNotReportedToThePublisher() throws Exception
+    {
+        keepFailedBatches = true;
+        failingCoalescer.add("test/topic", new byte[10], DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0,
+            60000L, 10);
+
+        assertThat(failedMessageCounts.get(0), is(1));
+    }
+
+    @Test(expected = MqttException.class)
+    public void lostFailedBatchIsReportedToThePublisher() throws Exception
+    {
+        failingCoalescer.add("test/topic", new byte[10], DeliveryQoS.AT_LEAST_ONCE, PayloadCompression.NONE, 0,
+            60000L, 10);
+    }
+}
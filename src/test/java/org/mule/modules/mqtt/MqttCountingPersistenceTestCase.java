@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.UUID;
+
+public class MqttCountingPersistenceTestCase extends AbstractMuleTestCase
+{
+    private File directory;
+    private MqttCountingPersistence persistence;
+
+    @Before
+    public void openPersistence() throws Exception
+    {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mqtt-counting-" + UUID.getUUID());
+        persistence = open();
+    }
+
+    @After
+    public void closePersistence() throws Exception
+    {
+        persistence.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void countStoredMessages() throws Exception
+    {
+        persistence.put("s-1", data());
+        persistence.put("s-2", data());
+        assertThat(persistence.getCount(), is(2));
+
+        // replacing or removing an unknown message doesn't change the count
+        persistence.put("s-1", data());
+        persistence.remove("s-3");
+        assertThat(persistence.getCount(), is(2));
+
+        persistence.remove("s-1");
+        assertThat(persistence.getCount(), is(1));
+
+        persistence.clear();
+        assertThat(persistence.getCount(), is(0));
+    }
+
+    @Test
+    public void countRecoveredMessagesOnOpen() throws Exception
+    {
+        persistence.put("s-1", data());
+        persistence.put("s-2", data());
+        persistence.close();
+        assertThat(persistence.getCount(), is(0));
+
+        persistence = open();
+        assertThat(persistence.getCount(), is(2));
+    }
+
+    @Test
+    public void moveMessagesToAnotherBroker() throws Exception
+    {
+        persistence.put("s-1", data());
+        persistence.put("r-2", data());
+
+        final MqttCountingPersistence target = new MqttCountingPersistence(new MqttMappedLogPersistence(
+            directory.getPath()));
+        persistence.moveTo(target, "tcp://localhost:1884");
+        assertThat(persistence.getCount(), is(0));
+
+        // the client connecting to the other broker recovers the messages
+        persistence = target;
+        persistence.open("client", "tcp://localhost:1884");
+        assertThat(persistence.getCount(), is(2));
+        assertThat(persistence.containsKey("s-1"), is(true));
+        assertThat(persistence.containsKey("r-2"), is(true));
+
+        // and they are gone from the broker the client left
+        final MqttCountingPersistence left = open();
+        assertThat(left.getCount(), is(0));
+        left.close();
+    }
+
+    @Test
+    public void moveMessagesToAnotherBrokerWithMemoryPersistence() throws Exception
+    {
+        persistence.put("s-1", data());
+        persistence.put("r-2", data());
+
+        // one message is held in memory and the other one spilled
+        final MqttMemoryPersistence memoryPersistence = new MqttMemoryPersistence(1,
+            new MqttMappedLogPersistence(new File(directory, "spill").getPath()));
+        final MqttCountingPersistence target = new MqttCountingPersistence(memoryPersistence);
+        persistence.moveTo(target, "tcp://localhost:1884");
+        assertThat(persistence.getCount(), is(0));
+
+        persistence = target;
+        persistence.open("client", "tcp://localhost:1884");
+        assertThat(persistence.getCount(), is(2));
+        assertThat(persistence.containsKey("s-1"), is(true));
+        assertThat(persistence.containsKey("r-2"), is(true));
+        assertThat(memoryPersistence.getMemoryCount(), is(1));
+        assertThat(memoryPersistence.getSpilledCount(), is(1));
+    }
+
+    private MqttCountingPersistence open() throws Exception
+    {
+        final MqttCountingPersistence countingPersistence = new MqttCountingPersistence(
+            new MqttMappedLogPersistence(directory.getPath()));
+        countingPersistence.open("client", "tcp://localhost:1883");
+        return countingPersistence;
+    }
+
+    private static MqttPersistedData data()
+    {
+        return new MqttPersistedData("header".getBytes(), "payload".getBytes());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttDuplicateFilterTestCase extends AbstractMuleTestCase
+{
+    @Test
+    public void recordedMessagesAreDuplicates()
+    {
+        final MqttDuplicateFilter filter = new MqttDuplicateFilter(60000L, 100, 0);
+        final MqttMessageId messageId = MqttMessageId.next();
+
+        assertThat(filter.isDuplicate(messageId), is(false));
+        assertThat(filter.isDuplicate(messageId), is(false));
+
+        filter.record(messageId);
+
+        assertThat(filter.isDuplicate(messageId), is(true));
+        assertThat(filter.isDuplicate(MqttMessageId.next()), is(false));
+    }
+
+    @Test
+    public void oldestMessagesAreEvicted()
+    {
+        final MqttDuplicateFilter filter = new MqttDuplicateFilter(60000L, 2, 0);
+        final MqttMessageId first = MqttMessageId.next();
+        filter.record(first);
+        filter.record(MqttMessageId.next());
+        filter.record(MqttMessageId.next());
+
+        assertThat(filter.getCachedCount(), is(2));
+        assertThat(filter.isDuplicate(first), is(false));
+    }
+
+    @Test
+    public void bloomFilterRemembersEvictedMessages()
+    {
+        final MqttDuplicateFilter filter = new MqttDuplicateFilter(60000L, 10, 1 << 16);
+        final MqttMessageId[] messageIds = new MqttMessageId[1000];
+        for (int i = 0; i < messageIds.length; i++)
+        {
+            messageIds[i] = MqttMessageId.next();
+            filter.record(messageIds[i]);
+        }
+
+        for (final MqttMessageId messageId : messageIds)
+        {
+            assertThat(filter.isDuplicate(messageId), is(true));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            if (filter.isDuplicate(MqttMessageId.next()))
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 10);
+    }
+
+    @Test
+    public void messagesExpireAfterTheWindow() throws Exception
+    {
+        final MqttDuplicateFilter filter = new MqttDuplicateFilter(50L, 100, 1024);
+        final MqttMessageId messageId = MqttMessageId.next();
+        filter.record(messageId);
+
+        // the Bloom filter generation holding the identifier is rotated out after two windows
+        Thread.sleep(60L);
+        filter.isDuplicate(MqttMessageId.next());
+        Thread.sleep(60L);
+
+        assertThat(filter.isDuplicate(messageId), is(false));
+        assertThat(filter.getCachedCount(), is(0));
+    }
+
+    @Test
+    public void contentIdsIdentifyTopicAndPayload()
+    {
+        final byte[] payload = "{\"temperature\":21.5}".getBytes();
+
+        assertThat(MqttMessageId.fromContent("sensors/1", payload),
+            is(MqttMessageId.fromContent("sensors/1", payload.clone())));
+        assertThat(MqttMessageId.fromContent("sensors/1", payload).equals(
+            MqttMessageId.fromContent("sensors/2", payload)), is(false));
+    }
+}
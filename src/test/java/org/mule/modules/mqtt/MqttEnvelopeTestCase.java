@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.PayloadCompression;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttEnvelopeTestCase extends AbstractMuleTestCase
+{
+    private static final byte[] TELEMETRY = StringUtils.repeat("{\"temperature\":21.5,\"unit\":\"C\"}", 100)
+        .getBytes();
+
+    @Test
+    public void compressedPayloadsAreRestored() throws Exception
+    {
+        for (final PayloadCompression compression : new PayloadCompression[]{PayloadCompression.DEFLATE,
+            PayloadCompression.LZF})
+        {
+            final byte[] envelope = MqttEnvelope.wrap(TELEMETRY, compression, 64);
+            assertTrue(compression + " didn't compress", envelope.length < TELEMETRY.length / 5);
+
+            final MqttEnvelope readEnvelope = MqttEnvelope.read(envelope);
+            assertThat(readEnvelope.getCompression(), is(compression));
+            assertThat(readEnvelope.getPayload(), is(TELEMETRY));
+        }
+    }
+
+    @Test
+    public void smallPayloadsAreNotWrapped() throws Exception
+    {
+        final byte[] payload = "{\"temperature\":21.5}".getBytes();
+
+        assertThat(MqttEnvelope.wrap(payload, PayloadCompression.LZF, 64), is(sameInstance(payload)));
+        assertThat(MqttEnvelope.read(payload), is(nullValue()));
+    }
+
+    @Test
+    public void incompressiblePayloadsAreNotWrapped()
+    {
+        final byte[] payload = new byte[4096];
+        new Random(42).nextBytes(payload);
+
+        assertThat(MqttEnvelope.wrap(payload, PayloadCompression.DEFLATE, 64), is(sameInstance(payload)));
+        assertThat(MqttEnvelope.wrap(payload, PayloadCompression.LZF, 64), is(sameInstance(payload)));
+    }
+
+    @Test
+    public void batchedPayloadsAreSplit() throws Exception
+    {
+        final List<byte[]> payloads = Arrays.asList("first".getBytes(), new byte[0], TELEMETRY);
+        for (final PayloadCompression compression : PayloadCompression.values())
+        {
+            final MqttEnvelope readEnvelope = MqttEnvelope.read(MqttEnvelope.wrapBatch(payloads, compression, 64));
+
+            assertThat(readEnvelope.isBatch(), is(true));
+            assertThat(readEnvelope.getPayloads().size(), is(payloads.size()));
+            for (int i = 0; i < payloads.size(); i++)
+            {
+                assertThat(readEnvelope.getPayloads().get(i), is(payloads.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void messageIdsAreCarried() throws Exception
+    {
+        final MqttMessageId messageId = MqttMessageId.next();
+        final byte[] payload = "{\"temperature\":21.5}".getBytes();
+
+        for (final PayloadCompression compression : PayloadCompression.values())
+        {
+            for (final byte[] envelope : Arrays.asList(MqttEnvelope.wrap(payload, messageId, compression, 0),
+                MqttEnvelope.wrap(TELEMETRY, messageId, compression, 64),
+                MqttEnvelope.wrapBatch(Arrays.asList(payload, TELEMETRY), messageId, compression, 64)))
+            {
+                assertThat(MqttEnvelope.readMessageId(envelope), is(messageId));
+                assertThat(MqttEnvelope.read(envelope).getMessageId(), is(messageId));
+            }
+        }
+
+        assertThat(MqttEnvelope.read(MqttEnvelope.wrap(payload, messageId, PayloadCompression.NONE, 0))
+            .getPayload(), is(payload));
+        assertThat(MqttEnvelope.readMessageId(MqttEnvelope.wrap(TELEMETRY, PayloadCompression.DEFLATE, 64)),
+            is(nullValue()));
+        assertThat(MqttEnvelope.readMessageId(payload), is(nullValue()));
+    }
+
+    @Test
+    public void requestsCarryTheirCorrelationAndReplyTopic() throws Exception
+    {
+        final MqttMessageId correlationId = MqttMessageId.next();
+        final byte[] payload = "{\"command\":\"reboot\"}".getBytes();
+
+        final MqttEnvelope request = MqttEnvelope.read(MqttEnvelope.wrapRequest(payload, correlationId,
+            "mule/replies/caf\u00e9"));
+        assertThat(request.getCorrelationId(), is(correlationId));
+        assertThat(request.getReplyTopic(), is("mule/replies/caf\u00e9"));
+        assertThat(request.getMessageId(), is(nullValue()));
+        assertThat(request.getPayload(), is(payload));
+
+        final MqttEnvelope reply = MqttEnvelope.read(MqttEnvelope.wrapReply(payload, correlationId));
+        assertThat(reply.getCorrelationId(), is(correlationId));
+        assertThat(reply.getReplyTopic(), is(nullValue()));
+        assertThat(reply.getPayload(), is(payload));
+
+        assertThat(MqttMessageId.fromString(correlationId.toString()), is(correlationId));
+        assertThat(MqttEnvelope.read(MqttEnvelope.wrap(payload, correlationId, PayloadCompression.NONE, 0))
+            .getCorrelationId(), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedEnvelopesAreRejected() throws Exception
+    {
+        final byte[] envelope = MqttEnvelope.wrap(TELEMETRY, PayloadCompression.DEFLATE, 64);
+        MqttEnvelope.read(Arrays.copyOf(envelope, envelope.length / 2));
+    }
+}
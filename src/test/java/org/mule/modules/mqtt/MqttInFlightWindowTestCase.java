@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttInFlightWindowTestCase extends AbstractMuleTestCase
+{
+    private final MqttInFlightWindow window = new MqttInFlightWindow(3);
+
+    @Test
+    public void completingADeliveryFreesItsSlot() throws Exception
+    {
+        final MqttDeliveryToken token = publish("client");
+        assertThat(window.getInFlightCount(), is(1));
+
+        assertThat(window.complete(token) >= 0L, is(true));
+        assertThat(window.getInFlightCount(), is(0));
+        // already completed
+        assertThat(window.complete(token), is(-1L));
+    }
+
+    @Test
+    public void losingAClientOnlyFreesItsOwnSlots() throws Exception
+    {
+        final MqttDeliveryToken lostToken = publish("client-1");
+        final MqttDeliveryToken healthyToken = publish("client-2");
+        publish("client-1");
+
+        window.clear("client-1");
+
+        assertThat(window.getInFlightCount(), is(1));
+        assertThat(window.complete(lostToken), is(-1L));
+        // the delivery of the connected shard is still measured
+        assertThat(window.complete(healthyToken) >= 0L, is(true));
+    }
+
+    @Test(expected = MqttException.class)
+    public void slotsOfConnectedClientsAreStillHeld() throws Exception
+    {
+        publish("client-1");
+        publish("client-2");
+        publish("client-2");
+
+        window.clear("client-1");
+        publish("client-1");
+        // the window is full again
+        window.acquire(10L);
+    }
+
+    @Test
+    public void clearFreesAllTheSlots() throws Exception
+    {
+        publish("client-1");
+        publish("client-2");
+        publish("client-2");
+
+        window.clear();
+
+        assertThat(window.getInFlightCount(), is(0));
+        for (int i = 0; i < 3; i++)
+        {
+            window.acquire(10L);
+        }
+    }
+
+    private MqttDeliveryToken publish(final String clientId) throws MqttException
+    {
+        window.acquire(10L);
+        final MqttDeliveryToken token = (MqttDeliveryToken) Proxy.newProxyInstance(
+            MqttDeliveryToken.class.getClassLoader(), new Class<?>[]{MqttDeliveryToken.class},
+            new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                    throws Throwable
+                {
+                    if ("isComplete".equals(method.getName()))
+                    {
+                        return Boolean.FALSE;
+                    }
+                    if ("hashCode".equals(method.getName()))
+                    {
+                        return System.identityHashCode(proxy);
+                    }
+                    if ("equals".equals(method.getName()))
+                    {
+                        return proxy == args[0];
+                    }
+                    return null;
+                }
+            });
+        window.register(token, clientId);
+        return token;
+    }
+}
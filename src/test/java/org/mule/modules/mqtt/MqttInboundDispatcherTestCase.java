@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.OverflowPolicy;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.UUID;
+
+public class MqttInboundDispatcherTestCase extends AbstractMuleTestCase
+{
+    private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch processingStarted = new CountDownLatch(1);
+    private final CountDownLatch processingReleased = new CountDownLatch(1);
+
+    private final MqttInboundDispatcher.Handler blockingHandler = new MqttInboundDispatcher.Handler()
+    {
+        public void handle(final String topicName, final MqttMessage mqttMessage, final long arrivalTime)
+            throws Exception
+        {
+            processingStarted.countDown();
+            processingReleased.await(10, TimeUnit.SECONDS);
+            processed.add(new String(mqttMessage.getPayload()));
+        }
+    };
+
+    private MqttInboundDispatcher dispatcher;
+
+    @After
+    public void stopDispatcher()
+    {
+        processingReleased.countDown();
+        if (dispatcher != null)
+        {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void messagesOfATopicAreProcessedInOrderByTheSameWorker() throws Exception
+    {
+        final int topicCount = 16;
+        final int messageCountPerTopic = 200;
+        final Map<String, List<Integer>> processedByTopic = new ConcurrentHashMap<String, List<Integer>>();
+        final Map<String, Set<String>> workersByTopic = new ConcurrentHashMap<String, Set<String>>();
+        final CountDownLatch processedLatch = new CountDownLatch(topicCount * messageCountPerTopic);
+
+        dispatcher = new MqttInboundDispatcher("test", 4, 8);
+        dispatcher.start(new MqttInboundDispatcher.Handler()
+        {
+            public void handle(final String topicName, final MqttMessage mqttMessage, final long arrivalTime)
+            {
+                // only the worker of the topic touches its lists
+                processedByTopic.get(topicName).add(Integer.valueOf(new String(mqttMessage.getPayload())));
+                workersByTopic.get(topicName).add(Thread.currentThread().getName());
+                processedLatch.countDown();
+            }
+        });
+
+        for (int i = 0; i < topicCount; i++)
+        {
+            processedByTopic.put("test/" + i, new ArrayList<Integer>());
+            workersByTopic.put("test/" + i, new HashSet<String>());
+        }
+        for (int j = 0; j < messageCountPerTopic; j++)
+        {
+            for (int i = 0; i < topicCount; i++)
+            {
+                dispatcher.dispatch("test/" + i, new MqttMessage(String.valueOf(j).getBytes()), System.nanoTime());
+            }
+        }
+
+        assertThat(processedLatch.await(10, TimeUnit.SECONDS), is(true));
+
+        final Set<String> allWorkers = new HashSet<String>();
+        for (int i = 0; i < topicCount; i++)
+        {
+            final List<Integer> processed = processedByTopic.get("test/" + i);
+            assertThat(processed.size(), is(messageCountPerTopic));
+            for (int j = 0; j < messageCountPerTopic; j++)
+            {
+                assertThat(processed.get(j), is(j));
+            }
+            assertThat(workersByTopic.get("test/" + i).size(), is(1));
+            allWorkers.addAll(workersByTopic.get("test/" + i));
+        }
+        // topics are spread over the workers
+        assertThat(allWorkers.size() > 1, is(true));
+    }
+
+    @Test
+    public void aFailedMessageDoesNotStopItsWorker() throws Exception
+    {
+        final CountDownLatch processedLatch = new CountDownLatch(2);
+
+        dispatcher = new MqttInboundDispatcher("test", 1, 8);
+        dispatcher.start(new MqttInboundDispatcher.Handler()
+        {
+            public void handle(final String topicName, final MqttMessage mqttMessage, final long arrivalTime)
+                throws Exception
+            {
+                processedLatch.countDown();
+                final String payload = new String(mqttMessage.getPayload());
+                if ("fail".equals(payload))
+                {
+                    throw new IllegalStateException("Expected failure");
+                }
+                processed.add(payload);
+            }
+        });
+
+        dispatcher.dispatch("test/topic", new MqttMessage("fail".getBytes()), System.nanoTime());
+        dispatcher.dispatch("test/topic", new MqttMessage("next".getBytes()), System.nanoTime());
+
+        assertThat(processedLatch.await(10, TimeUnit.SECONDS), is(true));
+        Thread.sleep(50L);
+        assertThat(processed.size(), is(1));
+        assertThat(processed.get(0), is("next"));
+    }
+
+    @Test
+    public void blockWhileNoCreditIsLeft() throws Exception
+    {
+        dispatcher = new MqttInboundDispatcher("test", 1, 8, 2, OverflowPolicy.BLOCK, null);
+        dispatcher.start(blockingHandler);
+
+        dispatch("1");
+        assertThat(processingStarted.await(10, TimeUnit.SECONDS), is(true));
+        dispatch("2");
+
+        final CountDownLatch thirdDispatched = new CountDownLatch(1);
+        final Thread dispatching = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    dispatch("3");
+                    thirdDispatched.countDown();
+                }
+                catch (final Exception e)
+                {
+                    // the latch isn't counted down
+                }
+            }
+        });
+        dispatching.start();
+
+        assertThat(thirdDispatched.await(200, TimeUnit.MILLISECONDS), is(false));
+        processingReleased.countDown();
+        assertThat(thirdDispatched.await(10, TimeUnit.SECONDS), is(true));
+        awaitProcessed(3);
+        assertThat(processed, is(Arrays.asList("1", "2", "3")));
+        assertThat(dispatcher.getDroppedCount(), is(0L));
+    }
+
+    @Test
+    public void dropNewestWhenNoCreditIsLeft() throws Exception
+    {
+        dispatcher = new MqttInboundDispatcher("test", 1, 8, 2, OverflowPolicy.DROP_NEWEST, null);
+        dispatcher.start(blockingHandler);
+
+        dispatch("1");
+        assertThat(processingStarted.await(10, TimeUnit.SECONDS), is(true));
+        dispatch("2");
+        dispatch("3");
+        dispatch("4");
+
+        assertThat(dispatcher.getDroppedCount(), is(2L));
+        processingReleased.countDown();
+        awaitProcessed(2);
+        assertThat(processed, is(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void dropOldestWhenNoCreditIsLeft() throws Exception
+    {
+        dispatcher = new MqttInboundDispatcher("test", 1, 8, 3, OverflowPolicy.DROP_OLDEST, null);
+        dispatcher.start(blockingHandler);
+
+        dispatch("1");
+        assertThat(processingStarted.await(10, TimeUnit.SECONDS), is(true));
+        dispatch("2");
+        dispatch("3");
+        dispatch("4");
+        dispatch("5");
+
+        assertThat(dispatcher.getDroppedCount(), is(2L));
+        assertThat(dispatcher.getQueuedCount(), is(2));
+        processingReleased.countDown();
+        awaitProcessed(3);
+        // the message being processed is never dropped
+        assertThat(processed, is(Arrays.asList("1", "4", "5")));
+    }
+
+    @Test
+    public void spillToDiskWhenNoCreditIsLeft() throws Exception
+    {
+        final File spillFile = new File(System.getProperty("java.io.tmpdir"), "mqtt-" + UUID.getUUID() + ".spill");
+        dispatcher = new MqttInboundDispatcher("test", 2, 8, 2, OverflowPolicy.SPILL_TO_DISK,
+            new MqttMessageJournal(spillFile));
+        dispatcher.start(blockingHandler);
+
+        dispatch("1");
+        assertThat(processingStarted.await(10, TimeUnit.SECONDS), is(true));
+        for (int i = 2; i <= 6; i++)
+        {
+            dispatch(String.valueOf(i));
+        }
+
+        assertThat(dispatcher.getSpilledCount(), is(4L));
+        assertThat(dispatcher.getSpillJournalSize(), is(4));
+        assertThat(spillFile.length() > 0, is(true));
+        processingReleased.countDown();
+        awaitProcessed(6);
+        // spilled messages are read back in order
+        assertThat(processed, is(Arrays.asList("1", "2", "3", "4", "5", "6")));
+        assertThat(dispatcher.getSpillJournalSize(), is(0));
+        assertThat(dispatcher.getDroppedCount(), is(0L));
+
+        dispatcher.stop();
+        dispatcher = null;
+        assertThat(spillFile.exists(), is(false));
+    }
+
+    private void dispatch(final String payload) throws Exception
+    {
+        dispatcher.dispatch("test/topic", new MqttMessage(payload.getBytes()), System.nanoTime());
+    }
+
+    private void awaitProcessed(final int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while ((processed.size() < count) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(10L);
+        }
+        assertThat(processed.size(), is(count));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttInboundFilterTestCase extends AbstractMuleTestCase
+{
+    @Test
+    public void noConditionMeansNoFilter()
+    {
+        assertThat(MqttInboundFilter.create(null, " ", null, null, "", null), is(nullValue()));
+    }
+
+    @Test
+    public void topicsMatchPatternAndFilters()
+    {
+        final MqttInboundFilter filter = MqttInboundFilter.create(".*/temperature", "sensors/+/temperature, $SYS/#",
+            null, null, null, null);
+
+        assertThat(filter.acceptsTopic("sensors/kitchen/temperature"), is(true));
+        assertThat(filter.acceptsTopic("sensors/kitchen/temperature"), is(true));
+        assertThat(filter.acceptsTopic("sensors/kitchen/humidity"), is(false));
+        assertThat(filter.acceptsTopic("rooms/kitchen/temperature"), is(false));
+        assertThat(filter.acceptsTopic("$SYS/broker/temperature"), is(true));
+        assertThat(filter.hasPayloadConditions(), is(false));
+    }
+
+    @Test
+    public void payloadsMatchSizesAndPrefix()
+    {
+        final MqttInboundFilter sizeFilter = MqttInboundFilter.create(null, null, 2, 4, null, null);
+        assertThat(sizeFilter.acceptsTopic("any"), is(true));
+        assertThat(sizeFilter.acceptsPayload(new byte[1]), is(false));
+        assertThat(sizeFilter.acceptsPayload(new byte[2]), is(true));
+        assertThat(sizeFilter.acceptsPayload(new byte[4]), is(true));
+        assertThat(sizeFilter.acceptsPayload(new byte[5]), is(false));
+
+        final MqttInboundFilter textPrefixFilter = MqttInboundFilter.create(null, null, null, null, "{\"", null);
+        assertThat(textPrefixFilter.acceptsPayload("{\"a\":1}".getBytes()), is(true));
+        assertThat(textPrefixFilter.acceptsPayload("[1]".getBytes()), is(false));
+        assertThat(textPrefixFilter.acceptsPayload("{".getBytes()), is(false));
+
+        final MqttInboundFilter hexPrefixFilter = MqttInboundFilter.create(null, null, null, null, "0xCAFE", null);
+        assertThat(hexPrefixFilter.acceptsPayload(new byte[]{(byte) 0xCA, (byte) 0xFE, 0}), is(true));
+        assertThat(hexPrefixFilter.acceptsPayload(new byte[]{(byte) 0xCA, 0}), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddHexPrefixIsRejected()
+    {
+        MqttInboundFilter.create(null, null, null, null, "0xCAF", null);
+    }
+
+    @Test
+    public void jsonFieldsAreCompared()
+    {
+        final byte[] reading = ("{\"id\": \"k1\", \"tags\": [\"a\", {\"value\": 99}], "
+                                + "\"sensor\": {\"type\": \"temp\\u0065rature\", \"value\": 31.5}, \"ok\": true}").getBytes();
+
+        assertThat(new MqttJsonFieldPredicate("sensor.value > 30").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("sensor.value>=31.50").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("sensor.value < 30").accepts(reading), is(false));
+        assertThat(new MqttJsonFieldPredicate("sensor.value = 31.50").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("sensor.type = temperature").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("sensor.type = \"humidity\"").accepts(reading), is(false));
+        assertThat(new MqttJsonFieldPredicate("id != k2").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("ok = true").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("value").accepts(reading), is(false));
+        assertThat(new MqttJsonFieldPredicate("sensor").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("missing != x").accepts(reading), is(true));
+        assertThat(new MqttJsonFieldPredicate("id > 3").accepts(reading), is(false));
+    }
+
+    @Test
+    public void invalidJsonIsNotAccepted()
+    {
+        final MqttJsonFieldPredicate predicate = new MqttJsonFieldPredicate("value = 1");
+        assertThat(predicate.accepts("not json".getBytes()), is(false));
+        assertThat(predicate.accepts("{\"value\": ".getBytes()), is(false));
+        assertThat(predicate.accepts("{\"other\": \"unterminated".getBytes()), is(false));
+        assertThat(predicate.accepts(new byte[0]), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void comparisonsNeedNumbers()
+    {
+        new MqttJsonFieldPredicate("value > high");
+    }
+
+    @Test
+    public void jsonFieldIsCheckedLast()
+    {
+        final MqttInboundFilter filter = MqttInboundFilter.create(null, null, null, 64, null, "value > 30");
+        assertThat(filter.hasPayloadConditions(), is(true));
+        assertThat(filter.acceptsPayload("{\"value\": 42}".getBytes()), is(true));
+        assertThat(filter.acceptsPayload("{\"value\": 12}".getBytes()), is(false));
+        final String padding = new String(new char[64]).replace('\0', 'x');
+        assertThat(filter.acceptsPayload(("{\"value\": 42, \"padding\": \"" + padding + "\"}").getBytes()), is(false));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttLastValueCacheTestCase extends AbstractMuleTestCase
+{
+    @Test
+    public void latestValueIsKept()
+    {
+        final MqttLastValueCache cache = new MqttLastValueCache(10, 0L);
+        final long arrivalTime = System.nanoTime();
+        cache.put("a/b", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, arrivalTime);
+        cache.put("a/b", "2".getBytes(), DeliveryQoS.AT_LEAST_ONCE, true, arrivalTime + 2L);
+        // processed late by another thread
+        cache.put("a/b", "3".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, arrivalTime + 1L);
+
+        final MqttLastValueCache.Entry entry = cache.get("a/b");
+        assertThat(new String(entry.getPayload()), is("2"));
+        assertThat(entry.isRetained(), is(true));
+        assertThat(cache.get("a/c"), is(nullValue()));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void wildcardsMatchTopics()
+    {
+        final MqttLastValueCache cache = new MqttLastValueCache(10, 0L);
+        for (final String topicName : Arrays.asList("sensors", "sensors/kitchen/temperature",
+            "sensors/kitchen/humidity", "sensors/bedroom/temperature", "$SYS/uptime"))
+        {
+            cache.put(topicName, topicName.getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, System.nanoTime());
+        }
+
+        assertThat(cache.match("sensors/+/temperature").keySet(), is(asSet("sensors/kitchen/temperature",
+            "sensors/bedroom/temperature")));
+        assertThat(cache.match("sensors/kitchen/#").keySet(), is(asSet("sensors/kitchen/temperature",
+            "sensors/kitchen/humidity")));
+        assertThat(cache.match("sensors/#").size(), is(4));
+        assertThat(cache.match("#").size(), is(4));
+        assertThat(cache.match("+/uptime").isEmpty(), is(true));
+        assertThat(cache.match("$SYS/+").keySet(), is(asSet("$SYS/uptime")));
+        assertThat(MqttLastValueCache.isTopicFilter("sensors/+/temperature"), is(true));
+        assertThat(MqttLastValueCache.isTopicFilter("sensors/kitchen/temperature"), is(false));
+    }
+
+    @Test
+    public void leastRecentlyUpdatedTopicsAreEvicted()
+    {
+        final MqttLastValueCache cache = new MqttLastValueCache(2, 0L);
+        cache.put("a", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, System.nanoTime());
+        cache.put("b", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, System.nanoTime());
+        cache.put("a", "2".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, System.nanoTime());
+        cache.put("c", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, System.nanoTime());
+
+        assertThat(cache.getCachedCount(), is(2));
+        assertThat(cache.get("b"), is(nullValue()));
+        assertThat(cache.match("+").keySet(), is(asSet("a", "c")));
+    }
+
+    @Test
+    public void valuesExpireAfterTheirTimeToLive() throws Exception
+    {
+        final MqttLastValueCache cache = new MqttLastValueCache(10, 50L);
+        cache.put("a/b", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE, false, System.nanoTime());
+
+        Thread.sleep(100L);
+
+        assertThat(cache.get("a/b"), is(nullValue()));
+        assertThat(cache.match("a/#").isEmpty(), is(true));
+        assertThat(cache.getCachedCount(), is(0));
+    }
+
+    private static Set<String> asSet(final String... values)
+    {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttLatencyHistogramTestCase extends AbstractMuleTestCase
+{
+    @Test
+    public void bucketsCoverAllValuesContiguously()
+    {
+        for (long value = 0L; value < 100000L; value++)
+        {
+            final int index = MqttLatencyHistogram.bucketIndex(value);
+            assertTrue(MqttLatencyHistogram.bucketHighestValue(index) >= value);
+            assertTrue((index == 0) || (MqttLatencyHistogram.bucketHighestValue(index - 1) < value));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision()
+    {
+        final MqttLatencyHistogram histogram = new MqttLatencyHistogram();
+        for (long i = 1L; i <= 1000L; i++)
+        {
+            histogram.record(i * 1000L);
+        }
+
+        assertThat(histogram.getCount(), is(1000L));
+        assertThat(histogram.getMean(), is(500500L));
+        assertThat(histogram.getMax(), is(1000000L));
+        assertWithinPrecision(histogram.getValueAtPercentile(50.0), 500000L);
+        assertWithinPrecision(histogram.getValueAtPercentile(99.0), 990000L);
+        assertThat(histogram.getValueAtPercentile(100.0), is(1000000L));
+    }
+
+    @Test
+    public void hugeValuesFallInLastBucket()
+    {
+        final MqttLatencyHistogram histogram = new MqttLatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertThat(histogram.getValueAtPercentile(99.9), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void resetForgetsRecordedValues()
+    {
+        final MqttLatencyHistogram histogram = new MqttLatencyHistogram();
+        histogram.record(42L);
+        histogram.reset();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getValueAtPercentile(50.0), is(0L));
+    }
+
+    private static void assertWithinPrecision(final long actual, final long expected)
+    {
+        assertTrue(actual + " is not within 12.5% of " + expected,
+            Math.abs(actual - expected) <= expected / 8L);
+    }
+}
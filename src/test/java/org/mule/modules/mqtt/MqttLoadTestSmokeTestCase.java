@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+/**
+ * Runs the load test briefly against the embedded broker, so it's kept in line with the operations
+ * it drives.
+ */
+public class MqttLoadTestSmokeTestCase extends AbstractMuleTestCase
+{
+    private Properties systemProperties;
+    private MqttLoadTest loadTest;
+
+    @Before
+    public void configureLoadTest()
+    {
+        systemProperties = (Properties) System.getProperties().clone();
+        System.setProperty("loadtest.devices", "20");
+        System.setProperty("loadtest.clients", "2");
+        System.setProperty("loadtest.subscribers", "1");
+        System.setProperty("loadtest.rate", "10");
+        System.setProperty("loadtest.qosMix", "AT_LEAST_ONCE:50,ONLY_ONCE:50");
+        System.setProperty("loadtest.publisherThreads", "1");
+        System.setProperty("loadtest.dispatcherThreads", "2");
+        System.setProperty("loadtest.warmUp", "0");
+        System.setProperty("loadtest.duration", "2");
+        System.setProperty("loadtest.reportInterval", "1");
+    }
+
+    @After
+    public void stopLoadTest()
+    {
+        if (loadTest != null)
+        {
+            loadTest.stop();
+        }
+        System.setProperties(systemProperties);
+    }
+
+    @Test
+    public void publishedMessagesAreReceived() throws Exception
+    {
+        loadTest = new MqttLoadTest();
+        loadTest.run();
+
+        final MqttLoadReport report = loadTest.getReport();
+        assertThat(report.getPublishedCount() > 0L, is(true));
+        // the run waits for the subscribers to drain, and no message is lost with QoS 1 and 2
+        assertThat(report.getReceivedCount() >= report.getPublishedCount(), is(true));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttLzfCodecTestCase extends AbstractMuleTestCase
+{
+    private static final byte[] TELEMETRY = StringUtils.repeat("{\"temperature\":21.5,\"unit\":\"C\"}", 100)
+        .getBytes();
+
+    @Test
+    public void roundTripRanges()
+    {
+        final byte[] random = new byte[5000];
+        new Random(42L).nextBytes(random);
+        final byte[] mixed = new byte[TELEMETRY.length + random.length];
+        System.arraycopy(TELEMETRY, 0, mixed, 0, TELEMETRY.length);
+        System.arraycopy(random, 0, mixed, TELEMETRY.length, random.length);
+
+        assertRoundTrip(TELEMETRY, 0, TELEMETRY.length);
+        assertRoundTrip(TELEMETRY, 7, 100);
+        assertRoundTrip(random, 0, random.length);
+        assertRoundTrip(mixed, 1000, 4000);
+        assertRoundTrip(new byte[1], 0, 1);
+        assertRoundTrip(new byte[0], 0, 0);
+    }
+
+    @Test
+    public void compressionDoesNotDependOnPreviousCalls()
+    {
+        final byte[] first = compress(TELEMETRY, 0, TELEMETRY.length);
+
+        // positions indexed for other data must not be taken as candidates
+        final byte[] other = StringUtils.repeat("{\"humidity\":40,\"unit\":\"%\"}", 50).getBytes();
+        compress(other, 0, other.length);
+        compress(TELEMETRY, 500, 1000);
+
+        assertThat(compress(TELEMETRY, 0, TELEMETRY.length), is(first));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectCorruptedData()
+    {
+        // back reference before the start of the output
+        MqttLzfCodec.decompress(new byte[]{(byte) 0x20, 0x05}, 0, 2, new byte[3]);
+    }
+
+    private static void assertRoundTrip(final byte[] in, final int offset, final int length)
+    {
+        final byte[] compressed = compress(in, offset, length);
+        final byte[] decompressed = new byte[length];
+        MqttLzfCodec.decompress(compressed, 0, compressed.length, decompressed);
+        assertThat(decompressed, is(Arrays.copyOfRange(in, offset, offset + length)));
+    }
+
+    private static byte[] compress(final byte[] in, final int offset, final int length)
+    {
+        final byte[] out = new byte[MqttLzfCodec.maxCompressedLength(length)];
+        return Arrays.copyOf(out, MqttLzfCodec.compress(in, offset, length, out, 0));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.UUID;
+
+public class MqttMappedLogPersistenceTestCase extends AbstractMuleTestCase
+{
+    private File directory;
+
+    @Before
+    public void createDirectory()
+    {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mqtt-mapped-log-" + UUID.getUUID());
+    }
+
+    @After
+    public void deleteDirectory()
+    {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void recoverPersistedMessagesOnOpen() throws Exception
+    {
+        MqttMappedLogPersistence persistence = open();
+        persistence.put("s-1", new MqttPersistedData("header1".getBytes(), "payload1".getBytes()));
+        persistence.put("s-2", new MqttPersistedData("header2".getBytes(), "payload2".getBytes()));
+        persistence.put("s-1", new MqttPersistedData("header1".getBytes(), "updated1".getBytes()));
+        persistence.remove("s-2");
+        persistence.close();
+
+        persistence = open();
+        assertThat(Collections.list(persistence.keys()).size(), is(1));
+        assertThat(new String(persistence.get("s-1").getPayloadBytes()), is("updated1"));
+        assertThat(persistence.get("s-2"), is(nullValue()));
+        persistence.close();
+    }
+
+    @Test
+    public void rollSegmentsWhenFull() throws Exception
+    {
+        final MqttMappedLogPersistence persistence = new MqttMappedLogPersistence(directory.getPath(), 256,
+            MqttMappedLogPersistence.DEFAULT_SYNC_INTERVAL);
+        persistence.open("client", "tcp://localhost:1883");
+        for (int i = 0; i < 20; i++)
+        {
+            persistence.put("s-" + i, new MqttPersistedData(new byte[20], new byte[50]));
+        }
+
+        assertThat(persistence.size(), is(20));
+        assertThat(persistence.getSegmentCount() > 1, is(true));
+        assertThat(persistence.get("s-19").getPayloadLength(), is(50));
+        persistence.close();
+    }
+
+    @Test
+    public void recoverCompactedLogOnOpen() throws Exception
+    {
+        MqttMappedLogPersistence persistence = new MqttMappedLogPersistence(directory.getPath(), 256, 10L);
+        persistence.open("compacted", "tcp://localhost:1883");
+        for (int i = 0; i < 20; i++)
+        {
+            final byte[] payload = new byte[50];
+            Arrays.fill(payload, (byte) i);
+            persistence.put("s-" + i, new MqttPersistedData(new byte[20], payload));
+        }
+        for (int i = 0; i < 18; i++)
+        {
+            persistence.remove("s-" + i);
+        }
+        final int segmentCount = persistence.getSegmentCount();
+
+        // the dead segments are compacted in the background
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while ((persistence.getSegmentCount() >= segmentCount) && (System.currentTimeMillis() < deadline))
+        {
+            Thread.sleep(10L);
+        }
+        assertThat(persistence.getSegmentCount() < segmentCount, is(true));
+        persistence.close();
+        assertThat(isMaintenanceThreadAlive("compacted"), is(false));
+
+        persistence = new MqttMappedLogPersistence(directory.getPath(), 256, 10L);
+        persistence.open("compacted", "tcp://localhost:1883");
+        assertThat(persistence.size(), is(2));
+        assertThat(persistence.get("s-0"), is(nullValue()));
+        for (int i = 18; i < 20; i++)
+        {
+            final byte[] payload = new byte[50];
+            Arrays.fill(payload, (byte) i);
+            assertThat(persistence.get("s-" + i).getPayloadBytes(), is(payload));
+        }
+        persistence.close();
+    }
+
+    private static boolean isMaintenanceThreadAlive(final String clientId)
+    {
+        for (final Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().equals("mqtt-persistence-" + clientId) && thread.isAlive())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MqttMappedLogPersistence open() throws Exception
+    {
+        final MqttMappedLogPersistence persistence = new MqttMappedLogPersistence(directory.getPath());
+        persistence.open("client", "tcp://localhost:1883");
+        return persistence;
+    }
+}
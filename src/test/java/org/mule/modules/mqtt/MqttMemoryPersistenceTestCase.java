@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.UUID;
+
+public class MqttMemoryPersistenceTestCase extends AbstractMuleTestCase
+{
+    private File directory;
+    private MqttMappedLogPersistence spillPersistence;
+    private MqttMemoryPersistence persistence;
+
+    @Before
+    public void openPersistence() throws Exception
+    {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mqtt-memory-" + UUID.getUUID());
+        persistence = open();
+    }
+
+    @After
+    public void closePersistence() throws Exception
+    {
+        persistence.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void keepMessagesInMemoryUpToTheThreshold() throws Exception
+    {
+        persistence.put("s-1", data("header1", "payload1"));
+        persistence.put("sc-65535", data("header2", "payload2"));
+        persistence.put("other", data("header3", "payload3"));
+
+        assertThat(persistence.getMemoryCount(), is(3));
+        assertThat(persistence.getMemoryBytes(), is(45L));
+        assertThat(persistence.getSpilledCount(), is(0));
+        assertThat(spillPersistence.size(), is(0));
+        assertThat(payloadOf("sc-65535"), is("payload2"));
+        assertThat(payloadOf("other"), is("payload3"));
+
+        // replacing a message doesn't count it twice
+        persistence.put("s-1", data("header1", "updated"));
+        assertThat(persistence.getMemoryCount(), is(3));
+        assertThat(persistence.getMemoryBytes(), is(44L));
+        assertThat(payloadOf("s-1"), is("updated"));
+
+        persistence.remove("s-1");
+        assertThat(persistence.containsKey("s-1"), is(false));
+        assertThat(persistence.get("s-1"), is(nullValue()));
+        assertThat(persistence.getMemoryCount(), is(2));
+    }
+
+    @Test
+    public void spillMessagesBeyondTheThreshold() throws Exception
+    {
+        for (int i = 1; i <= 5; i++)
+        {
+            persistence.put("s-" + i, data("header", "payload" + i));
+        }
+
+        assertThat(persistence.getMemoryCount(), is(3));
+        assertThat(persistence.getSpilledCount(), is(2));
+        assertThat(persistence.getSpillCount(), is(2L));
+        assertThat(spillPersistence.containsKey("s-4"), is(true));
+        assertThat(spillPersistence.containsKey("s-5"), is(true));
+        assertThat(keys(), is(keySet("s-1", "s-2", "s-3", "s-4", "s-5")));
+
+        // a spilled message stays spilled, even once memory is available
+        persistence.remove("s-1");
+        persistence.put("s-4", data("header", "updated4"));
+        assertThat(persistence.getMemoryCount(), is(2));
+        assertThat(payloadOf("s-4"), is("updated4"));
+        assertThat(new String(spillPersistence.get("s-4").getPayloadBytes()), is("updated4"));
+
+        persistence.remove("s-5");
+        assertThat(spillPersistence.containsKey("s-5"), is(false));
+        assertThat(persistence.getSpilledCount(), is(1));
+
+        persistence.clear();
+        assertThat(keys().isEmpty(), is(true));
+        assertThat(spillPersistence.size(), is(0));
+    }
+
+    @Test
+    public void recoverSpilledMessagesOnOpen() throws Exception
+    {
+        for (int i = 1; i <= 5; i++)
+        {
+            persistence.put("s-" + i, data("header", "payload" + i));
+        }
+        persistence.close();
+
+        persistence = open();
+
+        // messages held in memory are lost, spilled ones are recovered
+        assertThat(keys(), is(keySet("s-4", "s-5")));
+        assertThat(persistence.getMemoryCount(), is(0));
+        assertThat(payloadOf("s-4"), is("payload4"));
+        assertThat(payloadOf("s-5"), is("payload5"));
+
+        persistence.remove("s-4");
+        assertThat(spillPersistence.containsKey("s-4"), is(false));
+    }
+
+    @Test
+    public void keepMessagesInMemoryWhenReopened() throws Exception
+    {
+        for (int i = 1; i <= 5; i++)
+        {
+            persistence.put("s-" + i, data("header", "payload" + i));
+        }
+        persistence.close();
+
+        persistence.open("client", "tcp://localhost:1883");
+
+        assertThat(keys(), is(keySet("s-1", "s-2", "s-3", "s-4", "s-5")));
+        assertThat(persistence.getMemoryCount(), is(3));
+        assertThat(persistence.getSpilledCount(), is(2));
+        assertThat(payloadOf("s-1"), is("payload1"));
+        assertThat(payloadOf("s-5"), is("payload5"));
+
+        // only clearing the persistence drops the messages held in memory
+        persistence.clear();
+        assertThat(keys().isEmpty(), is(true));
+        assertThat(persistence.getMemoryCount(), is(0));
+    }
+
+    @Test
+    public void keepKeysThatAreNotMessageIdsInAMap() throws Exception
+    {
+        persistence.put("s-01", data("header", "leadingZero"));
+        persistence.put("s-65536", data("header", "tooLarge"));
+
+        assertThat(keys(), is(keySet("s-01", "s-65536")));
+        assertThat(payloadOf("s-01"), is("leadingZero"));
+        assertThat(persistence.get("s-1"), is(nullValue()));
+        assertThat(payloadOf("s-65536"), is("tooLarge"));
+    }
+
+    private MqttMemoryPersistence open() throws Exception
+    {
+        spillPersistence = new MqttMappedLogPersistence(directory.getPath());
+        final MqttMemoryPersistence memoryPersistence = new MqttMemoryPersistence(3, spillPersistence);
+        memoryPersistence.open("client", "tcp://localhost:1883");
+        return memoryPersistence;
+    }
+
+    private String payloadOf(final String key) throws Exception
+    {
+        return new String(persistence.get(key).getPayloadBytes());
+    }
+
+    private Set<Object> keys() throws Exception
+    {
+        return new HashSet<Object>(Collections.list(persistence.keys()));
+    }
+
+    private static Set<Object> keySet(final String... keys)
+    {
+        final Set<Object> keySet = new HashSet<Object>();
+        Collections.addAll(keySet, keys);
+        return keySet;
+    }
+
+    private static MqttPersistedData data(final String header, final String payload)
+    {
+        return new MqttPersistedData(header.getBytes(), payload.getBytes());
+    }
+}
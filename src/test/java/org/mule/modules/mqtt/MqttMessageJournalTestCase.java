@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.UUID;
+
+public class MqttMessageJournalTestCase extends AbstractMuleTestCase
+{
+    private File file;
+    private MqttMessageJournal journal;
+
+    @Before
+    public void openJournal() throws Exception
+    {
+        file = new File(System.getProperty("java.io.tmpdir"), "mqtt-journal-" + UUID.getUUID() + "/test.journal");
+        journal = new MqttMessageJournal(file);
+    }
+
+    @After
+    public void closeJournal()
+    {
+        journal.close();
+        FileUtils.deleteQuietly(file.getParentFile());
+    }
+
+    @Test
+    public void pollInAppendOrder() throws Exception
+    {
+        journal.append("test/a", "first".getBytes(), 1, false);
+        journal.append("test/b", "second".getBytes(), 2, true);
+        assertThat(journal.size(), is(2));
+
+        MqttMessageJournal.Entry entry = journal.poll();
+        assertThat(entry.getTopicName(), is("test/a"));
+        assertThat(new String(entry.getMqttMessage().getPayload()), is("first"));
+        assertThat(entry.getMqttMessage().getQos(), is(1));
+        assertThat(entry.getMqttMessage().isRetained(), is(false));
+
+        journal.append("test/c", new byte[0], 0, false);
+
+        entry = journal.poll();
+        assertThat(entry.getTopicName(), is("test/b"));
+        assertThat(entry.getMqttMessage().getQos(), is(2));
+        assertThat(entry.getMqttMessage().isRetained(), is(true));
+        assertThat(journal.poll().getMqttMessage().getPayload().length, is(0));
+        assertThat(journal.poll(), is(nullValue()));
+        assertThat(journal.isEmpty(), is(true));
+    }
+
+    @Test
+    public void truncateOnceDrained() throws Exception
+    {
+        journal.append("test/a", new byte[100], 1, false);
+        assertThat(file.length() > 100, is(true));
+
+        journal.poll();
+        assertThat(file.length(), is(0L));
+    }
+
+    @Test
+    public void compactWhileAppendsKeepPaceWithPolls() throws Exception
+    {
+        journal.close();
+        journal = new MqttMessageJournal(file, 1024L);
+
+        int appended = 0;
+        int polled = 0;
+        long maxLength = 0L;
+        for (; appended < 5; appended++)
+        {
+            journal.append("test/a", String.valueOf(appended).getBytes(), 1, false);
+        }
+        // the journal never empties, so it's never truncated
+        for (int i = 0; i < 5000; i++)
+        {
+            journal.append("test/a", String.valueOf(appended++).getBytes(), 1, false);
+            assertThat(new String(journal.poll().getMqttMessage().getPayload()), is(String.valueOf(polled++)));
+            maxLength = Math.max(maxLength, file.length());
+        }
+
+        assertThat(journal.size(), is(5));
+        assertThat(maxLength < 2048L + 64L, is(true));
+        while (!journal.isEmpty())
+        {
+            assertThat(new String(journal.poll().getMqttMessage().getPayload()), is(String.valueOf(polled++)));
+        }
+        assertThat(polled, is(appended));
+    }
+
+    @Test
+    public void discardRecordsLeftByACrash() throws Exception
+    {
+        journal.append("test/a", "first".getBytes(), 1, false);
+        // the journal isn't closed, as if the process died
+        journal = new MqttMessageJournal(file);
+
+        assertThat(journal.isEmpty(), is(true));
+        assertThat(file.length(), is(0L));
+    }
+
+    @Test
+    public void deleteFileOnClose() throws Exception
+    {
+        journal.append("test/a", "first".getBytes(), 1, false);
+        journal.close();
+
+        assertThat(file.exists(), is(false));
+        journal = new MqttMessageJournal(file);
+    }
+}
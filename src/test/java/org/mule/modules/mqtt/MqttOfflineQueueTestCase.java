@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.UUID;
+
+public class MqttOfflineQueueTestCase extends AbstractMuleTestCase
+{
+    private final List<String> sentPayloads = new CopyOnWriteArrayList<String>();
+    private volatile boolean brokerAvailable;
+    private File directory;
+    private MqttOfflineQueue offlineQueue;
+
+    private final MqttOfflineQueue.Sender sender = new MqttOfflineQueue.Sender()
+    {
+        public void send(final String topicName, final byte[] payload, final DeliveryQoS qos) throws MqttException
+        {
+            if (!brokerAvailable)
+            {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            sentPayloads.add(new String(payload));
+        }
+    };
+
+    @Before
+    public void createDirectory()
+    {
+        directory = new File(System.getProperty("java.io.tmpdir"), "mqtt-offline-" + UUID.getUUID());
+    }
+
+    @After
+    public void closeQueue()
+    {
+        if (offlineQueue != null)
+        {
+            offlineQueue.close();
+        }
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void messagesAreDrainedInOrderFromMemoryThenJournal() throws Exception
+    {
+        offlineQueue = new MqttOfflineQueue("test", sender, 2, new MqttMessageJournal(new File(directory,
+            "test.offline")), 3, 0);
+
+        final List<String> payloads = Arrays.asList("1", "2", "3", "4", "5");
+        for (final String payload : payloads)
+        {
+            assertThat(offlineQueue.offer("test/topic", payload.getBytes(), DeliveryQoS.AT_LEAST_ONCE), is(true));
+        }
+        assertThat(offlineQueue.offer("test/topic", "6".getBytes(), DeliveryQoS.AT_LEAST_ONCE), is(false));
+        assertThat(offlineQueue.size(), is(5));
+
+        brokerAvailable = true;
+        offlineQueue.drain();
+        awaitEmpty();
+
+        assertThat(sentPayloads, is(payloads));
+    }
+
+    @Test
+    public void failedDrainKeepsMessagesQueued() throws Exception
+    {
+        offlineQueue = new MqttOfflineQueue("test", sender, 10, null, 0, 0);
+        offlineQueue.offer("test/topic", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE);
+        offlineQueue.offer("test/topic", "2".getBytes(), DeliveryQoS.AT_LEAST_ONCE);
+
+        offlineQueue.drain();
+        Thread.sleep(100L);
+        assertThat(offlineQueue.size(), is(2));
+
+        brokerAvailable = true;
+        offlineQueue.drain();
+        awaitEmpty();
+
+        assertThat(sentPayloads, is(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void closeDiscardsMessagesAndDeletesTheJournal() throws Exception
+    {
+        final File journalFile = new File(directory, "test.offline");
+        offlineQueue = new MqttOfflineQueue("test", sender, 1, new MqttMessageJournal(journalFile), 10, 0);
+        offlineQueue.offer("test/topic", "1".getBytes(), DeliveryQoS.AT_LEAST_ONCE);
+        offlineQueue.offer("test/topic", "2".getBytes(), DeliveryQoS.AT_LEAST_ONCE);
+        assertThat(journalFile.exists(), is(true));
+
+        offlineQueue.close();
+        offlineQueue = null;
+
+        assertThat(journalFile.exists(), is(false));
+    }
+
+    @Test
+    public void drainRateIsCapped() throws Exception
+    {
+        offlineQueue = new MqttOfflineQueue("test", sender, 100, null, 0, 100);
+        final List<String> payloads = new ArrayList<String>();
+        for (int i = 0; i < 21; i++)
+        {
+            payloads.add(String.valueOf(i));
+            offlineQueue.offer("test/topic", payloads.get(i).getBytes(), DeliveryQoS.AT_LEAST_ONCE);
+        }
+
+        brokerAvailable = true;
+        final long startTime = System.currentTimeMillis();
+        offlineQueue.drain();
+        awaitEmpty();
+        final long drainTime = System.currentTimeMillis() - startTime;
+
+        assertTrue("Drained 21 messages at 100/s in " + drainTime + "ms", drainTime >= 190L);
+        assertThat(sentPayloads, is(payloads));
+    }
+
+    private void awaitEmpty() throws InterruptedException
+    {
+        for (int i = 0; (i < 500) && (!offlineQueue.isEmpty()); i++)
+        {
+            Thread.sleep(10L);
+        }
+        assertThat(offlineQueue.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttPayloadCodecTestCase extends AbstractMuleTestCase
+{
+    private final MqttCborCodec cborCodec = new MqttCborCodec();
+    private final MqttRecordsCodec recordsCodec = new MqttRecordsCodec();
+
+    @Test
+    public void encodeCborLikeTheSpecification() throws Exception
+    {
+        assertThat(cborCodec.encode(100), is(bytes(0x18, 0x64)));
+        assertThat(cborCodec.encode(-1), is(bytes(0x20)));
+        assertThat(cborCodec.encode("a"), is(bytes(0x61, 0x61)));
+        assertThat(cborCodec.encode(Boolean.TRUE), is(bytes(0xF5)));
+        assertThat(cborCodec.encode(null), is(bytes(0xF6)));
+
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a", 1);
+        map.put("b", Arrays.asList(2, 3));
+        assertThat(cborCodec.encode(map), is(bytes(0xA2, 0x61, 0x61, 0x01, 0x61, 0x62, 0x82, 0x02, 0x03)));
+    }
+
+    @Test
+    public void roundTripCbor() throws Exception
+    {
+        final Map<String, Object> reading = new LinkedHashMap<String, Object>();
+        reading.put("device", "kitchen");
+        reading.put("value", 21.5d);
+        reading.put("ratio", 0.25f);
+        reading.put("count", 5000000000L);
+        reading.put("offset", -42);
+        reading.put("online", false);
+        reading.put("raw", bytes(1, 2, 3));
+        reading.put("tags", new String[]{"a", "b"});
+        reading.put("nothing", null);
+
+        @SuppressWarnings("unchecked")
+        final Map<Object, Object> decoded = (Map<Object, Object>) cborCodec.decode(cborCodec.encode(reading));
+
+        assertThat(decoded.size(), is(9));
+        assertThat((String) decoded.get("device"), is("kitchen"));
+        assertThat((Double) decoded.get("value"), is(21.5d));
+        assertThat((Float) decoded.get("ratio"), is(0.25f));
+        assertThat((Long) decoded.get("count"), is(5000000000L));
+        assertThat((Integer) decoded.get("offset"), is(-42));
+        assertThat((Boolean) decoded.get("online"), is(false));
+        assertThat((byte[]) decoded.get("raw"), is(bytes(1, 2, 3)));
+        assertThat((List<?>) decoded.get("tags"), is((List<?>) Arrays.asList("a", "b")));
+        assertThat(decoded.containsKey("nothing"), is(true));
+        assertThat(decoded.get("nothing"), is(nullValue()));
+    }
+
+    @Test
+    public void roundTripCborByteArray() throws Exception
+    {
+        assertThat(cborCodec.encode(bytes(1, 2, 3)), is(bytes(0x43, 1, 2, 3)));
+        assertThat((byte[]) cborCodec.decode(cborCodec.encode(bytes(1, 2, 3))), is(bytes(1, 2, 3)));
+    }
+
+    @Test
+    public void encodeBigNumbersAsDoubles() throws Exception
+    {
+        assertThat((Double) cborCodec.decode(cborCodec.encode(new BigDecimal("0.1"))), is(0.1d));
+        // beyond the precision of a double
+        assertThat((Double) cborCodec.decode(cborCodec.encode(new BigInteger("12345678901234567891"))),
+            is(12345678901234567891d));
+    }
+
+    @Test
+    public void decodeCborIndefiniteLengthsAndTags() throws Exception
+    {
+        assertThat((List<?>) cborCodec.decode(bytes(0x9F, 0x01, 0x02, 0xFF)), is((List<?>) Arrays.asList(1, 2)));
+        assertThat((String) cborCodec.decode(bytes(0x7F, 0x62, 0x61, 0x62, 0x61, 0x63, 0xFF)), is("abc"));
+        assertThat((Float) cborCodec.decode(bytes(0xF9, 0x3C, 0x00)), is(1.0f));
+        assertThat((Integer) cborCodec.decode(bytes(0xC1, 0x1A, 0x51, 0x4B, 0x67, 0xB0)), is(1363896240));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectTruncatedCbor() throws Exception
+    {
+        cborCodec.decode(bytes(0x82, 0x01));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectCborLengthBeyondPayload() throws Exception
+    {
+        cborCodec.decode(bytes(0x5A, 0x7F, 0xFF, 0xFF, 0xFF, 0x01));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectTrailingCborBytes() throws Exception
+    {
+        cborCodec.decode(bytes(0x01, 0x02));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectDeeplyNestedCbor() throws Exception
+    {
+        final byte[] payload = new byte[1000];
+        Arrays.fill(payload, (byte) 0x81);
+        cborCodec.decode(payload);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectUnsupportedCborType() throws Exception
+    {
+        cborCodec.encode(new Object());
+    }
+
+    @Test
+    public void roundTripRecords() throws Exception
+    {
+        final List<Object> records = new ArrayList<Object>();
+        records.add("first");
+        records.add(new byte[0]);
+        records.add(new byte[300]);
+
+        final byte[] payload = recordsCodec.encode(records);
+        assertThat(payload.length, is(1 + 5 + 1 + 2 + 300));
+
+        @SuppressWarnings("unchecked")
+        final List<byte[]> decoded = (List<byte[]>) recordsCodec.decode(payload);
+        assertThat(decoded.size(), is(3));
+        assertThat(new String(decoded.get(0), "UTF-8"), is("first"));
+        assertThat(decoded.get(1).length, is(0));
+        assertThat(decoded.get(2), is(new byte[300]));
+    }
+
+    @Test
+    public void encodeSingleRecord() throws Exception
+    {
+        @SuppressWarnings("unchecked")
+        final List<byte[]> decoded = (List<byte[]>) recordsCodec.decode(recordsCodec.encode(bytes(1, 2, 3)));
+        assertThat(decoded.size(), is(1));
+        assertThat(decoded.get(0), is(bytes(1, 2, 3)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectRecordsOfUnsupportedType() throws Exception
+    {
+        recordsCodec.encode(Arrays.asList(1, 2));
+    }
+
+    @Test
+    public void selectCodecsByTopic()
+    {
+        final MqttPayloadCodecRegistry registry = new MqttPayloadCodecRegistry(
+            "sensors/+/batch=records, sensors/#=cbor", getClass().getClassLoader());
+
+        assertThat(registry.codecFor("sensors/kitchen/temperature"), instanceOf(MqttCborCodec.class));
+        // the first filter listed wins
+        assertThat(registry.codecFor("sensors/kitchen/batch"), instanceOf(MqttRecordsCodec.class));
+        assertThat(registry.codecFor("logs/kitchen"), is(nullValue()));
+        // cached lookups give the same codecs
+        assertThat(registry.codecFor("sensors/kitchen/batch"), instanceOf(MqttRecordsCodec.class));
+        assertThat(registry.codecFor("logs/kitchen"), is(nullValue()));
+
+        assertThat(registry.getCodec(MqttCborCodec.NAME), instanceOf(MqttCborCodec.class));
+        assertThat(registry.getCodec("unknown"), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnknownCodec()
+    {
+        new MqttPayloadCodecRegistry("sensors/#=protobuf", getClass().getClassLoader());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectInvalidMapping()
+    {
+        new MqttPayloadCodecRegistry("sensors/#", getClass().getClassLoader());
+    }
+
+    private static byte[] bytes(final int... values)
+    {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.UUID;
+
+public class MqttPayloadsTestCase extends AbstractMuleTestCase
+{
+    private File file;
+
+    @Before
+    public void createFile()
+    {
+        file = new File(System.getProperty("java.io.tmpdir"), "mqtt-payload-" + UUID.getUUID());
+    }
+
+    @After
+    public void deleteFile()
+    {
+        FileUtils.deleteQuietly(file);
+    }
+
+    @Test
+    public void publishByteArraysAsIs() throws Exception
+    {
+        final byte[] payload = bytes(10);
+        assertThat(MqttPayloads.toByteArray(payload, "UTF-8"), is(sameInstance(payload)));
+    }
+
+    @Test
+    public void encodeStrings() throws Exception
+    {
+        assertThat(MqttPayloads.toByteArray("caf\u00e9", "UTF-8"), is("caf\u00e9".getBytes("UTF-8")));
+        assertThat(MqttPayloads.toByteArray("caf\u00e9", "ISO-8859-1").length, is(4));
+        assertThat(MqttPayloads.toByteArray("caf\u00e9", "UTF-16BE"), is("caf\u00e9".getBytes("UTF-16BE")));
+    }
+
+    @Test
+    public void readTheRemainingBytesOfByteBuffers() throws Exception
+    {
+        final byte[] array = bytes(10);
+        final ByteBuffer wholeBuffer = ByteBuffer.wrap(array);
+        assertThat(MqttPayloads.toByteArray(wholeBuffer, "UTF-8"), is(sameInstance(array)));
+
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(array);
+        byteBuffer.position(2).limit(7);
+        assertThat(MqttPayloads.toByteArray(byteBuffer, "UTF-8"), is(Arrays.copyOfRange(array, 2, 7)));
+        // the buffer isn't consumed
+        assertThat(byteBuffer.position(), is(2));
+
+        byteBuffer.position(0);
+        final ByteBuffer slice = byteBuffer.slice();
+        slice.position(1);
+        assertThat(MqttPayloads.toByteArray(slice.slice(), "UTF-8"), is(Arrays.copyOfRange(array, 1, 7)));
+
+        final ByteBuffer directBuffer = ByteBuffer.allocateDirect(10);
+        directBuffer.put(array).flip();
+        assertThat(MqttPayloads.toByteArray(directBuffer, "UTF-8"), is(array));
+    }
+
+    @Test
+    public void readFiles() throws Exception
+    {
+        final byte[] content = bytes(1000);
+        write(content);
+        assertThat(MqttPayloads.toByteArray(file, "UTF-8"), is(content));
+
+        write(new byte[0]);
+        assertThat(MqttPayloads.toByteArray(file, "UTF-8").length, is(0));
+    }
+
+    @Test
+    public void readTheRemainingBytesOfFileStreams() throws Exception
+    {
+        final byte[] content = bytes(1000);
+        write(content);
+
+        final FileInputStream fileInputStream = new FileInputStream(file);
+        assertThat(fileInputStream.skip(100), is(100L));
+        assertThat(MqttPayloads.toByteArray(fileInputStream, "UTF-8"), is(Arrays.copyOfRange(content, 100, 1000)));
+        assertThat(fileInputStream.getChannel().isOpen(), is(false));
+    }
+
+    @Test
+    public void readStreamsOfAnySize() throws Exception
+    {
+        for (final int size : new int[]{0, 1, 64 * 1024, 64 * 1024 + 1, 200 * 1000})
+        {
+            final byte[] content = bytes(size);
+            final ClosingInputStream inputStream = new ClosingInputStream(content);
+            assertThat(MqttPayloads.toByteArray(inputStream, "UTF-8"), is(content));
+            assertThat(inputStream.closed, is(true));
+        }
+    }
+
+    @Test
+    public void readStreamsOfUnknownSize() throws Exception
+    {
+        for (final int size : new int[]{0, 1, 8 * 1024, 8 * 1024 + 1, 200 * 1000})
+        {
+            final byte[] content = bytes(size);
+            final ClosingInputStream inputStream = new ClosingInputStream(content)
+            {
+                @Override
+                public synchronized int available()
+                {
+                    return 0;
+                }
+            };
+            assertThat(MqttPayloads.toByteArray(inputStream, "UTF-8"), is(content));
+            assertThat(inputStream.closed, is(true));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnsupportedPayloads() throws Exception
+    {
+        assertThat(MqttPayloads.isSupported(Integer.valueOf(1)), is(false));
+        MqttPayloads.toByteArray(Integer.valueOf(1), "UTF-8");
+    }
+
+    private void write(final byte[] content) throws IOException
+    {
+        final FileOutputStream fileOutputStream = new FileOutputStream(file);
+        try
+        {
+            fileOutputStream.write(content);
+        }
+        finally
+        {
+            fileOutputStream.close();
+        }
+    }
+
+    private static byte[] bytes(final int size)
+    {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns its content in small reads, as sockets do.
+     */
+    private static class ClosingInputStream extends ByteArrayInputStream
+    {
+        private boolean closed;
+
+        private ClosingInputStream(final byte[] content)
+        {
+            super(content);
+        }
+
+        @Override
+        public synchronized int read(final byte[] buffer, final int offset, final int length)
+        {
+            return super.read(buffer, offset, Math.min(length, 1000));
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            closed = true;
+            super.close();
+        }
+    }
+}
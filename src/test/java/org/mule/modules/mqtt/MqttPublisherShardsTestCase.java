@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttPublisherShardsTestCase extends AbstractMuleTestCase
+{
+    @Test
+    public void shortClientIdsAreSuffixed()
+    {
+        assertThat(MqttPublisherShards.shardClientId("muleClient", 1), is("muleClient-1"));
+        assertThat(MqttPublisherShards.shardClientId("muleShardedPublisher1", 2), is("muleShardedPublisher1-2"));
+    }
+
+    @Test
+    public void longClientIdsAreShortenedWithTheirHash()
+    {
+        final String first = MqttPublisherShards.shardClientId("muleShardedPublisher01", 1);
+        final String second = MqttPublisherShards.shardClientId("muleShardedPublisher02", 1);
+        final String otherShard = MqttPublisherShards.shardClientId("muleShardedPublisher01", 12);
+
+        assertThat(first.length(), is(MqttPublisherShards.MAX_CLIENT_ID_LENGTH));
+        assertThat(otherShard.length(), is(MqttPublisherShards.MAX_CLIENT_ID_LENGTH));
+        assertThat(first.startsWith("muleShardedPu"), is(true));
+        assertThat(first.endsWith("-1"), is(true));
+        assertThat(otherShard.endsWith("-12"), is(true));
+        assertThat(first, is(not(second)));
+        // stable across connections
+        assertThat(MqttPublisherShards.shardClientId("muleShardedPublisher01", 1), is(first));
+    }
+
+    @Test
+    public void topicsStayOnTheirShardWhenShardsAreAdded()
+    {
+        int moved = 0;
+        for (int key = 0; key < 10000; key++)
+        {
+            final int shard = MqttPublisherShards.jumpConsistentHash(key * 0x9E3779B97F4A7C15L, 4);
+            final int grownShard = MqttPublisherShards.jumpConsistentHash(key * 0x9E3779B97F4A7C15L, 5);
+
+            assertThat(shard >= 0 && shard < 4, is(true));
+            if (grownShard != shard)
+            {
+                // keys only move to the new shard
+                assertThat(grownShard, is(4));
+                moved++;
+            }
+        }
+        // about a fifth of the keys move
+        assertThat(moved > 1500 && moved < 2500, is(true));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttReconnectorTestCase extends AbstractMuleTestCase
+{
+    private MqttReconnector reconnector;
+
+    @After
+    public void stopReconnector()
+    {
+        if (reconnector != null)
+        {
+            reconnector.stop();
+        }
+    }
+
+    @Test
+    public void backoffDoublesWithJitterUpToTheMaximum()
+    {
+        reconnector = new MqttReconnector("test", new FailingConnection(0, null), 100L, 1000L, 0);
+
+        for (int attempt = 1; attempt <= 10; attempt++)
+        {
+            final long expectedDelay = Math.min(1000L, 100L << (attempt - 1));
+            final long delay = reconnector.backoffDelay(attempt);
+            assertTrue("Delay " + delay + " of attempt " + attempt + " out of bounds",
+                (delay >= expectedDelay / 2) && (delay <= expectedDelay));
+        }
+    }
+
+    @Test
+    public void retriesUntilConnected() throws Exception
+    {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final FailingConnection connection = new FailingConnection(3, connected);
+        reconnector = new MqttReconnector("test", connection, 1L, 10L, 0);
+
+        assertThat(reconnector.reconnect(), is(true));
+        assertThat(reconnector.reconnect(), is(false));
+
+        assertTrue(connected.await(5L, TimeUnit.SECONDS));
+        assertThat(connection.attempts.get(), is(4));
+    }
+
+    @Test
+    public void givesUpAfterTheMaximumAttempts() throws Exception
+    {
+        final FailingConnection connection = new FailingConnection(Integer.MAX_VALUE, null);
+        reconnector = new MqttReconnector("test", connection, 1L, 10L, 3);
+
+        reconnector.reconnect();
+        for (int i = 0; (i < 500) && (reconnector.isReconnecting()); i++)
+        {
+            Thread.sleep(10L);
+        }
+
+        assertThat(reconnector.isReconnecting(), is(false));
+        assertThat(connection.attempts.get(), is(3));
+    }
+
+    private static final class FailingConnection implements MqttReconnector.Connection
+    {
+        private final int failures;
+        private final CountDownLatch connected;
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        private FailingConnection(final int failures, final CountDownLatch connected)
+        {
+            this.failures = failures;
+            this.connected = connected;
+        }
+
+        public void reconnect() throws Exception
+        {
+            if (attempts.incrementAndGet() <= failures)
+            {
+                throw new IOException("Broker unavailable");
+            }
+            connected.countDown();
+        }
+
+        public boolean isConnected()
+        {
+            return (connected != null) && (connected.getCount() == 0L);
+        }
+    }
+}
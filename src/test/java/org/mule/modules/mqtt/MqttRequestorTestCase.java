@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Test;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttRequestorTestCase extends AbstractMuleTestCase
+{
+    private final ExecutorService responder = Executors.newCachedThreadPool();
+
+    @After
+    public void stopResponder()
+    {
+        responder.shutdownNow();
+    }
+
+    @Test
+    public void repliesAreCorrelatedToTheirRequests() throws Exception
+    {
+        final MqttRequestor[] requestor = new MqttRequestor[1];
+        requestor[0] = new MqttRequestor(new MqttRequestor.Sender()
+        {
+            public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+                throws MqttException
+            {
+                respond(requestor[0], payload, 0L);
+            }
+        }, "mule/replies/test", 10);
+
+        for (int i = 0; i < 20; i++)
+        {
+            final String reply = new String(requestor[0].request("devices/1", ("ping " + i).getBytes(),
+                DeliveryQoS.AT_LEAST_ONCE, 5000L));
+            assertThat(reply, is("reply to ping " + i));
+        }
+        assertThat(requestor[0].getPendingCount(), is(0));
+    }
+
+    @Test
+    public void requestsTimeOut() throws Exception
+    {
+        final MqttRequestor requestor = new MqttRequestor(new MqttRequestor.Sender()
+        {
+            public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+            {
+                // NOOP never replied to
+            }
+        }, "mule/replies/test", 10);
+
+        try
+        {
+            requestor.request("devices/1", "ping".getBytes(), DeliveryQoS.AT_LEAST_ONCE, 50L);
+            fail("Request should have timed out");
+        }
+        catch (final MqttException me)
+        {
+            assertThat(me.getReasonCode(), is((int) MqttException.REASON_CODE_CLIENT_TIMEOUT));
+        }
+        assertThat(requestor.getPendingCount(), is(0));
+        assertThat(requestor.getTimedOutCount(), is(1L));
+        assertThat(requestor.complete(MqttMessageId.next(), new byte[0]), is(false));
+        assertThat(requestor.getLateReplyCount(), is(1L));
+    }
+
+    @Test
+    public void pendingRequestsAreBounded() throws Exception
+    {
+        final CountDownLatch firstSent = new CountDownLatch(1);
+        final MqttRequestor[] requestor = new MqttRequestor[1];
+        requestor[0] = new MqttRequestor(new MqttRequestor.Sender()
+        {
+            public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+            {
+                firstSent.countDown();
+                respond(requestor[0], payload, 300L);
+            }
+        }, "mule/replies/test", 1);
+
+        final Future<byte[]> first = responder.submit(new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                return requestor[0].request("devices/1", "first".getBytes(), DeliveryQoS.AT_LEAST_ONCE, 5000L);
+            }
+        });
+        firstSent.await(5L, TimeUnit.SECONDS);
+
+        try
+        {
+            // the only slot is taken by the first request
+            requestor[0].request("devices/1", "second".getBytes(), DeliveryQoS.AT_LEAST_ONCE, 50L);
+            fail("Request should have timed out waiting for a slot");
+        }
+        catch (final MqttException me)
+        {
+            assertThat(me.getReasonCode(), is((int) MqttException.REASON_CODE_CLIENT_TIMEOUT));
+        }
+
+        assertThat(new String(first.get(5L, TimeUnit.SECONDS)), is("reply to first"));
+        assertThat(new String(requestor[0].request("devices/1", "third".getBytes(), DeliveryQoS.AT_LEAST_ONCE,
+            5000L)), is("reply to third"));
+    }
+
+    @Test
+    public void closeFailsPendingAndNewRequests() throws Exception
+    {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final MqttRequestor requestor = new MqttRequestor(new MqttRequestor.Sender()
+        {
+            public void send(final String topicName, final byte[] payload, final DeliveryQoS qos)
+            {
+                // never replied to
+                sent.countDown();
+            }
+        }, "mule/replies/test", 10);
+
+        final Future<byte[]> pending = responder.submit(new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                return requestor.request("devices/1", "ping".getBytes(), DeliveryQoS.AT_LEAST_ONCE, 60000L);
+            }
+        });
+        assertThat(sent.await(5L, TimeUnit.SECONDS), is(true));
+
+        requestor.close();
+        try
+        {
+            pending.get(5L, TimeUnit.SECONDS);
+            fail("Pending request should have failed");
+        }
+        catch (final ExecutionException ee)
+        {
+            assertThat(((MqttException) ee.getCause()).getReasonCode(),
+                is((int) MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+
+        try
+        {
+            requestor.request("devices/1", "ping".getBytes(), DeliveryQoS.AT_LEAST_ONCE, 60000L);
+            fail("New request should have failed");
+        }
+        catch (final MqttException me)
+        {
+            assertThat(me.getReasonCode(), is((int) MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+        }
+        assertThat(requestor.getPendingCount(), is(0));
+        assertThat(requestor.getTimedOutCount(), is(0L));
+    }
+
+    private void respond(final MqttRequestor requestor, final byte[] request, final long delay)
+    {
+        responder.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(delay);
+                    final MqttEnvelope envelope = MqttEnvelope.read(request);
+                    requestor.complete(envelope.getCorrelationId(),
+                        ("reply to " + new String(envelope.getPayload())).getBytes());
+                }
+                catch (final Exception e)
+                {
+                    // NOOP the request times out
+                }
+            }
+        });
+    }
+}
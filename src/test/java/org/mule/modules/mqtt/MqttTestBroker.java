@@ -102,6 +102,19 @@ public class MqttTestBroker
         nioSocketAcceptor.bind(new InetSocketAddress(port));
     }
 
+    public int getConnectedSessionCount()
+    {
+        int count = 0;
+        for (final IoSession session : nioSocketAcceptor.getManagedSessions().values())
+        {
+            if ((session.isConnected()) && (!(session.isClosing())))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public void stopServer()
     {
         messaging.stop();
@@ -11,16 +11,25 @@ package org.mule.modules.mqtt;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
+
 import org.apache.commons.lang.RandomStringUtils;
+import org.apache.commons.lang.StringUtils;
 import org.dna.mqtt.moquette.server.Server;
 import org.junit.After;
 import org.junit.Rule;
@@ -28,6 +37,8 @@ import org.junit.Test;
 import org.mule.api.MuleContext;
 import org.mule.api.MuleEventContext;
 import org.mule.api.MuleMessage;
+import org.mule.modules.mqtt.MqttConnector.DeliveryQoS;
+import org.mule.modules.mqtt.MqttConnector.PayloadCompression;
 import org.mule.tck.functional.EventCallback;
 import org.mule.tck.functional.FunctionalTestComponent;
 import org.mule.tck.junit4.FunctionalTestCase;
@@ -76,6 +87,9 @@ public class MqttTestCase extends FunctionalTestCase
         final CountDownLatch subscriberMultiFiltersComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
             "subscriberMultiFilters", 2);
 
+        final CountDownLatch subscriberSharedClientComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberSharedClient", 1);
+
         final String testTopicPayload = RandomStringUtils.randomAlphanumeric(20);
         MuleMessage result = muleContext.getClient().send("vm://publisher.in", testTopicPayload,
             Collections.<String, Object> singletonMap("topicName", "test/topic"));
@@ -90,10 +104,433 @@ public class MqttTestCase extends FunctionalTestCase
 
         subscriberSingleFilterComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
         subscriberMultiFiltersComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+        subscriberSharedClientComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
 
         assertThat(getReceivedMessagePayloads("subscriberSingleFilter"), is(Arrays.asList(testTopicPayload)));
         assertThat(getReceivedMessagePayloads("subscriberMultiFilters"),
             is(Arrays.asList(testTopicPayload, testOtherPayload)));
+        assertThat(getReceivedMessagePayloads("subscriberSharedClient"), is(Arrays.asList(testOtherPayload)));
+    }
+
+    @Test
+    public void shareOneClientPerConfiguration() throws Exception
+    {
+        final CountDownLatch subscriberSingleFilterComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberSingleFilter", 1);
+
+        final CountDownLatch subscriberSharedClientComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberSharedClient", 1);
+
+        final String testTopicPayload = RandomStringUtils.randomAlphanumeric(20);
+        muleContext.getClient().send("vm://publisher.in", testTopicPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/topic"));
+
+        final String testOtherPayload = RandomStringUtils.randomAlphanumeric(20);
+        muleContext.getClient().send("vm://publisher.in", testOtherPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/other"));
+
+        subscriberSingleFilterComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+        subscriberSharedClientComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberSingleFilter"), is(Arrays.asList(testTopicPayload)));
+        assertThat(getReceivedMessagePayloads("subscriberSharedClient"), is(Arrays.asList(testOtherPayload)));
+
+        // one connection for each of muleClient1, muleClient2, muleWindowedSubscriber, muleCodecs and
+        // muleLastValues, whatever the number of their sources, the publisher reusing the client of
+        // the subscribers of muleClient1
+        assertThat(mqttTestBroker.getConnectedSessionCount(), is(5));
+    }
+
+    @Test
+    public void publishBatch() throws Exception
+    {
+        final CountDownLatch subscriberBatchComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberBatch", 3);
+
+        final String firstPayload = RandomStringUtils.randomAlphanumeric(20);
+        final String overriddenPayload = RandomStringUtils.randomAlphanumeric(20);
+        final String lastPayload = RandomStringUtils.randomAlphanumeric(20);
+        final List<Object> batch = Arrays.<Object> asList(firstPayload.getBytes(), new MqttBatchMessage(
+            "test/batch/override", DeliveryQoS.FIRE_AND_FORGET, overriddenPayload.getBytes()),
+            lastPayload.getBytes());
+
+        final MuleMessage result = muleContext.getClient().send("vm://batchPublisher.in", batch, null);
+
+        final MqttBatchResult batchResult = (MqttBatchResult) result.getPayload();
+        assertThat(batchResult.getPublishedCount(), is(3));
+        assertThat(batchResult.isComplete(), is(true));
+
+        subscriberBatchComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberBatch"),
+            is(Arrays.asList(firstPayload, overriddenPayload, lastPayload)));
+    }
+
+    @Test
+    public void publishToTopicTemplate() throws Exception
+    {
+        final CountDownLatch subscriberSharedClientComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberSharedClient", 1);
+
+        final String testPayload = RandomStringUtils.randomAlphanumeric(20);
+        muleContext.getClient().send("vm://templatedPublisher.in", testPayload,
+            Collections.<String, Object> singletonMap("topicLevel", "other"));
+
+        subscriberSharedClientComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberSharedClient"), is(Arrays.asList(testPayload)));
+    }
+
+    @Test
+    public void publishThroughInFlightWindow() throws Exception
+    {
+        final int messageCount = 10;
+        final CountDownLatch subscriberWindowedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberWindowed", messageCount);
+
+        final List<String> testPayloads = new ArrayList<String>();
+        for (int i = 0; i < messageCount; i++)
+        {
+            final String testPayload = RandomStringUtils.randomAlphanumeric(20);
+            testPayloads.add(testPayload);
+            muleContext.getClient().send("vm://windowedPublisher.in", testPayload, null);
+        }
+
+        subscriberWindowedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberWindowed"), is(testPayloads));
+    }
+
+    @Test
+    public void exposeStatisticsOverJmx() throws Exception
+    {
+        final int messageCount = 3;
+        final CountDownLatch subscriberWindowedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberWindowed", messageCount);
+
+        for (int i = 0; i < messageCount; i++)
+        {
+            muleContext.getClient().send("vm://windowedPublisher.in", RandomStringUtils.randomAlphanumeric(20),
+                null);
+        }
+
+        subscriberWindowedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        final ObjectName statisticsName = new ObjectName(MqttConnectorStatistics.JMX_DOMAIN
+                                                         + ":type=MqttConnector,clientId="
+                                                         + ObjectName.quote("muleWindowedPublisher"));
+        assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(statisticsName, "PublishedCount"),
+            is((Object) Long.valueOf(messageCount)));
+        assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(statisticsName, "PersistedCount"),
+            is((Object) Integer.valueOf(0)));
+    }
+
+    @Test
+    public void publishThroughShards() throws Exception
+    {
+        final int topicCount = 8;
+        final int messageCountPerTopic = 5;
+        final CountDownLatch subscriberShardedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberSharded", topicCount * messageCountPerTopic);
+
+        final Map<String, List<String>> testPayloadsByTopic = new HashMap<String, List<String>>();
+        for (int i = 0; i < messageCountPerTopic; i++)
+        {
+            for (int j = 0; j < topicCount; j++)
+            {
+                final String topicName = "test/sharded/" + j;
+                final String testPayload = topicName + ":" + RandomStringUtils.randomAlphanumeric(20);
+                if (!testPayloadsByTopic.containsKey(topicName))
+                {
+                    testPayloadsByTopic.put(topicName, new ArrayList<String>());
+                }
+                testPayloadsByTopic.get(topicName).add(testPayload);
+                muleContext.getClient().send("vm://shardedPublisher.in", testPayload,
+                    Collections.<String, Object> singletonMap("topicName", topicName));
+            }
+        }
+
+        subscriberShardedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        // topics are spread over the shards, each of them keeping its messages in order
+        final Map<String, List<String>> receivedPayloadsByTopic = new HashMap<String, List<String>>();
+        for (final String receivedPayload : getReceivedMessagePayloads("subscriberSharded"))
+        {
+            final String topicName = StringUtils.substringBefore(receivedPayload, ":");
+            if (!receivedPayloadsByTopic.containsKey(topicName))
+            {
+                receivedPayloadsByTopic.put(topicName, new ArrayList<String>());
+            }
+            receivedPayloadsByTopic.get(topicName).add(receivedPayload);
+        }
+        assertThat(receivedPayloadsByTopic, is(testPayloadsByTopic));
+    }
+
+    @Test
+    public void resumeAfterBrokerRestart() throws Exception
+    {
+        final int topicCount = 4;
+        for (int i = 0; i < topicCount; i++)
+        {
+            publishUntilReceived("subscriberSharded", "test/sharded/" + i, "before-" + i);
+        }
+
+        // the connections are lost and restored by the connectors, which aren't disconnected
+        mqttTestBroker.stopServer();
+        mqttTestBroker.startServer(mqttBrokerPort.getNumber());
+
+        for (int i = 0; i < topicCount; i++)
+        {
+            publishUntilReceived("subscriberSharded", "test/sharded/" + i, "after-" + i);
+        }
+
+        final List<String> receivedPayloads = getReceivedMessagePayloads("subscriberSharded");
+        for (int i = 0; i < topicCount; i++)
+        {
+            assertThat(receivedPayloads.contains("before-" + i), is(true));
+            assertThat(receivedPayloads.contains("after-" + i), is(true));
+        }
+    }
+
+    @Test
+    public void publishCompressed() throws Exception
+    {
+        final CountDownLatch subscriberCompressedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberCompressed", 3);
+
+        final String testPayload = StringUtils.repeat("{\"temperature\":21.5,\"unit\":\"C\"}", 50);
+        final List<String> testPayloads = new ArrayList<String>();
+        for (final PayloadCompression compression : Arrays.asList(PayloadCompression.DEFLATE,
+            PayloadCompression.LZF, PayloadCompression.NONE))
+        {
+            final MuleMessage result = muleContext.getClient().send("vm://compressedPublisher.in", testPayload,
+                Collections.<String, Object> singletonMap("compression", compression.name()));
+
+            assertThat(result.getPayloadAsString(), is(testPayload));
+            testPayloads.add(testPayload);
+        }
+
+        subscriberCompressedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberCompressed"), is(testPayloads));
+    }
+
+    @Test
+    public void passCorruptedEnvelopesThrough() throws Exception
+    {
+        final CountDownLatch subscriberCompressedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberCompressed", 1);
+
+        // the header of a compressed envelope, truncated before the compression header
+        final byte[] corruptedPayload = {(byte) 0xE7, (byte) 0x4D, 1, 1};
+        muleContext.getClient().send("vm://publisher.in", corruptedPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/compressed"));
+
+        subscriberCompressedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        final FunctionalTestComponent functionalTestComponent = getFunctionalTestComponent("subscriberCompressed");
+        assertThat(functionalTestComponent.getReceivedMessagesCount(), is(1));
+        assertThat(Arrays.equals((byte[]) functionalTestComponent.getReceivedMessage(1), corruptedPayload),
+            is(true));
+        final ObjectName statisticsName = new ObjectName(MqttConnectorStatistics.JMX_DOMAIN
+                                                         + ":type=MqttConnector,clientId="
+                                                         + ObjectName.quote("muleWindowedSubscriber"));
+        assertThat(
+            ManagementFactory.getPlatformMBeanServer().getAttribute(statisticsName, "DecodingFailureCount"),
+            is((Object) Long.valueOf(1L)));
+    }
+
+    @Test
+    public void publishCoalesced() throws Exception
+    {
+        final int messageCount = 5;
+        final CountDownLatch subscriberCoalescedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberCoalesced", messageCount);
+
+        final List<String> testPayloads = new ArrayList<String>();
+        for (int i = 0; i < messageCount; i++)
+        {
+            final String testPayload = RandomStringUtils.randomAlphanumeric(20);
+            testPayloads.add(testPayload);
+            muleContext.getClient().send("vm://coalescedPublisher.in", testPayload, null);
+        }
+
+        subscriberCoalescedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberCoalesced"), is(testPayloads));
+    }
+
+    @Test
+    public void dropDuplicates() throws Exception
+    {
+        final CountDownLatch subscriberDeduplicatedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberDeduplicated", 2);
+
+        final String duplicatedPayload = RandomStringUtils.randomAlphanumeric(20);
+        final String otherPayload = RandomStringUtils.randomAlphanumeric(20);
+        for (final String testPayload : Arrays.asList(duplicatedPayload, duplicatedPayload, otherPayload))
+        {
+            muleContext.getClient().send("vm://publisher.in", testPayload,
+                Collections.<String, Object> singletonMap("topicName", "test/deduplicated"));
+        }
+
+        subscriberDeduplicatedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberDeduplicated"),
+            is(Arrays.asList(duplicatedPayload, otherPayload)));
+    }
+
+    @Test
+    public void filterBeforeDispatching() throws Exception
+    {
+        final CountDownLatch subscriberFilteredComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberFiltered", 1);
+
+        final String keptPayload = "{\"value\": 42, \"id\": \"" + RandomStringUtils.randomAlphanumeric(20) + "\"}";
+        muleContext.getClient().send("vm://publisher.in", "{\"value\": 12}",
+            Collections.<String, Object> singletonMap("topicName", "test/filtered/kitchen/temperature"));
+        muleContext.getClient().send("vm://publisher.in", keptPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/filtered/kitchen/humidity"));
+        muleContext.getClient().send("vm://publisher.in", keptPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/filtered/kitchen/temperature"));
+
+        subscriberFilteredComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(getReceivedMessagePayloads("subscriberFiltered"), is(Arrays.asList(keptPayload)));
+    }
+
+    @Test
+    public void encodeAndDecodePayloadsWithTopicCodec() throws Exception
+    {
+        final CountDownLatch subscriberDecodedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberDecoded", 1);
+
+        final Map<String, Object> reading = new LinkedHashMap<String, Object>();
+        reading.put("device", RandomStringUtils.randomAlphanumeric(20));
+        reading.put("value", 21.5d);
+        reading.put("readings", Arrays.asList(1, 2, 3));
+        muleContext.getClient().send("vm://codecPublisher.in", reading, null);
+
+        subscriberDecodedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        final FunctionalTestComponent functionalTestComponent = getFunctionalTestComponent("subscriberDecoded");
+        assertThat(functionalTestComponent.getReceivedMessagesCount(), is(1));
+        assertThat(functionalTestComponent.getReceivedMessage(1), is((Object) reading));
+    }
+
+    @Test
+    public void passByteArraysAndUndecodablePayloadsThroughTopicCodec() throws Exception
+    {
+        final CountDownLatch subscriberDecodedComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberDecoded", 2);
+
+        // encoded as a CBOR byte string, decoded back into the same bytes
+        final String encodedPayload = RandomStringUtils.randomAlphanumeric(20);
+        muleContext.getClient().send("vm://codecPublisher.in", encodedPayload.getBytes(), null);
+
+        // published without codec, not valid CBOR: a text string of 18 bytes followed by more bytes
+        final String rawPayload = "raw-" + RandomStringUtils.randomAlphanumeric(20);
+        muleContext.getClient().send("vm://publisher.in", rawPayload.getBytes(),
+            Collections.<String, Object> singletonMap("topicName", "test/cbor/raw"));
+
+        subscriberDecodedComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        assertThat(new HashSet<String>(getReceivedMessagePayloads("subscriberDecoded")),
+            is(new HashSet<String>(Arrays.asList(encodedPayload, rawPayload))));
+        final ObjectName statisticsName = new ObjectName(MqttConnectorStatistics.JMX_DOMAIN
+                                                         + ":type=MqttConnector,clientId="
+                                                         + ObjectName.quote("muleCodecs"));
+        assertThat(
+            ManagementFactory.getPlatformMBeanServer().getAttribute(statisticsName, "DecodingFailureCount"),
+            is((Object) Long.valueOf(1L)));
+    }
+
+    @Test
+    public void requestAndReply() throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            final String testPayload = RandomStringUtils.randomAlphanumeric(20);
+            final MuleMessage result = muleContext.getClient().send("vm://requester.in", testPayload, null);
+
+            assertThat(new String((byte[]) result.getPayload()), is("reply to " + testPayload));
+        }
+    }
+
+    @Test
+    public void decodeRepliesWithReplyTopicCodec() throws Exception
+    {
+        final String testPayload = RandomStringUtils.randomAlphanumeric(20);
+        final MuleMessage result = muleContext.getClient().send("vm://codecRequester.in", testPayload, null);
+
+        // encoded by the responder with the codec of the reply topic and decoded back into a string
+        assertThat(result.getPayload(), is((Object) ("reply to " + testPayload)));
+    }
+
+    @Test
+    public void readLastValues() throws Exception
+    {
+        final CountDownLatch subscriberLastValuesComponentCountDownLatch = setupTestComponentForExpectedMessageCount(
+            "subscriberLastValues", 3);
+
+        final String kitchenPayload = RandomStringUtils.randomAlphanumeric(20);
+        final String bedroomPayload = RandomStringUtils.randomAlphanumeric(20);
+        muleContext.getClient().send("vm://publisher.in", RandomStringUtils.randomAlphanumeric(20),
+            Collections.<String, Object> singletonMap("topicName", "test/lastvalue/kitchen"));
+        muleContext.getClient().send("vm://publisher.in", kitchenPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/lastvalue/kitchen"));
+        muleContext.getClient().send("vm://publisher.in", bedroomPayload,
+            Collections.<String, Object> singletonMap("topicName", "test/lastvalue/bedroom"));
+
+        subscriberLastValuesComponentCountDownLatch.await(getTestTimeoutSecs(), TimeUnit.SECONDS);
+
+        final MuleMessage kitchenResult = muleContext.getClient().send("vm://lastValueReader.in", "",
+            Collections.<String, Object> singletonMap("topic", "test/lastvalue/kitchen"));
+        assertThat(new String((byte[]) kitchenResult.getPayload()), is(kitchenPayload));
+
+        final MuleMessage allResult = muleContext.getClient().send("vm://lastValueReader.in", "",
+            Collections.<String, Object> singletonMap("topic", "test/lastvalue/+"));
+        @SuppressWarnings("unchecked")
+        final Map<String, byte[]> lastValues = (Map<String, byte[]>) allResult.getPayload();
+        assertThat(lastValues.size(), is(2));
+        assertThat(new String(lastValues.get("test/lastvalue/kitchen")), is(kitchenPayload));
+        assertThat(new String(lastValues.get("test/lastvalue/bedroom")), is(bedroomPayload));
+    }
+
+    /**
+     * Publishes a message through the sharded publisher until the flow receives it, which takes
+     * several attempts while the publisher or the subscriber are reconnecting.
+     */
+    private void publishUntilReceived(final String flowName, final String topicName, final String testPayload)
+        throws Exception
+    {
+        final FunctionalTestComponent functionalTestComponent = getFunctionalTestComponent(flowName);
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getTestTimeoutSecs());
+        while (System.currentTimeMillis() < deadline)
+        {
+            final int receivedMessageCount = functionalTestComponent.getReceivedMessagesCount();
+            try
+            {
+                muleContext.getClient().send("vm://shardedPublisher.in", testPayload,
+                    Collections.<String, Object> singletonMap("topicName", topicName));
+            }
+            catch (final Exception e)
+            {
+                // the publisher is reconnecting
+            }
+
+            final long attemptDeadline = System.currentTimeMillis() + 500L;
+            while ((functionalTestComponent.getReceivedMessagesCount() == receivedMessageCount)
+                   && (System.currentTimeMillis() < attemptDeadline))
+            {
+                Thread.sleep(20L);
+            }
+            if (getReceivedMessagePayloads(flowName).contains(testPayload))
+            {
+                return;
+            }
+        }
+        fail("Message not received on topic: " + topicName);
     }
 
     private List<String> getReceivedMessagePayloads(final String flowName) throws Exception
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttTopicFilterTrieTestCase extends AbstractMuleTestCase
+{
+    @Test
+    public void matchExactAndWildcardFilters()
+    {
+        final MqttTopicFilterTrie<String> trie = new MqttTopicFilterTrie<String>();
+        trie.add("sport/tennis/player1", "exact");
+        trie.add("sport/+/player1", "single");
+        trie.add("sport/#", "multi");
+        trie.add("+/+", "twoLevels");
+        trie.add("#", "all");
+
+        assertThat(trie.match("sport/tennis/player1"),
+            is(new HashSet<String>(Arrays.asList("exact", "single", "multi", "all"))));
+        assertThat(trie.match("sport"), is(new HashSet<String>(Arrays.asList("multi", "all"))));
+        assertThat(trie.match("sport/tennis"),
+            is(new HashSet<String>(Arrays.asList("multi", "twoLevels", "all"))));
+        assertThat(trie.match("finance"), is(Collections.singleton("all")));
+    }
+
+    @Test
+    public void systemTopicsAreNotMatchedByLeadingWildcards()
+    {
+        final MqttTopicFilterTrie<String> trie = new MqttTopicFilterTrie<String>();
+        trie.add("#", "all");
+        trie.add("$SYS/#", "system");
+
+        assertThat(trie.match("$SYS/broker/load"), is(Collections.singleton("system")));
+    }
+
+    @Test
+    public void removedFiltersAreNotMatched()
+    {
+        final MqttTopicFilterTrie<String> trie = new MqttTopicFilterTrie<String>();
+        trie.add("sport/+", "first");
+        trie.add("sport/+", "second");
+
+        trie.remove("sport/+", "first");
+        assertThat(trie.match("sport/tennis"), is(Collections.singleton("second")));
+
+        trie.remove("sport/+", "second");
+        assertThat(trie.isEmpty(), is(true));
+    }
+}
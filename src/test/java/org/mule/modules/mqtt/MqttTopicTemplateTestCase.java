@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ * 
+ */
+
+package org.mule.modules.mqtt;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mule.api.MuleEvent;
+import org.mule.api.MuleMessage;
+import org.mule.tck.junit4.AbstractMuleTestCase;
+
+public class MqttTopicTemplateTestCase extends AbstractMuleTestCase
+{
+    private final Map<String, Object> inboundProperties = new HashMap<String, Object>();
+    private final Map<String, Object> outboundProperties = new HashMap<String, Object>();
+    private final Map<String, Object> flowVariables = new HashMap<String, Object>();
+    private final Map<String, Object> sessionVariables = new HashMap<String, Object>();
+
+    @Test
+    public void plainTopicsAreNotTemplates()
+    {
+        assertThat(MqttTopicTemplate.isTemplate("devices/kitchen/cmd"), is(false));
+        assertThat(MqttTopicTemplate.isTemplate(null), is(false));
+        assertThat(MqttTopicTemplate.isTemplate("devices/%{flowVars.id}/cmd"), is(true));
+    }
+
+    @Test
+    public void bracesWithoutMarkerAreKept()
+    {
+        flowVariables.put("id", "kitchen");
+
+        assertThat(MqttTopicTemplate.isTemplate("devices/{id}/cmd"), is(false));
+        assertThat(MqttTopicTemplate.isTemplate("devices/${id}/cmd"), is(false));
+        assertThat(new MqttTopicTemplate("{devices}/%{id}/{cmd").resolve(newMuleEvent()),
+            is("{devices}/kitchen/{cmd"));
+    }
+
+    @Test
+    public void placeholdersAreFilledIn()
+    {
+        inboundProperties.put("device", "kitchen");
+        outboundProperties.put("command", "reboot");
+        flowVariables.put("site", 42);
+        sessionVariables.put("tenant", "acme");
+
+        final MqttTopicTemplate template = new MqttTopicTemplate(
+            "%{sessionVars.tenant}/%{flowVars.site}/%{inboundProperties.device}/%{ outboundProperties.command }");
+        assertThat(template.resolve(newMuleEvent()), is("acme/42/kitchen/reboot"));
+
+        inboundProperties.put("device", "bedroom");
+        assertThat(template.resolve(newMuleEvent()), is("acme/42/bedroom/reboot"));
+    }
+
+    @Test
+    public void bareNamesPreferFlowVariables()
+    {
+        inboundProperties.put("device", "kitchen");
+        inboundProperties.put("room", "bedroom");
+        flowVariables.put("device", "oven");
+
+        assertThat(new MqttTopicTemplate("devices/%{device}/%{room}").resolve(newMuleEvent()),
+            is("devices/oven/bedroom"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValuesAreRejected()
+    {
+        new MqttTopicTemplate("devices/%{flowVars.device}").resolve(newMuleEvent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardsInValuesAreRejected()
+    {
+        flowVariables.put("device", "#");
+        new MqttTopicTemplate("devices/%{flowVars.device}").resolve(newMuleEvent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedPlaceholdersAreRejected()
+    {
+        new MqttTopicTemplate("devices/%{flowVars.device");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPlaceholdersAreRejected()
+    {
+        new MqttTopicTemplate("devices/%{}/cmd");
+    }
+
+    private MuleEvent newMuleEvent()
+    {
+        final MuleMessage muleMessage = (MuleMessage) Proxy.newProxyInstance(MuleMessage.class.getClassLoader(),
+            new Class<?>[]{MuleMessage.class}, new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    if ("getInboundProperty".equals(method.getName()))
+                    {
+                        return inboundProperties.get(args[0]);
+                    }
+                    return "getOutboundProperty".equals(method.getName()) ? outboundProperties.get(args[0]) : null;
+                }
+            });
+
+        return (MuleEvent) Proxy.newProxyInstance(MuleEvent.class.getClassLoader(),
+            new Class<?>[]{MuleEvent.class}, new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    if ("getMessage".equals(method.getName()))
+                    {
+                        return muleMessage;
+                    }
+                    if ("getFlowVariable".equals(method.getName()))
+                    {
+                        return flowVariables.get(args[0]);
+                    }
+                    return "getSessionVariable".equals(method.getName()) ? sessionVariables.get(args[0]) : null;
+                }
+            });
+    }
+}